@@ -19,16 +19,22 @@
 package org.bedework.timezones.common;
 
 import org.bedework.timezones.common.db.TzAlias;
-import org.bedework.util.caching.FlushMap;
 import org.bedework.util.calendar.IcalToXcal;
 import org.bedework.util.timezones.DateTimeUtil;
+import org.bedework.util.timezones.model.LocalNameType;
+import org.bedework.util.timezones.model.TimezoneListType;
 import org.bedework.util.timezones.model.TimezoneType;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import ietf.params.xml.ns.icalendar_2.IcalendarType;
 import net.fortuna.ical4j.data.CalendarBuilder;
 import net.fortuna.ical4j.data.UnfoldingReader;
 import net.fortuna.ical4j.model.Calendar;
 import net.fortuna.ical4j.model.Component;
+import net.fortuna.ical4j.model.DateTime;
 import net.fortuna.ical4j.model.TimeZone;
 import net.fortuna.ical4j.model.component.VTimeZone;
 import net.fortuna.ical4j.model.property.EquivalentTzId;
@@ -36,16 +42,30 @@ import net.fortuna.ical4j.model.property.LastModified;
 import net.fortuna.ical4j.model.property.TzId;
 import org.apache.log4j.Logger;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.StringReader;
+import java.lang.ref.SoftReference;
 import java.sql.Timestamp;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.datatype.DatatypeFactory;
 
 /** Abstract class to help simplify implementation
  *
@@ -64,22 +84,60 @@ public abstract class AbstractCachedData implements CachedData {
   /** XML formatted UTC dtstamp (i.e. separators) for the data */
   protected String dtstamp;
 
-  private Map<String, String> vtzs = new HashMap<>();
-
-  private Map<String, TimeZone> timeZones = new FlushMap<>();
+  /* Used to render the list once per load. Configured as for the
+     servlet responses. */
+  private static final ObjectWriter jsonWriter;
 
-  private Map<String, IcalendarType> xtzs = new HashMap<>();
+  /* Reads the summaries back from a snapshot file */
+  private static final ObjectReader jsonReader;
 
-  private Map<String, String> aliasedVtzs = new HashMap<>();
+  static {
+    final ObjectMapper mapper = new ObjectMapper();
 
-//  private Map<String, TimeZone> aliasedTzs = new HashMap<String, TimeZone>();
+    mapper.setDateFormat(
+            new SimpleDateFormat("yyyy'-'MM'-'dd'T'HH':'mm':'ss'Z'"));
 
-  private Map<String, IcalendarType> aliasedXtzs = new HashMap<>();
+    mapper.setSerializationInclusion(JsonInclude.Include.NON_NULL);
 
-  private SortedSet<String> nameList;
+    jsonWriter = mapper.writer();
+    jsonReader = mapper.reader(TimezoneType.class);
+  }
 
-  protected Map<ExpandedMapEntryKey, ExpandedMapEntry> expansions =
-    new HashMap<>();
+  /* A zone rendered to fingerprint the rendering code. Any change to
+   * how we render, summarise or compile it changes the fingerprint and
+   * so invalidates snapshots built by other code.
+   */
+  private static final String fingerprintZone =
+          "BEGIN:VTIMEZONE\n" +
+          "TZID:Fingerprint/Zone\n" +
+          "LAST-MODIFIED:20140101T000000Z\n" +
+          "BEGIN:DAYLIGHT\n" +
+          "TZOFFSETFROM:-0500\n" +
+          "TZOFFSETTO:-0400\n" +
+          "TZNAME:FDT\n" +
+          "DTSTART:20070311T020000\n" +
+          "RRULE:FREQ=YEARLY;BYMONTH=3;BYDAY=2SU\n" +
+          "END:DAYLIGHT\n" +
+          "BEGIN:STANDARD\n" +
+          "TZOFFSETFROM:-0400\n" +
+          "TZOFFSETTO:-0500\n" +
+          "TZNAME:FST\n" +
+          "DTSTART:20071104T020000\n" +
+          "RRULE:FREQ=YEARLY;BYMONTH=11;BYDAY=1SU\n" +
+          "END:STANDARD\n" +
+          "END:VTIMEZONE\n";
+
+  private static String fingerprint;
+
+  /** Used if maxExpansions is not configured */
+  public static final int defaultMaxExpansions = 1000;
+
+  private long warmups;
+  private int warmupZones;
+  private long warmupMillis;
+
+  private long snapshotLoads;
+  private long snapshotWrites;
 
   /** */
   public static class AliasMaps {
@@ -99,9 +157,180 @@ public abstract class AbstractCachedData implements CachedData {
 
   protected TzConfig cfg;
 
-  private List<TimezoneType> timezones;
+  /* Everything a load builds along with the caches derived from it.
+   * A load fills in a new snapshot off to the side and publish swaps
+   * it in with a single volatile write. Once published the data is
+   * not changed, so readers never block and never see a partial load.
+   */
+  private static class Snapshot {
+    String dtstamp;
+
+    AliasMaps aliasMaps;
+
+    /* VTIMEZONE text for each tzid and alias */
+    final ZoneStore store = new ZoneStore();
+
+    /* xCal for each tzid and alias - built when first asked for and
+       dropped if memory gets short */
+    final Map<String, SoftReference<IcalendarType>> xtzs =
+            new ConcurrentHashMap<>();
+
+    final Map<String, SoftReference<IcalendarType>> aliasedXtzs =
+            new ConcurrentHashMap<>();
+
+    final AtomicLong xtzBuilds = new AtomicLong();
+
+    /* Complete encoded calendar for each tzid and alias - held once
+       per distinct body */
+    final CalendarStore calendars = new CalendarStore();
+
+    /* Compiled transitions for each tzid and alias. Filled in on
+       demand when the data is in a snapshot file */
+    final Map<String, TransitionTable> transitions =
+            new ConcurrentHashMap<>();
+
+    /* If set everything other than the summaries and caches is read
+       from this file and the maps above are empty */
+    SnapshotFile file;
+
+    /* Documents that only change with the data - rendered once per load */
+    CachedContent namesContent;
+
+    CachedContent aliasesContent;
+
+    CachedContent listContent;
+
+    /* Each summary rendered as json - used to build filtered lists */
+    Map<String, String> summaryJson = new HashMap<>();
+
+    long summaryJsonChars;
+
+    final SortedSet<String> nameList = new TreeSet<>();
+
+    final List<TimezoneType> timezones = new ArrayList<>();
+
+    final Map<String, TimezoneType> timezonesMap = new HashMap<>();
+
+    /* Built from the summaries when published */
+    FindIndex findIndex;
+
+    /* Caches - these change after publication but only hold values
+       derived from this data */
+
+    final SingleFlightCache<String, TimeZone> timeZones =
+            new SingleFlightCache<>("timezones");
+
+    final BoundedCache<ExpandedMapEntryKey, ExpandedMapEntry> expansions;
+
+    /* Canonical onsets for each zone - built on demand and replaced
+       when extended */
+    final Map<String, ZoneOnsets> zoneOnsets = new ConcurrentHashMap<>();
+
+    Snapshot(final int maxExpansions) {
+      expansions = new BoundedCache<>("expansions", maxExpansions);
+    }
+
+    String getZone(final String tzid) {
+      if (file != null) {
+        return file.getVtz(tzid);
+      }
+
+      return store.getZone(tzid);
+    }
+
+    String getAlias(final String alias) {
+      if (file != null) {
+        return file.getVtz(alias);
+      }
+
+      return store.getAlias(alias);
+    }
+
+    Collection<String> getAllZones() {
+      if (file == null) {
+        return store.getAllZones();
+      }
+
+      final List<String> res = new ArrayList<>(nameList.size());
+
+      for (final String tzid: nameList) {
+        res.add(file.getVtz(tzid));
+      }
+
+      return res;
+    }
+
+    boolean isKnown(final String name) {
+      if (file != null) {
+        return file.contains(name);
+      }
+
+      return calendars.contains(name);
+    }
+
+    CachedContent getCalendar(final String name,
+                              final CalFormat format) {
+      if (file != null) {
+        return file.getCalendar(name, format);
+      }
+
+      return calendars.get(name, format);
+    }
+
+    TransitionTable getTransitions(final String name) {
+      TransitionTable tt = transitions.get(name);
+
+      if ((tt != null) || (file == null)) {
+        return tt;
+      }
+
+      tt = file.getTransitions(name);
+
+      if (tt != null) {
+        transitions.put(name, tt);
+      }
+
+      return tt;
+    }
 
-  private Map<String, TimezoneType> timezonesMap;
+    CachedContent getNamesContent() {
+      if (file != null) {
+        return file.getNamesContent();
+      }
+
+      return namesContent;
+    }
+
+    CachedContent getAliasesContent() {
+      if (file != null) {
+        return file.getAliasesContent();
+      }
+
+      return aliasesContent;
+    }
+
+    CachedContent getListContent() {
+      if (file != null) {
+        return file.getListContent();
+      }
+
+      return listContent;
+    }
+
+    String getSummaryJson(final String tzid) {
+      if (file != null) {
+        return file.getSummaryJson(tzid);
+      }
+
+      return summaryJson.get(tzid);
+    }
+  }
+
+  /* What readers see */
+  private volatile Snapshot data;
+
+  /* Being built by a load - only touched by the loading thread */
+  private Snapshot building;
 
   /**
    * @param cfg
@@ -118,31 +347,107 @@ public abstract class AbstractCachedData implements CachedData {
 
     this.cfg = cfg;
     this.msgPrefix = msgPrefix;
+
+    data = newSnapshot();
   }
 
   @Override
   public List<Stat> getStats() throws TzException {
     final List<Stat> stats = new ArrayList<>();
-
-    if (vtzs == null) {
-      stats.add(new Stat(msgPrefix, " #tzs  Unavailable"));
-    } else {
-      stats.add(new Stat(msgPrefix + " #tzs", String.valueOf(vtzs.size())));
+    final Snapshot d = data;
+
+    stats.add(new Stat(msgPrefix + " #tzs",
+                       String.valueOf(d.nameList.size())));
+
+    stats.add(new Stat(msgPrefix + " dtstamp", d.dtstamp));
+    stats.add(new Stat(msgPrefix + " cached calendars",
+                       String.valueOf(d.calendars.size()),
+                       String.valueOf(d.calendars.splicedCount()),
+                       "spliced"));
+    stats.add(new Stat(msgPrefix + " compiled transitions",
+                       String.valueOf(d.transitions.size())));
+
+    long renderedBytes = 0;
+    for (final CachedContent cc: new CachedContent[]{d.namesContent,
+                                                     d.aliasesContent,
+                                                     d.listContent}) {
+      if (cc != null) {
+        renderedBytes += cc.getSize();
+      }
     }
-
-    stats.add(new Stat(msgPrefix + " dtstamp", dtstamp));
-    stats.add(new Stat(msgPrefix + " cached expansions",
-                       String.valueOf(expansions.size())));
+    stats.add(new Stat(msgPrefix + " rendered lists bytes",
+                       String.valueOf(renderedBytes)));
+
+    /* Estimated heap for each map */
+    stats.add(new Stat(msgPrefix + " heap vtimezones",
+                       String.valueOf(d.store.heapBytes())));
+    stats.add(new Stat(msgPrefix + " vtimezone bodies",
+                       String.valueOf(d.store.bodyCount()),
+                       String.valueOf(d.store.zoneCount() +
+                                              d.store.aliasCount()),
+                       "names"));
+    stats.add(new Stat(msgPrefix + " heap calendars",
+                       String.valueOf(d.calendars.heapBytes()),
+                       String.valueOf(d.calendars.bodyCount()),
+                       "bodies"));
+    stats.add(new Stat(msgPrefix + " heap summaries",
+                       String.valueOf(d.summaryJsonChars * 2)));
+
+    final Map<TransitionTable, Boolean> tables = new IdentityHashMap<>();
+    long transitionBytes = 0;
+    for (final TransitionTable tt: d.transitions.values()) {
+      if (tables.put(tt, Boolean.TRUE) == null) {
+        transitionBytes += tt.heapBytes();
+      }
+    }
+    stats.add(new Stat(msgPrefix + " heap transitions",
+                       String.valueOf(transitionBytes),
+                       String.valueOf(tables.size()), "tables"));
+    stats.add(new Stat(msgPrefix + " xcal cached",
+                       String.valueOf(d.xtzs.size()),
+                       String.valueOf(d.aliasedXtzs.size()), "aliased"));
+    stats.add(new Stat(msgPrefix + " xcal builds",
+                       String.valueOf(d.xtzBuilds.get())));
+    stats.addAll(d.timeZones.getStats(msgPrefix));
+    stats.addAll(d.expansions.getStats(msgPrefix));
+    if (d.file != null) {
+      stats.add(new Stat(msgPrefix + " snapshot mapped",
+                         d.file.getFile().getPath(),
+                         String.valueOf(d.file.getSize()), "bytes"));
+    }
+    stats.add(new Stat(msgPrefix + " snapshot loads",
+                       String.valueOf(snapshotLoads),
+                       String.valueOf(snapshotWrites), "writes"));
+    if (d.findIndex != null) {
+      stats.add(new Stat(msgPrefix + " find index names",
+                         String.valueOf(d.findIndex.size())));
+    }
+    stats.add(new Stat(msgPrefix + " zone onsets",
+                       String.valueOf(d.zoneOnsets.size())));
+    stats.add(new Stat(msgPrefix + " warm-ups",
+                       String.valueOf(warmups)));
+    stats.add(new Stat(msgPrefix + " last warm-up",
+                       String.valueOf(warmupZones),
+                       String.valueOf(warmupMillis)));
 
     return stats;
   }
 
-  /** Find tz identifiers or alias names that (partially) match the given value
+  /** Find tz identifiers whose id, aliases or local names (partially)
+   * match the given value
    * @param val
-   * @return list of strings - never null
+   * @return list of tzids ranked best first - never null
    * @throws TzException
    */
-  public abstract List<String> findIds(String val) throws TzException;
+  public List<String> findIds(final String val) throws TzException {
+    final FindIndex fi = data.findIndex;
+
+    if (fi == null) {
+      return new ArrayList<>();
+    }
+
+    return fi.findIds(val);
+  }
 
   /* ====================================================================
    *                   CachedData methods
@@ -150,68 +455,317 @@ public abstract class AbstractCachedData implements CachedData {
 
   @Override
   public String getDtstamp() throws TzException {
-    return dtstamp;
+    return data.dtstamp;
   }
 
   @Override
   public TzAlias fromAlias(final String val) throws TzException {
-    return aliasMaps.byAlias.get(val);
+    return data.aliasMaps.byAlias.get(val);
   }
 
   @Override
   public String getAliasesStr() throws TzException {
-    return aliasMaps.aliasesStr;
+    return data.aliasMaps.aliasesStr;
   }
 
   @Override
   public SortedSet<String> findAliases(final String tzid) throws TzException {
-    return aliasMaps.byTzid.get(tzid);
+    return data.aliasMaps.byTzid.get(tzid);
   }
 
   @Override
   public SortedSet<String> getNameList() throws TzException {
-    return nameList;
+    return data.nameList;
   }
 
   @Override
   public void setExpanded(final ExpandedMapEntryKey key,
-                          final ExpandedMapEntry tzs) throws TzException {
-    expansions.put(key, tzs);
+                          final ExpandedMapEntry tzs,
+                          final long millis) throws TzException {
+    data.expansions.put(key, tzs, millis);
+  }
+
+  /** Make the data built since resetTzs the data we serve. Expansions
+   * and other derived values go with the data they came from so
+   * there's nothing to clear.
+   */
+  protected void publish() {
+    if (building == null) {
+      return;
+    }
+
+    building.dtstamp = dtstamp;
+    building.aliasMaps = aliasMaps;
+    building.findIndex = new FindIndex(building.timezones);
+
+    data = building;
+    building = null;
+  }
+
+  /** If configured, expand the canonical onsets of every zone in
+   * parallel so requests after a load don't pay for it. Called before
+   * publish while the load is still in progress.
+   */
+  protected void warmExpansions() {
+    final int parallelism = cfg.getWarmupParallelism();
+    final Snapshot s = building;
+
+    if ((parallelism <= 0) || (s == null)) {
+      return;
+    }
+
+    final long smillis = System.currentTimeMillis();
+
+    final List<Callable<Boolean>> tasks = new ArrayList<>(s.nameList.size());
+
+    for (final String tzid: s.nameList) {
+      tasks.add(new Callable<Boolean>() {
+        @Override
+        public Boolean call() {
+          try {
+            /* This also builds the TimeZone for the snapshot */
+            final TimeZone tz = getTimeZone(s, tzid);
+
+            if (tz == null) {
+              return false;
+            }
+
+            s.zoneOnsets.put(tzid,
+                           ZoneOnsets.expand(tz,
+                                             ZoneOnsets.canonicalStart,
+                                             ZoneOnsets.canonicalEnd));
+            return true;
+          } catch (final Throwable t) {
+            warn("Unable to warm up " + tzid + ": " + t.getMessage());
+            return false;
+          }
+        }
+      });
+    }
+
+    final ForkJoinPool pool = new ForkJoinPool(parallelism);
+    int warmed = 0;
+
+    try {
+      for (final Future<Boolean> f: pool.invokeAll(tasks)) {
+        if (f.get()) {
+          warmed++;
+        }
+      }
+    } catch (final Throwable t) {
+      error(t);
+    } finally {
+      pool.shutdown();
+    }
+
+    warmups++;
+    warmupZones = warmed;
+    warmupMillis = System.currentTimeMillis() - smillis;
+
+    if (debug) {
+      trace("Warmed " + warmed + " zones in " + warmupMillis + " millis");
+    }
+  }
+
+  /** If a snapshot file is configured and holds the data for the
+   * current dtstamp and alias table, make it the data being built.
+   * Called by a loader once it knows the dtstamp and has the alias
+   * maps, instead of processing every spec and rendering.
+   *
+   * @return true if the snapshot is being used
+   */
+  protected boolean loadSnapshot() {
+    final File f = snapshotFile();
+
+    if ((f == null) || !f.exists()) {
+      return false;
+    }
+
+    try {
+      final SnapshotFile sf = SnapshotFile.open(f);
+
+      final String aliasesStr;
+      if (aliasMaps == null) {
+        aliasesStr = null;
+      } else {
+        aliasesStr = aliasMaps.aliasesStr;
+      }
+
+      if (!same(sf.getDtstamp(), dtstamp) ||
+              !same(sf.getAliasesStr(), aliasesStr) ||
+              !same(sf.getSource(), snapshotSource())) {
+        if (debug) {
+          trace("Snapshot " + f + " is for other data");
+        }
+        return false;
+      }
+
+      if (!same(sf.getFingerprint(), fingerprint()) ||
+              !same(sf.getProdid(), TzServerUtil.getProdid())) {
+        info("Snapshot " + f + " was rendered by other code - rebuilding");
+        return false;
+      }
+
+      final Snapshot b = newSnapshot();
+
+      b.file = sf;
+
+      for (final String tzid: sf.getZoneNames()) {
+        final TimezoneType tz = jsonReader.readValue(
+                sf.getSummaryJson(tzid));
+
+        b.nameList.add(tzid);
+        b.timezones.add(tz);
+        b.timezonesMap.put(tzid, tz);
+      }
+
+      building = b;
+      snapshotLoads++;
+
+      info("Mapped " + b.nameList.size() + " zones from snapshot " + f);
+
+      return true;
+    } catch (final Throwable t) {
+      warn("Unable to use snapshot " + f + ": " + t.getMessage());
+      return false;
+    }
+  }
+
+  /** If a snapshot file is configured write the data just built to it
+   * so the next start can map it. Called after renderTzs. A failure is
+   * logged and otherwise ignored.
+   */
+  protected void saveSnapshot() {
+    final File f = snapshotFile();
+    final Snapshot b = building;
+
+    if ((f == null) || (b == null) || (b.file != null)) {
+      return;
+    }
+
+    SnapshotFile.Writer w = null;
+
+    try {
+      final String aliasesStr;
+      if (aliasMaps == null) {
+        aliasesStr = null;
+      } else {
+        aliasesStr = aliasMaps.aliasesStr;
+      }
+
+      w = new SnapshotFile.Writer(f, dtstamp, aliasesStr,
+                                  fingerprint(),
+                                  TzServerUtil.getProdid(),
+                                  snapshotSource(),
+                                  b.namesContent,
+                                  b.aliasesContent,
+                                  b.listContent);
+
+      for (final String tzid: b.nameList) {
+        w.add(tzid, false,
+              b.store.getZone(tzid),
+              b.summaryJson.get(tzid),
+              b.calendars.get(tzid),
+              b.transitions.get(tzid));
+      }
+
+      for (final String alias: b.store.getAliasNames()) {
+        w.add(alias, true,
+              b.store.getAlias(alias),
+              null,
+              b.calendars.get(alias),
+              b.transitions.get(alias));
+      }
+
+      w.close();
+      snapshotWrites++;
+    } catch (final Throwable t) {
+      if (w != null) {
+        w.abort();
+      }
+      warn("Unable to write snapshot " + f + ": " + t.getMessage());
+    }
+  }
+
+  /** Identifies where the data came from for the snapshot. A snapshot
+   * from another source is not used even if the dtstamp matches.
+   *
+   * @return description of the source
+   */
+  protected String snapshotSource() {
+    return msgPrefix + " " + cfg.getTzdataUrl() + " " +
+            cfg.getLeveldbPath() + " " + cfg.getPrimaryUrl();
+  }
+
+  @Override
+  public void setZoneOnsets(final String tzid,
+                            final ZoneOnsets val) throws TzException {
+    data.zoneOnsets.put(tzid, val);
+  }
+
+  @Override
+  public ZoneOnsets getZoneOnsets(final String tzid) throws TzException {
+    return data.zoneOnsets.get(tzid);
   }
 
   @Override
   public ExpandedMapEntry getExpanded(final ExpandedMapEntryKey key) throws TzException {
-    return expansions.get(key);
+    return data.expansions.get(key);
   }
 
   @Override
   public String getCachedVtz(final String name) throws TzException {
-    return vtzs.get(name);
+    return data.getZone(name);
   }
 
   @Override
-  public Collection<String> getAllCachedVtzs() throws TzException {
-    return vtzs.values();
+  public boolean isKnown(final String name) throws TzException {
+    return data.isKnown(name);
   }
 
   @Override
-  public TimeZone getTimeZone(final String tzid) throws TzException {
-    TimeZone tz = timeZones.get(tzid);
+  public CachedContent getCachedCalendar(final String name,
+                                         final CalFormat format) throws TzException {
+    return data.getCalendar(name, format);
+  }
 
-    if (tz != null) {
-      return tz;
-    }
+  @Override
+  public TransitionTable getTransitions(final String name) throws TzException {
+    return data.getTransitions(name);
+  }
+
+  @Override
+  public CachedContent getNamesContent() throws TzException {
+    return data.getNamesContent();
+  }
+
+  @Override
+  public CachedContent getAliasesContent() throws TzException {
+    return data.getAliasesContent();
+  }
 
-    Calendar cal = parseDef(TzServerUtil.getCalHdr() +
-                                    getCachedVtz(tzid) +
-                                    TzServerUtil.getCalTlr());
+  @Override
+  public CachedContent getListContent() throws TzException {
+    return data.getListContent();
+  }
 
-    tz = new TimeZone(vtzFromCal(cal));
+  @Override
+  public String getSummaryJson(final String tzid) throws TzException {
+    return data.getSummaryJson(tzid);
+  }
 
+  @Override
+  public Collection<String> getAllCachedVtzs() throws TzException {
+    return data.getAllZones();
+  }
 
-    timeZones.put(tzid, tz);
+  @Override
+  public TimeZone getTimeZone(final String tzid) throws TzException {
+    if (tzid == null) {
+      return null;
+    }
 
-    return tz;
+    return getTimeZone(data, tzid);
   }
 
   /* (non-Javadoc)
@@ -224,21 +778,76 @@ public abstract class AbstractCachedData implements CachedData {
 
   @Override
   public IcalendarType getXTimeZone(final String tzid) throws TzException {
-    return xtzs.get(tzid);
+    return getXtz(data, tzid, false);
   }
 
   @Override
   public IcalendarType getAliasedXTimeZone(final String tzid) throws TzException {
-    return aliasedXtzs.get(tzid);
+    return getXtz(data, tzid, true);
+  }
+
+  @Override
+  public Map<String, IcalendarType> getAllXTimeZones() throws TzException {
+    final Snapshot d = data;
+    final Map<String, IcalendarType> res = new ConcurrentHashMap<>();
+
+    final List<Callable<Boolean>> tasks = new ArrayList<>(d.nameList.size());
+
+    for (final String tzid: d.nameList) {
+      tasks.add(new Callable<Boolean>() {
+        @Override
+        public Boolean call() {
+          try {
+            final IcalendarType xcal = getXtz(d, tzid, false);
+
+            if (xcal != null) {
+              res.put(tzid, xcal);
+            }
+            return true;
+          } catch (final Throwable t) {
+            warn("Unable to build xCal for " + tzid + ": " + t.getMessage());
+            return false;
+          }
+        }
+      });
+    }
+
+    int parallelism = cfg.getWarmupParallelism();
+    if (parallelism <= 0) {
+      parallelism = Runtime.getRuntime().availableProcessors();
+    }
+
+    final ForkJoinPool pool = new ForkJoinPool(parallelism);
+    int failed = 0;
+
+    try {
+      for (final Future<Boolean> f: pool.invokeAll(tasks)) {
+        if (!f.get()) {
+          failed++;
+        }
+      }
+    } catch (final Throwable t) {
+      throw new TzException(t);
+    } finally {
+      pool.shutdown();
+    }
+
+    if (failed > 0) {
+      throw new TzException("Unable to build xCal for " + failed +
+                                    " zones");
+    }
+
+    return res;
   }
 
   @Override
   public String getAliasedCachedVtz(final String name) throws TzException {
-    return aliasedVtzs.get(name);
+    return data.getAlias(name);
   }
 
   @Override
   public List<TimezoneType> getTimezones(final String[] tzids) throws TzException {
+    final Map<String, TimezoneType> timezonesMap = data.timezonesMap;
     List<TimezoneType> ss = new ArrayList<>();
 
     for (String tzid: tzids) {
@@ -254,6 +863,8 @@ public abstract class AbstractCachedData implements CachedData {
 
   @Override
   public List<TimezoneType> getTimezones(final String changedSince) throws TzException {
+    final List<TimezoneType> timezones = data.timezones;
+
     if (changedSince == null) {
       return timezones;
     }
@@ -284,17 +895,13 @@ public abstract class AbstractCachedData implements CachedData {
 
   @Override
   public List<TimezoneType> findTimezones(final String name) throws TzException {
-    List<TimezoneType> sums = new ArrayList<>();
+    final FindIndex fi = data.findIndex;
 
-    List<String> ids = findIds(name);
-
-    for (TimezoneType tz: timezones) {
-      if (ids.contains(tz.getTzid())) {
-        sums.add(tz);
-      }
+    if (fi == null) {
+      return new ArrayList<>();
     }
 
-    return sums;
+    return fi.find(name);
   }
 
   /* ====================================================================
@@ -324,17 +931,11 @@ public abstract class AbstractCachedData implements CachedData {
                              final Calendar cal,
                              final String storedDtstamp) throws TzException {
     try {
-      nameList.add(id);
+      final Snapshot b = building;
 
-      final VTimeZone vtz = vtzFromCal(cal);
-
-      vtzs.put(id, vtz.toString());
-
-      /* Now build the XML version */
+      b.nameList.add(id);
 
-      IcalendarType xcal = IcalToXcal.fromIcal(cal, null, true);
-
-      xtzs.put(id, xcal);
+      final VTimeZone vtz = vtzFromCal(cal);
 
       /* ================== Build summary info ======================== */
       final TimezoneType tz = new TimezoneType();
@@ -350,7 +951,20 @@ public abstract class AbstractCachedData implements CachedData {
         tz.setLastModified(DateTimeUtil.fromRfcDateTimeUTC(dtstamp));
       }
 
-      final SortedSet<String> aliases = findAliases(id);
+      final long lastModified = millis(tz.getLastModified());
+
+      final String vtzStr = vtz.toString();
+      b.store.putZone(id, vtzStr);
+      b.calendars.put(id, vtz, vtzStr, lastModified);
+
+      final TransitionTable tt = compileTransitions(id, vtz);
+
+      final SortedSet<String> aliases;
+      if (aliasMaps == null) {
+        aliases = null;
+      } else {
+        aliases = aliasMaps.byTzid.get(id);
+      }
 
       // XXX Need to have list of local names per timezone
       //String ln = vtz.
@@ -370,19 +984,187 @@ public abstract class AbstractCachedData implements CachedData {
             }
           }
 
-          final VTimeZone avtz = addAlias(a, vtz, aliasedIds);
+          addAlias(a, vtz, aliasedIds, lastModified);
 
-          cal.getComponents().clear();
-          cal.getComponents().add(avtz);
+          if (tt != null) {
+            b.transitions.put(a, tt);
+          }
+        }
+      }
 
-          xcal = IcalToXcal.fromIcal(cal, null, true);
+      b.timezones.add(tz);
+      b.timezonesMap.put(tz.getTzid(), tz);
+    } catch (final TzException te) {
+      throw te;
+    } catch (final Throwable t) {
+      throw new TzException(t);
+    }
+  }
 
-          aliasedXtzs.put(id, xcal);
-        }
+  /** Add a local name to the summary of a zone already processed. Local
+   * names are listed with the zone and matched by find.
+   *
+   * @param id of tz
+   * @param lang language of the name - may be null
+   * @param name the local name
+   */
+  protected void addLocalName(final String id,
+                              final String lang,
+                              final String name) {
+    final TimezoneType tz = building.timezonesMap.get(id);
+
+    if ((tz == null) || (name == null)) {
+      return;
+    }
+
+    if (tz.getLocalNames() == null) {
+      tz.setLocalNames(new ArrayList<LocalNameType>());
+    }
+
+    final LocalNameType ln = new LocalNameType();
+
+    ln.setLang(lang);
+    ln.setValue(name);
+
+    tz.getLocalNames().add(ln);
+  }
+
+  /** Called once all specs have been processed to render the documents
+   * which only change when the data changes.
+   *
+   * @throws TzException
+   */
+  protected void renderTzs() throws TzException {
+    try {
+      final Snapshot b = building;
+
+      final StringBuilder sb = new StringBuilder();
+      for (final String s: b.nameList) {
+        sb.append(s);
+        sb.append("\n");
       }
 
-      timezones.add(tz);
-      timezonesMap.put(tz.getTzid(), tz);
+      final TimezoneListType tzl = new TimezoneListType();
+
+      if (dtstamp != null) {
+        tzl.setDtstamp(dtstamp);
+      } else {
+        // As for TzServerUtil.getDtstamp()
+        tzl.setDtstamp(DateTimeUtil.rfcDateTimeUTC(
+                new DateTime(TzServerUtil.lastDataFetch)));
+      }
+
+      /* Everything here changes when any zone does so it was all last
+         modified at the dtstamp */
+      final long lastModified = millis(tzl.getDtstamp());
+
+      b.namesContent = new CachedContent("text/plain; charset=UTF-8",
+                                       sb.toString(),
+                                       lastModified);
+
+      if ((aliasMaps != null) && (aliasMaps.aliasesStr != null)) {
+        b.aliasesContent = new CachedContent("text/plain; charset=UTF-8",
+                                           aliasMaps.aliasesStr,
+                                           lastModified);
+      }
+
+      if (tzl.getTimezones() == null) {
+        tzl.setTimezones(new ArrayList<TimezoneType>());
+      }
+      tzl.getTimezones().addAll(b.timezones);
+
+      final Map<String, String> sjson = new HashMap<>(b.timezones.size() * 2);
+      long chars = 0;
+      for (final TimezoneType tz: b.timezones) {
+        final String json = jsonWriter.writeValueAsString(tz);
+
+        sjson.put(tz.getTzid(), json);
+        chars += json.length();
+      }
+      b.summaryJson = sjson;
+      b.summaryJsonChars = chars;
+
+      b.listContent = new CachedContent("application/json; charset=UTF-8",
+                                      jsonWriter.writeValueAsBytes(tzl),
+                                      lastModified);
+    } catch (final Throwable t) {
+      throw new TzException(t);
+    }
+  }
+
+  /* Each TimeZone is parsed once per snapshot - by the first request
+   * for it or the warm-up. Concurrent requests wait for that parse.
+   */
+  private TimeZone getTimeZone(final Snapshot s,
+                               final String tzid) throws TzException {
+    final SingleFlightCache.Loader<String, TimeZone> loader =
+            new SingleFlightCache.Loader<String, TimeZone>() {
+              @Override
+              public TimeZone load(final String key) throws TzException {
+                final String vtz = s.getZone(key);
+
+                if (vtz == null) {
+                  return null;
+                }
+
+                return new TimeZone(vtzFromCal(
+                        parseDef(TzServerUtil.getCalHdr() +
+                                         vtz +
+                                         TzServerUtil.getCalTlr())));
+              }
+            };
+
+    return s.timeZones.get(tzid, loader);
+  }
+
+  /* The xCal form of the zone or alias, built from the stored text the
+   * first time it's asked for. Two threads may build the same one at
+   * once - the result is the same and one of them is kept.
+   */
+  private IcalendarType getXtz(final Snapshot s,
+                               final String name,
+                               final boolean alias) throws TzException {
+    final Map<String, SoftReference<IcalendarType>> xtzs;
+
+    if (alias) {
+      xtzs = s.aliasedXtzs;
+    } else {
+      xtzs = s.xtzs;
+    }
+
+    final SoftReference<IcalendarType> ref = xtzs.get(name);
+
+    if (ref != null) {
+      final IcalendarType xcal = ref.get();
+
+      if (xcal != null) {
+        return xcal;
+      }
+    }
+
+    final String vtz;
+
+    if (alias) {
+      vtz = s.getAlias(name);
+    } else {
+      vtz = s.getZone(name);
+    }
+
+    if (vtz == null) {
+      return null;
+    }
+
+    try {
+      final IcalendarType xcal =
+              IcalToXcal.fromIcal(parseDef(TzServerUtil.getCalHdr() +
+                                                   vtz +
+                                                   TzServerUtil.getCalTlr()),
+                                  null, true);
+
+      s.xtzBuilds.incrementAndGet();
+      xtzs.put(name, new SoftReference<>(xcal));
+
+      return xcal;
     } catch (final TzException te) {
       throw te;
     } catch (final Throwable t) {
@@ -411,10 +1193,11 @@ public abstract class AbstractCachedData implements CachedData {
     return vtz;
   }
 
+  /** Start building a new snapshot. Nothing is visible to readers
+   * until publish is called.
+   */
   protected void resetTzs() {
-    nameList = new TreeSet<>();
-    timezones = new ArrayList<>();
-    timezonesMap = new HashMap<>();
+    building = newSnapshot();
   }
 
   /* Construct a new vtimezone with the alias as id and then
@@ -422,7 +1205,8 @@ public abstract class AbstractCachedData implements CachedData {
    */
   protected VTimeZone addAlias(final String alias,
                                final VTimeZone vtz,
-                               final List<String> tzids) throws TzException {
+                               final List<String> tzids,
+                               final long lastModified) throws TzException {
     try {
       VTimeZone avtz = (VTimeZone)vtz.copy();
 
@@ -436,7 +1220,9 @@ public abstract class AbstractCachedData implements CachedData {
       }
 
 //      aliasedTzs.put(alias, new TimeZone(avtz));
-      aliasedVtzs.put(alias, avtz.toString());
+      final String avtzStr = avtz.toString();
+      building.store.putAlias(alias, avtzStr);
+      building.calendars.put(alias, avtz, avtzStr, lastModified);
 
       return avtz;
     } catch (Throwable t) {
@@ -444,6 +1230,131 @@ public abstract class AbstractCachedData implements CachedData {
     }
   }
 
+  /* A zone we can't compile is still served - conversions for it take
+   * the slow path.
+   */
+  private TransitionTable compileTransitions(final String id,
+                                             final VTimeZone vtz) {
+    try {
+      final TransitionTable tt =
+              TransitionTable.compile(vtz,
+                                      System.currentTimeMillis() / 1000);
+
+      building.transitions.put(id, tt);
+
+      return tt;
+    } catch (final Throwable t) {
+      warn("Unable to compile transitions for " + id + ": " +
+                   t.getMessage());
+      building.transitions.remove(id);
+
+      return null;
+    }
+  }
+
+  /* null if not configured */
+  private File snapshotFile() {
+    final String path = cfg.getSnapshotPath();
+
+    if ((path == null) || (path.length() == 0)) {
+      return null;
+    }
+
+    final File f = new File(path);
+
+    if (!f.isAbsolute()) {
+      warn("snapshotPath must be absolute - found " + path);
+      return null;
+    }
+
+    return f;
+  }
+
+  private static boolean same(final String a,
+                              final String b) {
+    if (a == null) {
+      return b == null;
+    }
+
+    return a.equals(b);
+  }
+
+  /* Digest of the sample zone as rendered in each format, its summary
+   * and its compiled transitions. Computed once.
+   */
+  private String fingerprint() throws TzException {
+    synchronized (AbstractCachedData.class) {
+      if (fingerprint != null) {
+        return fingerprint;
+      }
+
+      try {
+        final VTimeZone vtz = vtzFromCal(parseDef(TzServerUtil.getCalHdr() +
+                                                          fingerprintZone +
+                                                          TzServerUtil.getCalTlr()));
+        final StringBuilder sb = new StringBuilder();
+
+        sb.append(CalRenderer.renderIcal(vtz.toString(), 0).getEtag());
+
+        for (final CalFormat format: CalFormat.values()) {
+          if (format != CalFormat.ical) {
+            sb.append(CalRenderer.render(format, vtz, 0).getEtag());
+          }
+        }
+
+        final TimezoneType tz = new TimezoneType();
+        tz.setTzid("Fingerprint/Zone");
+        tz.setLastModified(new Date(0));
+        tz.setAliases(new ArrayList<String>());
+        tz.getAliases().add("Fingerprint/Alias");
+        sb.append(jsonWriter.writeValueAsString(tz));
+
+        /* Fixed time as the table depends on it */
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        final DataOutputStream dos = new DataOutputStream(bos);
+        TransitionTable.compile(vtz, 1388534400L).write(dos);
+        dos.close();
+        sb.append(CachedContent.digest(bos.toByteArray()));
+
+        fingerprint = CachedContent.digest(sb.toString());
+
+        return fingerprint;
+      } catch (final TzException te) {
+        throw te;
+      } catch (final Throwable t) {
+        throw new TzException(t);
+      }
+    }
+  }
+
+  private Snapshot newSnapshot() {
+    int maxExpansions = cfg.getMaxExpansions();
+    if (maxExpansions <= 0) {
+      maxExpansions = defaultMaxExpansions;
+    }
+
+    return new Snapshot(maxExpansions);
+  }
+
+  /* dtstamp is an XML (or RFC 3339) date-time */
+  private static long millis(final String val) {
+    try {
+      return DatatypeFactory.newInstance().
+              newXMLGregorianCalendar(val).
+              toGregorianCalendar().getTimeInMillis();
+    } catch (final Throwable ignored) {
+      return 0;
+    }
+  }
+
+  private static long millis(final Date val) {
+    if (val == null) {
+      return 0;
+    }
+
+    return val.getTime();
+  }
+
   protected String escape(final String val) {
     StringBuilder sb = new StringBuilder();
 
@@ -0,0 +1,179 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.common;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/** A thread-safe cache holding at most a fixed number of entries.
+ *
+ * <p>Eviction is segmented LRU. New entries go into a probation
+ * segment and only move to the protected segment when they are used
+ * again. A scan of one-off keys only churns the probation segment so
+ * it can't flush out the entries that are in regular use.</p>
+ *
+ * @author douglm
+ *
+ * @param <K> key class
+ * @param <V> value class
+ */
+public class BoundedCache<K, V> {
+  private final String name;
+
+  private final int maxSize;
+
+  private final int maxProtected;
+
+  /* Both are access ordered - eldest is least recently used */
+  private final LinkedHashMap<K, V> probation =
+          new LinkedHashMap<>(16, 0.75f, true);
+
+  private final LinkedHashMap<K, V> protectedEntries =
+          new LinkedHashMap<>(16, 0.75f, true);
+
+  private long hits;
+  private long misses;
+  private long evictions;
+  private long loads;
+  private long loadMillis;
+
+  /**
+   * @param name - for stats
+   * @param maxSize - most entries we hold
+   */
+  public BoundedCache(final String name,
+                      final int maxSize) {
+    this.name = name;
+    this.maxSize = Math.max(maxSize, 2);
+
+    // 80% protected as is usual for SLRU
+    maxProtected = Math.max(1, this.maxSize * 4 / 5);
+  }
+
+  /**
+   * @param key of entry
+   * @return value or null
+   */
+  public synchronized V get(final K key) {
+    V val = protectedEntries.get(key);
+
+    if (val != null) {
+      hits++;
+      return val;
+    }
+
+    val = probation.remove(key);
+
+    if (val == null) {
+      misses++;
+      return null;
+    }
+
+    hits++;
+
+    // Second use - promote it
+    protectedEntries.put(key, val);
+
+    if (protectedEntries.size() > maxProtected) {
+      // Demote the least recently used back to probation
+      final Iterator<Map.Entry<K, V>> it =
+              protectedEntries.entrySet().iterator();
+      final Map.Entry<K, V> eldest = it.next();
+      it.remove();
+
+      probation.put(eldest.getKey(), eldest.getValue());
+    }
+
+    return val;
+  }
+
+  /** Add an entry loaded after a miss.
+   *
+   * @param key of entry
+   * @param val the value
+   * @param millis time taken to load it
+   */
+  public synchronized void put(final K key,
+                               final V val,
+                               final long millis) {
+    loads++;
+    loadMillis += millis;
+
+    if (protectedEntries.containsKey(key)) {
+      protectedEntries.put(key, val);
+      return;
+    }
+
+    probation.put(key, val);
+
+    while (size() > maxSize) {
+      final LinkedHashMap<K, V> from;
+
+      if (!probation.isEmpty()) {
+        from = probation;
+      } else {
+        from = protectedEntries;
+      }
+
+      final Iterator<K> it = from.keySet().iterator();
+      it.next();
+      it.remove();
+      evictions++;
+    }
+  }
+
+  /** Drop everything - stats are kept.
+   */
+  public synchronized void clear() {
+    probation.clear();
+    protectedEntries.clear();
+  }
+
+  /**
+   * @return number of entries
+   */
+  public synchronized int size() {
+    return probation.size() + protectedEntries.size();
+  }
+
+  /**
+   * @param prefix for stat names
+   * @return stats for this cache
+   */
+  public synchronized List<Stat> getStats(final String prefix) {
+    final List<Stat> stats = new ArrayList<>();
+
+    stats.add(new Stat(prefix + " " + name + " size",
+                       String.valueOf(size()),
+                       String.valueOf(maxSize), "max"));
+    stats.add(new Stat(prefix + " " + name + " hits",
+                       String.valueOf(hits),
+                       String.valueOf(misses), "misses"));
+    stats.add(new Stat(prefix + " " + name + " evictions",
+                       String.valueOf(evictions)));
+    stats.add(new Stat(prefix + " " + name + " loads",
+                       String.valueOf(loads),
+                       String.valueOf(loadMillis)));
+
+    return stats;
+  }
+}
@@ -0,0 +1,786 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectStreamException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/** A fully rendered response body built once per data snapshot. The
+ * content is already encoded so it can be sent with a single write.
+ *
+ * <p>Gzip and deflate variants are also built here so they can be
+ * sent to clients that accept them without compressing per request.
+ * Content below minCompressLength or that doesn't get any smaller has
+ * no compressed variants.</p>
+ *
+ * <p>The etag is a strong validator derived from the uncompressed
+ * content so it only changes when the content does. Compressed
+ * variants have the coding appended to the opaque part.</p>
+ *
+ * <p>Content wrapping a single component may record where the
+ * component is so it can be spliced into larger documents.</p>
+ *
+ * <p>Content read from a snapshot file refers to the mapped bytes.
+ * Nothing is copied onto the heap unless one of the array getters is
+ * called, so senders should use writeTo.</p>
+ *
+ * <p>Spliced content is another content with two ranges replaced -
+ * for a calendar that only differs from one we already hold in its
+ * TZID and EQUIVALENT-TZID values. It holds just the replacements and
+ * is written a segment at a time. The compressed variants are its
+ * own.</p>
+ *
+ * @author douglm
+ */
+public class CachedContent implements Serializable {
+  /** All our rendered content is UTF-8 */
+  public static final Charset utf8 = Charset.forName("UTF-8");
+
+  /** Below this size compression isn't worth the trouble */
+  public static final int minCompressLength = 256;
+
+  private final String contentType;
+  private final byte[] content;
+  private final String etag;
+  private final long lastModified;
+
+  private final byte[] gzipped;
+  private final byte[] deflated;
+
+  /* Set instead of the arrays for content in a mapped snapshot */
+  private final transient ByteBuffer mappedContent;
+  private final transient ByteBuffer mappedGzipped;
+  private final transient ByteBuffer mappedDeflated;
+
+  private final int fragmentStart;
+  private final int fragmentEnd;
+
+  /* Set for spliced content - the ranges [xStart, xEnd) and
+     [yStart, yEnd) of base are replaced by spliceX and spliceY */
+  private final CachedContent base;
+  private final int[] splice;
+  private final byte[] spliceX;
+  private final byte[] spliceY;
+
+  /**
+   * @param contentType - including any charset
+   * @param content - the encoded body
+   * @param lastModified - millis or 0 for unknown
+   */
+  public CachedContent(final String contentType,
+                       final byte[] content,
+                       final long lastModified) {
+    this(contentType, content, lastModified, 0, content.length);
+  }
+
+  /**
+   * @param contentType - including any charset
+   * @param content - the encoded body
+   * @param lastModified - millis or 0 for unknown
+   * @param fragmentStart - offset of the wrapped component
+   * @param fragmentEnd - offset after the wrapped component
+   */
+  public CachedContent(final String contentType,
+                       final byte[] content,
+                       final long lastModified,
+                       final int fragmentStart,
+                       final int fragmentEnd) {
+    this.contentType = contentType;
+    this.content = content;
+    this.lastModified = lastModified;
+    this.fragmentStart = fragmentStart;
+    this.fragmentEnd = fragmentEnd;
+    etag = "\"" + digest(content) + "\"";
+    mappedContent = null;
+    mappedGzipped = null;
+    mappedDeflated = null;
+    base = null;
+    splice = null;
+    spliceX = null;
+    spliceY = null;
+
+    if (content.length < minCompressLength) {
+      gzipped = null;
+      deflated = null;
+    } else {
+      gzipped = smaller(gzip(content), content);
+      deflated = smaller(deflate(content), content);
+    }
+  }
+
+  /** Content built per request. There are no compressed variants.
+   *
+   * @param contentType - including any charset
+   * @param content - the encoded body
+   * @param etag - quoted etag
+   * @param lastModified - millis or 0 for unknown
+   */
+  public CachedContent(final String contentType,
+                       final byte[] content,
+                       final String etag,
+                       final long lastModified) {
+    this.contentType = contentType;
+    this.content = content;
+    this.etag = etag;
+    this.lastModified = lastModified;
+    fragmentStart = 0;
+    fragmentEnd = content.length;
+    gzipped = null;
+    deflated = null;
+    mappedContent = null;
+    mappedGzipped = null;
+    mappedDeflated = null;
+    base = null;
+    splice = null;
+    spliceX = null;
+    spliceY = null;
+  }
+
+  /* Content in a mapped snapshot file with everything already
+   * computed. The buffers are slices holding just the bytes.
+   */
+  CachedContent(final String contentType,
+                final ByteBuffer content,
+                final String etag,
+                final long lastModified,
+                final ByteBuffer gzipped,
+                final ByteBuffer deflated,
+                final int fragmentStart,
+                final int fragmentEnd) {
+    this.contentType = contentType;
+    this.content = null;
+    this.etag = etag;
+    this.lastModified = lastModified;
+    this.gzipped = null;
+    this.deflated = null;
+    mappedContent = content;
+    mappedGzipped = gzipped;
+    mappedDeflated = deflated;
+    this.fragmentStart = fragmentStart;
+    this.fragmentEnd = fragmentEnd;
+    base = null;
+    splice = null;
+    spliceX = null;
+    spliceY = null;
+  }
+
+  /* Spliced content. The ranges are {xStart, xEnd, yStart, yEnd} in
+   * base - which is not itself spliced. Both ranges must be inside
+   * the wrapped component. The compressed variants are of the spliced
+   * content and may be null.
+   */
+  CachedContent(final CachedContent base,
+                final int[] splice,
+                final byte[] spliceX,
+                final byte[] spliceY,
+                final String etag,
+                final long lastModified,
+                final byte[] gzipped,
+                final byte[] deflated) {
+    this(base, splice, spliceX, spliceY, etag, lastModified,
+         gzipped, deflated, null, null);
+  }
+
+  /* Spliced content in a mapped snapshot file. The compressed
+   * variants are slices and may be null.
+   */
+  CachedContent(final CachedContent base,
+                final int[] splice,
+                final byte[] spliceX,
+                final byte[] spliceY,
+                final String etag,
+                final long lastModified,
+                final ByteBuffer gzipped,
+                final ByteBuffer deflated) {
+    this(base, splice, spliceX, spliceY, etag, lastModified,
+         null, null, gzipped, deflated);
+  }
+
+  private CachedContent(final CachedContent base,
+                        final int[] splice,
+                        final byte[] spliceX,
+                        final byte[] spliceY,
+                        final String etag,
+                        final long lastModified,
+                        final byte[] gzipped,
+                        final byte[] deflated,
+                        final ByteBuffer mappedGzipped,
+                        final ByteBuffer mappedDeflated) {
+    contentType = base.contentType;
+    content = null;
+    this.etag = etag;
+    this.lastModified = lastModified;
+    this.gzipped = gzipped;
+    this.deflated = deflated;
+    mappedContent = null;
+    this.mappedGzipped = mappedGzipped;
+    this.mappedDeflated = mappedDeflated;
+    this.base = base;
+    this.splice = splice;
+    this.spliceX = spliceX;
+    this.spliceY = spliceY;
+    fragmentStart = splicedOffset(base.fragmentStart);
+    fragmentEnd = splicedOffset(base.fragmentEnd);
+  }
+
+  /* A heap copy of mapped or spliced content */
+  private CachedContent(final CachedContent cc) {
+    contentType = cc.contentType;
+    content = cc.getContent();
+    etag = cc.etag;
+    lastModified = cc.lastModified;
+    gzipped = cc.getGzipped();
+    deflated = cc.getDeflated();
+    mappedContent = null;
+    mappedGzipped = null;
+    mappedDeflated = null;
+    fragmentStart = cc.fragmentStart;
+    fragmentEnd = cc.fragmentEnd;
+    base = null;
+    splice = null;
+    spliceX = null;
+    spliceY = null;
+  }
+
+  /**
+   * @param contentType - including any charset
+   * @param content - body to be encoded as UTF-8
+   * @param lastModified - millis or 0 for unknown
+   */
+  public CachedContent(final String contentType,
+                       final String content,
+                       final long lastModified) {
+    this(contentType, content.getBytes(utf8), lastModified);
+  }
+
+  /**
+   * @return content type including charset
+   */
+  public String getContentType() {
+    return contentType;
+  }
+
+  /** The returned array is shared and MUST NOT be modified. For
+   * mapped or spliced content this is a new copy on each call.
+   *
+   * @return encoded body
+   */
+  public byte[] getContent() {
+    if (mappedContent != null) {
+      return copy(mappedContent);
+    }
+
+    if (base != null) {
+      final byte[] res = new byte[getContentLength()];
+
+      copyContent(0, res, 0, res.length);
+
+      return res;
+    }
+
+    return content;
+  }
+
+  /**
+   * @return length of the encoded body
+   */
+  public int getContentLength() {
+    if (mappedContent != null) {
+      return mappedContent.remaining();
+    }
+
+    if (base != null) {
+      return splicedOffset(base.getContentLength());
+    }
+
+    return content.length;
+  }
+
+  /** Copy part of the encoded body without copying the rest of it.
+   *
+   * @param from offset in the body
+   * @param dest to copy into
+   * @param destPos offset in dest
+   * @param len number of bytes
+   */
+  public void copyContent(final int from,
+                          final byte[] dest,
+                          final int destPos,
+                          final int len) {
+    if (base != null) {
+      copySpliced(from, dest, destPos, len);
+      return;
+    }
+
+    if (mappedContent == null) {
+      System.arraycopy(content, from, dest, destPos, len);
+      return;
+    }
+
+    final ByteBuffer b = mappedContent.duplicate();
+
+    b.position(from);
+    b.get(dest, destPos, len);
+  }
+
+  /**
+   * @return offset in content of the wrapped component
+   */
+  public int getFragmentStart() {
+    return fragmentStart;
+  }
+
+  /**
+   * @return offset in content after the wrapped component
+   */
+  public int getFragmentEnd() {
+    return fragmentEnd;
+  }
+
+  /**
+   * @return quoted strong etag for the uncompressed content
+   */
+  public String getEtag() {
+    return etag;
+  }
+
+  /**
+   * @param coding - content coding e.g. "gzip"
+   * @return quoted strong etag for the given compressed variant
+   */
+  public String getEtag(final String coding) {
+    return etag.substring(0, etag.length() - 1) + "-" + coding + "\"";
+  }
+
+  /**
+   * @return millis or 0 for unknown
+   */
+  public long getLastModified() {
+    return lastModified;
+  }
+
+  /** Hex encoded digest of the value.
+   *
+   * @param val to digest
+   * @return hex string
+   */
+  public static String digest(final byte[] val) {
+    try {
+      final byte[] d = MessageDigest.getInstance("MD5").digest(val);
+
+      final char[] res = new char[d.length * 2];
+      for (int i = 0; i < d.length; i++) {
+        res[i * 2] = hex[(d[i] >> 4) & 0xF];
+        res[i * 2 + 1] = hex[d[i] & 0xF];
+      }
+
+      return new String(res);
+    } catch (final Throwable t) {
+      throw new RuntimeException(t);
+    }
+  }
+
+  /**
+   * @param val to digest - encoded as UTF-8
+   * @return hex string
+   */
+  public static String digest(final String val) {
+    return digest(val.getBytes(utf8));
+  }
+
+  /**
+   * @return true if there is at least one compressed variant
+   */
+  public boolean isCompressed() {
+    return hasVariant("gzip") || hasVariant("deflate");
+  }
+
+  /** The returned array is shared and MUST NOT be modified. For
+   * mapped content this is a new copy on each call.
+   *
+   * @return gzip encoded body or null
+   */
+  public byte[] getGzipped() {
+    if (mappedGzipped != null) {
+      return copy(mappedGzipped);
+    }
+
+    return gzipped;
+  }
+
+  /** The returned array is shared and MUST NOT be modified. For
+   * mapped content this is a new copy on each call.
+   *
+   * @return deflate (zlib) encoded body or null
+   */
+  public byte[] getDeflated() {
+    if (mappedDeflated != null) {
+      return copy(mappedDeflated);
+    }
+
+    return deflated;
+  }
+
+  /**
+   * @param coding - content coding e.g. "gzip" or null for identity
+   * @return true if we have that variant
+   */
+  public boolean hasVariant(final String coding) {
+    return getLength(coding) >= 0;
+  }
+
+  /**
+   * @param coding - content coding e.g. "gzip" or null for identity
+   * @return length of that variant or -1 if we don't have it
+   */
+  public int getLength(final String coding) {
+    if (coding == null) {
+      return getContentLength();
+    }
+
+    if (coding.equals("gzip")) {
+      return length(gzipped, mappedGzipped);
+    }
+
+    if (coding.equals("deflate")) {
+      return length(deflated, mappedDeflated);
+    }
+
+    return -1;
+  }
+
+  /** Write a variant. Mapped content is written from the mapping a
+   * chunk at a time. A stream has no way to take the mapped bytes
+   * directly so each chunk goes through the small heap buffer of the
+   * channel - the body is never copied as a whole. Spliced content is
+   * written as the ranges of its base and its replacements.
+   *
+   * @param out to write to
+   * @param coding - content coding e.g. "gzip" or null for identity
+   * @throws IOException
+   */
+  public void writeTo(final OutputStream out,
+                      final String coding) throws IOException {
+    final byte[] bytes;
+    final ByteBuffer mapped;
+
+    if ((base != null) && (coding == null)) {
+      base.writeRange(out, 0, splice[0]);
+      out.write(spliceX);
+      base.writeRange(out, splice[1], splice[2]);
+      out.write(spliceY);
+      base.writeRange(out, splice[3], base.getContentLength());
+      return;
+    }
+
+    if (coding == null) {
+      bytes = content;
+      mapped = mappedContent;
+    } else if (coding.equals("gzip")) {
+      bytes = gzipped;
+      mapped = mappedGzipped;
+    } else if (coding.equals("deflate")) {
+      bytes = deflated;
+      mapped = mappedDeflated;
+    } else {
+      throw new IOException("No variant for coding " + coding);
+    }
+
+    if (bytes != null) {
+      out.write(bytes);
+      return;
+    }
+
+    if (mapped == null) {
+      throw new IOException("No variant for coding " + coding);
+    }
+
+    write(out, mapped.duplicate());
+  }
+
+  /** For spliced content only the replacements and the compressed
+   * variants are counted - the rest belongs to the base.
+   *
+   * @return total bytes of all variants held by this content
+   */
+  public long getSize() {
+    long sz;
+
+    if (base != null) {
+      sz = spliceX.length + spliceY.length;
+    } else {
+      sz = getContentLength();
+    }
+
+    if (hasVariant("gzip")) {
+      sz += getLength("gzip");
+    }
+
+    if (hasVariant("deflate")) {
+      sz += getLength("deflate");
+    }
+
+    return sz;
+  }
+
+  @Override
+  public String toString() {
+    final StringBuilder sb = new StringBuilder(getClass().getSimpleName()).append("{");
+
+    sb.append("contentType=");
+    sb.append(getContentType());
+    sb.append(", length=");
+    sb.append(getContentLength());
+    sb.append(", etag=");
+    sb.append(getEtag());
+    sb.append(", lastModified=");
+    sb.append(getLastModified());
+
+    sb.append("}");
+
+    return sb.toString();
+  }
+
+  /* ====================================================================
+   *                   package private methods
+   * ==================================================================== */
+
+  /**
+   * @return the content this was spliced from or null
+   */
+  CachedContent getSpliceBase() {
+    return base;
+  }
+
+  /**
+   * @return {xStart, xEnd, yStart, yEnd} in the base or null
+   */
+  int[] getSplice() {
+    return splice;
+  }
+
+  /**
+   * @return replacement for [xStart, xEnd) or null
+   */
+  byte[] getSpliceX() {
+    return spliceX;
+  }
+
+  /**
+   * @return replacement for [yStart, yEnd) or null
+   */
+  byte[] getSpliceY() {
+    return spliceY;
+  }
+
+  /* Mapped buffers don't serialize and spliced content would drag its
+     base along - send a heap copy */
+  private Object writeReplace() throws ObjectStreamException {
+    if ((mappedContent == null) && (base == null)) {
+      return this;
+    }
+
+    return new CachedContent(this);
+  }
+
+  /* ====================================================================
+   *                   private methods
+   * ==================================================================== */
+
+  private static final char[] hex = {
+          '0', '1', '2', '3', '4', '5', '6', '7',
+          '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'
+  };
+
+  private static int length(final byte[] bytes,
+                            final ByteBuffer mapped) {
+    if (bytes != null) {
+      return bytes.length;
+    }
+
+    if (mapped != null) {
+      return mapped.remaining();
+    }
+
+    return -1;
+  }
+
+  /* Write [from, to) of the identity content - not spliced */
+  private void writeRange(final OutputStream out,
+                          final int from,
+                          final int to) throws IOException {
+    if (content != null) {
+      out.write(content, from, to - from);
+      return;
+    }
+
+    final ByteBuffer b = mappedContent.duplicate();
+
+    b.position(from);
+    b.limit(to);
+
+    write(out, b);
+  }
+
+  /* The buffer is our own view so concurrent writes don't share a
+     position. The channel copies each chunk to its own buffer for the
+     stream. It is not closed as that would close the stream. */
+  private static void write(final OutputStream out,
+                            final ByteBuffer b) throws IOException {
+    final WritableByteChannel ch = Channels.newChannel(out);
+
+    while (b.hasRemaining()) {
+      ch.write(b);
+    }
+  }
+
+  /* Offset in this content of an offset in the base. Offsets inside a
+     replaced range go to the end of its replacement. */
+  private int splicedOffset(final int off) {
+    if (off <= splice[0]) {
+      return off;
+    }
+
+    final int dx = spliceX.length - (splice[1] - splice[0]);
+
+    if (off <= splice[2]) {
+      return Math.max(off, splice[1]) + dx;
+    }
+
+    final int dy = spliceY.length - (splice[3] - splice[2]);
+
+    return Math.max(off, splice[3]) + dx + dy;
+  }
+
+  /* Copy across the five segments - base, x, base, y, base */
+  private void copySpliced(final int from,
+                           final byte[] dest,
+                           final int destPos,
+                           final int len) {
+    final int[] baseStarts = {0, splice[1], splice[3]};
+    final int[] baseEnds = {splice[0], splice[2], base.getContentLength()};
+
+    int pos = from;
+    int dpos = destPos;
+    int remaining = len;
+    int segStart = 0;
+
+    for (int seg = 0; (seg < 5) && (remaining > 0); seg++) {
+      final byte[] bytes;
+      final int segLen;
+
+      if ((seg & 1) == 0) {
+        bytes = null;
+        segLen = baseEnds[seg / 2] - baseStarts[seg / 2];
+      } else {
+        if (seg == 1) {
+          bytes = spliceX;
+        } else {
+          bytes = spliceY;
+        }
+        segLen = bytes.length;
+      }
+
+      final int segEnd = segStart + segLen;
+
+      if (pos < segEnd) {
+        final int off = pos - segStart;
+        final int n = Math.min(remaining, segLen - off);
+
+        if (bytes == null) {
+          base.copyContent(baseStarts[seg / 2] + off, dest, dpos, n);
+        } else {
+          System.arraycopy(bytes, off, dest, dpos, n);
+        }
+
+        pos += n;
+        dpos += n;
+        remaining -= n;
+      }
+
+      segStart = segEnd;
+    }
+  }
+
+  private static byte[] copy(final ByteBuffer mapped) {
+    final byte[] res = new byte[mapped.remaining()];
+
+    mapped.duplicate().get(res);
+
+    return res;
+  }
+
+  private static byte[] smaller(final byte[] compressed,
+                                final byte[] content) {
+    if ((compressed == null) || (compressed.length >= content.length)) {
+      return null;
+    }
+
+    return compressed;
+  }
+
+  private static byte[] gzip(final byte[] val) {
+    try {
+      final ByteArrayOutputStream bos =
+              new ByteArrayOutputStream(val.length / 4 + 64);
+
+      try (GZIPOutputStream gos = new GZIPOutputStream(bos) {
+        {
+          def.setLevel(Deflater.BEST_COMPRESSION);
+        }
+      }) {
+        gos.write(val);
+      }
+
+      return bos.toByteArray();
+    } catch (final IOException ignored) {
+      return null;
+    }
+  }
+
+  private static byte[] deflate(final byte[] val) {
+    final Deflater def = new Deflater(Deflater.BEST_COMPRESSION);
+
+    try {
+      final ByteArrayOutputStream bos =
+              new ByteArrayOutputStream(val.length / 4 + 64);
+
+      try (DeflaterOutputStream dos = new DeflaterOutputStream(bos, def)) {
+        dos.write(val);
+      }
+
+      return bos.toByteArray();
+    } catch (final IOException ignored) {
+      return null;
+    } finally {
+      def.end();
+    }
+  }
+}
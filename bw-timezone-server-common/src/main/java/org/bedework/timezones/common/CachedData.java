@@ -28,6 +28,7 @@ import net.fortuna.ical4j.model.TimeZone;
 import java.io.Serializable;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.SortedSet;
 
 /** Cached data affected by the source data.
@@ -41,6 +42,13 @@ public interface CachedData extends Serializable {
    */
   void stop() throws TzException;
 
+  /** Restart threads stopped by stop. Used when data that was to
+   * replace this failed to load.
+   *
+   * @throws TzException
+   */
+  void start() throws TzException;
+
   /**
    * @return String source information for data.
    * @throws TzException
@@ -106,10 +114,27 @@ public interface CachedData extends Serializable {
   /**
    * @param key to expanded map
    * @param tzs entries from map
+   * @param millis time taken to expand
    * @throws TzException
    */
   void setExpanded(ExpandedMapEntryKey key,
-                   ExpandedMapEntry tzs) throws TzException;
+                   ExpandedMapEntry tzs,
+                   long millis) throws TzException;
+
+  /**
+   * @param tzid of zone
+   * @param val the zone's canonical onsets
+   * @throws TzException
+   */
+  void setZoneOnsets(String tzid,
+                     ZoneOnsets val) throws TzException;
+
+  /**
+   * @param tzid of zone
+   * @return canonical onsets or null
+   * @throws TzException
+   */
+  ZoneOnsets getZoneOnsets(String tzid) throws TzException;
 
   /**
    * @param key to expanded map
@@ -126,6 +151,58 @@ public interface CachedData extends Serializable {
    */
   String getCachedVtz(final String name) throws TzException;
 
+  /** A lookup in the index of names - nothing is read or built.
+   *
+   * @param name tzid or alias
+   * @return true if we have that timezone
+   * @throws TzException
+   */
+  boolean isKnown(final String name) throws TzException;
+
+  /** Get the complete encoded calendar for a tzid or alias. This is
+   * built once in each format when the data is loaded.
+   *
+   * @param name tzid or alias
+   * @param format of the calendar
+   * @return cached content or null.
+   * @throws TzException
+   */
+  CachedContent getCachedCalendar(final String name,
+                                  final CalFormat format) throws TzException;
+
+  /** Get the transitions compiled when the data was loaded.
+   *
+   * @param name tzid or alias
+   * @return table or null.
+   * @throws TzException
+   */
+  TransitionTable getTransitions(final String name) throws TzException;
+
+  /**
+   * @return names list as text - one per line - or null
+   * @throws TzException
+   */
+  CachedContent getNamesContent() throws TzException;
+
+  /**
+   * @return aliases as properties text or null
+   * @throws TzException
+   */
+  CachedContent getAliasesContent() throws TzException;
+
+  /**
+   * @return the full summary list as json or null
+   * @throws TzException
+   */
+  CachedContent getListContent() throws TzException;
+
+  /**
+   * @param tzid of the summary
+   * @return the summary rendered as a json object or null
+   * @throws TzException
+   */
+  String getSummaryJson(String tzid) throws TzException;
+
   /** Get all cached VTIMEZONE specifications
    *
    * @return cached specs or null.
@@ -167,6 +244,14 @@ public interface CachedData extends Serializable {
   @SuppressWarnings("UnusedDeclaration")
   IcalendarType getAliasedXTimeZone(final String tzid) throws TzException;
 
+  /** Get the xCal form of every timezone. Any not yet built are built
+   * in parallel. Used when diffing two sets of data.
+   *
+   * @return map of tzid to xCal
+   * @throws TzException
+   */
+  Map<String, IcalendarType> getAllXTimeZones() throws TzException;
+
   /** Get an aliased cached VTIMEZONE specifications
    *
    * @param name tzid
@@ -0,0 +1,65 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.common;
+
+/** The forms in which we can deliver a timezone.
+ *
+ * @author douglm
+ */
+public enum CalFormat {
+  /** iCalendar - rfc5545 */
+  ical("text/calendar", ""),
+
+  /** xCal - rfc6321 */
+  xcal("application/calendar+xml", ""),
+
+  /** jCal - rfc7265 */
+  jcal("application/calendar+json", ",");
+
+  private final String mediaType;
+
+  private final String separator;
+
+  CalFormat(final String mediaType,
+            final String separator) {
+    this.mediaType = mediaType;
+    this.separator = separator;
+  }
+
+  /**
+   * @return media type without parameters
+   */
+  public String getMediaType() {
+    return mediaType;
+  }
+
+  /**
+   * @return content type including charset
+   */
+  public String getContentType() {
+    return mediaType + "; charset=UTF-8";
+  }
+
+  /**
+   * @return what goes between components when we splice them
+   */
+  public String getSeparator() {
+    return separator;
+  }
+}
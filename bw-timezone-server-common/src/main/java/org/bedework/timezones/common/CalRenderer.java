@@ -0,0 +1,724 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.common;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import net.fortuna.ical4j.model.Component;
+import net.fortuna.ical4j.model.Parameter;
+import net.fortuna.ical4j.model.Property;
+import net.fortuna.ical4j.model.component.VTimeZone;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/** Render timezone components as iCalendar, xCal (rfc6321) or jCal
+ * (rfc7265).
+ *
+ * <p>This only has to deal with what can appear in a VTIMEZONE so
+ * it works directly from the ical4j property values rather than going
+ * through a general purpose conversion. It is called once per zone when
+ * the data is loaded.</p>
+ *
+ * <p>The resulting content records where the component is in the
+ * document so it can be spliced into a multi-zone response.</p>
+ *
+ * @author douglm
+ */
+public class CalRenderer {
+  private static final String xcalNs = "urn:ietf:params:xml:ns:icalendar-2.0";
+
+  private static final JsonFactory jsonFactory = new JsonFactory();
+
+  /* Value types */
+  private static final String typeText = "text";
+  private static final String typeDate = "date";
+  private static final String typeDateTime = "date-time";
+  private static final String typePeriod = "period";
+  private static final String typeRecur = "recur";
+  private static final String typeUri = "uri";
+  private static final String typeUtcOffset = "utc-offset";
+
+  /* Recur parts in schema order */
+  private static final List<String> recurParts = Arrays.asList(
+          "freq", "until", "count", "interval",
+          "bysecond", "byminute", "byhour", "byday",
+          "bymonthday", "byyearday", "byweekno", "bymonth",
+          "bysetpos", "wkst");
+
+  private static final Set<String> intRecurParts = new HashSet<>(
+          Arrays.asList("count", "interval",
+                        "bysecond", "byminute", "byhour",
+                        "bymonthday", "byyearday", "byweekno", "bymonth",
+                        "bysetpos"));
+
+  private CalRenderer() {
+  }
+
+  /** Render a complete VCALENDAR holding the single timezone.
+   *
+   * @param vtz the timezone as iCalendar text
+   * @param lastModified millis or 0 for unknown
+   * @return content
+   */
+  public static CachedContent renderIcal(final String vtz,
+                                         final long lastModified) {
+    final byte[] hdr = TzServerUtil.getCalHdr().getBytes(CachedContent.utf8);
+    final byte[] body = vtz.getBytes(CachedContent.utf8);
+    final byte[] tlr = TzServerUtil.getCalTlr().getBytes(CachedContent.utf8);
+
+    return content(CalFormat.ical, hdr, body, tlr, lastModified, true);
+  }
+
+  /** Render a complete calendar holding the single timezone.
+   *
+   * @param format of the result
+   * @param vtz the timezone
+   * @param lastModified millis or 0 for unknown
+   * @return content
+   * @throws TzException
+   */
+  public static CachedContent render(final CalFormat format,
+                                     final VTimeZone vtz,
+                                     final long lastModified) throws TzException {
+    return render(format, vtz, lastModified, true);
+  }
+
+  /** Render a complete calendar holding the single timezone for one
+   * request. Nothing is compressed and the content can't be spliced.
+   *
+   * @param format of the result
+   * @param vtz the timezone
+   * @param lastModified millis or 0 for unknown
+   * @return content
+   * @throws TzException
+   */
+  public static CachedContent renderForRequest(final CalFormat format,
+                                               final VTimeZone vtz,
+                                               final long lastModified) throws TzException {
+    return render(format, vtz, lastModified, false);
+  }
+
+  private static CachedContent render(final CalFormat format,
+                                      final VTimeZone vtz,
+                                      final long lastModified,
+                                      final boolean cached) throws TzException {
+    try {
+      final byte[] hdr;
+      final byte[] comp;
+      final byte[] tlr;
+
+      if (format == CalFormat.ical) {
+        if (cached) {
+          return renderIcal(vtz.toString(), lastModified);
+        }
+
+        hdr = TzServerUtil.getCalHdr().getBytes(CachedContent.utf8);
+        comp = vtz.toString().getBytes(CachedContent.utf8);
+        tlr = TzServerUtil.getCalTlr().getBytes(CachedContent.utf8);
+
+        return content(format, hdr, comp, tlr, lastModified, false);
+      }
+
+      if (format == CalFormat.jcal) {
+        hdr = jcalHeader().getBytes(CachedContent.utf8);
+        comp = jcalComponent(vtz);
+        tlr = "]]".getBytes(CachedContent.utf8);
+      } else if (format == CalFormat.xcal) {
+        hdr = xcalHeader().getBytes(CachedContent.utf8);
+
+        final StringBuilder sb = new StringBuilder();
+        xcalComponent(sb, vtz);
+        comp = sb.toString().getBytes(CachedContent.utf8);
+
+        tlr = "</components></vcalendar></icalendar>\n".
+                getBytes(CachedContent.utf8);
+      } else {
+        throw new TzException("Unsupported format " + format);
+      }
+
+      return content(format, hdr, comp, tlr, lastModified, cached);
+    } catch (final TzException te) {
+      throw te;
+    } catch (final Throwable t) {
+      throw new TzException(t);
+    }
+  }
+
+  private static CachedContent content(final CalFormat format,
+                                       final byte[] hdr,
+                                       final byte[] comp,
+                                       final byte[] tlr,
+                                       final long lastModified,
+                                       final boolean cached) {
+    final byte[] content = new byte[hdr.length + comp.length + tlr.length];
+    System.arraycopy(hdr, 0, content, 0, hdr.length);
+    System.arraycopy(comp, 0, content, hdr.length, comp.length);
+    System.arraycopy(tlr, 0, content, hdr.length + comp.length,
+                     tlr.length);
+
+    if (!cached) {
+      return new CachedContent(format.getContentType(),
+                               content,
+                               "\"" + CachedContent.digest(content) + "\"",
+                               lastModified);
+    }
+
+    return new CachedContent(format.getContentType(),
+                             content,
+                             lastModified,
+                             hdr.length,
+                             hdr.length + comp.length);
+  }
+
+  /* ====================================================================
+   *                   jCal
+   * ==================================================================== */
+
+  private static String jcalHeader() throws Throwable {
+    final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    final JsonGenerator gen = jsonFactory.createGenerator(bos);
+
+    gen.writeStartArray();
+    for (final String[] p: calProps()) {
+      gen.writeStartArray();
+      gen.writeString(p[0]);
+      gen.writeStartObject();
+      gen.writeEndObject();
+      gen.writeString(typeText);
+      gen.writeString(p[1]);
+      gen.writeEndArray();
+    }
+    gen.writeEndArray();
+    gen.close();
+
+    return "[\"vcalendar\"," +
+            new String(bos.toByteArray(), CachedContent.utf8) +
+            ",[";
+  }
+
+  private static byte[] jcalComponent(final Component comp) throws Throwable {
+    final ByteArrayOutputStream bos = new ByteArrayOutputStream(2048);
+    final JsonGenerator gen = jsonFactory.createGenerator(bos);
+
+    jcalComponent(gen, comp);
+    gen.close();
+
+    return bos.toByteArray();
+  }
+
+  private static void jcalComponent(final JsonGenerator gen,
+                                    final Component comp) throws Throwable {
+    gen.writeStartArray();
+    gen.writeString(comp.getName().toLowerCase());
+
+    gen.writeStartArray();
+    for (final Object o: comp.getProperties()) {
+      jcalProperty(gen, (Property)o);
+    }
+    gen.writeEndArray();
+
+    gen.writeStartArray();
+    for (final Component sub: subComponents(comp)) {
+      jcalComponent(gen, sub);
+    }
+    gen.writeEndArray();
+
+    gen.writeEndArray();
+  }
+
+  private static void jcalProperty(final JsonGenerator gen,
+                                   final Property prop) throws Throwable {
+    final String type = valueType(prop);
+
+    gen.writeStartArray();
+    gen.writeString(prop.getName().toLowerCase());
+
+    gen.writeStartObject();
+    final Iterator it = prop.getParameters().iterator();
+    while (it.hasNext()) {
+      final Parameter par = (Parameter)it.next();
+
+      if (Parameter.VALUE.equalsIgnoreCase(par.getName())) {
+        continue;
+      }
+
+      gen.writeStringField(par.getName().toLowerCase(), par.getValue());
+    }
+    gen.writeEndObject();
+
+    gen.writeString(type);
+
+    if (type.equals(typeRecur)) {
+      gen.writeStartObject();
+
+      for (final Map.Entry<String, List<String>> ent:
+              recur(prop.getValue()).entrySet()) {
+        final String name = ent.getKey();
+        final List<String> vals = ent.getValue();
+
+        gen.writeFieldName(name);
+
+        if (vals.size() > 1) {
+          gen.writeStartArray();
+        }
+
+        for (final String val: vals) {
+          jcalRecurValue(gen, name, val);
+        }
+
+        if (vals.size() > 1) {
+          gen.writeEndArray();
+        }
+      }
+
+      gen.writeEndObject();
+    } else {
+      for (final String val: values(prop)) {
+        if (type.equals(typeText) || type.equals(typeUri)) {
+          gen.writeString(val);
+        } else {
+          gen.writeString(formatValue(type, val));
+        }
+      }
+    }
+
+    gen.writeEndArray();
+  }
+
+  private static void jcalRecurValue(final JsonGenerator gen,
+                                     final String name,
+                                     final String val) throws Throwable {
+    if (intRecurParts.contains(name)) {
+      try {
+        gen.writeNumber(Integer.parseInt(val));
+        return;
+      } catch (final NumberFormatException ignored) {
+      }
+    }
+
+    if (name.equals("until")) {
+      gen.writeString(dateTime(val));
+      return;
+    }
+
+    gen.writeString(val);
+  }
+
+  /* ====================================================================
+   *                   xCal
+   * ==================================================================== */
+
+  private static String xcalHeader() {
+    final StringBuilder sb = new StringBuilder();
+
+    sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+    sb.append("<icalendar xmlns=\"");
+    sb.append(xcalNs);
+    sb.append("\"><vcalendar><properties>");
+
+    for (final String[] p: calProps()) {
+      sb.append('<').append(p[0]).append("><").append(typeText).append('>');
+      xmlText(sb, p[1]);
+      sb.append("</").append(typeText).append("></").append(p[0]).append('>');
+    }
+
+    sb.append("</properties><components>");
+
+    return sb.toString();
+  }
+
+  private static void xcalComponent(final StringBuilder sb,
+                                    final Component comp) {
+    final String name = comp.getName().toLowerCase();
+
+    sb.append('<').append(name).append("><properties>");
+
+    for (final Object o: comp.getProperties()) {
+      xcalProperty(sb, (Property)o);
+    }
+
+    sb.append("</properties>");
+
+    final List<Component> subs = subComponents(comp);
+
+    if (!subs.isEmpty()) {
+      sb.append("<components>");
+
+      for (final Component sub: subs) {
+        xcalComponent(sb, sub);
+      }
+
+      sb.append("</components>");
+    }
+
+    sb.append("</").append(name).append('>');
+  }
+
+  private static void xcalProperty(final StringBuilder sb,
+                                   final Property prop) {
+    final String name = prop.getName().toLowerCase();
+    final String type = valueType(prop);
+
+    sb.append('<').append(name).append('>');
+
+    boolean hasPars = false;
+    final Iterator it = prop.getParameters().iterator();
+    while (it.hasNext()) {
+      final Parameter par = (Parameter)it.next();
+
+      if (Parameter.VALUE.equalsIgnoreCase(par.getName())) {
+        continue;
+      }
+
+      if (!hasPars) {
+        sb.append("<parameters>");
+        hasPars = true;
+      }
+
+      final String pname = par.getName().toLowerCase();
+      sb.append('<').append(pname).append("><text>");
+      xmlText(sb, par.getValue());
+      sb.append("</text></").append(pname).append('>');
+    }
+
+    if (hasPars) {
+      sb.append("</parameters>");
+    }
+
+    if (type.equals(typeRecur)) {
+      sb.append("<recur>");
+
+      for (final Map.Entry<String, List<String>> ent:
+              recur(prop.getValue()).entrySet()) {
+        final String part = ent.getKey();
+
+        for (final String val: ent.getValue()) {
+          sb.append('<').append(part).append('>');
+          if (part.equals("until")) {
+            xmlText(sb, dateTime(val));
+          } else {
+            xmlText(sb, val);
+          }
+          sb.append("</").append(part).append('>');
+        }
+      }
+
+      sb.append("</recur>");
+    } else {
+      for (final String val: values(prop)) {
+        if (type.equals(typePeriod)) {
+          xcalPeriod(sb, val);
+          continue;
+        }
+
+        sb.append('<').append(type).append('>');
+        if (type.equals(typeText) || type.equals(typeUri)) {
+          xmlText(sb, val);
+        } else {
+          xmlText(sb, formatValue(type, val));
+        }
+        sb.append("</").append(type).append('>');
+      }
+    }
+
+    sb.append("</").append(name).append('>');
+  }
+
+  private static void xcalPeriod(final StringBuilder sb,
+                                 final String val) {
+    final int pos = val.indexOf('/');
+
+    sb.append("<period><start>");
+    if (pos < 0) {
+      xmlText(sb, dateTime(val));
+      sb.append("</start>");
+    } else {
+      xmlText(sb, dateTime(val.substring(0, pos)));
+      sb.append("</start>");
+
+      final String e = val.substring(pos + 1);
+      if (isDuration(e)) {
+        sb.append("<duration>");
+        xmlText(sb, e);
+        sb.append("</duration>");
+      } else {
+        sb.append("<end>");
+        xmlText(sb, dateTime(e));
+        sb.append("</end>");
+      }
+    }
+    sb.append("</period>");
+  }
+
+  private static void xmlText(final StringBuilder sb,
+                              final String val) {
+    if (val == null) {
+      return;
+    }
+
+    for (int i = 0; i < val.length(); i++) {
+      final char c = val.charAt(i);
+
+      switch (c) {
+        case '&':
+          sb.append("&amp;");
+          break;
+        case '<':
+          sb.append("&lt;");
+          break;
+        case '>':
+          sb.append("&gt;");
+          break;
+        default:
+          sb.append(c);
+      }
+    }
+  }
+
+  /* ====================================================================
+   *                   Values
+   * ==================================================================== */
+
+  /* Our VCALENDAR properties - as for TzServerUtil.getCalHdr() */
+  private static String[][] calProps() {
+    return new String[][] {
+            {"version", "2.0"},
+            {"calscale", "GREGORIAN"},
+            {"prodid", TzServerUtil.getProdid()},
+    };
+  }
+
+  @SuppressWarnings("unchecked")
+  private static List<Component> subComponents(final Component comp) {
+    if (comp instanceof VTimeZone) {
+      return new ArrayList<Component>(((VTimeZone)comp).getObservances());
+    }
+
+    return new ArrayList<>();
+  }
+
+  /* Only the properties which can appear in a VTIMEZONE have anything
+   * other than text.
+   */
+  private static String valueType(final Property prop) {
+    final String name = prop.getName().toUpperCase();
+
+    final Parameter vpar = prop.getParameter(Parameter.VALUE);
+    final String vtype;
+    if (vpar == null) {
+      vtype = null;
+    } else {
+      vtype = vpar.getValue().toLowerCase();
+    }
+
+    switch (name) {
+      case Property.DTSTART:
+      case Property.RDATE:
+      case Property.LAST_MODIFIED:
+      case Property.DTSTAMP:
+        if (vtype != null) {
+          return vtype;
+        }
+
+        if (prop.getValue().length() == 8) {
+          return typeDate;
+        }
+
+        return typeDateTime;
+
+      case Property.RRULE:
+        return typeRecur;
+
+      case Property.TZOFFSETFROM:
+      case Property.TZOFFSETTO:
+        return typeUtcOffset;
+
+      case Property.TZURL:
+        return typeUri;
+
+      default:
+        return typeText;
+    }
+  }
+
+  private static List<String> values(final Property prop) {
+    final List<String> res = new ArrayList<>();
+    final String val = prop.getValue();
+
+    if (!prop.getName().equalsIgnoreCase(Property.RDATE)) {
+      res.add(val);
+      return res;
+    }
+
+    int pos = 0;
+    while (pos <= val.length()) {
+      int end = val.indexOf(',', pos);
+      if (end < 0) {
+        end = val.length();
+      }
+
+      res.add(val.substring(pos, end));
+      pos = end + 1;
+    }
+
+    return res;
+  }
+
+  private static String formatValue(final String type,
+                                    final String val) {
+    if (type.equals(typeDate) || type.equals(typeDateTime)) {
+      return dateTime(val);
+    }
+
+    if (type.equals(typeUtcOffset)) {
+      return utcOffset(val);
+    }
+
+    if (type.equals(typePeriod)) {
+      final int pos = val.indexOf('/');
+      if (pos < 0) {
+        return dateTime(val);
+      }
+
+      final String e = val.substring(pos + 1);
+      if (isDuration(e)) {
+        return dateTime(val.substring(0, pos)) + "/" + e;
+      }
+
+      return dateTime(val.substring(0, pos)) + "/" + dateTime(e);
+    }
+
+    return val;
+  }
+
+  private static boolean isDuration(final String val) {
+    return val.startsWith("P") || val.startsWith("+") ||
+            val.startsWith("-");
+  }
+
+  /* Recur parts in schema order - multi-valued parts split */
+  private static Map<String, List<String>> recur(final String val) {
+    final Map<String, List<String>> parts = new LinkedHashMap<>();
+
+    for (final String part: val.split(";")) {
+      final int pos = part.indexOf('=');
+      if (pos < 0) {
+        continue;
+      }
+
+      final List<String> vals = new ArrayList<>();
+      for (final String v: part.substring(pos + 1).split(",")) {
+        vals.add(v);
+      }
+
+      parts.put(part.substring(0, pos).toLowerCase(), vals);
+    }
+
+    final Map<String, List<String>> res = new LinkedHashMap<>();
+
+    for (final String name: recurParts) {
+      final List<String> vals = parts.remove(name);
+      if (vals != null) {
+        res.put(name, vals);
+      }
+    }
+
+    // Anything we don't know about goes at the end
+    res.putAll(parts);
+
+    return res;
+  }
+
+  /** Convert a basic format date or date-time to the extended form,
+   * e.g. 19700308T020000 to 1970-03-08T02:00:00. Anything we don't
+   * recognize is returned unchanged.
+   *
+   * @param val basic format value
+   * @return extended format
+   */
+  static String dateTime(final String val) {
+    final int len = val.length();
+
+    if ((len < 8) || !digits(val, 0, 8)) {
+      return val;
+    }
+
+    final StringBuilder sb = new StringBuilder(len + 6);
+
+    sb.append(val, 0, 4).append('-');
+    sb.append(val, 4, 6).append('-');
+    sb.append(val, 6, 8);
+
+    if (len == 8) {
+      return sb.toString();
+    }
+
+    if ((len < 15) || (val.charAt(8) != 'T') || !digits(val, 9, 15)) {
+      return val;
+    }
+
+    sb.append('T');
+    sb.append(val, 9, 11).append(':');
+    sb.append(val, 11, 13).append(':');
+    sb.append(val, 13, 15);
+    sb.append(val, 15, len); // Any Z
+
+    return sb.toString();
+  }
+
+  /* +hhmm[ss] to +hh:mm[:ss] */
+  private static String utcOffset(final String val) {
+    final int len = val.length();
+
+    if (((len != 5) && (len != 7)) || !digits(val, 1, len)) {
+      return val;
+    }
+
+    final StringBuilder sb = new StringBuilder(len + 2);
+
+    sb.append(val, 0, 3).append(':').append(val, 3, 5);
+
+    if (len == 7) {
+      sb.append(':').append(val, 5, 7);
+    }
+
+    return sb.toString();
+  }
+
+  private static boolean digits(final String val,
+                                final int start,
+                                final int end) {
+    for (int i = start; i < end; i++) {
+      final char c = val.charAt(i);
+      if ((c < '0') || (c > '9')) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+}
@@ -0,0 +1,380 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.common;
+
+import net.fortuna.ical4j.model.Property;
+import net.fortuna.ical4j.model.component.VTimeZone;
+import net.fortuna.ical4j.model.property.EquivalentTzId;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** The rendered calendars for each tzid and alias, held once per
+ * distinct VTIMEZONE body.
+ *
+ * <p>As for ZoneStore, a body is a VTIMEZONE without its TZID and
+ * EQUIVALENT-TZID properties. The first name with a body gets its
+ * calendar rendered in each format with the compressed variants.
+ * Every other name with the body - the aliases and zones identical
+ * apart from their TZID - gets spliced content which refers to those
+ * calendars and holds only its own TZID and EQUIVALENT-TZID bytes and
+ * its own compressed variants.</p>
+ *
+ * <p>The ranges to replace are found by rendering the body with
+ * placeholder values, so this doesn't depend on how a format escapes
+ * or lays out a property. A name is rendered in full when it is put
+ * and the spliced content is only used if it gives exactly the same
+ * bytes. If not the name gets its own calendar.</p>
+ *
+ * <p>Filled in while loading and then only read.</p>
+ *
+ * @author douglm
+ */
+public class CalendarStore {
+  /* The calendars of the first name with a body and where its TZID
+   * value and EQUIVALENT-TZID properties are in each. Indexed by
+   * CalFormat ordinal. A null range means that format can't be
+   * spliced.
+   */
+  private static class Body {
+    final CachedContent[] contents;
+    final int[][] ranges;
+
+    Body(final CachedContent[] contents,
+         final int[][] ranges) {
+      this.contents = contents;
+      this.ranges = ranges;
+    }
+  }
+
+  /* Keyed by a digest of the body */
+  private final Map<String, Body> bodies = new HashMap<>();
+
+  private final Map<String, CachedContent[]> calendars = new HashMap<>();
+
+  private long bytes;
+
+  private int spliced;
+
+  /** Render the calendars for a name.
+   *
+   * @param name tzid or alias
+   * @param vtz the zone with the name as its TZID
+   * @param vtzStr the zone as text
+   * @param lastModified millis or 0 for unknown
+   * @throws TzException
+   */
+  public void put(final String name,
+                  final VTimeZone vtz,
+                  final String vtzStr,
+                  final long lastModified) throws TzException {
+    try {
+      final VTimeZone stripped = stripped(vtz);
+      final String key = CachedContent.digest(stripped.toString());
+      final CalFormat[] formats = CalFormat.values();
+
+      final Body body = bodies.get(key);
+      final CachedContent[] ccs;
+
+      if (body == null) {
+        ccs = new CachedContent[formats.length];
+        final int[][] ranges = new int[formats.length][];
+
+        for (final CalFormat f: formats) {
+          ccs[f.ordinal()] = render(f, vtz, vtzStr, lastModified);
+          ranges[f.ordinal()] = ranges(f, stripped,
+                                       ccs[f.ordinal()].getContent());
+        }
+
+        bodies.put(key, new Body(ccs, ranges));
+      } else {
+        ccs = new CachedContent[formats.length];
+
+        for (final CalFormat f: formats) {
+          ccs[f.ordinal()] = splice(body, f, vtz, vtzStr, lastModified);
+        }
+      }
+
+      final CachedContent[] old = calendars.put(name, ccs);
+      if (old != null) {
+        bytes -= size(old);
+      }
+      bytes += size(ccs);
+    } catch (final TzException te) {
+      throw te;
+    } catch (final Throwable t) {
+      throw new TzException(t);
+    }
+  }
+
+  /**
+   * @param name tzid or alias
+   * @param format wanted
+   * @return the calendar or null
+   */
+  public CachedContent get(final String name,
+                           final CalFormat format) {
+    final CachedContent[] ccs = calendars.get(name);
+
+    if (ccs == null) {
+      return null;
+    }
+
+    return ccs[format.ordinal()];
+  }
+
+  /**
+   * @param name tzid or alias
+   * @return calendars indexed by CalFormat ordinal or null
+   */
+  public CachedContent[] get(final String name) {
+    return calendars.get(name);
+  }
+
+  /**
+   * @param name tzid or alias
+   * @return true if we have calendars for the name
+   */
+  public boolean contains(final String name) {
+    return calendars.containsKey(name);
+  }
+
+  /**
+   * @return number of names
+   */
+  public int size() {
+    return calendars.size();
+  }
+
+  /**
+   * @return number of distinct bodies
+   */
+  public int bodyCount() {
+    return bodies.size();
+  }
+
+  /**
+   * @return number of spliced calendars
+   */
+  public int splicedCount() {
+    return spliced;
+  }
+
+  /** The bytes of the calendars we hold - every variant of the
+   * rendered calendars and the replacements and compressed variants
+   * of the spliced ones.
+   *
+   * @return bytes
+   */
+  public long heapBytes() {
+    return bytes;
+  }
+
+  /* ====================================================================
+   *                   private methods
+   * ==================================================================== */
+
+  /* With the compressed variants */
+  private static CachedContent render(final CalFormat format,
+                                      final VTimeZone vtz,
+                                      final String vtzStr,
+                                      final long lastModified) throws TzException {
+    if (format == CalFormat.ical) {
+      return CalRenderer.renderIcal(vtzStr, lastModified);
+    }
+
+    return CalRenderer.render(format, vtz, lastModified);
+  }
+
+  /* Spliced content for the name if it renders the same as the
+     full calendar, otherwise the full calendar. The spliced content
+     keeps the compressed variants of the full calendar - they are
+     what a name is usually fetched as. */
+  private CachedContent splice(final Body body,
+                               final CalFormat format,
+                               final VTimeZone vtz,
+                               final String vtzStr,
+                               final long lastModified) throws TzException {
+    final CachedContent base = body.contents[format.ordinal()];
+    final int[] baseRanges = body.ranges[format.ordinal()];
+    final CachedContent full = render(format, vtz, vtzStr, lastModified);
+
+    if (baseRanges != null) {
+      final byte[] content = full.getContent();
+      final byte[] baseContent = base.getContent();
+      final int[] r = match(content, baseContent, baseRanges);
+
+      if (r != null) {
+        final byte[] x = new byte[r[1] - r[0]];
+        final byte[] y = new byte[r[3] - r[2]];
+
+        System.arraycopy(content, r[0], x, 0, x.length);
+        System.arraycopy(content, r[2], y, 0, y.length);
+
+        spliced++;
+
+        return new CachedContent(base, baseRanges, x, y,
+                                 full.getEtag(), lastModified,
+                                 full.getGzipped(), full.getDeflated());
+      }
+    }
+
+    return full;
+  }
+
+  /* Where the TZID value and the EQUIVALENT-TZID properties are in the
+   * rendered calendar of the first name with the body. We render the
+   * body with a TZID of "0", again with "1", and with "0" and an
+   * EQUIVALENT-TZID of "1". The first two only differ at the TZID
+   * value and the third has the property inserted at the end of the
+   * properties. Null if the renderings don't look like that.
+   */
+  private static int[] ranges(final CalFormat format,
+                              final VTimeZone stripped,
+                              final byte[] content) throws Throwable {
+    final byte[] t0 = bytes(format, stripped);
+    final byte[] t1 = bytes(format, withTzid(stripped, "1"));
+
+    final VTimeZone eq = (VTimeZone)stripped.copy();
+    eq.getProperties().add(new EquivalentTzId("1"));
+    final byte[] teq = bytes(format, eq);
+
+    /* One byte differs */
+    if (t0.length != t1.length) {
+      return null;
+    }
+
+    int tzidPos = -1;
+    for (int i = 0; i < t0.length; i++) {
+      if (t0[i] != t1[i]) {
+        if (tzidPos >= 0) {
+          return null;
+        }
+        tzidPos = i;
+      }
+    }
+
+    final int inserted = teq.length - t0.length;
+
+    if ((tzidPos < 0) || (inserted <= 0)) {
+      return null;
+    }
+
+    /* teq is t0 with the property inserted at eqPos */
+    int eqPos = 0;
+    while ((eqPos < t0.length) && (t0[eqPos] == teq[eqPos])) {
+      eqPos++;
+    }
+
+    if ((eqPos <= tzidPos) ||
+            !same(teq, eqPos + inserted, t0, eqPos, t0.length - eqPos)) {
+      return null;
+    }
+
+    return match(content, t0, new int[]{tzidPos, tzidPos + 1,
+                                         eqPos, eqPos});
+  }
+
+  /* The ranges in content matching the replaced ranges of template.
+   * Everything outside them must be the same. Null for no match.
+   */
+  private static int[] match(final byte[] content,
+                             final byte[] template,
+                             final int[] ranges) {
+    final int prefixLen = ranges[0];
+    final int midStart = ranges[1];
+    final int midLen = ranges[2] - ranges[1];
+    final int suffixLen = template.length - ranges[3];
+    final int suffixStart = content.length - suffixLen;
+
+    if ((suffixStart < prefixLen + midLen) ||
+            !same(content, 0, template, 0, prefixLen) ||
+            !same(content, suffixStart, template, ranges[3], suffixLen)) {
+      return null;
+    }
+
+    for (int pos = prefixLen; pos + midLen <= suffixStart; pos++) {
+      if (same(content, pos, template, midStart, midLen)) {
+        return new int[]{prefixLen, pos, pos + midLen, suffixStart};
+      }
+    }
+
+    return null;
+  }
+
+  private static boolean same(final byte[] a,
+                              final int aPos,
+                              final byte[] b,
+                              final int bPos,
+                              final int len) {
+    for (int i = 0; i < len; i++) {
+      if (a[aPos + i] != b[bPos + i]) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  private static byte[] bytes(final CalFormat format,
+                              final VTimeZone vtz) throws TzException {
+    return CalRenderer.renderForRequest(format, vtz, 0).getContent();
+  }
+
+  /* A copy with a TZID of "0" and no EQUIVALENT-TZID */
+  private static VTimeZone stripped(final VTimeZone vtz) throws Throwable {
+    final VTimeZone res = withTzid(vtz, "0");
+    final List<Property> eqs = new ArrayList<>();
+
+    for (final Object o: res.getProperties()) {
+      final Property p = (Property)o;
+
+      if (p.getName().equalsIgnoreCase("EQUIVALENT-TZID")) {
+        eqs.add(p);
+      }
+    }
+
+    for (final Property p: eqs) {
+      res.getProperties().remove(p);
+    }
+
+    return res;
+  }
+
+  private static VTimeZone withTzid(final VTimeZone vtz,
+                                    final String tzid) throws Throwable {
+    final VTimeZone res = (VTimeZone)vtz.copy();
+
+    res.getTimeZoneId().setValue(tzid);
+
+    return res;
+  }
+
+  private static long size(final CachedContent[] ccs) {
+    long sz = 0;
+
+    for (final CachedContent cc: ccs) {
+      sz += cc.getSize();
+    }
+
+    return sz;
+  }
+}
@@ -28,6 +28,7 @@ import ietf.params.xml.ns.icalendar_2.IcalendarType;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.SortedSet;
 import java.util.TreeSet;
 
@@ -148,6 +149,11 @@ public class Differ {
     XmlIcalCompare comp = new XmlIcalCompare(XmlIcalCompare.defaultSkipList,
                                              null); // Shouldn't need any tzs
 
+    /* xCal is built on demand - get it all up front in parallel */
+    final Map<String, IcalendarType> newXtzs = newTzdata.getAllXTimeZones();
+    final Map<String, IcalendarType> currentXtzs =
+            currentTzdata.getAllXTimeZones();
+
     for (String tzid: newNames) {
       if (nc.addedNames.contains(tzid)) {
         DiffListEntry dle = new DiffListEntry();
@@ -175,8 +181,8 @@ public class Differ {
 
       /* compare */
 
-      IcalendarType newXcal = newTzdata.getXTimeZone(tzid);
-      IcalendarType currentXcal = currentTzdata.getXTimeZone(tzid);
+      IcalendarType newXcal = newXtzs.get(tzid);
+      IcalendarType currentXcal = currentXtzs.get(tzid);
 
       ComponentSelectionType cst = comp.diff(newXcal, currentXcal);
 
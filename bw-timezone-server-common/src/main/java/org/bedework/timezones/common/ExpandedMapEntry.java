@@ -22,11 +22,15 @@ import org.bedework.util.misc.ToString;
 import org.bedework.util.timezones.model.ExpandedTimezoneType;
 
 /** Allows us to cache expansions
+ *
+ * <p>The etag is weak as the expansion carries the server dtstamp
+ * which may change while the observances do not.</p>
  *
  * @author douglm
  */
 public class ExpandedMapEntry {
   private String etag;
+  private long lastModified;
   private ExpandedTimezoneType tzs;
 
   /**
@@ -35,7 +39,19 @@ public class ExpandedMapEntry {
    */
   public ExpandedMapEntry(final String etag,
                           final ExpandedTimezoneType tzs) {
+    this(etag, 0, tzs);
+  }
+
+  /**
+   * @param etag
+   * @param lastModified millis or 0 for unknown
+   * @param tzs
+   */
+  public ExpandedMapEntry(final String etag,
+                          final long lastModified,
+                          final ExpandedTimezoneType tzs) {
     this.etag = etag;
+    this.lastModified = lastModified;
     this.tzs = tzs;
   }
 
@@ -46,6 +62,13 @@ public class ExpandedMapEntry {
     return etag;
   }
 
+  /**
+   * @return millis or 0 for unknown
+   */
+  public long getLastModified() {
+    return lastModified;
+  }
+
   /**
    * @return tzs
    */
@@ -58,6 +81,7 @@ public class ExpandedMapEntry {
     ToString ts = new ToString(this);
 
     ts.append("etag=", getEtag());
+    ts.append("lastModified=", getLastModified());
     ts.newLine();
     ts.append("tzs", tzs.toString());
 
@@ -68,7 +68,11 @@ public class ExpandedMapEntryKey implements Comparable<ExpandedMapEntryKey>, Ser
 
   @Override
   public int hashCode() {
-    return getTzid().hashCode() * getStart().hashCode() * getEnd().hashCode();
+    int res = getTzid().hashCode();
+
+    res = 31 * res + hash(getStart());
+
+    return 31 * res + hash(getEnd());
   }
 
   @Override
@@ -89,9 +93,25 @@ public class ExpandedMapEntryKey implements Comparable<ExpandedMapEntryKey>, Ser
 
   @Override
   public boolean equals(final Object o) {
+    if (this == o) {
+      return true;
+    }
+
+    if (!(o instanceof ExpandedMapEntryKey)) {
+      return false;
+    }
+
     return compareTo((ExpandedMapEntryKey)o) == 0;
   }
 
+  private static int hash(final String val) {
+    if (val == null) {
+      return 0;
+    }
+
+    return val.hashCode();
+  }
+
   @Override
   public String toString() {
     StringBuilder sb = new StringBuilder(getClass().getSimpleName()).append("{");
@@ -30,7 +30,6 @@ import net.fortuna.ical4j.model.property.Version;
 import java.io.File;
 import java.io.FileReader;
 import java.io.LineNumberReader;
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Properties;
@@ -57,6 +56,10 @@ public class FileCachedData extends AbstractCachedData {
   public void stop() throws TzException {
   }
 
+  @Override
+  public void start() throws TzException {
+  }
+
   @Override
   public String getSource() throws TzException {
     return source;
@@ -73,11 +76,6 @@ public class FileCachedData extends AbstractCachedData {
     // XXX ??
   }
 
-  @Override
-  public List<String> findIds(final String val) throws TzException {
-    return new ArrayList<>();
-  }
-
   private synchronized void loadData() throws TzException {
     try {
       final long smillis = System.currentTimeMillis();
@@ -109,16 +107,21 @@ public class FileCachedData extends AbstractCachedData {
 
       /* ===================== All tzs into the table ======================= */
 
-      fetchTzs(dtstamp);
-      expansions.clear();
+      if (!loadSnapshot()) {
+        fetchTzs(dtstamp);
+        renderTzs();
+        saveSnapshot();
+      }
+      warmExpansions();
+      publish();
 
       cfg.setDtstamp(dtstamp);
       cfg.setSource(source);
 
       TzServerUtil.saveConfig();
 
-      TzServerUtil.reloadsMillis += System.currentTimeMillis() - smillis;
-      TzServerUtil.reloads++;
+      TzServerUtil.reloadsMillis.add(System.currentTimeMillis() - smillis);
+      TzServerUtil.reloads.inc();
     } catch (final Throwable t) {
       throw new TzException(t);
     }
@@ -0,0 +1,313 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.common;
+
+import org.bedework.util.timezones.model.LocalNameType;
+import org.bedework.util.timezones.model.TimezoneType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/** An index of the tzids, aliases and local names of every zone for
+ * find requests. Built once per snapshot and then only read.
+ *
+ * <p>Matching is case insensitive and an underscore matches a space so
+ * "new york" finds America/New_York. Each name is indexed by the
+ * trigrams it contains. A query of 3 or more characters only checks
+ * the names having all of its trigrams. Shorter queries check every
+ * name.</p>
+ *
+ * <p>Results are ranked by the best match for each zone: an exact
+ * match, then a prefix of the name, then a prefix of a part of the name
+ * (after a '/', space or '-'), then any other substring. Within each of
+ * those a match on the tzid comes before an alias, an alias before a
+ * local name and then zones are in tzid order.</p>
+ *
+ * @author douglm
+ */
+public class FindIndex {
+  /* Kinds of name - the order is the ranking */
+  private static final int kindTzid = 0;
+  private static final int kindAlias = 1;
+  private static final int kindLocalName = 2;
+
+  /* Kinds of match - the order is the ranking */
+  private static final int matchExact = 0;
+  private static final int matchPrefix = 1;
+  private static final int matchPartPrefix = 2;
+  private static final int matchSubstring = 3;
+
+  private static final int[] noNames = new int[0];
+
+  private final List<TimezoneType> zones;
+
+  /* For each indexed name */
+  private final String[] names;
+  private final int[] zoneIndexes;
+  private final int[] kinds;
+
+  /* Ascending indexes into names for each trigram */
+  private final Map<String, int[]> trigrams;
+
+  /**
+   * @param timezones summaries - not modified
+   */
+  public FindIndex(final List<TimezoneType> timezones) {
+    zones = new ArrayList<>(timezones);
+
+    /* Sort so the tzid order ranking is just the zone index */
+    Collections.sort(zones, new Comparator<TimezoneType>() {
+      @Override
+      public int compare(final TimezoneType a,
+                         final TimezoneType b) {
+        return a.getTzid().compareTo(b.getTzid());
+      }
+    });
+
+    final List<String> ns = new ArrayList<>();
+    final List<Integer> zis = new ArrayList<>();
+    final List<Integer> ks = new ArrayList<>();
+
+    for (int zi = 0; zi < zones.size(); zi++) {
+      final TimezoneType tz = zones.get(zi);
+
+      add(ns, zis, ks, tz.getTzid(), zi, kindTzid);
+
+      if (tz.getAliases() != null) {
+        for (final String a: tz.getAliases()) {
+          add(ns, zis, ks, a, zi, kindAlias);
+        }
+      }
+
+      if (tz.getLocalNames() != null) {
+        for (final LocalNameType ln: tz.getLocalNames()) {
+          add(ns, zis, ks, ln.getValue(), zi, kindLocalName);
+        }
+      }
+    }
+
+    names = ns.toArray(new String[ns.size()]);
+    zoneIndexes = new int[names.length];
+    kinds = new int[names.length];
+
+    final Map<String, List<Integer>> tgs = new HashMap<>();
+
+    for (int i = 0; i < names.length; i++) {
+      zoneIndexes[i] = zis.get(i);
+      kinds[i] = ks.get(i);
+
+      final String n = names[i];
+
+      for (int j = 0; j + 3 <= n.length(); j++) {
+        final String tg = n.substring(j, j + 3);
+        List<Integer> l = tgs.get(tg);
+
+        if (l == null) {
+          l = new ArrayList<>();
+          tgs.put(tg, l);
+        }
+
+        /* Names are added in order so only check the last */
+        if (l.isEmpty() || (l.get(l.size() - 1) != i)) {
+          l.add(i);
+        }
+      }
+    }
+
+    trigrams = new HashMap<>(tgs.size() * 2);
+
+    for (final Map.Entry<String, List<Integer>> ent: tgs.entrySet()) {
+      final List<Integer> l = ent.getValue();
+      final int[] a = new int[l.size()];
+
+      for (int i = 0; i < a.length; i++) {
+        a[i] = l.get(i);
+      }
+
+      trigrams.put(ent.getKey(), a);
+    }
+  }
+
+  /**
+   * @param val to look for
+   * @return matching zones ranked best first - never null
+   */
+  public List<TimezoneType> find(final String val) {
+    final String q = normalize(val);
+
+    if (q.length() == 0) {
+      return new ArrayList<>();
+    }
+
+    /* Best rank for each zone - lower is better */
+    final int[] ranks = new int[zones.size()];
+    Arrays.fill(ranks, Integer.MAX_VALUE);
+
+    final int[] candidates = candidates(q);
+    final int count;
+
+    if (candidates == null) {
+      count = names.length;
+    } else {
+      count = candidates.length;
+    }
+
+    int found = 0;
+
+    for (int c = 0; c < count; c++) {
+      final int i = (candidates == null) ? c : candidates[c];
+      final int match = match(names[i], q);
+
+      if (match < 0) {
+        continue;
+      }
+
+      final int rank = match * 3 + kinds[i];
+      final int zi = zoneIndexes[i];
+
+      if (ranks[zi] == Integer.MAX_VALUE) {
+        found++;
+      }
+
+      if (rank < ranks[zi]) {
+        ranks[zi] = rank;
+      }
+    }
+
+    /* Bucket by rank - zone order within each is tzid order */
+    final List<TimezoneType> res = new ArrayList<>(found);
+
+    for (int rank = 0; (rank < 12) && (res.size() < found); rank++) {
+      for (int zi = 0; zi < ranks.length; zi++) {
+        if (ranks[zi] == rank) {
+          res.add(zones.get(zi));
+        }
+      }
+    }
+
+    return res;
+  }
+
+  /**
+   * @param val to look for
+   * @return tzids of matching zones ranked best first - never null
+   */
+  public List<String> findIds(final String val) {
+    final List<TimezoneType> tzs = find(val);
+    final List<String> res = new ArrayList<>(tzs.size());
+
+    for (final TimezoneType tz: tzs) {
+      res.add(tz.getTzid());
+    }
+
+    return res;
+  }
+
+  /**
+   * @return number of names indexed
+   */
+  public int size() {
+    return names.length;
+  }
+
+  /* ====================================================================
+   *                   private methods
+   * ==================================================================== */
+
+  /* Names which might match - null to check them all */
+  private int[] candidates(final String q) {
+    if (q.length() < 3) {
+      return null;
+    }
+
+    int[] best = null;
+
+    for (int j = 0; j + 3 <= q.length(); j++) {
+      final int[] l = trigrams.get(q.substring(j, j + 3));
+
+      if (l == null) {
+        return noNames;
+      }
+
+      if ((best == null) || (l.length < best.length)) {
+        best = l;
+      }
+    }
+
+    return best;
+  }
+
+  /* -1 for no match */
+  private static int match(final String name,
+                           final String q) {
+    final int pos = name.indexOf(q);
+
+    if (pos < 0) {
+      return -1;
+    }
+
+    if (pos == 0) {
+      if (name.length() == q.length()) {
+        return matchExact;
+      }
+
+      return matchPrefix;
+    }
+
+    /* Look for the best place it matches */
+    for (int p = pos; p >= 0; p = name.indexOf(q, p + 1)) {
+      final char c = name.charAt(p - 1);
+
+      if ((c == '/') || (c == ' ') || (c == '-')) {
+        return matchPartPrefix;
+      }
+    }
+
+    return matchSubstring;
+  }
+
+  private static void add(final List<String> ns,
+                          final List<Integer> zis,
+                          final List<Integer> ks,
+                          final String name,
+                          final int zi,
+                          final int kind) {
+    if (name == null) {
+      return;
+    }
+
+    ns.add(normalize(name));
+    zis.add(zi);
+    ks.add(kind);
+  }
+
+  private static String normalize(final String val) {
+    if (val == null) {
+      return "";
+    }
+
+    return val.trim().toLowerCase(Locale.ROOT).replace('_', ' ');
+  }
+}
@@ -0,0 +1,191 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.common;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+
+/** What is in effect in a timezone at an instant. Built from the
+ * transition table for the zone.
+ *
+ * <p>The abbreviation and the transitions are only available up to
+ * the transition table horizon and are null after it or if there is
+ * no such transition.</p>
+ *
+ * @author douglm
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+@JsonPropertyOrder({"tzid", "instant", "utc-offset", "dst",
+        "abbreviation", "previous", "next"})
+public class InstantInfo {
+  /** A change of offset */
+  @JsonInclude(JsonInclude.Include.NON_NULL)
+  @JsonPropertyOrder({"onset", "utc-offset-from", "utc-offset-to",
+          "dst", "abbreviation"})
+  public static class Transition {
+    private final String onset;
+    private final int utcOffsetFrom;
+    private final int utcOffsetTo;
+    private final boolean dst;
+    private final String abbreviation;
+
+    /**
+     * @param tt the table
+     * @param index of the transition
+     */
+    public Transition(final TransitionTable tt,
+                      final int index) {
+      onset = TransitionTable.formatExtended(tt.getOnset(index), true);
+      utcOffsetFrom = tt.getOffsetBefore(index);
+      utcOffsetTo = tt.getOffset(index);
+      dst = tt.isDaylight(index);
+      abbreviation = tt.getName(index);
+    }
+
+    /**
+     * @return UTC date-time of the transition
+     */
+    @JsonProperty("onset")
+    public String getOnset() {
+      return onset;
+    }
+
+    /**
+     * @return offset in seconds before the transition
+     */
+    @JsonProperty("utc-offset-from")
+    public int getUtcOffsetFrom() {
+      return utcOffsetFrom;
+    }
+
+    /**
+     * @return offset in seconds after the transition
+     */
+    @JsonProperty("utc-offset-to")
+    public int getUtcOffsetTo() {
+      return utcOffsetTo;
+    }
+
+    /**
+     * @return true if daylight time starts here
+     */
+    @JsonProperty("dst")
+    public boolean getDst() {
+      return dst;
+    }
+
+    /**
+     * @return abbreviation after the transition or null
+     */
+    @JsonProperty("abbreviation")
+    public String getAbbreviation() {
+      return abbreviation;
+    }
+  }
+
+  private final String tzid;
+  private final String instant;
+  private final int utcOffset;
+  private final boolean dst;
+  private final String abbreviation;
+  private final Transition previous;
+  private final Transition next;
+
+  /**
+   * @param tzid the timezone
+   * @param utc the instant as epoch seconds
+   * @param utcOffset offset in seconds at the instant
+   * @param dst true if daylight time is in effect
+   * @param abbreviation in effect or null
+   * @param previous transition at or before the instant or null
+   * @param next transition after the instant or null
+   */
+  public InstantInfo(final String tzid,
+                     final long utc,
+                     final int utcOffset,
+                     final boolean dst,
+                     final String abbreviation,
+                     final Transition previous,
+                     final Transition next) {
+    this.tzid = tzid;
+    instant = TransitionTable.formatExtended(utc, true);
+    this.utcOffset = utcOffset;
+    this.dst = dst;
+    this.abbreviation = abbreviation;
+    this.previous = previous;
+    this.next = next;
+  }
+
+  /**
+   * @return the timezone
+   */
+  @JsonProperty("tzid")
+  public String getTzid() {
+    return tzid;
+  }
+
+  /**
+   * @return UTC date-time we were asked about
+   */
+  @JsonProperty("instant")
+  public String getInstant() {
+    return instant;
+  }
+
+  /**
+   * @return offset in seconds
+   */
+  @JsonProperty("utc-offset")
+  public int getUtcOffset() {
+    return utcOffset;
+  }
+
+  /**
+   * @return true if daylight time is in effect
+   */
+  @JsonProperty("dst")
+  public boolean getDst() {
+    return dst;
+  }
+
+  /**
+   * @return abbreviation or null
+   */
+  @JsonProperty("abbreviation")
+  public String getAbbreviation() {
+    return abbreviation;
+  }
+
+  /**
+   * @return transition at or before the instant or null
+   */
+  @JsonProperty("previous")
+  public Transition getPrevious() {
+    return previous;
+  }
+
+  /**
+   * @return transition after the instant or null
+   */
+  @JsonProperty("next")
+  public Transition getNext() {
+    return next;
+  }
+}
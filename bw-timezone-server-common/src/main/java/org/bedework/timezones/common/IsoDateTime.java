@@ -0,0 +1,318 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.common;
+
+/** Parse ISO-8601 date-times and epoch values in one pass without
+ * regular expressions, formatters or allocation.
+ *
+ * <p>Accepted forms are</p>
+ * <ul>
+ *   <li>basic - 20240310T020000, 20240310T070000Z, 20240310T020000-0500</li>
+ *   <li>extended - 2024-03-10T02:00:00, 2024-03-10T07:00:00Z,
+ *   2024-03-10T02:00:00-05:00</li>
+ *   <li>epoch seconds or milliseconds - 1710054000, 1710054000000</li>
+ * </ul>
+ *
+ * <p>Fractional seconds are allowed and dropped. An epoch value of 12
+ * or more digits is taken as milliseconds - as seconds it would be
+ * after the year 5000. An unsigned 8 digit value is rejected as it is
+ * more likely to be a basic date with no time than an epoch value in
+ * 1970 to 1973.</p>
+ *
+ * <p>Results are limited to the years 0000 to 9999 less a day at each
+ * end, so they can be formatted with a 4 digit year at any offset.
+ * Anything else is invalid.</p>
+ *
+ * @author douglm
+ */
+public class IsoDateTime {
+  /** Returned by parse for a value that isn't valid */
+  public static final long invalid = Long.MIN_VALUE;
+
+  private static final int secsPerDay = 24 * 60 * 60;
+
+  /** Earliest result - 0000-01-02T00:00:00Z */
+  public static final long minSecs =
+          TransitionTable.days(0, 1, 2) * secsPerDay;
+
+  /** Latest result - 9999-12-30T23:59:59Z */
+  public static final long maxSecs =
+          TransitionTable.days(9999, 12, 31) * secsPerDay - 1;
+
+  private static final int[] monthLengths = {
+          31, 28, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31
+  };
+
+  private IsoDateTime() {
+  }
+
+  /** Parse a date-time or epoch value.
+   *
+   * @param val the value - may be null
+   * @return epoch seconds or invalid. A value with no "Z" or offset is
+   *         local and the result treats it as UTC.
+   */
+  public static long parse(final String val) {
+    if (val == null) {
+      return invalid;
+    }
+
+    final int len = val.length();
+
+    if (len == 0) {
+      return invalid;
+    }
+
+    if (isEpoch(val)) {
+      return inRange(parseEpoch(val));
+    }
+
+    int pos = 0;
+
+    final int year = digits(val, pos, 4);
+    pos += 4;
+
+    final boolean extended = (pos < len) && (val.charAt(pos) == '-');
+
+    if (extended) {
+      pos++;
+    }
+
+    final int month = digits(val, pos, 2);
+    pos += 2;
+
+    if (extended && !is(val, pos++, '-')) {
+      return invalid;
+    }
+
+    final int day = digits(val, pos, 2);
+    pos += 2;
+
+    if (!is(val, pos++, 'T')) {
+      return invalid;
+    }
+
+    final int hour = digits(val, pos, 2);
+    pos += 2;
+
+    if (extended && !is(val, pos++, ':')) {
+      return invalid;
+    }
+
+    final int minute = digits(val, pos, 2);
+    pos += 2;
+
+    if (extended && !is(val, pos++, ':')) {
+      return invalid;
+    }
+
+    final int second = digits(val, pos, 2);
+    pos += 2;
+
+    if ((year < 0) || (month < 1) || (month > 12) ||
+            (day < 1) || (day > monthLength(year, month)) ||
+            (hour < 0) || (hour > 23) ||
+            (minute < 0) || (minute > 59) ||
+            (second < 0) || (second > 59)) {
+      return invalid;
+    }
+
+    /* Fraction */
+    if (is(val, pos, '.') || is(val, pos, ',')) {
+      pos++;
+      final int start = pos;
+
+      while ((pos < len) && isDigit(val.charAt(pos))) {
+        pos++;
+      }
+
+      if (pos == start) {
+        return invalid;
+      }
+    }
+
+    final long secs = TransitionTable.days(year, month, day) * secsPerDay +
+            hour * 3600 + minute * 60 + second;
+
+    if (pos == len) {
+      return inRange(secs);
+    }
+
+    final char ch = val.charAt(pos++);
+
+    if (ch == 'Z') {
+      if (pos != len) {
+        return invalid;
+      }
+
+      return inRange(secs);
+    }
+
+    if ((ch != '+') && (ch != '-')) {
+      return invalid;
+    }
+
+    final int oh = digits(val, pos, 2);
+    pos += 2;
+
+    if (is(val, pos, ':')) {
+      pos++;
+    }
+
+    final int om = digits(val, pos, 2);
+    pos += 2;
+
+    if ((pos != len) || (oh < 0) || (oh > 18) || (om < 0) || (om > 59)) {
+      return invalid;
+    }
+
+    final int offset = oh * 3600 + om * 60;
+
+    if (ch == '+') {
+      return inRange(secs - offset);
+    }
+
+    return inRange(secs + offset);
+  }
+
+  /** Say if a value that parsed is an instant - it has a "Z" or an
+   * offset or is an epoch value - rather than a local time.
+   *
+   * @param val a value parse accepted
+   * @return true for an instant
+   */
+  public static boolean isAbsolute(final String val) {
+    final int t = val.indexOf('T');
+
+    if (t < 0) {
+      return true;
+    }
+
+    for (int i = t + 1; i < val.length(); i++) {
+      final char ch = val.charAt(i);
+
+      if ((ch == 'Z') || (ch == '+') || (ch == '-')) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  /* ====================================================================
+   *                   private methods
+   * ==================================================================== */
+
+  private static boolean isEpoch(final String val) {
+    final int len = val.length();
+    int i = 0;
+
+    if (val.charAt(0) == '-') {
+      i = 1;
+    }
+
+    if ((len == i) || (len - i > 18) || ((i == 0) && (len == 8))) {
+      return false;
+    }
+
+    for (; i < len; i++) {
+      if (!isDigit(val.charAt(i))) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  private static long inRange(final long secs) {
+    if ((secs < minSecs) || (secs > maxSecs)) {
+      return invalid;
+    }
+
+    return secs;
+  }
+
+  private static long parseEpoch(final String val) {
+    final boolean negative = val.charAt(0) == '-';
+    long res = 0;
+
+    for (int i = negative ? 1 : 0; i < val.length(); i++) {
+      res = res * 10 + (val.charAt(i) - '0');
+    }
+
+    final int ndigits = negative ? val.length() - 1 : val.length();
+
+    if (ndigits >= 12) {
+      // Milliseconds - round towards minus infinity
+      long secs = res / 1000;
+
+      if (negative && ((res % 1000) != 0)) {
+        secs++;
+      }
+
+      return negative ? -secs : secs;
+    }
+
+    return negative ? -res : res;
+  }
+
+  /* Returns -1 if not all digits or off the end */
+  private static int digits(final String val,
+                            final int from,
+                            final int len) {
+    if (from + len > val.length()) {
+      return -1;
+    }
+
+    int res = 0;
+
+    for (int i = from; i < from + len; i++) {
+      final char ch = val.charAt(i);
+
+      if (!isDigit(ch)) {
+        return -1;
+      }
+
+      res = res * 10 + (ch - '0');
+    }
+
+    return res;
+  }
+
+  private static boolean is(final String val,
+                            final int pos,
+                            final char ch) {
+    return (pos < val.length()) && (val.charAt(pos) == ch);
+  }
+
+  private static boolean isDigit(final char ch) {
+    return (ch >= '0') && (ch <= '9');
+  }
+
+  private static int monthLength(final int year,
+                                 final int month) {
+    if ((month == 2) &&
+            ((year % 4) == 0) &&
+            (((year % 100) != 0) || ((year % 400) == 0))) {
+      return 29;
+    }
+
+    return monthLengths[month - 1];
+  }
+}
@@ -0,0 +1,179 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** A fixed size histogram of request latencies.
+ *
+ * <p>Times are recorded in microseconds into buckets that double in
+ * width - 0-1us, 1-2us, 2-4us and so on up to about 35 minutes. A
+ * percentile is the upper bound of the bucket it falls in, so it may
+ * be up to twice the true value. Memory use doesn't grow with the
+ * number of samples.</p>
+ *
+ * @author douglm
+ */
+public class LatencyHistogram {
+  private static final int buckets = 32;
+
+  private static final double[] percentiles = {
+          50, 90, 99, 99.9
+  };
+
+  private final String name;
+
+  /* Each stripe has its own set of buckets, padded so stripes don't
+     share a cache line. See StripedCounter. */
+  private static final int stride = buckets + StripedCounter.getPad();
+
+  private final AtomicLongArray counts =
+          new AtomicLongArray(StripedCounter.getStripes() * stride);
+
+  private final StripedCounter totalMicros = new StripedCounter();
+
+  /**
+   * @param name - for stats
+   */
+  public LatencyHistogram(final String name) {
+    this.name = name;
+  }
+
+  /**
+   * @param nanos time taken
+   */
+  public void record(final long nanos) {
+    final long micros = Math.max(0, nanos / 1000);
+
+    counts.incrementAndGet(StripedCounter.stripe() * stride +
+                                   bucket(micros));
+    totalMicros.add(micros);
+  }
+
+  /**
+   * @return number of samples
+   */
+  public long getCount() {
+    long res = 0;
+
+    for (final long c: snapshot()) {
+      res += c;
+    }
+
+    return res;
+  }
+
+  /**
+   * @param pc percentile 0-100
+   * @return upper bound in microseconds of the bucket the percentile
+   *         falls in - 0 for no samples
+   */
+  public long getPercentile(final double pc) {
+    /* Take a copy so the total and the walk agree */
+    final long[] snap = snapshot();
+    long total = 0;
+
+    for (final long c: snap) {
+      total += c;
+    }
+
+    if (total == 0) {
+      return 0;
+    }
+
+    final long rank = (long)Math.ceil(total * pc / 100);
+    long seen = 0;
+
+    for (int i = 0; i < buckets; i++) {
+      seen += snap[i];
+
+      if (seen >= rank) {
+        return upper(i);
+      }
+    }
+
+    return upper(buckets - 1);
+  }
+
+  /**
+   * @param prefix for stat names
+   * @return count, mean and percentiles in microseconds
+   */
+  public List<Stat> getStats(final String prefix) {
+    final List<Stat> stats = new ArrayList<>();
+    final long count = getCount();
+
+    final long mean;
+    if (count == 0) {
+      mean = 0;
+    } else {
+      mean = totalMicros.sum() / count;
+    }
+
+    stats.add(new Stat(prefix + " " + name + " count/mean",
+                       String.valueOf(count),
+                       String.valueOf(mean), "us"));
+
+    for (final double pc: percentiles) {
+      final String pcs;
+
+      if (pc == Math.floor(pc)) {
+        pcs = String.valueOf((long)pc);
+      } else {
+        pcs = String.valueOf(pc);
+      }
+
+      stats.add(new Stat(prefix + " " + name + " p" + pcs + " us",
+                         String.valueOf(getPercentile(pc))));
+    }
+
+    return stats;
+  }
+
+  /* ====================================================================
+   *                   private methods
+   * ==================================================================== */
+
+  /* Bucket counts summed over the stripes */
+  private long[] snapshot() {
+    final long[] res = new long[buckets];
+    final int stripes = StripedCounter.getStripes();
+
+    for (int s = 0; s < stripes; s++) {
+      for (int i = 0; i < buckets; i++) {
+        res[i] += counts.get(s * stride + i);
+      }
+    }
+
+    return res;
+  }
+
+  /* Bucket 0 is < 1us, bucket i is [2^(i-1), 2^i) */
+  private static int bucket(final long micros) {
+    final int b = 64 - Long.numberOfLeadingZeros(micros);
+
+    return Math.min(b, buckets - 1);
+  }
+
+  private static long upper(final int bucket) {
+    return 1L << bucket;
+  }
+}
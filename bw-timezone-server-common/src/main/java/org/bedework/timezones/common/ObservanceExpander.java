@@ -0,0 +1,508 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.common;
+
+import org.bedework.util.calendar.XcalUtil;
+import org.bedework.util.timezones.model.ObservanceType;
+
+import net.fortuna.ical4j.model.Property;
+import net.fortuna.ical4j.model.component.Observance;
+import net.fortuna.ical4j.model.component.VTimeZone;
+
+import java.util.Arrays;
+
+/** Expand the observances of a VTIMEZONE without going through the
+ * ical4j recurrence code.
+ *
+ * <p>Onsets are generated from DTSTART, RRULE and RDATE with plain
+ * arithmetic on local times in epoch seconds. Only the yearly rules
+ * found in timezone data are handled: FREQ=YEARLY with INTERVAL,
+ * UNTIL, COUNT, BYMONTH, BYDAY and BYMONTHDAY. BYDAY and BYMONTHDAY
+ * need a BYMONTH. For anything else expand returns null and the
+ * caller should use ical4j.</p>
+ *
+ * <p>The result is the same as ZoneOnsets.expandIcal - observances in
+ * onset order and for equal onsets only the first observance in the
+ * component.</p>
+ *
+ * @author douglm
+ */
+public class ObservanceExpander {
+  private static final int secsPerDay = 24 * 60 * 60;
+
+  /* Onsets we are building - local seconds and observance index */
+  private long[] onsets = new long[64];
+  private int[] owners = new int[64];
+  private int size;
+
+  /* A parsed rule - package visible for tests */
+  static class Rule {
+    int interval = 1;
+    long until = Long.MAX_VALUE; // UTC seconds
+    int count;                   // 0 for none
+    int[] byMonth;
+    int[] byDayOrd;              // 0 for every
+    int[] byDayDow;              // 1 = Sunday ... 7 = Saturday
+    int[] byMonthDay;
+  }
+
+  private ObservanceExpander() {
+  }
+
+  /** Expand the observances of the timezone over the range.
+   *
+   * @param vtz the timezone
+   * @param start inclusive local epoch seconds
+   * @param end exclusive local epoch seconds
+   * @return the onsets or null if we can't handle this timezone
+   * @throws TzException
+   */
+  public static ZoneOnsets expand(final VTimeZone vtz,
+                                  final long start,
+                                  final long end) throws TzException {
+    try {
+      final Object[] obs = vtz.getObservances().toArray();
+      final ObservanceExpander oe = new ObservanceExpander();
+
+      for (int i = 0; i < obs.length; i++) {
+        if (!oe.expand((Observance)obs[i], i, start, end)) {
+          return null;
+        }
+      }
+
+      return oe.result(obs, start, end);
+    } catch (final Throwable t) {
+      throw new TzException(t);
+    }
+  }
+
+  /* ====================================================================
+   *                   private methods
+   * ==================================================================== */
+
+  private boolean expand(final Observance ob,
+                         final int index,
+                         final long start,
+                         final long end) throws Throwable {
+    final int offsetFrom =
+            (int)(ob.getOffsetFrom().getOffset().getOffset() / 1000);
+
+    final Property dtstartProp = ob.getProperty(Property.DTSTART);
+    if (dtstartProp == null) {
+      return false;
+    }
+
+    final long dtstart = parseLocal(dtstartProp.getValue(), offsetFrom);
+
+    add(dtstart, index, start, end);
+
+    final Property rruleProp = ob.getProperty(Property.RRULE);
+
+    if (rruleProp != null) {
+      final Rule rule = parseRule(rruleProp.getValue(), offsetFrom);
+
+      if (rule == null) {
+        return false;
+      }
+
+      expandRule(rule, dtstart, offsetFrom, index, start, end);
+    }
+
+    for (final Object o: ob.getProperties(Property.RDATE)) {
+      for (final String val: ((Property)o).getValue().split(",")) {
+        add(parseLocal(val, offsetFrom), index, start, end);
+      }
+    }
+
+    return true;
+  }
+
+  private void expandRule(final Rule rule,
+                          final long dtstart,
+                          final int offsetFrom,
+                          final int index,
+                          final long start,
+                          final long end) {
+    final long day = TransitionTable.floorDay(dtstart);
+    final int[] ymd = TransitionTable.civil(day);
+    final int tod = (int)(dtstart - day * secsPerDay);
+
+    final int[] months;
+    if (rule.byMonth != null) {
+      months = rule.byMonth;
+    } else {
+      months = new int[]{ymd[1]};
+    }
+
+    final int[] days = new int[31];
+    int count = 0;
+
+    for (int year = ymd[0]; ; year += rule.interval) {
+      if (TransitionTable.days(year, 1, 1) * secsPerDay >= end) {
+        return;
+      }
+
+      for (final int month: months) {
+        final int n = monthDays(rule, year, month, ymd[2], days);
+
+        for (int i = 0; i < n; i++) {
+          final long local =
+                  TransitionTable.days(year, month, days[i]) * secsPerDay +
+                          tod;
+
+          if (local < dtstart) {
+            continue;
+          }
+
+          if ((local - offsetFrom) > rule.until) {
+            return;
+          }
+
+          count++;
+          if ((rule.count > 0) && (count > rule.count)) {
+            return;
+          }
+
+          if (local >= end) {
+            return;
+          }
+
+          add(local, index, start, end);
+        }
+      }
+    }
+  }
+
+  /* Fill days with the days of the month the rule selects, ascending.
+   * Returns how many.
+   */
+  private static int monthDays(final Rule rule,
+                               final int year,
+                               final int month,
+                               final int dtstartDay,
+                               final int[] days) {
+    final int len = monthLength(year, month);
+    int n = 0;
+
+    if (rule.byDayDow == null) {
+      if (rule.byMonthDay == null) {
+        if (dtstartDay <= len) {
+          days[n++] = dtstartDay;
+        }
+
+        return n;
+      }
+
+      for (int d = 1; d <= len; d++) {
+        if (monthDayMatches(rule, d, len)) {
+          days[n++] = d;
+        }
+      }
+
+      return n;
+    }
+
+    /* Day of week of the 1st: 1 = Sunday. Epoch day 0 was a Thursday */
+    final long first = TransitionTable.days(year, month, 1);
+    final int firstDow = (int)(((first + 4) % 7 + 7) % 7) + 1;
+
+    for (int d = 1; d <= len; d++) {
+      final int dow = (firstDow - 1 + d - 1) % 7 + 1;
+      boolean match = false;
+
+      for (int i = 0; i < rule.byDayDow.length; i++) {
+        if (rule.byDayDow[i] != dow) {
+          continue;
+        }
+
+        final int ord = rule.byDayOrd[i];
+
+        if ((ord == 0) ||
+                ((ord > 0) && ((d - 1) / 7 + 1 == ord)) ||
+                ((ord < 0) && ((len - d) / 7 + 1 == -ord))) {
+          match = true;
+          break;
+        }
+      }
+
+      if (match && ((rule.byMonthDay == null) ||
+                            monthDayMatches(rule, d, len))) {
+        days[n++] = d;
+      }
+    }
+
+    return n;
+  }
+
+  private static boolean monthDayMatches(final Rule rule,
+                                         final int d,
+                                         final int len) {
+    for (final int md: rule.byMonthDay) {
+      if ((md == d) || ((md < 0) && (len + md + 1 == d))) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  /* Returns null for anything we don't handle - package visible for
+   * tests */
+  static Rule parseRule(final String val,
+                        final int offsetFrom) {
+    final Rule rule = new Rule();
+    boolean yearly = false;
+
+    for (final String part: val.split(";")) {
+      final int pos = part.indexOf('=');
+      if (pos < 0) {
+        return null;
+      }
+
+      final String name = part.substring(0, pos);
+      final String value = part.substring(pos + 1);
+
+      switch (name) {
+        case "FREQ":
+          if (!value.equals("YEARLY")) {
+            return null;
+          }
+          yearly = true;
+          break;
+
+        case "INTERVAL":
+          rule.interval = Integer.parseInt(value);
+          if (rule.interval < 1) {
+            return null;
+          }
+          break;
+
+        case "UNTIL":
+          if (value.endsWith("Z")) {
+            rule.until = parseLocal(value, 0);
+          } else {
+            rule.until = parseLocal(value, 0) - offsetFrom;
+          }
+          break;
+
+        case "COUNT":
+          rule.count = Integer.parseInt(value);
+          break;
+
+        case "BYMONTH":
+          rule.byMonth = ints(value);
+          Arrays.sort(rule.byMonth);
+          break;
+
+        case "BYMONTHDAY":
+          rule.byMonthDay = ints(value);
+          break;
+
+        case "BYDAY":
+          final String[] bds = value.split(",");
+          rule.byDayOrd = new int[bds.length];
+          rule.byDayDow = new int[bds.length];
+
+          for (int i = 0; i < bds.length; i++) {
+            final String bd = bds[i];
+            final int dow = dow(bd.substring(bd.length() - 2));
+
+            if (dow < 0) {
+              return null;
+            }
+
+            rule.byDayDow[i] = dow;
+
+            if (bd.length() > 2) {
+              String ord = bd.substring(0, bd.length() - 2);
+              if (ord.startsWith("+")) {
+                ord = ord.substring(1);
+              }
+              rule.byDayOrd[i] = Integer.parseInt(ord);
+            }
+          }
+          break;
+
+        case "WKST":
+          // No effect without BYWEEKNO
+          break;
+
+        default:
+          return null;
+      }
+    }
+
+    if (!yearly) {
+      return null;
+    }
+
+    /* Without BYMONTH a yearly BYDAY or BYMONTHDAY applies to every
+       month (or to the whole year for BYDAY ordinals). We only expand
+       the month of DTSTART so leave those to ical4j */
+    if ((rule.byMonth == null) &&
+            ((rule.byDayDow != null) || (rule.byMonthDay != null))) {
+      return null;
+    }
+
+    return rule;
+  }
+
+  private static int[] ints(final String val) {
+    final String[] vals = val.split(",");
+    final int[] res = new int[vals.length];
+
+    for (int i = 0; i < vals.length; i++) {
+      String v = vals[i];
+      if (v.startsWith("+")) {
+        v = v.substring(1);
+      }
+      res[i] = Integer.parseInt(v);
+    }
+
+    return res;
+  }
+
+  private static final String[] dows = {
+          "SU", "MO", "TU", "WE", "TH", "FR", "SA"
+  };
+
+  private static int dow(final String val) {
+    for (int i = 0; i < dows.length; i++) {
+      if (dows[i].equals(val)) {
+        return i + 1;
+      }
+    }
+
+    return -1;
+  }
+
+  private void add(final long local,
+                   final int index,
+                   final long start,
+                   final long end) {
+    if ((local < start) || (local >= end)) {
+      return;
+    }
+
+    if (size == onsets.length) {
+      onsets = Arrays.copyOf(onsets, size * 2);
+      owners = Arrays.copyOf(owners, size * 2);
+    }
+
+    onsets[size] = local;
+    owners[size] = index;
+    size++;
+  }
+
+  private ZoneOnsets result(final Object[] obs,
+                            final long start,
+                            final long end) {
+    /* Order by onset then observance. Sizes are small - insertion
+       sort keeps it stable */
+    for (int i = 1; i < size; i++) {
+      final long on = onsets[i];
+      final int ow = owners[i];
+      int j = i - 1;
+
+      while ((j >= 0) && ((onsets[j] > on) ||
+              ((onsets[j] == on) && (owners[j] > ow)))) {
+        onsets[j + 1] = onsets[j];
+        owners[j + 1] = owners[j];
+        j--;
+      }
+
+      onsets[j + 1] = on;
+      owners[j + 1] = ow;
+    }
+
+    final long[] resOnsets = new long[size];
+    final ObservanceType[] resObs = new ObservanceType[size];
+    int n = 0;
+
+    for (int i = 0; i < size; i++) {
+      if ((n > 0) && (resOnsets[n - 1] == onsets[i])) {
+        // As for a TreeSet - the first one wins
+        continue;
+      }
+
+      final Observance ob = (Observance)obs[owners[i]];
+      final ObservanceType ot = new ObservanceType();
+
+      ot.setName(ob.getName());
+      ot.setOnset(XcalUtil.getXmlFormatDateTime(
+              TransitionTable.formatBasic(onsets[i], false)));
+
+      ot.setUtcOffsetFrom(
+              (int)(ob.getOffsetFrom().getOffset().getOffset() / 1000));
+
+      ot.setUtcOffsetTo(
+              (int)(ob.getOffsetTo().getOffset().getOffset() / 1000));
+
+      resOnsets[n] = onsets[i];
+      resObs[n] = ot;
+      n++;
+    }
+
+    return new ZoneOnsets(start, end,
+                          Arrays.copyOf(resOnsets, n),
+                          Arrays.copyOf(resObs, n));
+  }
+
+  /* Local date or date-time to local seconds. A UTC value is shifted
+   * by the offset. A period is its start.
+   */
+  private static long parseLocal(final String value,
+                                 final int offset) {
+    String val = value;
+
+    final int pos = val.indexOf('/');
+    if (pos > 0) {
+      val = val.substring(0, pos);
+    }
+
+    if (val.length() == 8) {
+      val = val + "T000000";
+    }
+
+    final long secs = TransitionTable.parseBasic(val);
+
+    if (val.endsWith("Z")) {
+      return secs + offset;
+    }
+
+    return secs;
+  }
+
+  private static boolean leap(final int year) {
+    return ((year % 4) == 0) && (((year % 100) != 0) || ((year % 400) == 0));
+  }
+
+  private static final int[] monthLengths = {
+          31, 28, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31
+  };
+
+  private static int monthLength(final int year,
+                                 final int month) {
+    if ((month == 2) && leap(year)) {
+      return 29;
+    }
+
+    return monthLengths[month - 1];
+  }
+}
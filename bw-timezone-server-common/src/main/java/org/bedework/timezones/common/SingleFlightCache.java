@@ -0,0 +1,176 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/** A thread-safe cache which computes each value at most once. If a
+ * value is being loaded other requests for it wait for that load
+ * rather than starting their own.
+ *
+ * <p>Entries are never evicted. A load which fails or finds nothing
+ * isn't cached so the next request tries again.</p>
+ *
+ * @author douglm
+ *
+ * @param <K> key class
+ * @param <V> value class
+ */
+public class SingleFlightCache<K, V> {
+  /** Loads a value on a miss
+   *
+   * @param <K> key class
+   * @param <V> value class
+   */
+  public interface Loader<K, V> {
+    /**
+     * @param key of entry
+     * @return value or null if there is none
+     * @throws TzException
+     */
+    V load(K key) throws TzException;
+  }
+
+  private final String name;
+
+  private final ConcurrentMap<K, FutureTask<V>> entries =
+          new ConcurrentHashMap<>();
+
+  private final StripedCounter hits = new StripedCounter();
+  private final StripedCounter misses = new StripedCounter();
+  private final StripedCounter waits = new StripedCounter();
+  private final StripedCounter loadMillis = new StripedCounter();
+
+  /**
+   * @param name - for stats
+   */
+  public SingleFlightCache(final String name) {
+    this.name = name;
+  }
+
+  /**
+   * @param key of entry
+   * @param loader called if there is no entry and nobody is loading it
+   * @return value or null
+   * @throws TzException
+   */
+  public V get(final K key,
+               final Loader<K, V> loader) throws TzException {
+    FutureTask<V> f = entries.get(key);
+
+    if (f == null) {
+      final FutureTask<V> nf = new FutureTask<>(new Callable<V>() {
+        @Override
+        public V call() throws Exception {
+          final long start = System.currentTimeMillis();
+
+          try {
+            return loader.load(key);
+          } catch (final TzException te) {
+            throw new ExecutionException(te);
+          } finally {
+            loadMillis.add(System.currentTimeMillis() - start);
+          }
+        }
+      });
+
+      f = entries.putIfAbsent(key, nf);
+
+      if (f == null) {
+        // We load it
+        misses.inc();
+        f = nf;
+        f.run();
+      } else {
+        waits.inc();
+      }
+    } else if (f.isDone()) {
+      hits.inc();
+    } else {
+      waits.inc();
+    }
+
+    try {
+      final V val = f.get();
+
+      if (val == null) {
+        entries.remove(key, f);
+      }
+
+      return val;
+    } catch (final ExecutionException ee) {
+      entries.remove(key, f);
+
+      Throwable t = ee.getCause();
+      if ((t instanceof ExecutionException) && (t.getCause() != null)) {
+        t = t.getCause();
+      }
+
+      if (t instanceof TzException) {
+        throw (TzException)t;
+      }
+
+      throw new TzException(t);
+    } catch (final InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new TzException(ie);
+    }
+  }
+
+  /**
+   * @return number of entries - including any being loaded
+   */
+  public int size() {
+    return entries.size();
+  }
+
+  /**
+   * @param prefix for stat names
+   * @return stats for this cache
+   */
+  public List<Stat> getStats(final String prefix) {
+    final List<Stat> stats = new ArrayList<>();
+
+    final long h = hits.sum();
+    final long m = misses.sum();
+    final long w = waits.sum();
+    final long total = h + m + w;
+
+    stats.add(new Stat(prefix + " " + name + " size",
+                       String.valueOf(size())));
+    stats.add(new Stat(prefix + " " + name + " hits",
+                       String.valueOf(h),
+                       String.valueOf(m), "misses"));
+    stats.add(new Stat(prefix + " " + name + " waits",
+                       String.valueOf(w)));
+    stats.add(new Stat(prefix + " " + name + " hit rate %",
+                       String.valueOf((total == 0) ? 0 :
+                                              (h + w) * 100 / total)));
+    stats.add(new Stat(prefix + " " + name + " load millis",
+                       String.valueOf(loadMillis.sum())));
+
+    return stats;
+  }
+}
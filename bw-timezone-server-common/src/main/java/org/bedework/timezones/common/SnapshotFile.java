@@ -0,0 +1,754 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.common;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/** A file holding everything rendered by a load so the server can
+ * start without parsing any zones. The file is memory mapped and each
+ * value is read from it when asked for, so the heap holds little more
+ * than the index of names and the metadata of the rendered content.
+ * Rendered bodies are sent from the mapping a chunk at a time - they
+ * are never copied onto the heap as a whole.
+ *
+ * <p>The file starts with a magic number, the format version, the
+ * dtstamp and the alias table of the data, a fingerprint of the
+ * rendering code, the prodid and the source of the data. A snapshot
+ * is only used if all of these match. Then come the values, the
+ * index and an 8 byte trailer with the offset of the index and the
+ * magic number again. Numbers are big-endian. Strings and byte arrays
+ * are a length, -1 for null, followed by the bytes. Strings are
+ * UTF-8.</p>
+ *
+ * <p>Each name in the index points to a record of offsets for its
+ * VTIMEZONE text, json summary, transition table and the rendered
+ * calendar for each CalFormat. Aliases share the table of their
+ * target.</p>
+ *
+ * <p>Rendered content is written once however many names use it.
+ * Spliced content is a record of its base content, the ranges
+ * replaced, the replacements and its compressed variants, so an alias
+ * only adds its own TZID and EQUIVALENT-TZID bytes to the identity
+ * content.</p>
+ *
+ * @author douglm
+ */
+public class SnapshotFile {
+  private static final int magic = 0x42575a53;
+
+  private static final int version = 4;
+
+  /* In the index for an alias */
+  private static final byte flagAlias = 1;
+
+  /* First byte of a content record */
+  private static final byte contentFull = 0;
+  private static final byte contentSpliced = 1;
+
+  private final File file;
+
+  private final ByteBuffer buf;
+
+  private final String dtstamp;
+
+  private final String aliasesStr;
+
+  private final String fingerprint;
+
+  private final String prodid;
+
+  private final String source;
+
+  private final CachedContent namesContent;
+  private final CachedContent aliasesContent;
+  private final CachedContent listContent;
+
+  /* Offset of the record for each name */
+  private final Map<String, Integer> records;
+
+  /* Rendered calendars for each name indexed by CalFormat ordinal */
+  private final Map<String, CachedContent[]> calendars;
+
+  private final List<String> zoneNames;
+
+  /* Content read while opening by position - so names share it */
+  private final Map<Integer, CachedContent> contents = new HashMap<>();
+
+  private SnapshotFile(final File file,
+                       final ByteBuffer buf) throws TzException {
+    this.file = file;
+    this.buf = buf;
+
+    final int len = buf.capacity();
+
+    if ((len < 16) || (buf.getInt(0) != magic) ||
+            (buf.getInt(len - 4) != magic)) {
+      throw new TzException("Not a snapshot file: " + file);
+    }
+
+    if (buf.getInt(4) != version) {
+      throw new TzException("Unsupported snapshot version " +
+                                    buf.getInt(4) + " in " + file);
+    }
+
+    final ByteBuffer b = at(8);
+
+    dtstamp = readString(b);
+    aliasesStr = readString(b);
+    fingerprint = readString(b);
+    prodid = readString(b);
+    source = readString(b);
+
+    b.position(buf.getInt(len - 8));
+
+    namesContent = readContent(b.getInt());
+    aliasesContent = readContent(b.getInt());
+    listContent = readContent(b.getInt());
+
+    final int count = b.getInt();
+
+    records = new HashMap<>(count * 2);
+    calendars = new HashMap<>(count * 2);
+    zoneNames = new ArrayList<>(count);
+
+    for (int i = 0; i < count; i++) {
+      final String name = readString(b);
+      final byte flags = b.get();
+      final int rec = b.getInt();
+
+      records.put(name, rec);
+      calendars.put(name, readCalendars(rec));
+
+      if ((flags & flagAlias) == 0) {
+        zoneNames.add(name);
+      }
+    }
+  }
+
+  /** Map the file.
+   *
+   * @param file the snapshot
+   * @return the mapped snapshot
+   * @throws TzException if it can't be read or isn't a snapshot
+   */
+  public static SnapshotFile open(final File file) throws TzException {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+      final FileChannel ch = raf.getChannel();
+
+      if (ch.size() > Integer.MAX_VALUE) {
+        throw new TzException("Snapshot too large: " + file);
+      }
+
+      /* The mapping stays valid after the channel is closed */
+      return new SnapshotFile(file,
+                              ch.map(FileChannel.MapMode.READ_ONLY,
+                                     0, ch.size()));
+    } catch (final TzException te) {
+      throw te;
+    } catch (final Throwable t) {
+      throw new TzException(t);
+    }
+  }
+
+  /**
+   * @return the file
+   */
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * @return bytes mapped
+   */
+  public long getSize() {
+    return buf.capacity();
+  }
+
+  /**
+   * @return dtstamp of the data
+   */
+  public String getDtstamp() {
+    return dtstamp;
+  }
+
+  /**
+   * @return the alias table the data was built with
+   */
+  public String getAliasesStr() {
+    return aliasesStr;
+  }
+
+  /**
+   * @return fingerprint of the rendering code that built the data
+   */
+  public String getFingerprint() {
+    return fingerprint;
+  }
+
+  /**
+   * @return prodid in the rendered calendars
+   */
+  public String getProdid() {
+    return prodid;
+  }
+
+  /**
+   * @return where the data came from
+   */
+  public String getSource() {
+    return source;
+  }
+
+  /**
+   * @return tzids in the order they were written - not aliases
+   */
+  public List<String> getZoneNames() {
+    return Collections.unmodifiableList(zoneNames);
+  }
+
+  /**
+   * @return number of zones and aliases
+   */
+  public int size() {
+    return records.size();
+  }
+
+  /**
+   * @param name tzid or alias
+   * @return true if the name is in the snapshot
+   */
+  public boolean contains(final String name) {
+    return records.containsKey(name);
+  }
+
+  /**
+   * @return names content or null
+   */
+  public CachedContent getNamesContent() {
+    return namesContent;
+  }
+
+  /**
+   * @return aliases content or null
+   */
+  public CachedContent getAliasesContent() {
+    return aliasesContent;
+  }
+
+  /**
+   * @return list content or null
+   */
+  public CachedContent getListContent() {
+    return listContent;
+  }
+
+  /**
+   * @param name tzid or alias
+   * @return VTIMEZONE text or null
+   */
+  public String getVtz(final String name) {
+    return stringField(name, 0);
+  }
+
+  /**
+   * @param name tzid
+   * @return summary as json or null
+   */
+  public String getSummaryJson(final String name) {
+    return stringField(name, 1);
+  }
+
+  /** A new table is read on each call.
+   *
+   * @param name tzid or alias
+   * @return transitions or null
+   */
+  public TransitionTable getTransitions(final String name) {
+    final int pos = fieldPos(name, 2);
+
+    if (pos < 0) {
+      return null;
+    }
+
+    return TransitionTable.read(at(pos));
+  }
+
+  /** The body of the content stays in the mapped file.
+   *
+   * @param name tzid or alias
+   * @param format wanted
+   * @return the rendered calendar or null
+   */
+  public CachedContent getCalendar(final String name,
+                                   final CalFormat format) {
+    final CachedContent[] ccs = calendars.get(name);
+
+    if ((ccs == null) || (format.ordinal() >= ccs.length)) {
+      return null;
+    }
+
+    return ccs[format.ordinal()];
+  }
+
+  /* ====================================================================
+   *                   Writer
+   * ==================================================================== */
+
+  /** Writes a snapshot to a temporary file which replaces the
+   * snapshot when closed. Any mapping of the old file is unaffected.
+   */
+  public static class Writer {
+    private final File file;
+
+    private final File temp;
+
+    private final DataOutputStream out;
+
+    private final int namesContentPos;
+    private final int aliasesContentPos;
+    private final int listContentPos;
+
+    private final List<String> names = new ArrayList<>();
+    private final List<Boolean> aliases = new ArrayList<>();
+    private final List<Integer> positions = new ArrayList<>();
+
+    /* Aliases share the table of their target - write it once */
+    private final Map<TransitionTable, Integer> tables =
+            new IdentityHashMap<>();
+
+    /* Content shared by names or the base of spliced content - write
+       it once */
+    private final Map<CachedContent, Integer> written =
+            new IdentityHashMap<>();
+
+    private final FileOutputStream fos;
+
+    /**
+     * @param file the snapshot
+     * @param dtstamp of the data
+     * @param aliasesStr alias table of the data
+     * @param fingerprint of the rendering code
+     * @param prodid in the rendered calendars
+     * @param source where the data came from
+     * @param namesContent rendered names
+     * @param aliasesContent rendered aliases
+     * @param listContent rendered list
+     * @throws IOException
+     */
+    public Writer(final File file,
+                  final String dtstamp,
+                  final String aliasesStr,
+                  final String fingerprint,
+                  final String prodid,
+                  final String source,
+                  final CachedContent namesContent,
+                  final CachedContent aliasesContent,
+                  final CachedContent listContent) throws IOException {
+      this.file = file;
+      temp = new File(file.getPath() + ".tmp");
+
+      fos = new FileOutputStream(temp);
+      out = new DataOutputStream(new BufferedOutputStream(fos, 64 * 1024));
+
+      out.writeInt(magic);
+      out.writeInt(version);
+      writeString(out, dtstamp);
+      writeString(out, aliasesStr);
+      writeString(out, fingerprint);
+      writeString(out, prodid);
+      writeString(out, source);
+
+      namesContentPos = writeContent(namesContent);
+      aliasesContentPos = writeContent(aliasesContent);
+      listContentPos = writeContent(listContent);
+    }
+
+    /**
+     * @param name tzid or alias
+     * @param alias true for an alias
+     * @param vtz VTIMEZONE text
+     * @param summaryJson summary or null
+     * @param calendars indexed by CalFormat ordinal - may be null
+     * @param tt transitions or null
+     * @throws IOException
+     */
+    public void add(final String name,
+                    final boolean alias,
+                    final String vtz,
+                    final String summaryJson,
+                    final CachedContent[] calendars,
+                    final TransitionTable tt) throws IOException {
+      final int vtzPos = pos();
+      writeString(out, vtz);
+
+      int summaryPos = -1;
+      if (summaryJson != null) {
+        summaryPos = pos();
+        writeString(out, summaryJson);
+      }
+
+      int ttPos = -1;
+      if (tt != null) {
+        final Integer p = tables.get(tt);
+
+        if (p != null) {
+          ttPos = p;
+        } else {
+          ttPos = pos();
+          tt.write(out);
+          tables.put(tt, ttPos);
+        }
+      }
+
+      final int nformats;
+      if (calendars == null) {
+        nformats = 0;
+      } else {
+        nformats = calendars.length;
+      }
+
+      final int[] calPos = new int[nformats];
+      for (int i = 0; i < nformats; i++) {
+        calPos[i] = writeContent(calendars[i]);
+      }
+
+      positions.add(pos());
+      names.add(name);
+      aliases.add(alias);
+
+      out.writeInt(vtzPos);
+      out.writeInt(summaryPos);
+      out.writeInt(ttPos);
+      out.writeInt(nformats);
+
+      for (final int p: calPos) {
+        out.writeInt(p);
+      }
+    }
+
+    /** Write the index and replace the snapshot.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+      final int indexPos = pos();
+
+      out.writeInt(namesContentPos);
+      out.writeInt(aliasesContentPos);
+      out.writeInt(listContentPos);
+      out.writeInt(names.size());
+
+      for (int i = 0; i < names.size(); i++) {
+        writeString(out, names.get(i));
+        out.writeByte(aliases.get(i) ? flagAlias : 0);
+        out.writeInt(positions.get(i));
+      }
+
+      out.writeInt(indexPos);
+      out.writeInt(magic);
+
+      out.flush();
+      fos.getFD().sync();
+      out.close();
+
+      Files.move(temp.toPath(), file.toPath(),
+                 StandardCopyOption.REPLACE_EXISTING,
+                 StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** Give up and remove the temporary file.
+     */
+    public void abort() {
+      try {
+        out.close();
+      } catch (final Throwable ignored) {
+      }
+
+      temp.delete();
+    }
+
+    /* ==================================================================
+     *                   private methods
+     * ================================================================== */
+
+    private int writeContent(final CachedContent cc) throws IOException {
+      if (cc == null) {
+        return -1;
+      }
+
+      final Integer p = written.get(cc);
+
+      if (p != null) {
+        return p;
+      }
+
+      final CachedContent base = cc.getSpliceBase();
+
+      if (base != null) {
+        final int basePos = writeContent(base);
+        final int pos = pos();
+
+        out.writeByte(contentSpliced);
+        out.writeInt(basePos);
+        writeString(out, cc.getEtag());
+        out.writeLong(cc.getLastModified());
+
+        for (final int r: cc.getSplice()) {
+          out.writeInt(r);
+        }
+
+        writeBytes(out, cc.getSpliceX());
+        writeBytes(out, cc.getSpliceY());
+        writeBytes(out, cc.getGzipped());
+        writeBytes(out, cc.getDeflated());
+
+        written.put(cc, pos);
+
+        return pos;
+      }
+
+      final int pos = pos();
+
+      out.writeByte(contentFull);
+      writeString(out, cc.getContentType());
+      writeString(out, cc.getEtag());
+      out.writeLong(cc.getLastModified());
+      out.writeInt(cc.getFragmentStart());
+      out.writeInt(cc.getFragmentEnd());
+      writeBytes(out, cc.getContent());
+      writeBytes(out, cc.getGzipped());
+      writeBytes(out, cc.getDeflated());
+
+      written.put(cc, pos);
+
+      return pos;
+    }
+
+    /* DataOutputStream stops counting at Integer.MAX_VALUE */
+    private int pos() throws IOException {
+      final int pos = out.size();
+
+      if (pos == Integer.MAX_VALUE) {
+        throw new IOException("Snapshot too large");
+      }
+
+      return pos;
+    }
+  }
+
+  /* ====================================================================
+   *                   package private methods
+   * ==================================================================== */
+
+  static void writeString(final DataOutput out,
+                          final String val) throws IOException {
+    if (val == null) {
+      out.writeInt(-1);
+      return;
+    }
+
+    writeBytes(out, val.getBytes(CachedContent.utf8));
+  }
+
+  static String readString(final ByteBuffer b) {
+    final byte[] bytes = readBytes(b);
+
+    if (bytes == null) {
+      return null;
+    }
+
+    return new String(bytes, CachedContent.utf8);
+  }
+
+  /* ====================================================================
+   *                   private methods
+   * ==================================================================== */
+
+  private static void writeBytes(final DataOutput out,
+                                 final byte[] val) throws IOException {
+    if (val == null) {
+      out.writeInt(-1);
+      return;
+    }
+
+    out.writeInt(val.length);
+    out.write(val);
+  }
+
+  /* A slice of the bytes without copying them */
+  private static ByteBuffer readSlice(final ByteBuffer b) {
+    final int len = b.getInt();
+
+    if (len < 0) {
+      return null;
+    }
+
+    final ByteBuffer res = b.slice();
+    res.limit(len);
+    b.position(b.position() + len);
+
+    return res;
+  }
+
+  private static byte[] readBytes(final ByteBuffer b) {
+    final int len = b.getInt();
+
+    if (len < 0) {
+      return null;
+    }
+
+    final byte[] res = new byte[len];
+    b.get(res);
+
+    return res;
+  }
+
+  /* Our own view so concurrent reads don't share a position */
+  private ByteBuffer at(final int pos) {
+    final ByteBuffer b = buf.duplicate();
+
+    b.position(pos);
+
+    return b;
+  }
+
+  private String stringField(final String name,
+                             final int index) {
+    final int pos = fieldPos(name, index);
+
+    if (pos < 0) {
+      return null;
+    }
+
+    return readString(at(pos));
+  }
+
+  private int fieldPos(final String name,
+                       final int index) {
+    final Integer rec = records.get(name);
+
+    if (rec == null) {
+      return -1;
+    }
+
+    return buf.getInt(rec + index * 4);
+  }
+
+  private CachedContent[] readCalendars(final int rec) throws TzException {
+    final int nformats = buf.getInt(rec + 12);
+    final CachedContent[] ccs = new CachedContent[nformats];
+
+    for (int i = 0; i < nformats; i++) {
+      ccs[i] = readContent(buf.getInt(rec + 16 + i * 4));
+    }
+
+    return ccs;
+  }
+
+  /* Only called when opening - the metadata is kept */
+  private CachedContent readContent(final int pos) throws TzException {
+    if (pos < 0) {
+      return null;
+    }
+
+    final CachedContent cc = contents.get(pos);
+
+    if (cc != null) {
+      return cc;
+    }
+
+    final ByteBuffer b = at(pos);
+    final byte kind = b.get();
+
+    if (kind == contentSpliced) {
+      final int basePos = b.getInt();
+      final String etag = readString(b);
+      final long lastModified = b.getLong();
+      final int[] splice = new int[4];
+
+      for (int i = 0; i < splice.length; i++) {
+        splice[i] = b.getInt();
+      }
+
+      final byte[] x = readBytes(b);
+      final byte[] y = readBytes(b);
+      final ByteBuffer gzipped = readSlice(b);
+      final ByteBuffer deflated = readSlice(b);
+
+      /* The base is written before anything spliced from it */
+      if ((basePos < 0) || (basePos >= pos) ||
+              (x == null) || (y == null)) {
+        throw new TzException("Bad spliced content in " + file);
+      }
+
+      final CachedContent base = readContent(basePos);
+
+      if ((base.getSpliceBase() != null) || (splice[0] < 0) ||
+              (splice[0] > splice[1]) || (splice[1] > splice[2]) ||
+              (splice[2] > splice[3]) ||
+              (splice[3] > base.getContentLength())) {
+        throw new TzException("Bad spliced content in " + file);
+      }
+
+      final CachedContent spliced =
+              new CachedContent(base, splice, x, y, etag, lastModified,
+                                gzipped, deflated);
+      contents.put(pos, spliced);
+
+      return spliced;
+    }
+
+    if (kind != contentFull) {
+      throw new TzException("Bad content in " + file);
+    }
+
+    final String contentType = readString(b);
+    final String etag = readString(b);
+    final long lastModified = b.getLong();
+    final int fragmentStart = b.getInt();
+    final int fragmentEnd = b.getInt();
+    final ByteBuffer content = readSlice(b);
+    final ByteBuffer gzipped = readSlice(b);
+    final ByteBuffer deflated = readSlice(b);
+
+    final CachedContent full =
+            new CachedContent(contentType, content, etag, lastModified,
+                              gzipped, deflated,
+                              fragmentStart, fragmentEnd);
+    contents.put(pos, full);
+
+    return full;
+  }
+}
@@ -21,6 +21,9 @@ package org.bedework.timezones.common;
 import java.io.Serializable;
 
 /** Provide a way to get named values.
+ *
+ * <p>The second value is a duration in milliseconds unless a unit is
+ * given for it.</p>
  *
  * @author douglm
  */
@@ -28,6 +31,7 @@ public class Stat implements Serializable {
   private String name;
   private String value1;
   private String value2;
+  private String unit;
 
   /**
    * @param name
@@ -42,7 +46,7 @@ public class Stat implements Serializable {
   /**
    * @param name
    * @param value1
-   * @param value2
+   * @param value2 - millis
    */
   public Stat(final String name,
               final String value1,
@@ -52,6 +56,20 @@ public class Stat implements Serializable {
     this.value2 = value2;
   }
 
+  /**
+   * @param name
+   * @param value1
+   * @param value2
+   * @param unit of value2 e.g. "bytes"
+   */
+  public Stat(final String name,
+              final String value1,
+              final String value2,
+              final String unit) {
+    this(name, value1, value2);
+    this.unit = unit;
+  }
+
   /**
    * @return name
    */
@@ -73,6 +91,13 @@ public class Stat implements Serializable {
     return value2;
   }
 
+  /**
+   * @return unit of value2 - null for millis
+   */
+  public String getUnit() {
+    return unit;
+  }
+
   @Override
   public String toString() {
     StringBuilder sb = new StringBuilder();
@@ -84,6 +109,11 @@ public class Stat implements Serializable {
     if (getValue2() != null) {
       sb.append(", ");
       sb.append(getValue2());
+
+      if (getUnit() != null) {
+        sb.append(" ");
+        sb.append(getUnit());
+      }
     }
 
     sb.append("\n");
@@ -0,0 +1,103 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.common;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** A counter that many threads can update without contending.
+ *
+ * <p>Each thread adds into one of a fixed set of stripes chosen from
+ * its id. The stripes are spread out so they don't share a cache line.
+ * Reading the value sums the stripes so it may miss updates that are in
+ * progress but never loses any.</p>
+ *
+ * @author douglm
+ */
+public class StripedCounter {
+  /* Longs between used slots - 64 byte cache lines */
+  private static final int pad = 8;
+
+  private static final int stripes;
+
+  static {
+    int n = 1;
+    final int cpus = Runtime.getRuntime().availableProcessors();
+
+    while ((n < cpus * 2) && (n < 64)) {
+      n <<= 1;
+    }
+
+    stripes = n;
+  }
+
+  private final AtomicLongArray cells =
+          new AtomicLongArray(stripes * pad);
+
+  /** Add one
+   */
+  public void inc() {
+    add(1);
+  }
+
+  /**
+   * @param val to add
+   */
+  public void add(final long val) {
+    cells.addAndGet(stripe() * pad, val);
+  }
+
+  /**
+   * @return current total
+   */
+  public long sum() {
+    long res = 0;
+
+    for (int i = 0; i < stripes; i++) {
+      res += cells.get(i * pad);
+    }
+
+    return res;
+  }
+
+  @Override
+  public String toString() {
+    return String.valueOf(sum());
+  }
+
+  /* ====================================================================
+   *                   package private methods
+   * ==================================================================== */
+
+  /* Longs between used slots of different stripes */
+  static int getPad() {
+    return pad;
+  }
+
+  static int getStripes() {
+    return stripes;
+  }
+
+  /* Stripe for the current thread */
+  static int stripe() {
+    final long id = Thread.currentThread().getId();
+    final int h = (int)(id ^ (id >>> 32)) * 0x9E3779B9;
+
+    return (h >>> 16) & (stripes - 1);
+  }
+}
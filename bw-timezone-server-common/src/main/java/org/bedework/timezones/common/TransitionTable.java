@@ -0,0 +1,497 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.common;
+
+import net.fortuna.ical4j.model.Property;
+import net.fortuna.ical4j.model.component.Observance;
+import net.fortuna.ical4j.model.component.VTimeZone;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/** A timezone compiled into sorted arrays of transitions. Conversions
+ * are a binary search so they need no locks and allocate nothing.
+ *
+ * <p>Times are epoch seconds and offsets are seconds. The table covers
+ * everything up to the horizon. Callers should use some other means
+ * for later times.</p>
+ *
+ * <p>Local to UTC conversion resolves gaps and overlaps the same way as
+ * parsing with a java.util.TimeZone built from the VTIMEZONE. The
+ * local time is shifted by the current standard offset and the offset
+ * in effect at that instant is used. So a time in a gap is taken to
+ * be in the new offset and an ambiguous time in the later one.</p>
+ *
+ * @author douglm
+ */
+public class TransitionTable {
+  /** We compile transitions up to 2100-01-01T00:00:00Z */
+  public static final long horizon = 4102444800L;
+
+  private static final int secsPerDay = 24 * 60 * 60;
+
+  /* We format 4 digit years */
+  private static final long minFormatSecs = days(0, 1, 1) * secsPerDay;
+  private static final long maxFormatSecs =
+          days(10000, 1, 1) * secsPerDay - 1;
+
+  /* Transition instants ascending */
+  private final long[] onsets;
+
+  /* Offset in effect from the corresponding onset */
+  private final int[] offsets;
+
+  /* True if the corresponding onset starts daylight time */
+  private final boolean[] daylight;
+
+  /* TZNAME of the observance for the onset - may be null */
+  private final String[] names;
+
+  /* Offset before the first onset */
+  private final int initialOffset;
+
+  /* Offset used to find the transition for a local time */
+  private final int standardOffset;
+
+  private TransitionTable(final long[] onsets,
+                          final int[] offsets,
+                          final boolean[] daylight,
+                          final String[] names,
+                          final int initialOffset,
+                          final int standardOffset) {
+    this.onsets = onsets;
+    this.offsets = offsets;
+    this.daylight = daylight;
+    this.names = names;
+    this.initialOffset = initialOffset;
+    this.standardOffset = standardOffset;
+  }
+
+  /** Compile the timezone.
+   *
+   * @param vtz the timezone
+   * @param now epoch seconds - used to find the current standard offset
+   * @return the table
+   * @throws TzException
+   */
+  public static TransitionTable compile(final VTimeZone vtz,
+                                        final long now) throws TzException {
+    final List<long[]> all =
+            new ZoneTruncator(ZoneTruncator.noStart,
+                              horizon * 1000).windowOnsets(vtz);
+
+    final Object[] obs = vtz.getObservances().toArray();
+    final String[] obNames = new String[obs.length];
+
+    for (int i = 0; i < obs.length; i++) {
+      final Property p = ((Observance)obs[i]).getProperty(Property.TZNAME);
+
+      if (p != null) {
+        obNames[i] = p.getValue();
+      }
+    }
+
+    final long[] onsets = new long[all.size()];
+    final int[] offsets = new int[all.size()];
+    final boolean[] daylight = new boolean[all.size()];
+    final String[] names = new String[all.size()];
+    int n = 0;
+
+    Integer stdNow = null;
+    Integer stdFirst = null;
+    Integer dstNow = null;
+    Integer dstFirst = null;
+
+    for (final long[] on: all) {
+      final long utc = on[0] / 1000;
+      final int offsetTo = (int)(on[2] / 1000);
+
+      if (on[3] == 0) {
+        if (stdFirst == null) {
+          stdFirst = offsetTo;
+        }
+        if (utc <= now) {
+          stdNow = offsetTo;
+        }
+      } else {
+        if (dstFirst == null) {
+          dstFirst = offsetTo;
+        }
+        if (utc <= now) {
+          dstNow = offsetTo;
+        }
+      }
+
+      if ((n > 0) && (onsets[n - 1] == utc)) {
+        // Same instant - the last one wins
+        n--;
+      }
+
+      onsets[n] = utc;
+      offsets[n] = offsetTo;
+      daylight[n] = on[3] != 0;
+      names[n] = obNames[(int)on[4]];
+      n++;
+    }
+
+    final int initialOffset;
+    if (all.isEmpty()) {
+      initialOffset = 0;
+    } else {
+      initialOffset = (int)(all.get(0)[1] / 1000);
+    }
+
+    final int standardOffset;
+    if (stdNow != null) {
+      standardOffset = stdNow;
+    } else if (stdFirst != null) {
+      standardOffset = stdFirst;
+    } else if (dstNow != null) {
+      standardOffset = dstNow;
+    } else if (dstFirst != null) {
+      standardOffset = dstFirst;
+    } else {
+      standardOffset = 0;
+    }
+
+    return new TransitionTable(Arrays.copyOf(onsets, n),
+                               Arrays.copyOf(offsets, n),
+                               Arrays.copyOf(daylight, n),
+                               Arrays.copyOf(names, n),
+                               initialOffset,
+                               standardOffset);
+  }
+
+  /**
+   * @param utc epoch seconds
+   * @return true if the table can answer for that time
+   */
+  public boolean covers(final long utc) {
+    return utc < horizon;
+  }
+
+  /**
+   * @param utc epoch seconds
+   * @return offset in seconds in effect at that instant
+   */
+  public int offsetAt(final long utc) {
+    final int i = transitionAt(utc);
+
+    if (i < 0) {
+      return initialOffset;
+    }
+
+    return offsets[i];
+  }
+
+  /**
+   * @param utc epoch seconds
+   * @return index of the last transition at or before that instant or
+   *         -1 if there is none
+   */
+  public int transitionAt(final long utc) {
+    final int i = Arrays.binarySearch(onsets, utc);
+
+    if (i >= 0) {
+      return i;
+    }
+
+    /* Insertion point is the first onset after utc */
+    return -i - 2;
+  }
+
+  /**
+   * @param index of transition
+   * @return epoch seconds of the transition
+   */
+  public long getOnset(final int index) {
+    return onsets[index];
+  }
+
+  /**
+   * @param index of transition
+   * @return offset in seconds from the transition
+   */
+  public int getOffset(final int index) {
+    return offsets[index];
+  }
+
+  /**
+   * @param index of transition
+   * @return offset in seconds before the transition
+   */
+  public int getOffsetBefore(final int index) {
+    if (index == 0) {
+      return initialOffset;
+    }
+
+    return offsets[index - 1];
+  }
+
+  /**
+   * @param index of transition
+   * @return true if the transition starts daylight time
+   */
+  public boolean isDaylight(final int index) {
+    return daylight[index];
+  }
+
+  /**
+   * @param index of transition
+   * @return abbreviation in effect from the transition - may be null
+   */
+  public String getName(final int index) {
+    return names[index];
+  }
+
+  /**
+   * @param utc epoch seconds
+   * @return local time as epoch seconds
+   */
+  public long utcToLocal(final long utc) {
+    return utc + offsetAt(utc);
+  }
+
+  /**
+   * @param local local time as epoch seconds
+   * @return epoch seconds
+   */
+  public long localToUtc(final long local) {
+    return local - offsetAt(local - standardOffset);
+  }
+
+  /**
+   * @return number of transitions
+   */
+  public int size() {
+    return onsets.length;
+  }
+
+  /**
+   * @return estimate of the heap used by the table
+   */
+  public long heapBytes() {
+    /* 8 for the onset, 4 for the offset, 1 for the flag and a
+       reference to a shared name */
+    return 96 + onsets.length * 17L;
+  }
+
+  /* ====================================================================
+   *                   Snapshot files
+   * ==================================================================== */
+
+  /* Written to and read back from a snapshot file */
+  void write(final DataOutput out) throws IOException {
+    out.writeInt(initialOffset);
+    out.writeInt(standardOffset);
+    out.writeInt(onsets.length);
+
+    for (int i = 0; i < onsets.length; i++) {
+      out.writeLong(onsets[i]);
+      out.writeInt(offsets[i]);
+      out.writeBoolean(daylight[i]);
+      SnapshotFile.writeString(out, names[i]);
+    }
+  }
+
+  static TransitionTable read(final ByteBuffer buf) {
+    final int initialOffset = buf.getInt();
+    final int standardOffset = buf.getInt();
+    final int n = buf.getInt();
+
+    final long[] onsets = new long[n];
+    final int[] offsets = new int[n];
+    final boolean[] daylight = new boolean[n];
+    final String[] names = new String[n];
+
+    for (int i = 0; i < n; i++) {
+      onsets[i] = buf.getLong();
+      offsets[i] = buf.getInt();
+      daylight[i] = buf.get() != 0;
+      names[i] = SnapshotFile.readString(buf);
+    }
+
+    return new TransitionTable(onsets, offsets, daylight, names,
+                               initialOffset, standardOffset);
+  }
+
+  /* ====================================================================
+   *                   Date-time values
+   * ==================================================================== */
+
+  /** Parse a basic format date-time. Any trailing "Z" is ignored. The
+   * value should already have been validated.
+   *
+   * @param val yyyyMMddTHHmmss[Z]
+   * @return epoch seconds treating the value as UTC
+   */
+  public static long parseBasic(final String val) {
+    final int year = digits(val, 0, 4);
+    final int month = digits(val, 4, 6);
+    final int day = digits(val, 6, 8);
+    final int hour = digits(val, 9, 11);
+    final int minute = digits(val, 11, 13);
+    final int second = digits(val, 13, 15);
+
+    return days(year, month, day) * secsPerDay +
+            hour * 3600 + minute * 60 + second;
+  }
+
+  /** Format as a basic date-time.
+   *
+   * @param secs epoch seconds in the years 0000 to 9999
+   * @param utc true to append a "Z"
+   * @return yyyyMMddTHHmmss[Z]
+   */
+  public static String formatBasic(final long secs,
+                                   final boolean utc) {
+    return format(secs, utc, false);
+  }
+
+  /** Format as an extended date-time.
+   *
+   * @param secs epoch seconds in the years 0000 to 9999
+   * @param utc true to append a "Z"
+   * @return yyyy-MM-ddTHH:mm:ss[Z]
+   */
+  public static String formatExtended(final long secs,
+                                      final boolean utc) {
+    return format(secs, utc, true);
+  }
+
+  /* ====================================================================
+   *                   private methods
+   * ==================================================================== */
+
+  private static String format(final long secs,
+                               final boolean utc,
+                               final boolean extended) {
+    if ((secs < minFormatSecs) || (secs > maxFormatSecs)) {
+      throw new IllegalArgumentException("Year out of range: " + secs);
+    }
+
+    final long day = floorDay(secs);
+    final int sod = (int)(secs - day * secsPerDay);
+
+    final int[] ymd = civil(day);
+    final int y = ymd[0];
+    final int m = ymd[1];
+    final int d = ymd[2];
+
+    final int len = extended ? 19 : 15;
+    final char[] res = new char[utc ? len + 1 : len];
+    int pos = 0;
+
+    put(res, pos, y, 4);
+    pos += 4;
+    if (extended) {
+      res[pos++] = '-';
+    }
+    put(res, pos, m, 2);
+    pos += 2;
+    if (extended) {
+      res[pos++] = '-';
+    }
+    put(res, pos, d, 2);
+    pos += 2;
+    res[pos++] = 'T';
+    put(res, pos, sod / 3600, 2);
+    pos += 2;
+    if (extended) {
+      res[pos++] = ':';
+    }
+    put(res, pos, (sod / 60) % 60, 2);
+    pos += 2;
+    if (extended) {
+      res[pos++] = ':';
+    }
+    put(res, pos, sod % 60, 2);
+
+    if (utc) {
+      res[len] = 'Z';
+    }
+
+    return new String(res);
+  }
+
+  private static int digits(final String val,
+                            final int from,
+                            final int to) {
+    int res = 0;
+
+    for (int i = from; i < to; i++) {
+      res = res * 10 + (val.charAt(i) - '0');
+    }
+
+    return res;
+  }
+
+  private static void put(final char[] res,
+                          final int pos,
+                          final int val,
+                          final int len) {
+    int v = val;
+
+    for (int i = pos + len - 1; i >= pos; i--) {
+      res[i] = (char)('0' + (v % 10));
+      v /= 10;
+    }
+  }
+
+  /* Days since the epoch for a proleptic gregorian date */
+  static long days(final int year,
+                   final int month,
+                   final int day) {
+    final int y = (month <= 2) ? year - 1 : year;
+    final long era = (y >= 0 ? y : y - 399) / 400;
+    final long yoe = y - era * 400;
+    final long doy = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+    final long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+
+    return era * 146097 + doe - 719468;
+  }
+
+  /* {year, month, day} for days since the epoch */
+  static int[] civil(final long day) {
+    final long z = day + 719468;
+    final long era = (z >= 0 ? z : z - 146096) / 146097;
+    final long doe = z - era * 146097;
+    final long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+    final long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+    final long mp = (5 * doy + 2) / 153;
+    final int d = (int)(doy - (153 * mp + 2) / 5 + 1);
+    final int m = (int)(mp < 10 ? mp + 3 : mp - 9);
+
+    return new int[]{(int)(yoe + era * 400 + (m <= 2 ? 1 : 0)), m, d};
+  }
+
+  /* Days since the epoch for epoch seconds - rounding down */
+  static long floorDay(final long secs) {
+    long day = secs / secsPerDay;
+
+    if ((secs % secsPerDay) < 0) {
+      day--;
+    }
+
+    return day;
+  }
+}
@@ -49,6 +49,16 @@ public class TzConfig<T extends TzConfig> extends ConfigBase<T> {
 
   private long refreshDelay;
 
+  private int maxLargeWriters;
+
+  private int largeResponseSize;
+
+  private int maxExpansions;
+
+  private int warmupParallelism;
+
+  private String snapshotPath;
+
   private List<String> hibernateProperties;
 
   /**
@@ -173,6 +183,83 @@ public class TzConfig<T extends TzConfig> extends ConfigBase<T> {
     return refreshDelay;
   }
 
+  /** Most requests allowed to be writing a large response at once.
+   * Further large responses get a 503. 0 for no limit.
+   *
+   * @param val max
+   */
+  public void setMaxLargeWriters(final Integer val) {
+    maxLargeWriters = val;
+  }
+
+  /**
+   * @return int maxLargeWriters - 0 for no limit
+   */
+  public int getMaxLargeWriters() {
+    return maxLargeWriters;
+  }
+
+  /** Responses at least this size (bytes) are large.
+   *
+   * @param val size
+   */
+  public void setLargeResponseSize(final Integer val) {
+    largeResponseSize = val;
+  }
+
+  /**
+   * @return int largeResponseSize
+   */
+  public int getLargeResponseSize() {
+    return largeResponseSize;
+  }
+
+  /** Most expansions we cache.
+   *
+   * @param val max
+   */
+  public void setMaxExpansions(final Integer val) {
+    maxExpansions = val;
+  }
+
+  /**
+   * @return int maxExpansions - 0 for the default
+   */
+  public int getMaxExpansions() {
+    return maxExpansions;
+  }
+
+  /** Threads used to expand every zone after a load.
+   *
+   * @param val parallelism
+   */
+  public void setWarmupParallelism(final Integer val) {
+    warmupParallelism = val;
+  }
+
+  /**
+   * @return int warmupParallelism - 0 for no warm-up
+   */
+  public int getWarmupParallelism() {
+    return warmupParallelism;
+  }
+
+  /** Location of the snapshot file.
+   *
+   * @param val    String
+   */
+  public void setSnapshotPath(final String val) {
+    snapshotPath = val;
+  }
+
+  /** Location of the snapshot file.
+   *
+   * @return String, null for no snapshot
+   */
+  public String getSnapshotPath() {
+    return snapshotPath;
+  }
+
   /**
    *
    * @param val properties
@@ -277,6 +364,11 @@ public class TzConfig<T extends TzConfig> extends ConfigBase<T> {
     newConf.setPrimaryServer(getPrimaryServer());
     newConf.setTzdataUrl(getTzdataUrl());
     newConf.setRefreshDelay(getRefreshDelay());
+    newConf.setMaxLargeWriters(getMaxLargeWriters());
+    newConf.setLargeResponseSize(getLargeResponseSize());
+    newConf.setMaxExpansions(getMaxExpansions());
+    newConf.setWarmupParallelism(getWarmupParallelism());
+    newConf.setSnapshotPath(getSnapshotPath());
 
     if (!Util.isEmpty(getHibernateProperties())) {
       for (final String hp: getHibernateProperties()) {
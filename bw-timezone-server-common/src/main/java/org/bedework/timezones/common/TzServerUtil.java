@@ -20,35 +20,30 @@ package org.bedework.timezones.common;
 
 import org.bedework.timezones.common.Differ.DiffListEntry;
 import org.bedework.timezones.common.leveldb.LdbCachedData;
-import org.bedework.util.calendar.XcalUtil;
 import org.bedework.util.jmx.ConfigHolder;
 import org.bedework.util.timezones.DateTimeUtil;
 import org.bedework.util.timezones.model.ExpandedTimezoneType;
 import org.bedework.util.timezones.model.ObservanceType;
 import org.bedework.util.timezones.model.TimezoneType;
 
-import net.fortuna.ical4j.model.ComponentList;
 import net.fortuna.ical4j.model.DateTime;
 import net.fortuna.ical4j.model.Dur;
-import net.fortuna.ical4j.model.Period;
-import net.fortuna.ical4j.model.PeriodList;
 import net.fortuna.ical4j.model.TimeZone;
 import net.fortuna.ical4j.model.UtcOffset;
-import net.fortuna.ical4j.model.component.Observance;
 import net.fortuna.ical4j.model.component.VTimeZone;
-import net.fortuna.ical4j.util.TimeZones;
 import org.apache.log4j.Logger;
 
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Calendar;
 import java.util.Collection;
 import java.util.Date;
 import java.util.GregorianCalendar;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.SortedSet;
-import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.servlet.http.HttpServletResponse;
 import javax.xml.datatype.DatatypeFactory;
@@ -61,7 +56,7 @@ import javax.xml.datatype.XMLGregorianCalendar;
 public class TzServerUtil {
   private static String appname = "tzsvr";
 
-  private static TzServerUtil instance;
+  private static volatile TzServerUtil instance;
 
   static ConfigHolder<TzConfig> cfgHolder;
 
@@ -71,20 +66,54 @@ public class TzServerUtil {
 
   /* ======================= Stats ======================= */
 
-  static long gets;
-  static long cacheHits;
-  static long reads;
-  static long nameLists;
-  static long aliasReads;
-  static long conversions;
-  static long conversionsMillis;
-  static long tzfetches;
-  static long reloads;
-  static long reloadsMillis;
-  static long expandFetches;
-  static long expandHits;
-  static long expands;
-  static long expandsMillis;
+  static final StripedCounter gets = new StripedCounter();
+  static final StripedCounter cacheHits = new StripedCounter();
+  static final StripedCounter reads = new StripedCounter();
+  static final StripedCounter nameLists = new StripedCounter();
+  static final StripedCounter aliasReads = new StripedCounter();
+  static final StripedCounter conversions = new StripedCounter();
+  static final StripedCounter conversionsMillis = new StripedCounter();
+  static final StripedCounter tzfetches = new StripedCounter();
+  static final StripedCounter reloads = new StripedCounter();
+  static final StripedCounter reloadsMillis = new StripedCounter();
+  static final StripedCounter expandFetches = new StripedCounter();
+  static final StripedCounter expandHits = new StripedCounter();
+  static final StripedCounter expands = new StripedCounter();
+  static final StripedCounter expandsMillis = new StripedCounter();
+  static final StripedCounter onsetSlices = new StripedCounter();
+  static final StripedCounter onsetExpansions = new StripedCounter();
+  static final StripedCounter onsetExpansionsMillis = new StripedCounter();
+  static final StripedCounter bulkGets = new StripedCounter();
+  static final StripedCounter bulkZones = new StripedCounter();
+  static final StripedCounter instantQueries = new StripedCounter();
+  static final StripedCounter largeWrites = new StripedCounter();
+  static final StripedCounter largeWriteRejects = new StripedCounter();
+  static final StripedCounter truncFetches = new StripedCounter();
+  static final StripedCounter truncHits = new StripedCounter();
+  static final StripedCounter truncs = new StripedCounter();
+  static final StripedCounter truncsMillis = new StripedCounter();
+
+  /** Names of the actions we keep latency histograms for */
+  public static final String[] latencyActions = {
+          "get",
+          "list",
+          "expand",
+          "find",
+          "offset",
+          "convert",
+          "utc",
+          "bulk",
+          "batch",
+  };
+
+  private static final Map<String, LatencyHistogram> latencies =
+          new HashMap<>();
+
+  static {
+    for (final String action: latencyActions) {
+      latencies.put(action, new LatencyHistogram(action));
+    }
+  }
 
   /* ======================= Error codes ======================= */
 
@@ -93,7 +122,23 @@ public class TzServerUtil {
 
   /* ======================= Caching ======================= */
 
-  private CachedData cache;
+  /* The data we serve. Replaced in one step by a refresh */
+  private final AtomicReference<CachedData> cache = new AtomicReference<>();
+
+  /* Only one load at a time */
+  private final Object loadLock = new Object();
+
+  /** Most truncated zones we hold */
+  public static final int maxTruncations = 500;
+
+  /* Truncated zones. Keyed by the zone etag, the window and the
+   * format so a data change makes old entries unreachable and they
+   * age out. Only the requested format is rendered and nothing is
+   * compressed. The window comes from the client so a scan of them
+   * mustn't flush the popular ones.
+   */
+  private final BoundedCache<String, CachedContent> truncated =
+          new BoundedCache<>("truncations", maxTruncations);
 
   /** Time we last fetched the data */
   public static long lastDataFetch;
@@ -191,17 +236,56 @@ public class TzServerUtil {
   public static void fireRefresh(final boolean clear) throws TzException {
     final TzServerUtil tzutil = getInstance();
 
-    if (tzutil.cache != null) {
+    synchronized (tzutil.loadLock) {
+      final CachedData old = tzutil.cache.get();
+
+      if (old != null) {
+        /* Stops any background updates so they don't use the data store
+           while we load. The old data is still served until the new data
+           replaces it */
+        try {
+          old.stop();
+        } catch (final Throwable t) {
+          error(t);
+          error("Error stopping cache");
+        }
+      }
+
+      CachedData cd = null;
+
       try {
-        tzutil.cache.stop();
-      } catch (final Throwable t) {
-        error(t);
-        error("Error stopping cache");
+        cd = tzutil.loadCache(clear);
+      } finally {
+        if ((cd == null) && (old != null)) {
+          error("Refresh failed - keeping the current data");
+
+          try {
+            old.start();
+          } catch (final Throwable t) {
+            error(t);
+            error("Error restarting cache");
+          }
+        }
+      }
+
+      if (cd == null) {
+        return;
       }
 
-      tzutil.cache = null;
+      tzutil.cache.set(cd);
+    }
+  }
+
+  /** Count a large response.
+   *
+   * @param rejected true if we sent a 503 instead
+   */
+  public static void largeWrite(final boolean rejected) {
+    if (rejected) {
+      largeWriteRejects.inc();
+    } else {
+      largeWrites.inc();
     }
-    tzutil.getcache(clear);
   }
 
   /**
@@ -211,6 +295,13 @@ public class TzServerUtil {
     prodid = val;
   }
 
+  /**
+   * @return prodid for generated calendar data
+   */
+  public static String getProdid() {
+    return prodid;
+  }
+
   /** Cause data to be checked against primary
    *
    * @throws TzException
@@ -274,6 +365,20 @@ public class TzServerUtil {
     }
   }
 
+  /** Record the time taken by a request. Unknown actions are ignored.
+   *
+   * @param action one of latencyActions
+   * @param nanos time taken
+   */
+  public static void recordLatency(final String action,
+                                   final long nanos) {
+    final LatencyHistogram h = latencies.get(action);
+
+    if (h != null) {
+      h.record(nanos);
+    }
+  }
+
   /** Compare data pointed to by tzdataUrl with the given data.
    *
    * @param tzdataUrl - reference to data
@@ -307,6 +412,82 @@ public class TzServerUtil {
     return out;
   }
 
+  /** Expand every zone over the canonical range with both the
+   * ObservanceExpander and the ical4j code and report any differences.
+   *
+   * @return info lines.
+   * @throws TzException
+   */
+  public static List<String> checkExpansions() throws TzException {
+    final TzServerUtil util = getInstance();
+    final List<String> out = new ArrayList<>();
+    int zones = 0;
+    int unsupported = 0;
+
+    for (final String tzid: util.getNames()) {
+      final TimeZone tz = util.fetchTimeZone(tzid);
+
+      if (tz == null) {
+        continue;
+      }
+
+      zones++;
+
+      final ZoneOnsets nat = ObservanceExpander.expand(tz.getVTimeZone(),
+                                                       ZoneOnsets.canonicalStart,
+                                                       ZoneOnsets.canonicalEnd);
+
+      if (nat == null) {
+        unsupported++;
+        out.add(tzid + ": not handled - uses ical4j");
+        continue;
+      }
+
+      final ZoneOnsets ical = ZoneOnsets.expandIcal(tz,
+                                                    ZoneOnsets.canonicalStart,
+                                                    ZoneOnsets.canonicalEnd);
+
+      final int n = Math.max(nat.size(), ical.size());
+
+      for (int i = 0; i < n; i++) {
+        final ObservanceType a = (i < nat.size()) ? nat.getObservance(i) : null;
+        final ObservanceType b = (i < ical.size()) ? ical.getObservance(i) : null;
+
+        if (!sameObservance(a, b)) {
+          out.add(tzid + ": onset " + i + " native=" + show(a) +
+                          " ical4j=" + show(b));
+          break;
+        }
+      }
+    }
+
+    out.add("Checked " + zones + " zones, " + unsupported +
+                    " not handled");
+
+    return out;
+  }
+
+  private static boolean sameObservance(final ObservanceType a,
+                                        final ObservanceType b) {
+    if ((a == null) || (b == null)) {
+      return a == b;
+    }
+
+    return a.getName().equals(b.getName()) &&
+            a.getOnset().equals(b.getOnset()) &&
+            ((int)a.getUtcOffsetFrom() == (int)b.getUtcOffsetFrom()) &&
+            ((int)a.getUtcOffsetTo() == (int)b.getUtcOffsetTo());
+  }
+
+  private static String show(final ObservanceType ot) {
+    if (ot == null) {
+      return "none";
+    }
+
+    return ot.getName() + " " + ot.getOnset() + " " +
+            ot.getUtcOffsetFrom() + " " + ot.getUtcOffsetTo();
+  }
+
   public static CachedData getDataSource(final TzConfig config) throws TzException {
     final String tzdataUrl = config.getTzdataUrl();
 
@@ -329,20 +510,47 @@ public class TzServerUtil {
   public static List<Stat> getStats() throws TzException {
     List<Stat> stats = new ArrayList<>();
 
-    stats.add(new Stat("Gets", String.valueOf(gets)));
-    stats.add(new Stat("Hits", String.valueOf(cacheHits)));
-    stats.add(new Stat("Name lists", String.valueOf(nameLists)));
-    stats.add(new Stat("Reads", String.valueOf(reads)));
+    stats.add(new Stat("Gets", String.valueOf(gets.sum())));
+    stats.add(new Stat("Hits", String.valueOf(cacheHits.sum())));
+    stats.add(new Stat("Name lists", String.valueOf(nameLists.sum())));
+    stats.add(new Stat("Reads", String.valueOf(reads.sum())));
     stats.add(new Stat("conversions",
-                       String.valueOf(conversions),
-                       String.valueOf(conversionsMillis)));
-    stats.add(new Stat("tzfetches", String.valueOf(tzfetches)));
+                       String.valueOf(conversions.sum()),
+                       String.valueOf(conversionsMillis.sum())));
+    stats.add(new Stat("tzfetches", String.valueOf(tzfetches.sum())));
     stats.add(new Stat("tzreloads",
-                       String.valueOf(reloads),
-                       String.valueOf(reloadsMillis)));
+                       String.valueOf(reloads.sum()),
+                       String.valueOf(reloadsMillis.sum())));
     stats.add(new Stat("expands",
-                       String.valueOf(expands),
-                       String.valueOf(expandsMillis)));
+                       String.valueOf(expands.sum()),
+                       String.valueOf(expandsMillis.sum())));
+    stats.add(new Stat("onset slices",
+                       String.valueOf(onsetSlices.sum())));
+    stats.add(new Stat("onset expansions",
+                       String.valueOf(onsetExpansions.sum()),
+                       String.valueOf(onsetExpansionsMillis.sum())));
+    stats.add(new Stat("large writes",
+                       String.valueOf(largeWrites.sum()),
+                       String.valueOf(largeWriteRejects.sum()),
+                       "rejected"));
+    stats.add(new Stat("truncation fetches",
+                       String.valueOf(truncFetches.sum()),
+                       String.valueOf(truncHits.sum()), "hits"));
+    stats.add(new Stat("truncations",
+                       String.valueOf(truncs.sum()),
+                       String.valueOf(truncsMillis.sum())));
+    stats.add(new Stat("bulk gets",
+                       String.valueOf(bulkGets.sum()),
+                       String.valueOf(bulkZones.sum()), "zones"));
+    stats.add(new Stat("instant queries",
+                       String.valueOf(instantQueries.sum())));
+
+    stats.addAll(ZoneOnsets.getStats());
+    stats.addAll(getInstance().truncated.getStats("tzsvr"));
+
+    for (final String action: latencyActions) {
+      stats.addAll(latencies.get(action).getStats("latency"));
+    }
 
     if (getInstance().getcache() != null) {
       stats.addAll(getInstance().getcache().getStats());
@@ -360,8 +568,10 @@ public class TzServerUtil {
    * @throws TzException
    */
   public void stop() throws TzException {
-    if (cache != null) {
-      cache.stop();
+    final CachedData cd = cache.get();
+
+    if (cd != null) {
+      cd.stop();
     }
   }
 
@@ -383,7 +593,7 @@ public class TzServerUtil {
    * @throws TzException
    */
   public SortedSet<String> getNames() throws TzException {
-    nameLists++;
+    nameLists.inc();
 
     return getcache().getNameList();
   }
@@ -397,6 +607,187 @@ public class TzServerUtil {
     return getcache().getCachedVtz(name);
   }
 
+  /** Get the encoded VCALENDAR for a tzid or an alias.
+   *
+   * @param name tzid or alias
+   * @return content or null
+   * @throws TzException
+   */
+  public CachedContent getVcalendar(final String name) throws TzException {
+    return getCalendar(name, CalFormat.ical);
+  }
+
+  /** Get the encoded calendar for a tzid or an alias.
+   *
+   * @param name tzid or alias
+   * @param format of the calendar
+   * @return content or null
+   * @throws TzException
+   */
+  public CachedContent getCalendar(final String name,
+                                   final CalFormat format) throws TzException {
+    gets.inc();
+
+    final CachedContent cc = getcache().getCachedCalendar(name, format);
+
+    if (cc != null) {
+      cacheHits.inc();
+    }
+
+    return cc;
+  }
+
+  /** Get a timezone truncated to the [start, end) window.
+   *
+   * @param name tzid or alias
+   * @param start inclusive UTC millis or ZoneTruncator.noStart
+   * @param end exclusive UTC millis or ZoneTruncator.noEnd
+   * @param format of the calendar
+   * @return content or null for unknown timezone
+   * @throws TzException
+   */
+  public CachedContent getTruncated(final String name,
+                                    final long start,
+                                    final long end,
+                                    final CalFormat format) throws TzException {
+    truncFetches.inc();
+
+    final CachedContent full = getcache().getCachedCalendar(name,
+                                                            CalFormat.ical);
+
+    if (full == null) {
+      return null;
+    }
+
+    // The etag is from the content which includes the tzid
+    final String key = full.getEtag() + "|" + start + "|" + end + "|" +
+            format.name();
+
+    CachedContent cc = truncated.get(key);
+
+    if (cc != null) {
+      truncHits.inc();
+      return cc;
+    }
+
+    final long smillis = System.currentTimeMillis();
+
+    final VTimeZone vtz = new ZoneTruncator(start, end).truncateCalendar(
+            new String(full.getContent(), CachedContent.utf8));
+
+    cc = CalRenderer.renderForRequest(format, vtz, full.getLastModified());
+
+    final long millis = System.currentTimeMillis() - smillis;
+
+    truncated.put(key, cc, millis);
+
+    truncsMillis.add(millis);
+    truncs.inc();
+
+    return cc;
+  }
+
+  /** The etag for a bulk fetch of the given zones. As the response is
+   * built from the zones in order this is fixed by their etags.
+   *
+   * @param zones cached calendars as returned by getCalendar
+   * @return quoted etag
+   */
+  public static String getBulkEtag(final List<CachedContent> zones) {
+    final StringBuilder sb = new StringBuilder();
+
+    for (final CachedContent cc: zones) {
+      sb.append(cc.getEtag());
+    }
+
+    return "\"" + CachedContent.digest(sb.toString()) + "\"";
+  }
+
+  /** Build a single calendar holding all the given zones by splicing
+   * the cached per-zone bytes. Nothing is parsed or re-encoded.
+   *
+   * @param zones non-empty list of cached calendars as returned by
+   *              getCalendar - all in the given format
+   * @param format of the calendars
+   * @return combined content - not compressed
+   */
+  public static CachedContent getBulkCalendar(final List<CachedContent> zones,
+                                              final CalFormat format) {
+    bulkGets.inc();
+    bulkZones.add(zones.size());
+
+    /* Header and trailer are taken from the first zone */
+    final CachedContent first = zones.get(0);
+    final int hdrLen = first.getFragmentStart();
+    final int tlrLen = first.getContentLength() - first.getFragmentEnd();
+    final byte[] sep = format.getSeparator().getBytes(CachedContent.utf8);
+
+    int len = hdrLen + tlrLen + sep.length * (zones.size() - 1);
+    long lastModified = 0;
+
+    for (final CachedContent cc: zones) {
+      len += cc.getFragmentEnd() - cc.getFragmentStart();
+      lastModified = Math.max(lastModified, cc.getLastModified());
+    }
+
+    final byte[] content = new byte[len];
+    first.copyContent(0, content, 0, hdrLen);
+    int pos = hdrLen;
+
+    for (final CachedContent cc: zones) {
+      if (pos > hdrLen) {
+        System.arraycopy(sep, 0, content, pos, sep.length);
+        pos += sep.length;
+      }
+
+      final int fragLen = cc.getFragmentEnd() - cc.getFragmentStart();
+      cc.copyContent(cc.getFragmentStart(), content, pos, fragLen);
+      pos += fragLen;
+    }
+
+    first.copyContent(first.getFragmentEnd(), content, pos, tlrLen);
+
+    return new CachedContent(first.getContentType(), content,
+                             getBulkEtag(zones), lastModified);
+  }
+
+  /**
+   * @return names list as text or null
+   * @throws TzException
+   */
+  public CachedContent getNamesContent() throws TzException {
+    nameLists.inc();
+
+    return getcache().getNamesContent();
+  }
+
+  /**
+   * @return aliases as properties text or null
+   * @throws TzException
+   */
+  public CachedContent getAliasesContent() throws TzException {
+    aliasReads.inc();
+
+    return getcache().getAliasesContent();
+  }
+
+  /**
+   * @return full summary list as json or null
+   * @throws TzException
+   */
+  public CachedContent getListContent() throws TzException {
+    return getcache().getListContent();
+  }
+
+  /**
+   * @param tzid of the summary
+   * @return the summary rendered as a json object or null
+   * @throws TzException
+   */
+  public String getSummaryJson(final String tzid) throws TzException {
+    return getcache().getSummaryJson(tzid);
+  }
+
   /**
    * @return all specs
    * @throws TzException
@@ -432,60 +823,132 @@ public class TzServerUtil {
   }
 
   /**
+   * @param tzid tzid or alias - may be null
+   * @return the compiled transitions or null
+   * @throws TzException
+   */
+  public TransitionTable getTransitions(final String tzid) throws TzException {
+    if (tzid == null) {
+      return null;
+    }
+
+    return getcache().getTransitions(tzid);
+  }
+
+  /** What is in effect at an instant. Answered from the transition
+   * table up to its horizon and from the TimeZone after that.
+   *
+   * @param tzid a known tzid or alias
+   * @param utc epoch seconds
+   * @return the info
+   * @throws TzException
+   */
+  public InstantInfo getInstantInfo(final String tzid,
+                                    final long utc) throws TzException {
+    instantQueries.inc();
+
+    final TransitionTable tt = getTransitions(tzid);
+
+    if ((tt == null) || !tt.covers(utc)) {
+      final TimeZone tz = fetchTimeZone(tzid);
+      if (tz == null) {
+        throw new TzException(HttpServletResponse.SC_NOT_FOUND,
+                              "Unknown tzid " + tzid);
+      }
+
+      final long millis = utc * 1000;
+
+      return new InstantInfo(tzid, utc,
+                             tz.getOffset(millis) / 1000,
+                             tz.inDaylightTime(new Date(millis)),
+                             null, null, null);
+    }
+
+    final int i = tt.transitionAt(utc);
+
+    InstantInfo.Transition previous = null;
+    boolean dst = false;
+    String abbreviation = null;
+
+    if (i >= 0) {
+      previous = new InstantInfo.Transition(tt, i);
+      dst = tt.isDaylight(i);
+      abbreviation = tt.getName(i);
+    }
+
+    InstantInfo.Transition next = null;
+
+    if (i + 1 < tt.size()) {
+      next = new InstantInfo.Transition(tt, i + 1);
+    }
+
+    return new InstantInfo(tzid, utc, tt.offsetAt(utc), dst,
+                           abbreviation, previous, next);
+  }
+
+  /**
+   * @param name possible tzid or alias
+   * @return true if we have that timezone
+   * @throws TzException
+   */
+  public boolean isKnownTzid(final String name) throws TzException {
+    return getcache().isKnown(name);
+  }
+
+  /** The time may be a basic or extended ISO date-time or epoch
+   * seconds or millis - see IsoDateTime.
+   *
    * @param time
    * @param tzid
-   * @return String utc date
+   * @return String utc date or null for a bad time
    * @throws Throwable
    */
   public String getUtc(final String time,
                        final String tzid) throws Throwable {
-    if (DateTimeUtil.isISODateTimeUTC(time)) {
-      // Already UTC
-      return time;
-    }
+    return getUtc(time, tzid, getTransitions(tzid));
+  }
 
-    if (!DateTimeUtil.isISODateTime(time)) {
+  /** As getUtc(time, tzid) with the transitions already looked up.
+   *
+   * @param time
+   * @param tzid
+   * @param tt transitions for tzid or null
+   * @return String utc date
+   * @throws Throwable
+   */
+  public String getUtc(final String time,
+                       final String tzid,
+                       final TransitionTable tt) throws Throwable {
+    final long secs = IsoDateTime.parse(time);
+
+    if (secs == IsoDateTime.invalid) {
       return null;  // Bad datetime
     }
 
-    conversions++;
-    long smillis = System.currentTimeMillis();
-
-    TimeZone tz = fetchTimeZone(tzid);
-
-    DateFormat formatTd  = new SimpleDateFormat("yyyyMMdd'T'HHmmss");
-    formatTd.setTimeZone(tz);
-
-    Date date = formatTd.parse(time);
-    String utc;
-
-    synchronized (cal) {
-      cal.clear();
-      cal.setTime(date);
+    if (IsoDateTime.isAbsolute(time)) {
+      // Already UTC
+      return TransitionTable.formatBasic(secs, true);
+    }
 
-      //formatTd.setTimeZone(utctz);
-      //trace("formatTd with utc: " + formatTd.format(date));
+    conversions.inc();
+    final long smillis = System.currentTimeMillis();
 
-      StringBuilder sb = new StringBuilder();
-      digit4(sb, cal.get(Calendar.YEAR));
-      digit2(sb, cal.get(Calendar.MONTH) + 1); // Month starts at 0
-      digit2(sb, cal.get(Calendar.DAY_OF_MONTH));
-      sb.append('T');
-      digit2(sb, cal.get(Calendar.HOUR_OF_DAY));
-      digit2(sb, cal.get(Calendar.MINUTE));
-      digit2(sb, cal.get(Calendar.SECOND));
-      sb.append('Z');
+    final long utcSecs = toUtc(secs, tzid, tt);
 
-      utc = sb.toString();
+    if (utcSecs == IsoDateTime.invalid) {
+      return null;  // Unknown tzid
     }
 
-    conversionsMillis += System.currentTimeMillis() - smillis;
+    final String utc = TransitionTable.formatBasic(utcSecs, true);
+
+    conversionsMillis.add(System.currentTimeMillis() - smillis);
 
     return utc;
   }
 
   /** Convert from local time in fromTzid to local time in toTzid. If dateTime is
-   * already an iso utc date time fromTzid may be null.
+   * already an instant - UTC, with an offset or epoch - fromTzid may be
+   * null.
    *
    * @param dateTime
    * @param fromTzid
@@ -495,33 +958,64 @@ public class TzServerUtil {
    */
   public String convertDateTime(final String dateTime, final String fromTzid,
                                 final String toTzid) throws Throwable {
-    String UTCdt = null;
-    if (DateTimeUtil.isISODateTimeUTC(dateTime)) {
-      // Already UTC
-      UTCdt = dateTime;
-    } else if (!DateTimeUtil.isISODateTime(dateTime)) {
+    return convertDateTime(dateTime,
+                           fromTzid, getTransitions(fromTzid),
+                           toTzid, getTransitions(toTzid));
+  }
+
+  /** As convertDateTime(dateTime, fromTzid, toTzid) with the
+   * transitions already looked up.
+   *
+   * @param dateTime
+   * @param fromTzid
+   * @param fromTt transitions for fromTzid or null
+   * @param toTzid
+   * @param toTt transitions for toTzid or null
+   * @return String time in given timezone
+   * @throws Throwable
+   */
+  public String convertDateTime(final String dateTime,
+                                final String fromTzid,
+                                final TransitionTable fromTt,
+                                final String toTzid,
+                                final TransitionTable toTt) throws Throwable {
+    final long secs = IsoDateTime.parse(dateTime);
+    final long utc;
+
+    if (secs == IsoDateTime.invalid) {
       return null;  // Bad datetime
+    } else if (IsoDateTime.isAbsolute(dateTime)) {
+      // Already UTC
+      utc = secs;
     } else if (toTzid == null) {
       return null;  // Bad toTzid
     } else {
-      UTCdt = getUtc(dateTime, fromTzid);
-      conversions--; // avoid double inc
+      utc = toUtc(secs, fromTzid, fromTt);
+
+      if (utc == IsoDateTime.invalid) {
+        return null;  // Unknown fromTzid
+      }
     }
 
-    conversions++;
+    conversions.inc();
     final long smillis = System.currentTimeMillis();
 
     // Convert to time in toTzid
 
-    final Date dt = DateTimeUtil.fromISODateTimeUTC(UTCdt);
+    final String cdt;
 
-    final TimeZone tz = fetchTimeZone(toTzid);
-    if (tz == null) {
-      return null;
+    if ((toTt != null) && toTt.covers(utc)) {
+      cdt = TransitionTable.formatBasic(toTt.utcToLocal(utc), false);
+    } else {
+      final TimeZone tz = fetchTimeZone(toTzid);
+      if (tz == null) {
+        return null;
+      }
+
+      cdt = DateTimeUtil.isoDateTime(new Date(utc * 1000), tz);
     }
 
-    final String cdt = DateTimeUtil.isoDateTime(dt, tz);
-    conversionsMillis += System.currentTimeMillis() - smillis;
+    conversionsMillis.add(System.currentTimeMillis() - smillis);
 
     return cdt;
   }
@@ -553,19 +1047,6 @@ public class TzServerUtil {
     return getcache().findTimezones(name);
   }
 
-  private static class ObservanceWrapper implements Comparable<ObservanceWrapper> {
-    ObservanceType ot;
-
-    ObservanceWrapper(final ObservanceType ot) {
-      this.ot = ot;
-    }
-
-    @Override
-    public int compareTo(final ObservanceWrapper o) {
-      return ot.getOnset().compareTo(o.ot.getOnset());
-    }
-  }
-
   /**
    * @param tzid
    * @param start
@@ -577,83 +1058,107 @@ public class TzServerUtil {
                                       final String start,
                                       final String end,
                                       final boolean oldForm) throws Throwable {
-    expandFetches++;
+    expandFetches.inc();
 
     final ExpandedMapEntryKey emek = makeExpandedKey(tzid, start, end);
 
     ExpandedMapEntry tzs = getcache().getExpanded(emek);
     if (tzs != null) {
-      expandHits++;
+      expandHits.inc();
       return tzs;
     }
 
     final long smillis = System.currentTimeMillis();
 
-    final TimeZone tz = fetchTimeZone(tzid);
-    if (tz == null) {
+    final long from = TransitionTable.parseBasic(emek.getStart());
+    final long to = TransitionTable.parseBasic(emek.getEnd());
+
+    final ZoneOnsets zo = getZoneOnsets(tzid, from, to);
+    if (zo == null) {
       return null;
     }
 
-    final VTimeZone vtz = tz.getVTimeZone();
-
-    final DateTime dtstart = new DateTime(emek.getStart());
-    final DateTime dtend = new DateTime(emek.getEnd());
+    final ExpandedTimezoneType etzt = new ExpandedTimezoneType();
 
-    dtstart.setTimeZone(tz);
-    dtend.setTimeZone(tz);
+    etzt.setDtstamp(getDtstamp());
+    if (!oldForm) {
+      etzt.setTzid(tzid);
+    }
 
-    final Period p = new Period(dtstart, dtend);
+    final List<ObservanceType> obs = zo.slice(from, to);
 
-    final ComponentList cl = vtz.getObservances();
+    if (!obs.isEmpty()) {
+      etzt.setObservances(obs);
+    }
 
-    final TreeSet<ObservanceWrapper> obws = new TreeSet<>();
+    /* The observances only depend on the zone and the range */
+    final CachedContent cc = getcache().getCachedCalendar(tzid,
+                                                          CalFormat.ical);
+    final String etag;
+    final long lastModified;
 
-    for (final Object o: cl) {
-      final Observance ob = (Observance)o;
+    if (cc == null) {
+      etag = "W/\"" + CachedContent.digest(getDtstamp() + "|" + emek) + "\"";
+      lastModified = 0;
+    } else {
+      etag = "W/\"" + CachedContent.digest(cc.getEtag() + "|" +
+                                                emek.getStart() + "|" +
+                                                emek.getEnd()) + "\"";
+      lastModified = cc.getLastModified();
+    }
 
-      final PeriodList pl = ob.calculateRecurrenceSet(p);
+    tzs = new ExpandedMapEntry(etag, lastModified, etzt);
 
-      for (final Object po: pl) {
-        final Period onsetPer = (Period)po;
+    final long millis = System.currentTimeMillis() - smillis;
 
-        final ObservanceType ot = new ObservanceType();
+    getcache().setExpanded(emek, tzs, millis);
 
-        ot.setName(ob.getName());
-        ot.setOnset(XcalUtil.getXmlFormatDateTime(
-                onsetPer.getStart().toString()));
+    expandsMillis.add(millis);
+    expands.inc();
 
-        ot.setUtcOffsetFrom(
-                (int)(ob.getOffsetFrom().getOffset().getOffset() / 1000));
+    return tzs;
+  }
 
-        ot.setUtcOffsetTo(
-                (int)(ob.getOffsetTo().getOffset().getOffset() / 1000));
+  /* Get onsets covering the range - extending the zone's canonical
+   * onsets if needed. Ranges outside the limits are expanded on their
+   * own and not kept.
+   */
+  private ZoneOnsets getZoneOnsets(final String tzid,
+                                   final long from,
+                                   final long to) throws Throwable {
+    ZoneOnsets zo = getcache().getZoneOnsets(tzid);
+
+    if ((zo != null) && zo.covers(from, to)) {
+      onsetSlices.inc();
+      return zo;
+    }
 
-        obws.add(new ObservanceWrapper(ot));
-      }
+    final TimeZone tz = fetchTimeZone(tzid);
+    if (tz == null) {
+      return null;
     }
 
-    final ExpandedTimezoneType etzt = new ExpandedTimezoneType();
+    final long smillis = System.currentTimeMillis();
 
-    etzt.setDtstamp(getDtstamp());
-    if (!oldForm) {
-      etzt.setTzid(tzid);
-    }
+    if ((from < ZoneOnsets.limitStart) || (to > ZoneOnsets.limitEnd)) {
+      zo = ZoneOnsets.expand(tz, from, to);
+    } else {
+      long start = Math.min(from, ZoneOnsets.canonicalStart);
+      long end = Math.max(to, ZoneOnsets.canonicalEnd);
 
-    for (final ObservanceWrapper ow: obws) {
-      if (etzt.getObservances() == null) {
-        etzt.setObservances(new ArrayList<ObservanceType>());
+      if (zo != null) {
+        start = Math.min(start, zo.getStart());
+        end = Math.max(end, zo.getEnd());
       }
-      etzt.getObservances().add(ow.ot);
-    }
-
-    tzs = new ExpandedMapEntry(String.valueOf(smillis), etzt);
 
-    getcache().setExpanded(emek, tzs);
+      zo = ZoneOnsets.expand(tz, start, end);
+      getcache().setZoneOnsets(tzid, zo);
+    }
 
-    expandsMillis += System.currentTimeMillis() - smillis;
-    expands++;
+    onsetExpansions.inc();
+    onsetExpansionsMillis.add(System.currentTimeMillis() - smillis);
 
-    return tzs;
+    return zo;
   }
 
   private String delimited(final UtcOffset val) {
@@ -688,7 +1193,7 @@ public class TzServerUtil {
    * @throws TzException
    */
   public TimeZone fetchTimeZone(final String tzid) throws TzException {
-    tzfetches++;
+    tzfetches.inc();
 
     return getcache().getTimeZone(tzid);
   }
@@ -755,6 +1260,8 @@ public class TzServerUtil {
   private net.fortuna.ical4j.model.Date makeStartDateFromYear(
           final String val) throws TzException {
     if (val == null) {
+      /* Now - as the spec requires. The onsets are held per zone so
+         this only changes which of them are sliced out. */
       return new net.fortuna.ical4j.model.Date();
     }
 
@@ -788,43 +1295,61 @@ public class TzServerUtil {
   }
 
   private CachedData getcache() throws TzException {
-    if (cache == null) {
-      getcache(false);
+    final CachedData cd = cache.get();
+
+    if (cd != null) {
+      return cd;
+    }
+
+    /* First use - only one thread loads */
+    synchronized (loadLock) {
+      if (cache.get() == null) {
+        cache.set(loadCache(false));
+      }
     }
 
-    return cache;
+    return cache.get();
   }
 
-  private void getcache(final boolean clear) throws TzException {
+  /* Build new data off to the side. Returns null if we can't */
+  private CachedData loadCache(final boolean clear) throws TzException {
     final TzConfig cfg = getTzConfig();
 
     if (cfg == null) {
       error("No config data");
-      return;
+      return null;
     }
 
     try {
-      cache = new LdbCachedData(cfg, clear);
+      return new LdbCachedData(cfg, clear);
     } catch (final TzException te) {
       error(te);
-      cache = null;
     }
 
-    if (cache == null) {
-      cache = getDataSource(cfg);
-    }
+    return getDataSource(cfg);
   }
 
-  private static final Calendar cal = Calendar.getInstance();
-  private static final java.util.TimeZone utctz;
+  /* Local time in the timezone to UTC epoch seconds. Zones we
+   * couldn't compile and times past the horizon go through ical4j.
+   * Returns IsoDateTime.invalid for an unknown tzid.
+   */
+  private long toUtc(final long local,
+                     final String tzid,
+                     final TransitionTable tt) throws Throwable {
+    if ((tt != null) && tt.covers(local)) {
+      return tt.localToUtc(local);
+    }
 
-  static {
-    try {
-      utctz = TimeZone.getTimeZone(TimeZones.UTC_ID);
-    } catch (final Throwable t) {
-      throw new RuntimeException("Unable to initialise UTC timezone");
+    final TimeZone tz = fetchTimeZone(tzid);
+    if (tz == null) {
+      return IsoDateTime.invalid;
     }
-    cal.setTimeZone(utctz);
+
+    final DateFormat formatTd  = new SimpleDateFormat("yyyyMMdd'T'HHmmss");
+    formatTd.setTimeZone(tz);
+
+    return formatTd.parse(TransitionTable.formatBasic(local,
+                                                      false)).getTime() / 1000;
   }
 
   /**
@@ -861,28 +1386,4 @@ public class TzServerUtil {
   static void error(final Throwable t) {
     getLogger().error(TzServerUtil.class, t);
   }
-
-  private static void digit2(final StringBuilder sb, final int val) throws Throwable {
-    if (val > 99) {
-      throw new Exception("Bad date");
-    }
-    if (val < 10) {
-      sb.append("0");
-    }
-    sb.append(val);
-  }
-
-  private static void digit4(final StringBuilder sb, final int val) throws Throwable {
-    if (val > 9999) {
-      throw new Exception("Bad date");
-    }
-    if (val < 10) {
-      sb.append("000");
-    } else if (val < 100) {
-      sb.append("00");
-    } else if (val < 1000) {
-      sb.append("0");
-    }
-    sb.append(val);
-  }
 }
@@ -34,7 +34,6 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.StringReader;
 import java.io.StringWriter;
-import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.List;
@@ -66,6 +65,10 @@ public class ZipCachedData  extends AbstractCachedData {
   public void stop() throws TzException {
   }
 
+  @Override
+  public void start() throws TzException {
+  }
+
   @Override
   public String getSource() throws TzException {
     return null;
@@ -82,13 +85,6 @@ public class ZipCachedData  extends AbstractCachedData {
     // XXX ??
   }
 
-  @Override
-  public List<String> findIds(final String val) throws TzException {
-    List<String> ids = new ArrayList<String>();
-
-    return ids;
-  }
-
   private synchronized void loadData() throws TzException {
     try {
       long smillis = System.currentTimeMillis();
@@ -143,11 +139,16 @@ public class ZipCachedData  extends AbstractCachedData {
 
       /* ===================== All tzs into the table ======================= */
 
-      unzipTzs(tzDefsZipFile, dtstamp);
-      expansions.clear();
+      if (!loadSnapshot()) {
+        unzipTzs(tzDefsZipFile, dtstamp);
+        renderTzs();
+        saveSnapshot();
+      }
+      warmExpansions();
+      publish();
 
-      TzServerUtil.reloadsMillis += System.currentTimeMillis() - smillis;
-      TzServerUtil.reloads++;
+      TzServerUtil.reloadsMillis.add(System.currentTimeMillis() - smillis);
+      TzServerUtil.reloads.inc();
     } catch (Throwable t) {
       throw new TzException(t);
     }
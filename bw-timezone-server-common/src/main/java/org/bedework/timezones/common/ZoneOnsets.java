@@ -0,0 +1,293 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.common;
+
+import org.bedework.util.calendar.XcalUtil;
+import org.bedework.util.timezones.model.ObservanceType;
+
+import net.fortuna.ical4j.model.DateTime;
+import net.fortuna.ical4j.model.Period;
+import net.fortuna.ical4j.model.PeriodList;
+import net.fortuna.ical4j.model.TimeZone;
+import net.fortuna.ical4j.model.component.Observance;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+
+/** All the observance onsets of a zone over a wide range, in order.
+ * An expansion for any range inside that is a slice found by binary
+ * search.
+ *
+ * <p>Onsets are compared as local times in epoch seconds as given by
+ * TransitionTable.parseBasic. The ObservanceType objects are shared by
+ * every slice and MUST NOT be modified.</p>
+ *
+ * @author douglm
+ */
+public class ZoneOnsets {
+  /** Start of the range we normally expand each zone over */
+  public static final long canonicalStart =
+          TransitionTable.parseBasic("19000101T000000");
+
+  /** End of the range we normally expand each zone over */
+  public static final long canonicalEnd =
+          TransitionTable.parseBasic("21000101T000000");
+
+  /** We extend the canonical range no earlier than this */
+  public static final long limitStart =
+          TransitionTable.parseBasic("16000101T000000");
+
+  /** We extend the canonical range no later than this */
+  public static final long limitEnd =
+          TransitionTable.parseBasic("24000101T000000");
+
+  private static class ObservanceWrapper implements Comparable<ObservanceWrapper> {
+    ObservanceType ot;
+    long onset;
+
+    ObservanceWrapper(final ObservanceType ot,
+                      final long onset) {
+      this.ot = ot;
+      this.onset = onset;
+    }
+
+    @Override
+    public int compareTo(final ObservanceWrapper o) {
+      return ot.getOnset().compareTo(o.ot.getOnset());
+    }
+  }
+
+  private static final StripedCounter nativeExpansions =
+          new StripedCounter();
+  private static final StripedCounter icalExpansions =
+          new StripedCounter();
+
+  private final long start;
+  private final long end;
+
+  private final long[] onsets;
+
+  private final ObservanceType[] observances;
+
+  /**
+   * @param start of the range expanded - inclusive
+   * @param end of the range expanded - exclusive
+   * @param onsets local onset of each observance ascending
+   * @param observances in onset order
+   */
+  public ZoneOnsets(final long start,
+                    final long end,
+                    final long[] onsets,
+                    final ObservanceType[] observances) {
+    this.start = start;
+    this.end = end;
+    this.onsets = onsets;
+    this.observances = observances;
+  }
+
+  /** Expand the observances of the timezone over the range. Uses the
+   * ObservanceExpander and falls back to ical4j for rules it doesn't
+   * handle.
+   *
+   * @param tz the timezone
+   * @param start inclusive
+   * @param end exclusive
+   * @return the onsets
+   * @throws TzException
+   */
+  public static ZoneOnsets expand(final TimeZone tz,
+                                  final long start,
+                                  final long end) throws TzException {
+    final ZoneOnsets zo = ObservanceExpander.expand(tz.getVTimeZone(),
+                                                    start, end);
+
+    if (zo != null) {
+      nativeExpansions.inc();
+      return zo;
+    }
+
+    icalExpansions.inc();
+    return expandIcal(tz, start, end);
+  }
+
+  /** Expand the observances of the timezone over the range using the
+   * ical4j recurrence code.
+   *
+   * @param tz the timezone
+   * @param start inclusive
+   * @param end exclusive
+   * @return the onsets
+   * @throws TzException
+   */
+  public static ZoneOnsets expandIcal(final TimeZone tz,
+                                      final long start,
+                                      final long end) throws TzException {
+    try {
+      final DateTime dtstart =
+              new DateTime(TransitionTable.formatBasic(start, true));
+      final DateTime dtend =
+              new DateTime(TransitionTable.formatBasic(end, true));
+
+      dtstart.setTimeZone(tz);
+      dtend.setTimeZone(tz);
+
+      final Period p = new Period(dtstart, dtend);
+
+      final TreeSet<ObservanceWrapper> obws = new TreeSet<>();
+
+      for (final Object o: tz.getVTimeZone().getObservances()) {
+        final Observance ob = (Observance)o;
+
+        final PeriodList pl = ob.calculateRecurrenceSet(p);
+
+        for (final Object po: pl) {
+          final Period onsetPer = (Period)po;
+          final String onset = onsetPer.getStart().toString();
+
+          final ObservanceType ot = new ObservanceType();
+
+          ot.setName(ob.getName());
+          ot.setOnset(XcalUtil.getXmlFormatDateTime(onset));
+
+          ot.setUtcOffsetFrom(
+                  (int)(ob.getOffsetFrom().getOffset().getOffset() / 1000));
+
+          ot.setUtcOffsetTo(
+                  (int)(ob.getOffsetTo().getOffset().getOffset() / 1000));
+
+          obws.add(new ObservanceWrapper(ot,
+                                         TransitionTable.parseBasic(onset)));
+        }
+      }
+
+      final long[] onsets = new long[obws.size()];
+      final ObservanceType[] observances = new ObservanceType[obws.size()];
+      int i = 0;
+
+      for (final ObservanceWrapper ow: obws) {
+        onsets[i] = ow.onset;
+        observances[i] = ow.ot;
+        i++;
+      }
+
+      return new ZoneOnsets(start, end, onsets, observances);
+    } catch (final Throwable t) {
+      throw new TzException(t);
+    }
+  }
+
+  /**
+   * @return stats for expansions
+   */
+  public static List<Stat> getStats() {
+    final List<Stat> stats = new ArrayList<>();
+
+    stats.add(new Stat("native expansions",
+                       String.valueOf(nativeExpansions.sum())));
+    stats.add(new Stat("ical4j expansions",
+                       String.valueOf(icalExpansions.sum())));
+
+    return stats;
+  }
+
+  /**
+   * @param index of onset
+   * @return local onset as epoch seconds
+   */
+  public long getOnset(final int index) {
+    return onsets[index];
+  }
+
+  /**
+   * @param index of onset
+   * @return the observance
+   */
+  public ObservanceType getObservance(final int index) {
+    return observances[index];
+  }
+
+  /**
+   * @return start of the range expanded
+   */
+  public long getStart() {
+    return start;
+  }
+
+  /**
+   * @return end of the range expanded
+   */
+  public long getEnd() {
+    return end;
+  }
+
+  /**
+   * @param from inclusive
+   * @param to exclusive
+   * @return true if the range is inside what we expanded
+   */
+  public boolean covers(final long from,
+                        final long to) {
+    return (from >= start) && (to <= end);
+  }
+
+  /**
+   * @param from inclusive
+   * @param to exclusive
+   * @return observances with onsets in the range - never null
+   */
+  public List<ObservanceType> slice(final long from,
+                                    final long to) {
+    final int first = lowerBound(from);
+    final int last = lowerBound(to);
+
+    final List<ObservanceType> res = new ArrayList<>(Math.max(0,
+                                                              last - first));
+
+    for (int i = first; i < last; i++) {
+      res.add(observances[i]);
+    }
+
+    return res;
+  }
+
+  /**
+   * @return number of onsets
+   */
+  public int size() {
+    return onsets.length;
+  }
+
+  /* Index of the first onset >= val */
+  private int lowerBound(final long val) {
+    int i = Arrays.binarySearch(onsets, val);
+
+    if (i < 0) {
+      return -i - 1;
+    }
+
+    // Step back over equal values
+    while ((i > 0) && (onsets[i - 1] == val)) {
+      i--;
+    }
+
+    return i;
+  }
+}
@@ -0,0 +1,308 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.common;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Compact storage for VTIMEZONE text.
+ *
+ * <p>An alias is a copy of its zone with a different TZID and some
+ * EQUIVALENT-TZID properties, and some zones are identical apart from
+ * their TZID. So we take the TZID and EQUIVALENT-TZID lines out of each
+ * VTIMEZONE and hold each distinct remainder once as UTF-8 bytes. The
+ * lines for each name are kept with it and spliced back in when the
+ * text is asked for.</p>
+ *
+ * <p>Filled in while loading and then only read.</p>
+ *
+ * @author douglm
+ */
+public class ZoneStore {
+  private static final String crlf = "\r\n";
+
+  /* A VTIMEZONE without its TZID and EQUIVALENT-TZID lines */
+  private static class Body {
+    final byte[] bytes;
+
+    /* Where the TZID line goes */
+    final int tzidPos;
+
+    /* Where any EQUIVALENT-TZID lines go - the end of the properties */
+    final int propsEnd;
+
+    Body(final byte[] bytes,
+         final int tzidPos,
+         final int propsEnd) {
+      this.bytes = bytes;
+      this.tzidPos = tzidPos;
+      this.propsEnd = propsEnd;
+    }
+  }
+
+  /* A name and its own lines */
+  private static class Entry {
+    final Body body;
+    final String tzidLine;
+    final String extraLines;
+
+    Entry(final Body body,
+          final String tzidLine,
+          final String extraLines) {
+      this.body = body;
+      this.tzidLine = tzidLine;
+      this.extraLines = extraLines;
+    }
+  }
+
+  /* Keyed by content so each distinct body is held once */
+  private final Map<ByteBuffer, Body> bodies = new HashMap<>();
+
+  private final Map<String, Entry> zones = new HashMap<>();
+
+  private final Map<String, Entry> aliases = new HashMap<>();
+
+  private long bodyBytes;
+
+  private long lineChars;
+
+  /**
+   * @param tzid of the zone
+   * @param vtz VTIMEZONE text
+   */
+  public void putZone(final String tzid,
+                      final String vtz) {
+    zones.put(tzid, entry(vtz));
+  }
+
+  /**
+   * @param alias the alias
+   * @param vtz VTIMEZONE text with the alias as TZID
+   */
+  public void putAlias(final String alias,
+                       final String vtz) {
+    aliases.put(alias, entry(vtz));
+  }
+
+  /**
+   * @param tzid of the zone
+   * @return VTIMEZONE text or null
+   */
+  public String getZone(final String tzid) {
+    return text(zones.get(tzid));
+  }
+
+  /**
+   * @param alias the alias
+   * @return VTIMEZONE text or null
+   */
+  public String getAlias(final String alias) {
+    return text(aliases.get(alias));
+  }
+
+  /**
+   * @return text of every zone - built on each call
+   */
+  public Collection<String> getAllZones() {
+    final List<String> res = new ArrayList<>(zones.size());
+
+    for (final Entry e: zones.values()) {
+      res.add(text(e));
+    }
+
+    return res;
+  }
+
+  /**
+   * @return the aliases we hold
+   */
+  public Collection<String> getAliasNames() {
+    return Collections.unmodifiableSet(aliases.keySet());
+  }
+
+  /**
+   * @return number of zones
+   */
+  public int zoneCount() {
+    return zones.size();
+  }
+
+  /**
+   * @return number of aliases
+   */
+  public int aliasCount() {
+    return aliases.size();
+  }
+
+  /**
+   * @return number of distinct bodies
+   */
+  public int bodyCount() {
+    return bodies.size();
+  }
+
+  /** An estimate of the heap used. Counts the bodies, the lines we
+   * hold for each name and the map entries.
+   *
+   * @return bytes
+   */
+  public long heapBytes() {
+    final int names = zones.size() + aliases.size();
+
+    return bodyBytes + bodies.size() * 64L +
+            lineChars * 2 + names * 120L;
+  }
+
+  /* ====================================================================
+   *                   private methods
+   * ==================================================================== */
+
+  private Entry entry(final String vtz) {
+    final StringBuilder rest = new StringBuilder(vtz.length());
+    final StringBuilder extra = new StringBuilder();
+    String tzidLine = "";
+    int tzidPos = 0;
+    int propsEnd = -1;
+    boolean inProps = false;
+
+    int pos = 0;
+
+    while (pos < vtz.length()) {
+      int end = vtz.indexOf(crlf, pos);
+
+      if (end < 0) {
+        end = vtz.length();
+      } else {
+        end += crlf.length();
+      }
+
+      final String line = vtz.substring(pos, end);
+      pos = end;
+
+      if (line.startsWith("BEGIN:VTIMEZONE")) {
+        rest.append(line);
+        inProps = true;
+        continue;
+      }
+
+      if (inProps && (line.startsWith("BEGIN:") ||
+                              line.startsWith("END:"))) {
+        propsEnd = rest.length();
+        inProps = false;
+      }
+
+      if (inProps && isProp(line, "TZID")) {
+        tzidLine = line;
+        tzidPos = rest.length();
+        continue;
+      }
+
+      if (inProps && isProp(line, "EQUIVALENT-TZID")) {
+        extra.append(line);
+        continue;
+      }
+
+      rest.append(line);
+    }
+
+    if (propsEnd < 0) {
+      propsEnd = rest.length();
+    }
+
+    /* Positions are in chars - we need them in bytes */
+    final String restStr = rest.toString();
+    final byte[] bytes = restStr.getBytes(CachedContent.utf8);
+    final int tzidBytes =
+            restStr.substring(0, tzidPos).getBytes(CachedContent.utf8).length;
+    final int propsEndBytes =
+            restStr.substring(0, propsEnd).getBytes(CachedContent.utf8).length;
+
+    Body body = bodies.get(ByteBuffer.wrap(bytes));
+
+    if ((body == null) ||
+            (body.tzidPos != tzidBytes) || (body.propsEnd != propsEndBytes)) {
+      body = new Body(bytes, tzidBytes, propsEndBytes);
+      bodies.put(ByteBuffer.wrap(bytes), body);
+      bodyBytes += bytes.length;
+    }
+
+    final String extraLines;
+
+    if (extra.length() == 0) {
+      extraLines = null;
+    } else {
+      extraLines = extra.toString();
+      lineChars += extraLines.length();
+    }
+
+    lineChars += tzidLine.length();
+
+    return new Entry(body, tzidLine, extraLines);
+  }
+
+  private static boolean isProp(final String line,
+                                final String name) {
+    if (!line.regionMatches(true, 0, name, 0, name.length()) ||
+            (line.length() <= name.length())) {
+      return false;
+    }
+
+    final char ch = line.charAt(name.length());
+
+    return (ch == ':') || (ch == ';');
+  }
+
+  private static String text(final Entry e) {
+    if (e == null) {
+      return null;
+    }
+
+    final Body b = e.body;
+    final int extraLen;
+
+    if (e.extraLines == null) {
+      extraLen = 0;
+    } else {
+      extraLen = e.extraLines.length();
+    }
+
+    final StringBuilder sb = new StringBuilder(b.bytes.length +
+                                                       e.tzidLine.length() +
+                                                       extraLen);
+
+    sb.append(new String(b.bytes, 0, b.tzidPos, CachedContent.utf8));
+    sb.append(e.tzidLine);
+    sb.append(new String(b.bytes, b.tzidPos, b.propsEnd - b.tzidPos,
+                         CachedContent.utf8));
+
+    if (e.extraLines != null) {
+      sb.append(e.extraLines);
+    }
+
+    sb.append(new String(b.bytes, b.propsEnd, b.bytes.length - b.propsEnd,
+                         CachedContent.utf8));
+
+    return sb.toString();
+  }
+}
@@ -0,0 +1,585 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.common;
+
+import net.fortuna.ical4j.data.CalendarBuilder;
+import net.fortuna.ical4j.data.UnfoldingReader;
+import net.fortuna.ical4j.model.Calendar;
+import net.fortuna.ical4j.model.Component;
+import net.fortuna.ical4j.model.DateList;
+import net.fortuna.ical4j.model.DateTime;
+import net.fortuna.ical4j.model.Property;
+import net.fortuna.ical4j.model.PropertyList;
+import net.fortuna.ical4j.model.Recur;
+import net.fortuna.ical4j.model.component.Observance;
+import net.fortuna.ical4j.model.component.VTimeZone;
+import net.fortuna.ical4j.model.parameter.Value;
+
+import java.io.StringReader;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+/** Truncate a VTIMEZONE to a [start, end) window as described for the
+ * get action of the timezone service.
+ *
+ * <p>Observances are reduced to the onsets inside the window. If an
+ * onset before the window start is in effect at the start, an extra
+ * observance with that offset and a DTSTART at the window start is
+ * added. Recurrence rules that run past the window end are given an
+ * UNTIL at their last onset inside the window.</p>
+ *
+ * <p>As in ical4j, recurrences are calculated on the local time
+ * treated as UTC and then shifted by the TZOFFSETFROM. That keeps the
+ * calculation independent of the default timezone.</p>
+ *
+ * @author douglm
+ */
+public class ZoneTruncator {
+  /** Use for an open start */
+  public static final long noStart = Long.MIN_VALUE;
+
+  /** Use for an open end */
+  public static final long noEnd = Long.MAX_VALUE;
+
+  /* How far past the start we look for the first onset of a rule when
+   * there is no end */
+  private static final long openEndSpan = 2L * 366 * 24 * 60 * 60 * 1000;
+
+  /* How far we expand a rule with a count and no end */
+  private static final long countSpan = 400L * 366 * 24 * 60 * 60 * 1000;
+
+  private final SimpleDateFormat localFormat;
+
+  private final SimpleDateFormat utcFormat;
+
+  private final long start;
+  private final long end;
+
+  private static class Onset implements Comparable<Onset> {
+    final long local;
+    final long utc;
+
+    Onset(final long local, final long utc) {
+      this.local = local;
+      this.utc = utc;
+    }
+
+    @Override
+    public int compareTo(final Onset o) {
+      return Long.compare(utc, o.utc);
+    }
+  }
+
+  /* The onsets of one observance */
+  private static class ObservanceOnsets {
+    Observance obs;
+    int offsetFrom;
+    int offsetTo;
+    String rrule;
+    List<Onset> ruleOnsets = new ArrayList<>();
+    List<Onset> dateOnsets = new ArrayList<>();
+  }
+
+  /**
+   * @param start inclusive UTC millis or noStart
+   * @param end exclusive UTC millis or noEnd
+   */
+  public ZoneTruncator(final long start,
+                       final long end) {
+    this.start = start;
+    this.end = end;
+
+    final TimeZone utc = TimeZone.getTimeZone("UTC");
+
+    localFormat = new SimpleDateFormat("yyyyMMdd'T'HHmmss");
+    localFormat.setTimeZone(utc);
+    localFormat.setLenient(false);
+
+    utcFormat = new SimpleDateFormat("yyyyMMdd'T'HHmmss'Z'");
+    utcFormat.setTimeZone(utc);
+    utcFormat.setLenient(false);
+  }
+
+  /** Truncate the timezone in the VCALENDAR.
+   *
+   * @param cal VCALENDAR text holding a single VTIMEZONE
+   * @return truncated timezone
+   * @throws TzException
+   */
+  public VTimeZone truncateCalendar(final String cal) throws TzException {
+    return truncate(parse(cal));
+  }
+
+  /** Truncate the timezone. The supplied component is not modified.
+   *
+   * @param vtz the full timezone
+   * @return truncated timezone
+   * @throws TzException
+   */
+  public VTimeZone truncate(final VTimeZone vtz) throws TzException {
+    try {
+      final List<ObservanceOnsets> oos = new ArrayList<>();
+
+      for (final Object o: vtz.getObservances()) {
+        oos.add(onsets((Observance)o));
+      }
+
+      final StringBuilder sb = new StringBuilder();
+
+      sb.append(TzServerUtil.getCalHdr());
+      sb.append("BEGIN:VTIMEZONE\n");
+
+      for (final Object o: vtz.getProperties()) {
+        sb.append(o.toString());
+      }
+
+      startObservance(sb, oos);
+
+      for (final ObservanceOnsets oo: oos) {
+        truncatedObservances(sb, oo);
+      }
+
+      sb.append("END:VTIMEZONE\n");
+      sb.append(TzServerUtil.getCalTlr());
+
+      return parse(sb.toString());
+    } catch (final TzException te) {
+      throw te;
+    } catch (final Throwable t) {
+      throw new TzException(t);
+    }
+  }
+
+  /** Every onset of the timezone inside the window ordered by time.
+   * Each onset is an array of {utc millis, offset from millis, offset
+   * to millis, 1 for daylight or 0, index of the observance in the
+   * component}.
+   *
+   * @param vtz the timezone
+   * @return onsets - never null
+   * @throws TzException
+   */
+  public List<long[]> windowOnsets(final VTimeZone vtz) throws TzException {
+    try {
+      final List<Onset> all = new ArrayList<>();
+      final Map<Onset, ObservanceOnsets> owners = new IdentityHashMap<>();
+      final Map<ObservanceOnsets, Integer> indexes = new IdentityHashMap<>();
+      int index = 0;
+
+      for (final Object o: vtz.getObservances()) {
+        final ObservanceOnsets oo = onsets((Observance)o);
+        indexes.put(oo, index);
+        index++;
+
+        for (final List<Onset> os: twoLists(oo)) {
+          for (final Onset on: inWindow(os)) {
+            all.add(on);
+            owners.put(on, oo);
+          }
+        }
+      }
+
+      Collections.sort(all);
+
+      final List<long[]> res = new ArrayList<>(all.size());
+
+      for (final Onset on: all) {
+        final ObservanceOnsets oo = owners.get(on);
+        final boolean daylight =
+                Observance.DAYLIGHT.equals(oo.obs.getName());
+
+        res.add(new long[]{on.utc, oo.offsetFrom, oo.offsetTo,
+                           daylight ? 1 : 0, indexes.get(oo)});
+      }
+
+      return res;
+    } catch (final TzException te) {
+      throw te;
+    } catch (final Throwable t) {
+      throw new TzException(t);
+    }
+  }
+
+  /* ====================================================================
+   *                   private methods
+   * ==================================================================== */
+
+  private static VTimeZone parse(final String val) throws TzException {
+    try {
+      final Calendar cal = new CalendarBuilder().build(
+              new UnfoldingReader(new StringReader(val), true));
+
+      final VTimeZone vtz = (VTimeZone)cal.getComponents().
+              getComponent(Component.VTIMEZONE);
+      if (vtz == null) {
+        throw new TzException("Incorrectly stored timezone");
+      }
+
+      return vtz;
+    } catch (final TzException te) {
+      throw te;
+    } catch (final Throwable t) {
+      throw new TzException(t);
+    }
+  }
+
+  /* If some onset before the start is in effect at the start, add an
+   * observance fixing that offset from the start.
+   */
+  private void startObservance(final StringBuilder sb,
+                               final List<ObservanceOnsets> oos) {
+    if (start == noStart) {
+      return;
+    }
+
+    ObservanceOnsets effective = null;
+    Onset latest = null;
+
+    for (final ObservanceOnsets oo: oos) {
+      for (final List<Onset> os: twoLists(oo)) {
+        for (final Onset on: os) {
+          if (on.utc > start) {
+            break;
+          }
+
+          if ((latest == null) || (on.utc > latest.utc)) {
+            latest = on;
+            effective = oo;
+          }
+        }
+      }
+    }
+
+    if ((latest == null) || (latest.utc == start)) {
+      // Nothing in effect or it's the first onset in the window
+      return;
+    }
+
+    final String name = effective.obs.getName();
+
+    sb.append("BEGIN:").append(name).append("\n");
+    sb.append("DTSTART:").append(local(start + effective.offsetTo)).append("\n");
+    sb.append("TZOFFSETFROM:").append(offset(effective.offsetTo)).append("\n");
+    sb.append("TZOFFSETTO:").append(offset(effective.offsetTo)).append("\n");
+
+    final PropertyList tznames = effective.obs.getProperties(Property.TZNAME);
+    for (final Object o: tznames) {
+      sb.append(o.toString());
+    }
+
+    sb.append("END:").append(name).append("\n");
+  }
+
+  private void truncatedObservances(final StringBuilder sb,
+                                    final ObservanceOnsets oo) {
+    final List<Onset> ruleOnsets = inWindow(oo.ruleOnsets);
+
+    if (!ruleOnsets.isEmpty()) {
+      final Onset first = ruleOnsets.get(0);
+      final Onset last = ruleOnsets.get(ruleOnsets.size() - 1);
+
+      final String rrule;
+
+      if (end != noEnd) {
+        if (ruleOnsets.size() == 1) {
+          rrule = null;
+        } else {
+          rrule = withUntil(oo.rrule, utc(last.utc));
+        }
+      } else {
+        final List<Onset> all = oo.ruleOnsets;
+
+        if (oo.rrule.contains("COUNT=")) {
+          rrule = withUntil(oo.rrule, utc(all.get(all.size() - 1).utc));
+        } else {
+          rrule = oo.rrule;
+        }
+      }
+
+      observance(sb, oo, first, rrule, null);
+    }
+
+    final List<Onset> dateOnsets = inWindow(oo.dateOnsets);
+
+    if (!dateOnsets.isEmpty()) {
+      observance(sb, oo, dateOnsets.get(0), null,
+                 dateOnsets.subList(1, dateOnsets.size()));
+    }
+  }
+
+  private void observance(final StringBuilder sb,
+                          final ObservanceOnsets oo,
+                          final Onset first,
+                          final String rrule,
+                          final List<Onset> rdates) {
+    final String name = oo.obs.getName();
+
+    sb.append("BEGIN:").append(name).append("\n");
+
+    for (final Object o: oo.obs.getProperties()) {
+      final Property p = (Property)o;
+      final String pname = p.getName();
+
+      if (pname.equals(Property.DTSTART) ||
+              pname.equals(Property.RRULE) ||
+              pname.equals(Property.RDATE)) {
+        continue;
+      }
+
+      sb.append(p.toString());
+    }
+
+    sb.append("DTSTART:").append(local(first.local)).append("\n");
+
+    if (rrule != null) {
+      sb.append("RRULE:").append(rrule).append("\n");
+    }
+
+    if ((rdates != null) && !rdates.isEmpty()) {
+      sb.append("RDATE:");
+
+      boolean firstDate = true;
+      for (final Onset on: rdates) {
+        if (!firstDate) {
+          sb.append(',');
+        }
+        sb.append(local(on.local));
+        firstDate = false;
+      }
+
+      sb.append("\n");
+    }
+
+    sb.append("END:").append(name).append("\n");
+  }
+
+  private List<Onset> inWindow(final List<Onset> onsets) {
+    final List<Onset> res = new ArrayList<>();
+
+    for (final Onset on: onsets) {
+      if ((on.utc >= start) && (on.utc < end)) {
+        res.add(on);
+      }
+    }
+
+    return res;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static List<Onset>[] twoLists(final ObservanceOnsets oo) {
+    return new List[]{oo.ruleOnsets, oo.dateOnsets};
+  }
+
+  /* Calculate all the onsets we need for the observance */
+  private ObservanceOnsets onsets(final Observance obs) throws Throwable {
+    final ObservanceOnsets oo = new ObservanceOnsets();
+
+    oo.obs = obs;
+    oo.offsetFrom = (int)obs.getOffsetFrom().getOffset().getOffset();
+    oo.offsetTo = (int)obs.getOffsetTo().getOffset().getOffset();
+
+    final Property dtstart = obs.getProperty(Property.DTSTART);
+    final long seed = parseLocal(dtstart.getValue(), oo.offsetFrom);
+
+    final Property rrule = obs.getProperty(Property.RRULE);
+
+    if (rrule == null) {
+      oo.dateOnsets.add(new Onset(seed, seed - oo.offsetFrom));
+    } else {
+      oo.rrule = rrule.getValue();
+      ruleOnsets(oo, seed);
+    }
+
+    for (final Object o: obs.getProperties(Property.RDATE)) {
+      for (final String val: ((Property)o).getValue().split(",")) {
+        final long local = parseLocal(val, oo.offsetFrom);
+
+        oo.dateOnsets.add(new Onset(local, local - oo.offsetFrom));
+      }
+    }
+
+    Collections.sort(oo.ruleOnsets);
+    Collections.sort(oo.dateOnsets);
+
+    return oo;
+  }
+
+  private void ruleOnsets(final ObservanceOnsets oo,
+                          final long seed) throws Throwable {
+    /* We apply any UNTIL ourselves - it's UTC and we are working in
+       local time. */
+    long until = noEnd;
+    final StringBuilder sb = new StringBuilder();
+
+    for (final String part: oo.rrule.split(";")) {
+      if (part.startsWith("UNTIL=")) {
+        until = parseLocal(part.substring(6), oo.offsetFrom) - oo.offsetFrom;
+        continue;
+      }
+
+      if (sb.length() > 0) {
+        sb.append(';');
+      }
+      sb.append(part);
+    }
+
+    final Recur recur = new Recur(sb.toString());
+
+    /* Expand far enough to cover the window - in local time */
+    long limit;
+
+    if (end != noEnd) {
+      limit = end + oo.offsetFrom;
+    } else if (recur.getCount() > 0) {
+      limit = seed + countSpan;
+    } else {
+      limit = Math.max(start, seed) + openEndSpan;
+    }
+
+    if (until != noEnd) {
+      limit = Math.min(limit, until + oo.offsetFrom);
+    }
+
+    if (limit < seed) {
+      oo.ruleOnsets.add(new Onset(seed, seed - oo.offsetFrom));
+      return;
+    }
+
+    final DateTime seedDt = new DateTime(seed);
+    seedDt.setUtc(true);
+
+    final DateTime limitDt = new DateTime(limit + 1000);
+    limitDt.setUtc(true);
+
+    final DateList dl = recur.getDates(seedDt, seedDt, limitDt,
+                                       Value.DATE_TIME);
+
+    boolean seedSeen = false;
+
+    for (final Object o: dl) {
+      final long local = ((java.util.Date)o).getTime();
+      final long utc = local - oo.offsetFrom;
+
+      if (utc > until) {
+        break;
+      }
+
+      if (local == seed) {
+        seedSeen = true;
+      }
+
+      oo.ruleOnsets.add(new Onset(local, utc));
+    }
+
+    /* DTSTART is always the first onset */
+    if (!seedSeen) {
+      oo.ruleOnsets.add(new Onset(seed, seed - oo.offsetFrom));
+    }
+  }
+
+  /* Replace any UNTIL or COUNT with the given UNTIL */
+  private static String withUntil(final String rrule,
+                                  final String until) {
+    final StringBuilder sb = new StringBuilder();
+
+    for (final String part: rrule.split(";")) {
+      if (part.startsWith("UNTIL=") || part.startsWith("COUNT=")) {
+        continue;
+      }
+
+      sb.append(part).append(';');
+    }
+
+    sb.append("UNTIL=").append(until);
+
+    return sb.toString();
+  }
+
+  /* Local date or date-time to local millis treated as UTC. A UTC value
+   * is shifted to local time with the offset. A period is its start.
+   */
+  private long parseLocal(final String value,
+                          final int offset) throws ParseException {
+    String val = value;
+
+    final int pos = val.indexOf('/');
+    if (pos > 0) {
+      val = val.substring(0, pos);
+    }
+
+    if (val.length() == 8) {
+      val = val + "T000000";
+    }
+
+    if (val.endsWith("Z")) {
+      return utcFormat.parse(val).getTime() + offset;
+    }
+
+    return localFormat.parse(val).getTime();
+  }
+
+  private String local(final long millis) {
+    return localFormat.format(new java.util.Date(millis));
+  }
+
+  private String utc(final long millis) {
+    return utcFormat.format(new java.util.Date(millis));
+  }
+
+  /* Offset in millis to +hhmm[ss] */
+  private static String offset(final int millis) {
+    final StringBuilder sb = new StringBuilder();
+    int secs = millis / 1000;
+
+    if (secs < 0) {
+      sb.append('-');
+      secs = -secs;
+    } else {
+      sb.append('+');
+    }
+
+    final int hours = secs / 3600;
+    final int mins = (secs / 60) % 60;
+    secs = secs % 60;
+
+    twoDigits(sb, hours);
+    twoDigits(sb, mins);
+
+    if (secs != 0) {
+      twoDigits(sb, secs);
+    }
+
+    return sb.toString();
+  }
+
+  private static void twoDigits(final StringBuilder sb,
+                                final int val) {
+    if (val < 10) {
+      sb.append('0');
+    }
+
+    sb.append(val);
+  }
+}
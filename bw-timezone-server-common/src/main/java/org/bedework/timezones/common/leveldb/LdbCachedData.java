@@ -67,7 +67,13 @@ import java.util.TreeSet;
  * @author douglm
  */
 public class LdbCachedData extends AbstractCachedData {
-  private boolean running;
+  private volatile boolean running;
+
+  /* Guards updater */
+  private final Object updaterLock = new Object();
+
+  /* How long stop waits for an update in progress */
+  private static final long stopWaitMillis = 60 * 1000;
 
   protected ObjectMapper mapper = new ObjectMapper(); // create once, reuse
 
@@ -201,27 +207,58 @@ public class LdbCachedData extends AbstractCachedData {
     info("Load leveldb timezone data");
     loadData(clear);
 
-    running = true;
+    start();
+  }
 
-    if (!cfg.getPrimaryServer()) {
-      info("start timezone data update thread");
-      updater = new UpdateThread("DbdataUpdater");
-      updater.start();
+  @Override
+  public void start() throws TzException {
+    synchronized (updaterLock) {
+      running = true;
+
+      if (!cfg.getPrimaryServer() && (updater == null)) {
+        info("start timezone data update thread");
+        updater = new UpdateThread("DbdataUpdater");
+        updater.start();
+      }
     }
   }
 
+  /** Stops the updater and waits for any update in progress so the db
+   * is free for another instance to open.
+   *
+   * @throws TzException
+   */
   @Override
   public void stop() throws TzException {
     running = false;
 
     if (!cfg.getPrimaryServer()) {
-      if (updater == null) {
+      final UpdateThread t;
+
+      synchronized (updaterLock) {
+        t = updater;
+        updater = null;
+      }
+
+      if (t == null) {
         error("Already stopped");
         return;
       }
 
-      updater.interrupt();
-      updater = null;
+      t.interrupt();
+
+      if (t != Thread.currentThread()) {
+        try {
+          t.join(stopWaitMillis);
+        } catch (final InterruptedException ie) {
+          Thread.currentThread().interrupt();
+        }
+
+        if (t.isAlive()) {
+          warn("Updater still running after " + stopWaitMillis +
+                       " millis");
+        }
+      }
 
       info("************************************************************");
       info(" * TZdb cache updater terminated ");
@@ -285,32 +322,6 @@ public class LdbCachedData extends AbstractCachedData {
     }
   }
 
-  @Override
-  public List<String> findIds(final String val) throws TzException {
-    try {
-      open();
-
-      final List<String> ids = new ArrayList<>();
-
-      ids.addAll(findTzs(val));
-
-      final List<TzAlias> as = findTzAliases(val);
-      for (final TzAlias a: as) {
-        ids.addAll(a.getTargetIds());
-      }
-
-      return ids;
-    } catch (final TzException te) {
-      fail();
-      throw te;
-    } catch (final Throwable t) {
-      fail();
-      throw new TzException(t);
-    } finally {
-      close();
-    }
-  }
-
   /* ====================================================================
    *                   DbCachedData methods
    * ==================================================================== */
@@ -360,7 +371,7 @@ public class LdbCachedData extends AbstractCachedData {
         for (it.seekToFirst(); it.hasNext(); it.next()) {
           final String key = Iq80DBFactory.asString(it.peekNext().getKey());
 
-          if (!key.startsWith(timezoneSpecPrefix)) {
+          if (!key.startsWith(aliasPrefix)) {
             continue;
           }
 
@@ -521,9 +532,14 @@ public class LdbCachedData extends AbstractCachedData {
 
       /* ===================== All tzs into the table ======================= */
 
-      processSpecs(dtstamp);
+      if (!loadSnapshot()) {
+        processSpecs(dtstamp);
+        renderTzs();
+        saveSnapshot();
+      }
 
-      expansions.clear();
+      warmExpansions();
+      publish();
     } catch (final TzException te) {
       fail();
       throw te;
@@ -1025,6 +1041,12 @@ public class LdbCachedData extends AbstractCachedData {
 
           processSpec(spec.getName(), spec.getVtimezone(),
                       XcalUtil.getXmlFormatDateTime(dt));
+
+          if (spec.getDisplayNames() != null) {
+            for (final LocalizedString ls: spec.getDisplayNames()) {
+              addLocalName(spec.getName(), ls.getLang(), ls.getValue());
+            }
+          }
         }
       }
     } catch (final TzException te) {
@@ -121,6 +121,56 @@ public class TzConf extends ConfBase<TzConfig> implements TzConfMBean, ConfigHol
     return getConfig().getRefreshDelay();
   }
 
+  @Override
+  public void setMaxLargeWriters(final int val) {
+    getConfig().setMaxLargeWriters(val);
+  }
+
+  @Override
+  public int getMaxLargeWriters() {
+    return getConfig().getMaxLargeWriters();
+  }
+
+  @Override
+  public void setLargeResponseSize(final int val) {
+    getConfig().setLargeResponseSize(val);
+  }
+
+  @Override
+  public int getLargeResponseSize() {
+    return getConfig().getLargeResponseSize();
+  }
+
+  @Override
+  public void setMaxExpansions(final int val) {
+    getConfig().setMaxExpansions(val);
+  }
+
+  @Override
+  public int getMaxExpansions() {
+    return getConfig().getMaxExpansions();
+  }
+
+  @Override
+  public void setWarmupParallelism(final int val) {
+    getConfig().setWarmupParallelism(val);
+  }
+
+  @Override
+  public int getWarmupParallelism() {
+    return getConfig().getWarmupParallelism();
+  }
+
+  @Override
+  public void setSnapshotPath(final String val) {
+    getConfig().setSnapshotPath(val);
+  }
+
+  @Override
+  public String getSnapshotPath() {
+    return getConfig().getSnapshotPath();
+  }
+
   /* ========================================================================
    * Operations
    * ======================================================================== */
@@ -180,6 +230,26 @@ public class TzConf extends ConfBase<TzConfig> implements TzConfMBean, ConfigHol
     return sw.toString();
   }
 
+  @Override
+  public String checkExpansions() {
+    final StringWriter sw = new StringWriter();
+
+    try {
+      final PrintWriter pw = new PrintWriter(sw);
+
+      final List<String> diffs = TzServerUtil.checkExpansions();
+
+      for (final String s: diffs) {
+        pw.println(s);
+      }
+
+    } catch (final Throwable t) {
+      t.printStackTrace(new PrintWriter(sw));
+    }
+
+    return sw.toString();
+  }
+
   @Override
   public String updateData(final String tzdataUrl) {
     final StringWriter sw = new StringWriter();
@@ -117,6 +117,68 @@ public interface TzConfMBean extends ConfBaseMBean {
   @MBeanInfo("How often we attempt to refresh from the primary - seconds.")
   long getRefreshInterval();
 
+  /**
+   * @param val max
+   */
+  void setMaxLargeWriters(int val);
+
+  /**
+   * @return int max - 0 for no limit
+   */
+  @MBeanInfo("Most requests writing a large response at once. " +
+          "Others get a 503. 0 for no limit.")
+  int getMaxLargeWriters();
+
+  /**
+   * @param val size
+   */
+  void setLargeResponseSize(int val);
+
+  /**
+   * @return int size - bytes
+   */
+  @MBeanInfo("Responses at least this size (bytes) count as large.")
+  int getLargeResponseSize();
+
+  /**
+   * @param val max
+   */
+  void setMaxExpansions(int val);
+
+  /**
+   * @return int max - 0 for the default
+   */
+  @MBeanInfo("Most observance expansions held in the cache. Takes " +
+          "effect on the next refresh. 0 for the default.")
+  int getMaxExpansions();
+
+  /**
+   * @param val parallelism
+   */
+  void setWarmupParallelism(int val);
+
+  /**
+   * @return int parallelism - 0 for no warm-up
+   */
+  @MBeanInfo("Threads used to expand the observances of every zone " +
+          "when data is loaded. 0 for no warm-up.")
+  int getWarmupParallelism();
+
+  /** Location of the snapshot file
+   *
+   * @param val    String
+   */
+  void setSnapshotPath(String val);
+
+  /** Location of the snapshot file
+   *
+   * @return String, null for no snapshot
+   */
+  @MBeanInfo("Absolute path of a file holding the rendered data. " +
+          "Written after a load and mapped at startup if the data " +
+          "hasn't changed. Unset for no snapshot.")
+  String getSnapshotPath();
+
   /* ========================================================================
    * Operations
    * ======================================================================== */
@@ -136,6 +198,14 @@ public interface TzConfMBean extends ConfBaseMBean {
   @MBeanInfo("Compare data pointed to by tzdataUrl with the current data.")
   String compareData(@MBeanInfo("Url of the zipped data to compare against") String tzdataUrl);
 
+  /** Expand every zone with the native observance expander and with
+   * ical4j and list any differences.
+   *
+   * @return completion code.
+   */
+  @MBeanInfo("Check native observance expansion against ical4j for every zone.")
+  String checkExpansions();
+
   /** Refresh all the data - almost a restart
    *
    * @return completion code.
@@ -0,0 +1,161 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.common;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * @author douglm
+ */
+public class BoundedCacheTest {
+  @Test
+  public void evictsLeastRecentlyAdded() {
+    final BoundedCache<String, String> c = cache(5);
+
+    for (int i = 1; i <= 6; i++) {
+      c.put("k" + i, "v" + i, 0);
+    }
+
+    assertEquals(5, c.size());
+    assertNull(c.get("k1"));
+    assertEquals("v2", c.get("k2"));
+    assertEquals("v6", c.get("k6"));
+  }
+
+  @Test
+  public void scanDoesNotFlushUsedEntries() {
+    final BoundedCache<String, String> c = cache(5);
+
+    c.put("a", "A", 0);
+    c.put("b", "B", 0);
+
+    // Second use promotes them
+    assertEquals("A", c.get("a"));
+    assertEquals("B", c.get("b"));
+
+    for (int i = 0; i < 100; i++) {
+      c.put("scan" + i, "x", 0);
+    }
+
+    assertEquals(5, c.size());
+    assertEquals("A", c.get("a"));
+    assertEquals("B", c.get("b"));
+    assertNull(c.get("scan96"));
+    assertEquals("x", c.get("scan97"));
+    assertEquals("x", c.get("scan99"));
+  }
+
+  @Test
+  public void promotionDemotesLeastRecentlyUsed() {
+    /* 4 protected entries */
+    final BoundedCache<String, String> c = cache(5);
+
+    for (final String k: new String[]{"a", "b", "c", "d", "e"}) {
+      c.put(k, k, 0);
+    }
+
+    for (final String k: new String[]{"a", "b", "c", "d"}) {
+      c.get(k);
+    }
+
+    // Use a again so b is the least recently used protected entry
+    c.get("a");
+
+    // Promoting e demotes b to probation
+    c.get("e");
+
+    // The new entry pushes out b - the eldest on probation
+    c.put("f", "f", 0);
+
+    assertEquals(5, c.size());
+    assertNull(c.get("b"));
+
+    for (final String k: new String[]{"a", "c", "d", "e", "f"}) {
+      assertEquals(k, c.get(k));
+    }
+  }
+
+  @Test
+  public void putReplacesProtectedValue() {
+    final BoundedCache<String, String> c = cache(3);
+
+    c.put("a", "1", 0);
+    c.get("a");
+    c.put("a", "2", 0);
+
+    assertEquals(1, c.size());
+    assertEquals("2", c.get("a"));
+  }
+
+  @Test
+  public void minimumSize() {
+    final BoundedCache<String, String> c = cache(0);
+
+    c.put("a", "A", 0);
+    c.put("b", "B", 0);
+    c.put("c", "C", 0);
+
+    assertEquals(2, c.size());
+    assertNull(c.get("a"));
+  }
+
+  @Test
+  public void stats() {
+    final BoundedCache<String, String> c = cache(2);
+
+    c.get("a");
+    c.put("a", "A", 5);
+    c.get("a");
+    c.put("b", "B", 7);
+    c.put("c", "C", 0);
+
+    final List<Stat> stats = c.getStats("x");
+
+    assertEquals("x test size", stats.get(0).getName());
+    assertEquals("2", stats.get(0).getValue1());
+    assertEquals("2", stats.get(0).getValue2());
+
+    // hits and misses
+    assertEquals("1", stats.get(1).getValue1());
+    assertEquals("1", stats.get(1).getValue2());
+
+    assertEquals("1", stats.get(2).getValue1());
+
+    // loads and load time
+    assertEquals("3", stats.get(3).getValue1());
+    assertEquals("12", stats.get(3).getValue2());
+
+    c.clear();
+    assertEquals(0, c.size());
+    assertEquals("3", c.getStats("x").get(3).getValue1());
+  }
+
+  /* ====================================================================
+   *                   private methods
+   * ==================================================================== */
+
+  private static BoundedCache<String, String> cache(final int size) {
+    return new BoundedCache<>("test", size);
+  }
+}
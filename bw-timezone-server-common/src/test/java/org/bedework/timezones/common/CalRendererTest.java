@@ -0,0 +1,318 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.common;
+
+import org.bedework.util.calendar.IcalToXcal;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import ietf.params.xml.ns.icalendar_2.IcalendarType;
+import ietf.params.xml.ns.icalendar_2.ObjectFactory;
+import net.fortuna.ical4j.data.CalendarBuilder;
+import net.fortuna.ical4j.data.UnfoldingReader;
+import net.fortuna.ical4j.model.component.VTimeZone;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.Marshaller;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.dom.DOMResult;
+
+import static org.junit.Assert.assertEquals;
+
+/** Our xCal and jCal must say the same as the xCal bw-util builds
+ * from the iCalendar. The documents are compared as a list of
+ * components and properties so layout doesn't matter. jCal is the
+ * same structure as xCal (RFC 7265).
+ *
+ * @author douglm
+ */
+public class CalRendererTest {
+  private static final String[] zones = {
+          TestZones.newYork,
+          TestZones.london,
+          TestZones.sydney,
+          TestZones.kolkata,
+          TestZones.jerusalem,
+          TestZones.monthDay,
+          TestZones.everyMonth
+  };
+
+  /* Recur parts are unordered. A stable sort on this keeps the order
+     of the values of each part. */
+  private static final Comparator<String> byPart = new Comparator<String>() {
+    @Override
+    public int compare(final String a, final String b) {
+      return part(a).compareTo(part(b));
+    }
+
+    private String part(final String val) {
+      return val.substring(0, val.indexOf('='));
+    }
+  };
+
+  @Test
+  public void xcalMatchesIcalToXcal() throws Throwable {
+    for (final String zone: zones) {
+      final VTimeZone vtz = TestZones.vtz(zone);
+
+      assertEquals(expected(vtz),
+                   xcal(parseXml(CalRenderer.render(CalFormat.xcal, vtz, 0)
+                                         .getContent())));
+    }
+  }
+
+  @Test
+  public void jcalMatchesIcalToXcal() throws Throwable {
+    for (final String zone: zones) {
+      final VTimeZone vtz = TestZones.vtz(zone);
+
+      assertEquals(expected(vtz),
+                   jcal(new ObjectMapper().readTree(
+                           CalRenderer.render(CalFormat.jcal, vtz, 0)
+                                   .getContent())));
+    }
+  }
+
+  /* ====================================================================
+   *                   private methods
+   * ==================================================================== */
+
+  /* The zone as bw-util sees it */
+  private static String expected(final VTimeZone vtz) throws Throwable {
+    final IcalendarType ical = IcalToXcal.fromIcal(
+            new CalendarBuilder().build(new UnfoldingReader(
+                    new StringReader(TzServerUtil.getCalHdr() +
+                                             vtz.toString() +
+                                             TzServerUtil.getCalTlr()),
+                    true)),
+            null, true);
+
+    final Marshaller m = JAXBContext.newInstance(ObjectFactory.class)
+                                    .createMarshaller();
+    final DOMResult res = new DOMResult();
+
+    m.marshal(new ObjectFactory().createIcalendar(ical), res);
+
+    return xcal((Document)res.getNode());
+  }
+
+  private static Document parseXml(final byte[] val) throws Throwable {
+    final DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+    dbf.setNamespaceAware(true);
+
+    return dbf.newDocumentBuilder().parse(new ByteArrayInputStream(val));
+  }
+
+  /* One line for the start and end of each component and one for each
+     property - "name;par=val:type:val,val" */
+  private static String xcal(final Document doc) {
+    final StringBuilder sb = new StringBuilder();
+
+    for (final Element vcal: children(doc.getDocumentElement())) {
+      xcalComponent(sb, vcal);
+    }
+
+    return sb.toString();
+  }
+
+  private static void xcalComponent(final StringBuilder sb,
+                                    final Element comp) {
+    sb.append("BEGIN:").append(name(comp)).append('\n');
+
+    for (final Element el: children(comp)) {
+      if (name(el).equals("properties")) {
+        for (final Element prop: children(el)) {
+          xcalProperty(sb, prop);
+        }
+      } else if (name(el).equals("components")) {
+        for (final Element sub: children(el)) {
+          xcalComponent(sb, sub);
+        }
+      }
+    }
+
+    sb.append("END:").append(name(comp)).append('\n');
+  }
+
+  private static void xcalProperty(final StringBuilder sb,
+                                   final Element prop) {
+    final List<String> pars = new ArrayList<>();
+    final List<String> vals = new ArrayList<>();
+    String type = null;
+
+    for (final Element el: children(prop)) {
+      if (name(el).equals("parameters")) {
+        for (final Element par: children(el)) {
+          if (!name(par).equals("value")) {
+            pars.add(name(par) + "=" + par.getTextContent());
+          }
+        }
+        continue;
+      }
+
+      type = name(el);
+
+      if (type.equals("recur")) {
+        for (final Element part: children(el)) {
+          vals.add(name(part) + "=" + part.getTextContent());
+        }
+      } else if (type.equals("period")) {
+        final StringBuilder p = new StringBuilder();
+
+        for (final Element part: children(el)) {
+          if (p.length() > 0) {
+            p.append('/');
+          }
+          p.append(part.getTextContent());
+        }
+
+        vals.add(p.toString());
+      } else {
+        vals.add(el.getTextContent());
+      }
+    }
+
+    property(sb, name(prop), pars, type, vals);
+  }
+
+  private static String jcal(final JsonNode root) {
+    final StringBuilder sb = new StringBuilder();
+
+    jcalComponent(sb, root);
+
+    return sb.toString();
+  }
+
+  private static void jcalComponent(final StringBuilder sb,
+                                    final JsonNode comp) {
+    final String name = comp.get(0).asText();
+
+    sb.append("BEGIN:").append(name).append('\n');
+
+    for (final JsonNode prop: comp.get(1)) {
+      jcalProperty(sb, prop);
+    }
+
+    for (final JsonNode sub: comp.get(2)) {
+      jcalComponent(sb, sub);
+    }
+
+    sb.append("END:").append(name).append('\n');
+  }
+
+  private static void jcalProperty(final StringBuilder sb,
+                                   final JsonNode prop) {
+    final List<String> pars = new ArrayList<>();
+    final List<String> vals = new ArrayList<>();
+    final String type = prop.get(2).asText();
+
+    final Iterator<Map.Entry<String, JsonNode>> it = prop.get(1).fields();
+    while (it.hasNext()) {
+      final Map.Entry<String, JsonNode> par = it.next();
+
+      pars.add(par.getKey() + "=" + par.getValue().asText());
+    }
+
+    for (int i = 3; i < prop.size(); i++) {
+      final JsonNode val = prop.get(i);
+
+      if (!type.equals("recur")) {
+        vals.add(val.asText());
+        continue;
+      }
+
+      final Iterator<Map.Entry<String, JsonNode>> parts = val.fields();
+      while (parts.hasNext()) {
+        final Map.Entry<String, JsonNode> part = parts.next();
+
+        if (part.getValue().isArray()) {
+          for (final JsonNode v: part.getValue()) {
+            vals.add(part.getKey() + "=" + v.asText());
+          }
+        } else {
+          vals.add(part.getKey() + "=" + part.getValue().asText());
+        }
+      }
+    }
+
+    property(sb, prop.get(0).asText(), pars, type, vals);
+  }
+
+  /* Parameters and recur parts are unordered */
+  private static void property(final StringBuilder sb,
+                               final String name,
+                               final List<String> pars,
+                               final String type,
+                               final List<String> vals) {
+    Collections.sort(pars);
+
+    if ("recur".equals(type)) {
+      Collections.sort(vals, byPart);
+    }
+
+    sb.append(name);
+
+    for (final String par: pars) {
+      sb.append(';').append(par);
+    }
+
+    sb.append(':').append(type).append(':');
+
+    String delim = "";
+    for (final String val: vals) {
+      sb.append(delim).append(val);
+      delim = ",";
+    }
+
+    sb.append('\n');
+  }
+
+  private static List<Element> children(final Element el) {
+    final List<Element> res = new ArrayList<>();
+
+    for (Node n = el.getFirstChild(); n != null; n = n.getNextSibling()) {
+      if (n instanceof Element) {
+        res.add((Element)n);
+      }
+    }
+
+    return res;
+  }
+
+  private static String name(final Element el) {
+    if (el.getLocalName() != null) {
+      return el.getLocalName();
+    }
+
+    return el.getNodeName();
+  }
+}
@@ -0,0 +1,180 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.common;
+
+import net.fortuna.ical4j.model.component.VTimeZone;
+import net.fortuna.ical4j.model.property.EquivalentTzId;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/** Calendars spliced for an alias must be exactly what we'd get by
+ * rendering the alias.
+ *
+ * @author douglm
+ */
+public class CalendarStoreTest {
+  private static final long lastModified = 1388534400000L;
+
+  @Test
+  public void aliasIsSpliced() throws Throwable {
+    final CalendarStore cs = new CalendarStore();
+    final VTimeZone vtz = TestZones.vtz(TestZones.newYork);
+    final VTimeZone avtz = alias(vtz, "US/Eastern", "America/New_York");
+
+    put(cs, "America/New_York", vtz);
+    put(cs, "US/Eastern", avtz);
+
+    assertEquals(1, cs.bodyCount());
+    assertEquals(2, cs.size());
+    assertEquals(CalFormat.values().length, cs.splicedCount());
+
+    for (final CalFormat format: CalFormat.values()) {
+      final CachedContent zone = cs.get("America/New_York", format);
+      final CachedContent cc = cs.get("US/Eastern", format);
+
+      assertNull(zone.getSpliceBase());
+      assertSame(zone, cc.getSpliceBase());
+
+      same(CalRenderer.render(format, avtz, lastModified), cc);
+    }
+  }
+
+  @Test
+  public void sameBodyOtherTzid() throws Throwable {
+    final CalendarStore cs = new CalendarStore();
+    final VTimeZone vtz = TestZones.vtz(TestZones.newYork);
+    final VTimeZone other = alias(vtz, "America/Detroit");
+
+    put(cs, "America/New_York", vtz);
+    put(cs, "America/Detroit", other);
+
+    assertEquals(1, cs.bodyCount());
+
+    for (final CalFormat format: CalFormat.values()) {
+      same(CalRenderer.render(format, other, lastModified),
+           cs.get("America/Detroit", format));
+    }
+  }
+
+  @Test
+  public void severalEquivalents() throws Throwable {
+    final CalendarStore cs = new CalendarStore();
+    final VTimeZone vtz = TestZones.vtz(TestZones.london);
+    final VTimeZone avtz = alias(vtz, "GB", "Europe/London",
+                                 "Europe/Jersey", "Europe/Guernsey");
+
+    put(cs, "Europe/London", vtz);
+    put(cs, "GB", avtz);
+
+    for (final CalFormat format: CalFormat.values()) {
+      same(CalRenderer.render(format, avtz, lastModified),
+           cs.get("GB", format));
+    }
+  }
+
+  @Test
+  public void otherBodiesAreRendered() throws Throwable {
+    final CalendarStore cs = new CalendarStore();
+
+    put(cs, "America/New_York", TestZones.vtz(TestZones.newYork));
+    put(cs, "Europe/London", TestZones.vtz(TestZones.london));
+
+    assertEquals(2, cs.bodyCount());
+    assertEquals(0, cs.splicedCount());
+    assertTrue(cs.contains("Europe/London"));
+    assertFalse(cs.contains("Europe/Paris"));
+    assertNull(cs.get("Europe/Paris", CalFormat.ical));
+  }
+
+  /* ====================================================================
+   *                   private methods
+   * ==================================================================== */
+
+  private static void put(final CalendarStore cs,
+                          final String name,
+                          final VTimeZone vtz) throws Throwable {
+    cs.put(name, vtz, vtz.toString(), lastModified);
+  }
+
+  /* As AbstractCachedData.addAlias */
+  private static VTimeZone alias(final VTimeZone vtz,
+                                 final String alias,
+                                 final String... tzids) throws Throwable {
+    final VTimeZone avtz = (VTimeZone)vtz.copy();
+
+    avtz.getTimeZoneId().setValue(alias);
+
+    for (final String tzid: tzids) {
+      avtz.getProperties().add(new EquivalentTzId(tzid));
+    }
+
+    return avtz;
+  }
+
+  private static void same(final CachedContent expected,
+                           final CachedContent cc) throws Throwable {
+    final byte[] content = expected.getContent();
+
+    assertEquals(expected.getContentType(), cc.getContentType());
+    assertEquals(expected.getEtag(), cc.getEtag());
+    assertEquals(lastModified, cc.getLastModified());
+    assertEquals(content.length, cc.getContentLength());
+    assertEquals(content.length, cc.getLength(null));
+    assertArrayEquals(content, cc.getContent());
+
+    /* Including the compressed variants */
+    for (final String coding: new String[]{null, "gzip", "deflate"}) {
+      assertEquals(expected.hasVariant(coding), cc.hasVariant(coding));
+
+      if (!expected.hasVariant(coding)) {
+        continue;
+      }
+
+      final ByteArrayOutputStream exp = new ByteArrayOutputStream();
+      final ByteArrayOutputStream got = new ByteArrayOutputStream();
+
+      expected.writeTo(exp, coding);
+      cc.writeTo(got, coding);
+
+      assertEquals(exp.size(), cc.getLength(coding));
+      assertArrayEquals(exp.toByteArray(), got.toByteArray());
+    }
+
+    /* The component as a bulk fetch copies it */
+    assertEquals(expected.getFragmentStart(), cc.getFragmentStart());
+    assertEquals(expected.getFragmentEnd(), cc.getFragmentEnd());
+
+    final int len = cc.getFragmentEnd() - cc.getFragmentStart();
+    final byte[] exp = new byte[len];
+    final byte[] got = new byte[len];
+
+    expected.copyContent(expected.getFragmentStart(), exp, 0, len);
+    cc.copyContent(cc.getFragmentStart(), got, 0, len);
+    assertArrayEquals(exp, got);
+  }
+}
@@ -0,0 +1,150 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.common;
+
+import org.bedework.util.timezones.model.LocalNameType;
+import org.bedework.util.timezones.model.TimezoneType;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author douglm
+ */
+public class FindIndexTest {
+  private FindIndex index;
+
+  @Before
+  public void setUp() {
+    final List<TimezoneType> tzs = new ArrayList<>();
+
+    tzs.add(zone("Europe/London", "London Time", "GB"));
+    tzs.add(zone("America/New_York", "Eastern Time", "US/Eastern"));
+    tzs.add(zone("America/North_Dakota/New_Salem", null));
+    tzs.add(zone("Pacific/Auckland", "New Zealand Time", "NZ"));
+    tzs.add(zone("America/St_Johns", null, "Canada/Newfoundland"));
+    tzs.add(zone("Asia/Kolkata", null, "Asia/Calcutta"));
+
+    index = new FindIndex(tzs);
+  }
+
+  @Test
+  public void size() {
+    assertEquals(14, index.size());
+  }
+
+  @Test
+  public void exact() {
+    assertEquals(ids("Europe/London"), index.findIds("GB"));
+    assertEquals(ids("Asia/Kolkata"), index.findIds("asia/calcutta"));
+    assertEquals(ids("America/New_York"), index.findIds("America/New_York"));
+  }
+
+  @Test
+  public void spacesAndCase() {
+    assertEquals(ids("America/New_York"), index.findIds("NEW YORK"));
+    assertEquals(ids("America/New_York"), index.findIds(" new_york "));
+  }
+
+  @Test
+  public void prefixBeforePartPrefix() {
+    /* A local name prefix, then tzid part prefixes in tzid order, then
+       an alias part prefix */
+    final List<String> expected = ids("Pacific/Auckland",
+                                      "America/New_York",
+                                      "America/North_Dakota/New_Salem",
+                                      "America/St_Johns");
+
+    assertEquals(expected, index.findIds("new"));
+
+    /* Too short for the trigrams - every name is checked */
+    assertEquals(expected, index.findIds("ne"));
+  }
+
+  @Test
+  public void bestMatchForEachZone() {
+    /* The local name prefix beats the alias part prefix */
+    assertEquals(ids("America/New_York"), index.findIds("eastern"));
+  }
+
+  @Test
+  public void substrings() {
+    /* tzid before alias */
+    assertEquals(ids("Pacific/Auckland", "America/St_Johns"),
+                 index.findIds("land"));
+
+    assertEquals(ids("Europe/London"), index.findIds("ondon"));
+  }
+
+  @Test
+  public void noMatch() {
+    assertTrue(index.findIds("xyz").isEmpty());
+    assertTrue(index.findIds("new yorkshire").isEmpty());
+    assertTrue(index.findIds("").isEmpty());
+    assertTrue(index.findIds(null).isEmpty());
+  }
+
+  @Test
+  public void zonesReturned() {
+    final List<TimezoneType> tzs = index.find("london");
+
+    assertEquals(1, tzs.size());
+    assertEquals("Europe/London", tzs.get(0).getTzid());
+    assertEquals("GB", tzs.get(0).getAliases().get(0));
+  }
+
+  /* ====================================================================
+   *                   private methods
+   * ==================================================================== */
+
+  private static TimezoneType zone(final String tzid,
+                                   final String localName,
+                                   final String... aliases) {
+    final TimezoneType tz = new TimezoneType();
+
+    tz.setTzid(tzid);
+
+    if (aliases.length > 0) {
+      tz.setAliases(new ArrayList<>(Arrays.asList(aliases)));
+    }
+
+    if (localName != null) {
+      final LocalNameType ln = new LocalNameType();
+
+      ln.setLang("en");
+      ln.setValue(localName);
+
+      tz.setLocalNames(new ArrayList<LocalNameType>());
+      tz.getLocalNames().add(ln);
+    }
+
+    return tz;
+  }
+
+  private static List<String> ids(final String... tzids) {
+    return Arrays.asList(tzids);
+  }
+}
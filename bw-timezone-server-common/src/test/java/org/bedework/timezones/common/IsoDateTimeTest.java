@@ -0,0 +1,145 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.common;
+
+import org.junit.Test;
+
+import static org.bedework.timezones.common.IsoDateTime.invalid;
+import static org.bedework.timezones.common.IsoDateTime.isAbsolute;
+import static org.bedework.timezones.common.IsoDateTime.parse;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author douglm
+ */
+public class IsoDateTimeTest {
+  /* 2024-03-10T07:00:00Z */
+  private static final long t = 1710054000L;
+
+  @Test
+  public void basic() {
+    assertEquals(t, parse("20240310T070000Z"));
+    assertEquals(t, parse("20240310T070000"));
+    assertEquals(t, parse("20240310T020000-0500"));
+    assertEquals(t, parse("20240310T120000+0500"));
+    assertEquals(t, parse("20240310T073000+0030"));
+  }
+
+  @Test
+  public void extended() {
+    assertEquals(t, parse("2024-03-10T07:00:00Z"));
+    assertEquals(t, parse("2024-03-10T07:00:00"));
+    assertEquals(t, parse("2024-03-10T02:00:00-05:00"));
+    assertEquals(t, parse("2024-03-10T02:00:00-0500"));
+  }
+
+  @Test
+  public void fractions() {
+    assertEquals(t, parse("2024-03-10T07:00:00.999Z"));
+    assertEquals(t, parse("20240310T070000,5Z"));
+    assertEquals(invalid, parse("2024-03-10T07:00:00.Z"));
+  }
+
+  @Test
+  public void epoch() {
+    assertEquals(t, parse("1710054000"));
+    assertEquals(t, parse("1710054000000"));
+    assertEquals(t, parse("1710054000999"));
+    assertEquals(0, parse("0"));
+    assertEquals(-1, parse("-1"));
+    assertEquals(-1000, parse("-1000"));
+    assertEquals(-1, parse("-000000000001"));
+    assertEquals(-2, parse("-000000001500"));
+  }
+
+  @Test
+  public void eightDigitsIsNotEpoch() {
+    assertEquals(invalid, parse("20240310"));
+    assertEquals(invalid, parse("12345678"));
+    assertEquals(1234567, parse("1234567"));
+    assertEquals(123456789, parse("123456789"));
+  }
+
+  @Test
+  public void yearRange() {
+    assertEquals(TransitionTable.parseBasic("00000102T000000"),
+                 parse("00000102T000000Z"));
+    assertEquals(TransitionTable.parseBasic("99991230T235959"),
+                 parse("9999-12-30T23:59:59Z"));
+
+    assertEquals(invalid, parse("00000101T235959Z"));
+    assertEquals(invalid, parse("99991231T000000Z"));
+    assertEquals(invalid, parse("99991230T235959-0100"));
+    assertEquals(invalid, parse("00000102T000000+0100"));
+
+    /* Seconds before 0000 and millis after 9999 */
+    assertEquals(invalid, parse("-99999999999"));
+    assertEquals(invalid, parse("253402214400000"));
+    assertEquals(invalid, parse("999999999999999999"));
+    assertEquals(invalid, parse("-999999999999999999"));
+
+    /* Just inside */
+    assertEquals(253402214399L, parse("253402214399000"));
+    assertEquals(-62167132800L, parse("-62167132800"));
+  }
+
+  @Test
+  public void invalidValues() {
+    assertEquals(invalid, parse(null));
+    assertEquals(invalid, parse(""));
+    assertEquals(invalid, parse("-"));
+    assertEquals(invalid, parse("2024-03-10"));
+    assertEquals(invalid, parse("20240310T0700"));
+    assertEquals(invalid, parse("20241310T070000Z"));
+    assertEquals(invalid, parse("20240230T070000Z"));
+    assertEquals(invalid, parse("20230229T070000Z"));
+    assertEquals(invalid, parse("20240310T240000Z"));
+    assertEquals(invalid, parse("20240310T076000Z"));
+    assertEquals(invalid, parse("20240310T070060Z"));
+    assertEquals(invalid, parse("20240310T070000ZZ"));
+    assertEquals(invalid, parse("20240310T070000X"));
+    assertEquals(invalid, parse("20240310T070000+1900"));
+    assertEquals(invalid, parse("20240310T070000+05"));
+    assertEquals(invalid, parse("2024-03-10T07:00:00+05:00:00"));
+    assertEquals(invalid, parse("2024-03-10T0700:00Z"));
+    assertEquals(invalid, parse("1234567890123456789"));
+    assertEquals(invalid, parse("12a4"));
+  }
+
+  @Test
+  public void leapDays() {
+    assertEquals(TransitionTable.parseBasic("20240229T000000"),
+                 parse("20240229T000000"));
+    assertEquals(TransitionTable.parseBasic("20000229T000000"),
+                 parse("20000229T000000"));
+    assertEquals(invalid, parse("19000229T000000"));
+  }
+
+  @Test
+  public void absolute() {
+    assertTrue(isAbsolute("20240310T070000Z"));
+    assertTrue(isAbsolute("2024-03-10T02:00:00-05:00"));
+    assertTrue(isAbsolute("20240310T120000+0500"));
+    assertTrue(isAbsolute("1710054000"));
+    assertFalse(isAbsolute("20240310T070000"));
+    assertFalse(isAbsolute("2024-03-10T07:00:00"));
+  }
+}
@@ -0,0 +1,142 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.common;
+
+import org.bedework.util.timezones.model.ObservanceType;
+
+import net.fortuna.ical4j.model.TimeZone;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/** Check the native expansion against the ical4j expansion it
+ * replaces.
+ *
+ * @author douglm
+ */
+public class ObservanceExpanderTest {
+  @Test
+  public void sameAsIcal4jOverCanonicalRange() throws Exception {
+    for (final String zone: TestZones.nativeZones) {
+      compare(zone, ZoneOnsets.canonicalStart, ZoneOnsets.canonicalEnd);
+    }
+  }
+
+  @Test
+  public void sameAsIcal4jOverShortRanges() throws Exception {
+    /* Edges away from any onset in the fixtures */
+    final String[][] ranges = {
+            {"20070101T000000", "20080101T000000"},
+            {"19700115T000000", "19900115T000000"},
+            {"20240601T000000", "20250601T000000"},
+    };
+
+    for (final String zone: TestZones.nativeZones) {
+      for (final String[] r: ranges) {
+        compare(zone, TestZones.secs(r[0]), TestZones.secs(r[1]));
+      }
+    }
+  }
+
+  @Test
+  public void unhandledRulesReturnNull() throws Exception {
+    assertNull(ObservanceExpander.expand(
+            TestZones.vtz(TestZones.everyMonth),
+            ZoneOnsets.canonicalStart, ZoneOnsets.canonicalEnd));
+  }
+
+  @Test
+  public void fallbackMatchesIcal4j() throws Exception {
+    final TimeZone tz = TestZones.tz(TestZones.everyMonth);
+    final ZoneOnsets zo = ZoneOnsets.expand(tz,
+                                            ZoneOnsets.canonicalStart,
+                                            ZoneOnsets.canonicalEnd);
+    final ZoneOnsets ical = ZoneOnsets.expandIcal(tz,
+                                                  ZoneOnsets.canonicalStart,
+                                                  ZoneOnsets.canonicalEnd);
+
+    assertEquals(ical.size(), zo.size());
+  }
+
+  @Test
+  public void yearlyByDayNeedsByMonth() {
+    assertNull(ObservanceExpander.parseRule("FREQ=YEARLY;BYDAY=SU", 0));
+    assertNull(ObservanceExpander.parseRule("FREQ=YEARLY;BYDAY=-1SU", 0));
+    assertNull(ObservanceExpander.parseRule("FREQ=YEARLY;BYDAY=1SU,3SU",
+                                            0));
+  }
+
+  @Test
+  public void yearlyByMonthDayNeedsByMonth() {
+    assertNull(ObservanceExpander.parseRule("FREQ=YEARLY;BYMONTHDAY=22",
+                                            0));
+    assertNull(ObservanceExpander.parseRule(
+            "FREQ=YEARLY;BYDAY=FR;BYMONTHDAY=23,24,25,26,27,28,29", 0));
+  }
+
+  @Test
+  public void handledRules() {
+    assertNotNull(ObservanceExpander.parseRule("FREQ=YEARLY", 0));
+    assertNotNull(ObservanceExpander.parseRule(
+            "FREQ=YEARLY;BYMONTH=3;BYDAY=-1SU", 0));
+    assertNotNull(ObservanceExpander.parseRule(
+            "FREQ=YEARLY;BYMONTH=3;BYMONTHDAY=22", 0));
+    assertNotNull(ObservanceExpander.parseRule(
+            "FREQ=YEARLY;BYMONTH=10;BYDAY=-1SU;UNTIL=20061029T060000Z",
+            -14400));
+  }
+
+  @Test
+  public void otherFrequenciesNotHandled() {
+    assertNull(ObservanceExpander.parseRule("FREQ=MONTHLY;BYDAY=1SU", 0));
+    assertNull(ObservanceExpander.parseRule(
+            "FREQ=YEARLY;BYMONTH=3;BYWEEKNO=1", 0));
+  }
+
+  private static void compare(final String zone,
+                              final long start,
+                              final long end) throws Exception {
+    final TimeZone tz = TestZones.tz(zone);
+    final String tzid = tz.getID();
+
+    final ZoneOnsets nat = ObservanceExpander.expand(tz.getVTimeZone(),
+                                                     start, end);
+    assertNotNull(tzid + " not handled natively", nat);
+
+    final ZoneOnsets ical = ZoneOnsets.expandIcal(tz, start, end);
+
+    assertEquals(tzid + " onsets", ical.size(), nat.size());
+
+    for (int i = 0; i < ical.size(); i++) {
+      final String where = tzid + " onset " + i;
+      final ObservanceType a = nat.getObservance(i);
+      final ObservanceType b = ical.getObservance(i);
+
+      assertEquals(where, ical.getOnset(i), nat.getOnset(i));
+      assertEquals(where, b.getName(), a.getName());
+      assertEquals(where, b.getOnset(), a.getOnset());
+      assertEquals(where, (int)b.getUtcOffsetFrom(),
+                   (int)a.getUtcOffsetFrom());
+      assertEquals(where, (int)b.getUtcOffsetTo(),
+                   (int)a.getUtcOffsetTo());
+    }
+  }
+}
@@ -0,0 +1,319 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.common;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author douglm
+ */
+public class SnapshotFileTest {
+  private static final String tzid = "America/New_York";
+
+  private static final String alias = "US/Eastern";
+
+  private File file;
+
+  private CachedContent names;
+  private CachedContent list;
+  private CachedContent ical;
+
+  private TransitionTable tt;
+
+  @Before
+  public void setUp() throws Throwable {
+    file = File.createTempFile("snapshot", ".dat");
+
+    names = new CachedContent("application/json", "[\"" + tzid + "\"]",
+                              1000L);
+    list = new CachedContent("application/json", big("list"), 2000L);
+    ical = new CachedContent("text/calendar; charset=UTF-8",
+                             TestZones.newYork + big("X-PAD:"), 3000L);
+
+    tt = TransitionTable.compile(TestZones.vtz(TestZones.newYork),
+                                 TestZones.secs("20240101T000000"));
+  }
+
+  @After
+  public void tearDown() {
+    file.delete();
+    new File(file.getPath() + ".tmp").delete();
+  }
+
+  @Test
+  public void roundTrip() throws Throwable {
+    write();
+
+    final SnapshotFile sf = SnapshotFile.open(file);
+
+    assertEquals(file, sf.getFile());
+    assertEquals(file.length(), sf.getSize());
+    assertEquals("20240101T000000Z", sf.getDtstamp());
+    assertEquals(alias + "=" + tzid, sf.getAliasesStr());
+    assertEquals("fp", sf.getFingerprint());
+    assertEquals("prodid", sf.getProdid());
+    assertNull(sf.getSource());
+
+    assertEquals(2, sf.size());
+    assertTrue(sf.contains(tzid));
+    assertTrue(sf.contains(alias));
+    assertFalse(sf.contains("Europe/London"));
+    assertEquals(Arrays.asList(tzid), sf.getZoneNames());
+
+    assertEquals(TestZones.newYork, sf.getVtz(tzid));
+    assertEquals(TestZones.newYork, sf.getVtz(alias));
+    assertEquals("{}", sf.getSummaryJson(tzid));
+    assertNull(sf.getSummaryJson(alias));
+    assertNull(sf.getVtz("Europe/London"));
+
+    same(names, sf.getNamesContent());
+    assertNull(sf.getAliasesContent());
+    same(list, sf.getListContent());
+
+    same(ical, sf.getCalendar(tzid, CalFormat.ical));
+    same(ical, sf.getCalendar(alias, CalFormat.ical));
+    assertNull(sf.getCalendar(tzid, CalFormat.jcal));
+    assertNull(sf.getCalendar("Europe/London", CalFormat.ical));
+
+    same(tt, sf.getTransitions(tzid));
+    same(tt, sf.getTransitions(alias));
+    assertNull(sf.getTransitions("Europe/London"));
+  }
+
+  @Test
+  public void splicedContent() throws Throwable {
+    final int[] ranges = {20, 36, 50, 50};
+    final byte[] x = alias.getBytes("UTF-8");
+    final byte[] y = "EQUIVALENT-TZID:X\r\n".getBytes("UTF-8");
+
+    /* The same bytes rendered in full */
+    final CachedContent full = new CachedContent(
+            ical.getContentType(),
+            new CachedContent(ical, ranges, x, y, "\"x\"", 4000L,
+                              (byte[])null, null).getContent(),
+            4000L);
+
+    final CachedContent spliced =
+            new CachedContent(ical, ranges, x, y,
+                              full.getEtag(), 4000L,
+                              full.getGzipped(), full.getDeflated());
+
+    final SnapshotFile.Writer w =
+            new SnapshotFile.Writer(file, "20240101T000000Z", "",
+                                    "fp", "prodid", null,
+                                    null, null, null);
+
+    w.add(tzid, false, TestZones.newYork, "{}",
+          new CachedContent[]{ical}, null);
+    w.add(alias, true, TestZones.newYork, null,
+          new CachedContent[]{spliced}, null);
+    w.close();
+
+    final SnapshotFile sf = SnapshotFile.open(file);
+
+    final CachedContent base = sf.getCalendar(tzid, CalFormat.ical);
+    final CachedContent cc = sf.getCalendar(alias, CalFormat.ical);
+
+    same(ical, base);
+    same(full, cc);
+    assertTrue(base == cc.getSpliceBase());
+    assertTrue(cc.isCompressed());
+  }
+
+  @Test
+  public void replacesExisting() throws Throwable {
+    write();
+
+    final SnapshotFile old = SnapshotFile.open(file);
+
+    final SnapshotFile.Writer w =
+            new SnapshotFile.Writer(file, "20250101T000000Z", "",
+                                    "fp", "prodid", "test",
+                                    null, null, null);
+    w.close();
+
+    final SnapshotFile sf = SnapshotFile.open(file);
+
+    assertEquals("20250101T000000Z", sf.getDtstamp());
+    assertEquals(0, sf.size());
+
+    /* The old mapping is unaffected */
+    assertEquals(TestZones.newYork, old.getVtz(tzid));
+  }
+
+  @Test
+  public void abortKeepsExisting() throws Throwable {
+    write();
+
+    final SnapshotFile.Writer w =
+            new SnapshotFile.Writer(file, "20250101T000000Z", "",
+                                    "fp", "prodid", "test",
+                                    null, null, null);
+    w.abort();
+
+    assertFalse(new File(file.getPath() + ".tmp").exists());
+    assertEquals("20240101T000000Z",
+                 SnapshotFile.open(file).getDtstamp());
+  }
+
+  @Test
+  public void emptyFile() throws Throwable {
+    rejected();
+  }
+
+  @Test
+  public void missingFile() throws Throwable {
+    file.delete();
+    rejected();
+  }
+
+  @Test
+  public void badMagic() throws Throwable {
+    write();
+    poke(0, 0);
+    rejected();
+  }
+
+  @Test
+  public void badVersion() throws Throwable {
+    write();
+    poke(4, 99);
+    rejected();
+  }
+
+  @Test
+  public void truncated() throws Throwable {
+    write();
+
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.setLength(raf.length() - 4);
+    }
+
+    rejected();
+  }
+
+  @Test
+  public void badIndexOffset() throws Throwable {
+    write();
+    poke((int)file.length() - 8, Integer.MAX_VALUE - 16);
+    rejected();
+  }
+
+  /* ====================================================================
+   *                   private methods
+   * ==================================================================== */
+
+  private void write() throws IOException {
+    final SnapshotFile.Writer w =
+            new SnapshotFile.Writer(file, "20240101T000000Z",
+                                    alias + "=" + tzid,
+                                    "fp", "prodid", null,
+                                    names, null, list);
+
+    final CachedContent[] cals = {ical};
+
+    w.add(tzid, false, TestZones.newYork, "{}", cals, tt);
+    w.add(alias, true, TestZones.newYork, null, cals, tt);
+    w.close();
+  }
+
+  private void poke(final int pos,
+                    final int val) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.seek(pos);
+      raf.writeInt(val);
+    }
+  }
+
+  private void rejected() {
+    try {
+      SnapshotFile.open(file);
+      fail("Opened a bad snapshot");
+    } catch (final TzException ignored) {
+    }
+  }
+
+  private static String big(final String val) {
+    final StringBuilder sb = new StringBuilder();
+
+    while (sb.length() < 2 * CachedContent.minCompressLength) {
+      sb.append(val).append(sb.length()).append('\n');
+    }
+
+    return sb.toString();
+  }
+
+  private static void same(final CachedContent expected,
+                           final CachedContent cc) throws IOException {
+    assertNotNull(cc);
+    assertEquals(expected.getContentType(), cc.getContentType());
+    assertEquals(expected.getEtag(), cc.getEtag());
+    assertEquals(expected.getLastModified(), cc.getLastModified());
+    assertEquals(expected.getFragmentStart(), cc.getFragmentStart());
+    assertEquals(expected.getFragmentEnd(), cc.getFragmentEnd());
+    assertEquals(expected.getContentLength(), cc.getContentLength());
+    assertArrayEquals(expected.getContent(), cc.getContent());
+
+    for (final String coding: new String[]{null, "gzip", "deflate"}) {
+      assertEquals(expected.hasVariant(coding), cc.hasVariant(coding));
+
+      if (!expected.hasVariant(coding)) {
+        continue;
+      }
+
+      final ByteArrayOutputStream exp = new ByteArrayOutputStream();
+      final ByteArrayOutputStream got = new ByteArrayOutputStream();
+
+      expected.writeTo(exp, coding);
+      cc.writeTo(got, coding);
+
+      assertArrayEquals(exp.toByteArray(), got.toByteArray());
+    }
+  }
+
+  private static void same(final TransitionTable expected,
+                           final TransitionTable tt) {
+    assertNotNull(tt);
+    assertEquals(expected.size(), tt.size());
+
+    for (int i = 0; i < tt.size(); i++) {
+      assertEquals(expected.getOnset(i), tt.getOnset(i));
+      assertEquals(expected.getOffset(i), tt.getOffset(i));
+      assertEquals(expected.getOffsetBefore(i), tt.getOffsetBefore(i));
+      assertEquals(expected.isDaylight(i), tt.isDaylight(i));
+      assertEquals(expected.getName(i), tt.getName(i));
+    }
+  }
+}
@@ -0,0 +1,254 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.common;
+
+import net.fortuna.ical4j.data.CalendarBuilder;
+import net.fortuna.ical4j.data.UnfoldingReader;
+import net.fortuna.ical4j.model.Calendar;
+import net.fortuna.ical4j.model.Component;
+import net.fortuna.ical4j.model.TimeZone;
+import net.fortuna.ical4j.model.component.VTimeZone;
+
+import java.io.StringReader;
+
+/** VTIMEZONE fixtures for the tests. They are cut down versions of the
+ * published data and cover the rule forms we handle natively as well
+ * as some we don't.
+ *
+ * @author douglm
+ */
+class TestZones {
+  static final String newYork =
+          "BEGIN:VTIMEZONE\n" +
+          "TZID:America/New_York\n" +
+          "BEGIN:STANDARD\n" +
+          "TZOFFSETFROM:-045602\n" +
+          "TZOFFSETTO:-0500\n" +
+          "TZNAME:EST\n" +
+          "DTSTART:18831118T120358\n" +
+          "RDATE:18831118T120358\n" +
+          "END:STANDARD\n" +
+          "BEGIN:DAYLIGHT\n" +
+          "TZOFFSETFROM:-0500\n" +
+          "TZOFFSETTO:-0400\n" +
+          "TZNAME:EDT\n" +
+          "DTSTART:19670430T020000\n" +
+          "RRULE:FREQ=YEARLY;BYMONTH=4;BYDAY=-1SU;UNTIL=19730429T070000Z\n" +
+          "END:DAYLIGHT\n" +
+          "BEGIN:STANDARD\n" +
+          "TZOFFSETFROM:-0400\n" +
+          "TZOFFSETTO:-0500\n" +
+          "TZNAME:EST\n" +
+          "DTSTART:19671029T020000\n" +
+          "RRULE:FREQ=YEARLY;BYMONTH=10;BYDAY=-1SU;UNTIL=20061029T060000Z\n" +
+          "END:STANDARD\n" +
+          "BEGIN:DAYLIGHT\n" +
+          "TZOFFSETFROM:-0500\n" +
+          "TZOFFSETTO:-0400\n" +
+          "TZNAME:EDT\n" +
+          "DTSTART:19740106T020000\n" +
+          "RDATE:19750223T020000\n" +
+          "END:DAYLIGHT\n" +
+          "BEGIN:DAYLIGHT\n" +
+          "TZOFFSETFROM:-0500\n" +
+          "TZOFFSETTO:-0400\n" +
+          "TZNAME:EDT\n" +
+          "DTSTART:19760425T020000\n" +
+          "RRULE:FREQ=YEARLY;BYMONTH=4;BYDAY=-1SU;UNTIL=19860427T070000Z\n" +
+          "END:DAYLIGHT\n" +
+          "BEGIN:DAYLIGHT\n" +
+          "TZOFFSETFROM:-0500\n" +
+          "TZOFFSETTO:-0400\n" +
+          "TZNAME:EDT\n" +
+          "DTSTART:19870405T020000\n" +
+          "RRULE:FREQ=YEARLY;BYMONTH=4;BYDAY=1SU;UNTIL=20060402T070000Z\n" +
+          "END:DAYLIGHT\n" +
+          "BEGIN:DAYLIGHT\n" +
+          "TZOFFSETFROM:-0500\n" +
+          "TZOFFSETTO:-0400\n" +
+          "TZNAME:EDT\n" +
+          "DTSTART:20070311T020000\n" +
+          "RRULE:FREQ=YEARLY;BYMONTH=3;BYDAY=2SU\n" +
+          "END:DAYLIGHT\n" +
+          "BEGIN:STANDARD\n" +
+          "TZOFFSETFROM:-0400\n" +
+          "TZOFFSETTO:-0500\n" +
+          "TZNAME:EST\n" +
+          "DTSTART:20071104T020000\n" +
+          "RRULE:FREQ=YEARLY;BYMONTH=11;BYDAY=1SU\n" +
+          "END:STANDARD\n" +
+          "END:VTIMEZONE\n";
+
+  static final String london =
+          "BEGIN:VTIMEZONE\n" +
+          "TZID:Europe/London\n" +
+          "BEGIN:STANDARD\n" +
+          "TZOFFSETFROM:-000115\n" +
+          "TZOFFSETTO:+0000\n" +
+          "TZNAME:GMT\n" +
+          "DTSTART:18471201T000000\n" +
+          "RDATE:18471201T000000\n" +
+          "END:STANDARD\n" +
+          "BEGIN:DAYLIGHT\n" +
+          "TZOFFSETFROM:+0000\n" +
+          "TZOFFSETTO:+0100\n" +
+          "TZNAME:BST\n" +
+          "DTSTART:19810329T010000\n" +
+          "RRULE:FREQ=YEARLY;BYMONTH=3;BYDAY=-1SU\n" +
+          "END:DAYLIGHT\n" +
+          "BEGIN:STANDARD\n" +
+          "TZOFFSETFROM:+0100\n" +
+          "TZOFFSETTO:+0000\n" +
+          "TZNAME:GMT\n" +
+          "DTSTART:19811025T020000\n" +
+          "RRULE:FREQ=YEARLY;BYMONTH=10;BYDAY=-1SU;UNTIL=19951022T010000Z\n" +
+          "END:STANDARD\n" +
+          "BEGIN:STANDARD\n" +
+          "TZOFFSETFROM:+0100\n" +
+          "TZOFFSETTO:+0000\n" +
+          "TZNAME:GMT\n" +
+          "DTSTART:19961027T020000\n" +
+          "RRULE:FREQ=YEARLY;BYMONTH=10;BYDAY=-1SU\n" +
+          "END:STANDARD\n" +
+          "END:VTIMEZONE\n";
+
+  /* Southern hemisphere - daylight spans the new year */
+  static final String sydney =
+          "BEGIN:VTIMEZONE\n" +
+          "TZID:Australia/Sydney\n" +
+          "BEGIN:STANDARD\n" +
+          "TZOFFSETFROM:+1100\n" +
+          "TZOFFSETTO:+1000\n" +
+          "TZNAME:AEST\n" +
+          "DTSTART:20080406T030000\n" +
+          "RRULE:FREQ=YEARLY;BYMONTH=4;BYDAY=1SU\n" +
+          "END:STANDARD\n" +
+          "BEGIN:DAYLIGHT\n" +
+          "TZOFFSETFROM:+1000\n" +
+          "TZOFFSETTO:+1100\n" +
+          "TZNAME:AEDT\n" +
+          "DTSTART:20081005T020000\n" +
+          "RRULE:FREQ=YEARLY;BYMONTH=10;BYDAY=1SU\n" +
+          "END:DAYLIGHT\n" +
+          "END:VTIMEZONE\n";
+
+  /* No rules at all */
+  static final String kolkata =
+          "BEGIN:VTIMEZONE\n" +
+          "TZID:Asia/Kolkata\n" +
+          "BEGIN:STANDARD\n" +
+          "TZOFFSETFROM:+0630\n" +
+          "TZOFFSETTO:+0530\n" +
+          "TZNAME:IST\n" +
+          "DTSTART:19451015T000000\n" +
+          "RDATE:19451015T000000\n" +
+          "END:STANDARD\n" +
+          "END:VTIMEZONE\n";
+
+  /* BYDAY with BYMONTHDAY - the friday before the last sunday */
+  static final String jerusalem =
+          "BEGIN:VTIMEZONE\n" +
+          "TZID:Asia/Jerusalem\n" +
+          "BEGIN:DAYLIGHT\n" +
+          "TZOFFSETFROM:+0200\n" +
+          "TZOFFSETTO:+0300\n" +
+          "TZNAME:IDT\n" +
+          "DTSTART:20130329T020000\n" +
+          "RRULE:FREQ=YEARLY;BYMONTH=3;BYDAY=FR;" +
+                  "BYMONTHDAY=23,24,25,26,27,28,29\n" +
+          "END:DAYLIGHT\n" +
+          "BEGIN:STANDARD\n" +
+          "TZOFFSETFROM:+0300\n" +
+          "TZOFFSETTO:+0200\n" +
+          "TZNAME:IST\n" +
+          "DTSTART:20131027T020000\n" +
+          "RRULE:FREQ=YEARLY;BYMONTH=10;BYDAY=-1SU\n" +
+          "END:STANDARD\n" +
+          "END:VTIMEZONE\n";
+
+  /* BYMONTHDAY, COUNT and INTERVAL */
+  static final String monthDay =
+          "BEGIN:VTIMEZONE\n" +
+          "TZID:Test/MonthDay\n" +
+          "BEGIN:DAYLIGHT\n" +
+          "TZOFFSETFROM:+0330\n" +
+          "TZOFFSETTO:+0430\n" +
+          "TZNAME:TDT\n" +
+          "DTSTART:20000322T000000\n" +
+          "RRULE:FREQ=YEARLY;INTERVAL=2;COUNT=8;BYMONTH=3;BYMONTHDAY=22\n" +
+          "END:DAYLIGHT\n" +
+          "BEGIN:STANDARD\n" +
+          "TZOFFSETFROM:+0430\n" +
+          "TZOFFSETTO:+0330\n" +
+          "TZNAME:TST\n" +
+          "DTSTART:20000922T000000\n" +
+          "RRULE:FREQ=YEARLY;INTERVAL=2;COUNT=8;BYMONTH=9;BYMONTHDAY=22\n" +
+          "END:STANDARD\n" +
+          "END:VTIMEZONE\n";
+
+  /* A yearly BYDAY without BYMONTH is within the whole year - not
+   * handled natively */
+  static final String everyMonth =
+          "BEGIN:VTIMEZONE\n" +
+          "TZID:Test/EveryMonth\n" +
+          "BEGIN:DAYLIGHT\n" +
+          "TZOFFSETFROM:+0000\n" +
+          "TZOFFSETTO:+0100\n" +
+          "TZNAME:TDT\n" +
+          "DTSTART:20000102T010000\n" +
+          "RRULE:FREQ=YEARLY;BYDAY=1SU;UNTIL=20021231T000000Z\n" +
+          "END:DAYLIGHT\n" +
+          "BEGIN:STANDARD\n" +
+          "TZOFFSETFROM:+0100\n" +
+          "TZOFFSETTO:+0000\n" +
+          "TZNAME:TST\n" +
+          "DTSTART:20000116T010000\n" +
+          "RRULE:FREQ=YEARLY;BYDAY=3SU;UNTIL=20021231T000000Z\n" +
+          "END:STANDARD\n" +
+          "END:VTIMEZONE\n";
+
+  /** Zones ObservanceExpander handles */
+  static final String[] nativeZones = {
+          newYork, london, sydney, kolkata, jerusalem, monthDay
+  };
+
+  private TestZones() {
+  }
+
+  static VTimeZone vtz(final String val) throws Exception {
+    final Calendar cal = new CalendarBuilder().build(
+            new UnfoldingReader(new StringReader(
+                    "BEGIN:VCALENDAR\n" +
+                    "VERSION:2.0\n" +
+                    "PRODID:-//bedework.org//Test//EN\n" +
+                    val +
+                    "END:VCALENDAR\n"), true));
+
+    return (VTimeZone)cal.getComponents().getComponent(
+            Component.VTIMEZONE);
+  }
+
+  static TimeZone tz(final String val) throws Exception {
+    return new TimeZone(vtz(val));
+  }
+
+  static long secs(final String basic) {
+    return TransitionTable.parseBasic(basic);
+  }
+}
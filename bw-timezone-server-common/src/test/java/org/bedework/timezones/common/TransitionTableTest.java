@@ -0,0 +1,246 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.common;
+
+import org.junit.Test;
+
+import static org.bedework.timezones.common.TestZones.secs;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author douglm
+ */
+public class TransitionTableTest {
+  /* ====================================================================
+   *                   Conversions
+   * ==================================================================== */
+
+  /* Local times resolve with the offset in effect at the local time
+   * less the standard offset - as SimpleDateFormat does with the ical4j
+   * TimeZone. A time in a gap moves back by the gap and a time in an
+   * overlap is the later, standard, one.
+   */
+
+  @Test
+  public void newYorkTransitions() throws Throwable {
+    final TransitionTable tt = table(TestZones.newYork);
+
+    final int i = tt.transitionAt(secs("20240310T070000"));
+    assertEquals(secs("20240310T070000"), tt.getOnset(i));
+    assertEquals(-5 * 3600, tt.getOffsetBefore(i));
+    assertEquals(-4 * 3600, tt.getOffset(i));
+    assertTrue(tt.isDaylight(i));
+    assertEquals("EDT", tt.getName(i));
+
+    assertEquals(i, tt.transitionAt(secs("20241103T055959")));
+    assertEquals(i + 1, tt.transitionAt(secs("20241103T060000")));
+    assertFalse(tt.isDaylight(i + 1));
+    assertEquals("EST", tt.getName(i + 1));
+  }
+
+  @Test
+  public void newYorkUtcToLocal() throws Throwable {
+    final TransitionTable tt = table(TestZones.newYork);
+
+    /* Gap - 02:00 to 03:00 local doesn't happen */
+    assertEquals(secs("20240310T015959"),
+                 tt.utcToLocal(secs("20240310T065959")));
+    assertEquals(secs("20240310T030000"),
+                 tt.utcToLocal(secs("20240310T070000")));
+
+    /* Overlap - 01:00 to 02:00 local happens twice */
+    assertEquals(secs("20241103T015959"),
+                 tt.utcToLocal(secs("20241103T055959")));
+    assertEquals(secs("20241103T010000"),
+                 tt.utcToLocal(secs("20241103T060000")));
+
+    /* Before the first onset */
+    assertEquals(secs("18800101T000000") - 17762,
+                 tt.utcToLocal(secs("18800101T000000")));
+  }
+
+  @Test
+  public void newYorkLocalToUtc() throws Throwable {
+    final TransitionTable tt = table(TestZones.newYork);
+
+    /* Either side of and in the gap */
+    assertEquals(secs("20240310T065959"),
+                 tt.localToUtc(secs("20240310T015959")));
+    assertEquals(secs("20240310T060000"),
+                 tt.localToUtc(secs("20240310T020000")));
+    assertEquals(secs("20240310T063000"),
+                 tt.localToUtc(secs("20240310T023000")));
+    assertEquals(secs("20240310T070000"),
+                 tt.localToUtc(secs("20240310T030000")));
+
+    /* Either side of and in the overlap */
+    assertEquals(secs("20241103T045959"),
+                 tt.localToUtc(secs("20241103T005959")));
+    assertEquals(secs("20241103T060000"),
+                 tt.localToUtc(secs("20241103T010000")));
+    assertEquals(secs("20241103T063000"),
+                 tt.localToUtc(secs("20241103T013000")));
+    assertEquals(secs("20241103T070000"),
+                 tt.localToUtc(secs("20241103T020000")));
+  }
+
+  @Test
+  public void sydneyConversions() throws Throwable {
+    final TransitionTable tt = table(TestZones.sydney);
+
+    /* Daylight ends - 02:00 to 03:00 local happens twice */
+    assertEquals(secs("20240407T025959"),
+                 tt.utcToLocal(secs("20240406T155959")));
+    assertEquals(secs("20240407T020000"),
+                 tt.utcToLocal(secs("20240406T160000")));
+    assertEquals(secs("20240406T163000"),
+                 tt.localToUtc(secs("20240407T023000")));
+
+    /* Daylight starts - 02:00 to 03:00 local doesn't happen */
+    assertEquals(secs("20241006T015959"),
+                 tt.utcToLocal(secs("20241005T155959")));
+    assertEquals(secs("20241006T030000"),
+                 tt.utcToLocal(secs("20241005T160000")));
+    assertEquals(secs("20241005T153000"),
+                 tt.localToUtc(secs("20241006T023000")));
+  }
+
+  @Test
+  public void roundTripOutsideTransitions() throws Throwable {
+    final TransitionTable tt = table(TestZones.newYork);
+
+    for (long utc = secs("20200101T000000");
+         utc < secs("20300101T000000");
+         utc += 3 * 3600 + 17) {
+      final long local = tt.utcToLocal(utc);
+      final long back = tt.localToUtc(local);
+
+      if (back != utc) {
+        /* Only the first pass of the repeated hour comes back as
+           the second */
+        assertEquals(utc + 3600, back);
+        assertFalse(tt.isDaylight(tt.transitionAt(back)) ==
+                            tt.isDaylight(tt.transitionAt(utc)));
+      }
+    }
+  }
+
+  @Test
+  public void noRules() throws Throwable {
+    final TransitionTable tt = table(TestZones.kolkata);
+
+    final long utc = secs("20240310T070000");
+
+    assertEquals(utc + 19800, tt.utcToLocal(utc));
+    assertEquals(utc, tt.localToUtc(utc + 19800));
+    assertTrue(tt.covers(utc));
+    assertFalse(tt.covers(TransitionTable.horizon));
+  }
+
+  /* ====================================================================
+   *                   Date-time values
+   * ==================================================================== */
+
+  @Test
+  public void parseAndFormat() {
+    assertEquals(0, TransitionTable.parseBasic("19700101T000000"));
+    assertEquals(0, TransitionTable.parseBasic("19700101T000000Z"));
+    assertEquals(1710054000L,
+                 TransitionTable.parseBasic("20240310T070000"));
+
+    assertEquals("19700101T000000",
+                 TransitionTable.formatBasic(0, false));
+    assertEquals("19700101T000000Z",
+                 TransitionTable.formatBasic(0, true));
+    assertEquals("2024-03-10T07:00:00Z",
+                 TransitionTable.formatExtended(1710054000L, true));
+    assertEquals("1969-12-31T23:59:59",
+                 TransitionTable.formatExtended(-1, false));
+  }
+
+  @Test
+  public void roundTrip() {
+    for (long secs = TransitionTable.parseBasic("00000101T000000");
+         secs < TransitionTable.parseBasic("99991231T235959");
+         secs += 7777777L + 13) {
+      final String basic = TransitionTable.formatBasic(secs, false);
+
+      assertEquals(basic, secs, TransitionTable.parseBasic(basic));
+    }
+  }
+
+  @Test
+  public void formatLimits() {
+    assertEquals("00000101T000000",
+                 TransitionTable.formatBasic(
+                         TransitionTable.parseBasic("00000101T000000"),
+                         false));
+    assertEquals("9999-12-31T23:59:59Z",
+                 TransitionTable.formatExtended(
+                         TransitionTable.parseBasic("99991231T235959"),
+                         true));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void formatBeforeYear0() {
+    TransitionTable.formatBasic(
+            TransitionTable.parseBasic("00000101T000000") - 1, false);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void formatAfterYear9999() {
+    TransitionTable.formatBasic(
+            TransitionTable.parseBasic("99991231T235959") + 1, false);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void formatHugeValue() {
+    TransitionTable.formatExtended(Long.MAX_VALUE / 2, true);
+  }
+
+  @Test
+  public void civilDates() {
+    assertEquals(0, TransitionTable.days(1970, 1, 1));
+    assertEquals(-1, TransitionTable.days(1969, 12, 31));
+    assertEquals(11016, TransitionTable.days(2000, 2, 29));
+
+    assertArrayEquals(new int[]{1970, 1, 1}, TransitionTable.civil(0));
+    assertArrayEquals(new int[]{1969, 12, 31}, TransitionTable.civil(-1));
+    assertArrayEquals(new int[]{2000, 2, 29},
+                      TransitionTable.civil(11016));
+
+    assertEquals(0, TransitionTable.floorDay(0));
+    assertEquals(0, TransitionTable.floorDay(86399));
+    assertEquals(-1, TransitionTable.floorDay(-1));
+    assertEquals(-1, TransitionTable.floorDay(-86400));
+    assertEquals(-2, TransitionTable.floorDay(-86401));
+  }
+
+  /* ====================================================================
+   *                   private methods
+   * ==================================================================== */
+
+  private static TransitionTable table(final String val) throws Throwable {
+    return TransitionTable.compile(TestZones.vtz(val),
+                                   secs("20240101T000000"));
+  }
+}
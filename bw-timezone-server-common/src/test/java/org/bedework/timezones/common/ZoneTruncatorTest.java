@@ -0,0 +1,260 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.common;
+
+import net.fortuna.ical4j.model.Property;
+import net.fortuna.ical4j.model.TimeZone;
+import net.fortuna.ical4j.model.component.Observance;
+import net.fortuna.ical4j.model.component.VTimeZone;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.bedework.timezones.common.TestZones.secs;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author douglm
+ */
+public class ZoneTruncatorTest {
+  /* America/New_York in 2024 */
+  private static final long dstStart = ms("20240310T070000");
+  private static final long dstEnd = ms("20241103T060000");
+
+  @Test
+  public void windowIncludesStartExcludesEnd() throws Throwable {
+    final VTimeZone vtz = TestZones.vtz(TestZones.newYork);
+
+    List<long[]> ons = new ZoneTruncator(dstStart, dstEnd).windowOnsets(vtz);
+    assertEquals(1, ons.size());
+    assertEquals(dstStart, ons.get(0)[0]);
+
+    ons = new ZoneTruncator(dstStart + 1000, dstEnd + 1000).windowOnsets(vtz);
+    assertEquals(1, ons.size());
+    assertEquals(dstEnd, ons.get(0)[0]);
+
+    ons = new ZoneTruncator(dstStart, dstEnd + 1000).windowOnsets(vtz);
+    assertEquals(2, ons.size());
+    assertEquals(-4 * 3600 * 1000, ons.get(0)[2]);
+    assertEquals(1, ons.get(0)[3]);
+    assertEquals(-5 * 3600 * 1000, ons.get(1)[2]);
+    assertEquals(0, ons.get(1)[3]);
+
+    assertTrue(new ZoneTruncator(dstStart + 1000,
+                                 dstEnd).windowOnsets(vtz).isEmpty());
+  }
+
+  @Test
+  public void startAtOnset() throws Throwable {
+    final long end = ms("20250101T000000");
+    final VTimeZone tr = new ZoneTruncator(dstStart, end).truncate(
+            TestZones.vtz(TestZones.newYork));
+
+    /* No extra observance - the onset at the start is enough */
+    assertEquals(2, tr.getObservances().size());
+    assertEquals(ruleOnsets(dstStart, dstEnd), onsets(tr));
+    assertTrue(rrules(tr).isEmpty());
+    sameOffsets(TestZones.newYork, tr, dstStart, end);
+  }
+
+  @Test
+  public void startInsideDaylight() throws Throwable {
+    final long start = ms("20240601T000000");
+    final long end = ms("20260101T000000");
+    final VTimeZone tr = new ZoneTruncator(start, end).truncate(
+            TestZones.vtz(TestZones.newYork));
+
+    final List<long[]> ons = new ZoneTruncator(ZoneTruncator.noStart,
+                                               ZoneTruncator.noEnd)
+            .windowOnsets(tr);
+
+    /* The daylight offset is fixed from the start */
+    assertEquals(start, ons.get(0)[0]);
+    assertEquals(-4 * 3600 * 1000, ons.get(0)[1]);
+    assertEquals(-4 * 3600 * 1000, ons.get(0)[2]);
+    assertEquals(1, ons.get(0)[3]);
+
+    assertEquals(ruleOnsets(start, dstEnd, ms("20250309T070000"),
+                            ms("20251102T060000")),
+                 onsets(tr));
+
+    /* The standard rule runs to its last onset in the window */
+    final List<String> rrules = rrules(tr);
+    assertEquals(1, rrules.size());
+    assertTrue(rrules.get(0), rrules.get(0).contains("UNTIL=20251102T060000Z"));
+
+    sameOffsets(TestZones.newYork, tr, start, end);
+  }
+
+  @Test
+  public void endAtOnset() throws Throwable {
+    final long start = ms("20240101T000000");
+    final VTimeZone tr = new ZoneTruncator(start, dstEnd).truncate(
+            TestZones.vtz(TestZones.newYork));
+
+    final List<long[]> ons = new ZoneTruncator(ZoneTruncator.noStart,
+                                               ZoneTruncator.noEnd)
+            .windowOnsets(tr);
+
+    assertEquals(ruleOnsets(start, dstStart), onsets(tr));
+    assertEquals(-5 * 3600 * 1000, ons.get(0)[2]);
+    assertEquals(0, ons.get(0)[3]);
+
+    sameOffsets(TestZones.newYork, tr, start, dstEnd);
+  }
+
+  @Test
+  public void rulesGetUntil() throws Throwable {
+    final long start = ms("20200101T000000");
+    final long end = ms("20250101T000000");
+    final VTimeZone tr = new ZoneTruncator(start, end).truncate(
+            TestZones.vtz(TestZones.newYork));
+
+    final List<String> rrules = rrules(tr);
+    assertEquals(2, rrules.size());
+
+    final String all = rrules.toString();
+    assertTrue(all, all.contains("UNTIL=20240310T070000Z"));
+    assertTrue(all, all.contains("UNTIL=20241103T060000Z"));
+
+    sameOffsets(TestZones.newYork, tr, start, end);
+  }
+
+  @Test
+  public void openEndKeepsRules() throws Throwable {
+    final long start = ms("20200101T000000");
+    final VTimeZone tr = new ZoneTruncator(start, ZoneTruncator.noEnd)
+            .truncate(TestZones.vtz(TestZones.newYork));
+
+    final List<String> rrules = rrules(tr);
+    assertEquals(2, rrules.size());
+
+    for (final String r: rrules) {
+      assertFalse(r, r.contains("UNTIL"));
+    }
+
+    sameOffsets(TestZones.newYork, tr, start, ms("20300101T000000"));
+  }
+
+  @Test
+  public void southernHemisphere() throws Throwable {
+    final long start = ms("20240101T000000");
+    final long end = ms("20250101T000000");
+    final VTimeZone tr = new ZoneTruncator(start, end).truncate(
+            TestZones.vtz(TestZones.sydney));
+
+    assertEquals(ruleOnsets(start, ms("20240406T160000"),
+                            ms("20241005T160000")),
+                 onsets(tr));
+
+    sameOffsets(TestZones.sydney, tr, start, end);
+  }
+
+  @Test
+  public void calendarText() throws Throwable {
+    final VTimeZone tr = new ZoneTruncator(dstStart, dstEnd)
+            .truncateCalendar(TzServerUtil.getCalHdr() +
+                                      TestZones.newYork +
+                                      TzServerUtil.getCalTlr());
+
+    assertEquals("America/New_York",
+                 tr.getProperty(Property.TZID).getValue());
+    assertEquals(ruleOnsets(dstStart), onsets(tr));
+  }
+
+  /* ====================================================================
+   *                   private methods
+   * ==================================================================== */
+
+  private static long ms(final String basic) {
+    return secs(basic) * 1000;
+  }
+
+  private static List<Long> ruleOnsets(final long... vals) {
+    final List<Long> res = new ArrayList<>();
+
+    for (final long v: vals) {
+      res.add(v);
+    }
+
+    return res;
+  }
+
+  /* UTC millis of every onset in the truncated timezone */
+  private static List<Long> onsets(final VTimeZone vtz) throws Throwable {
+    final List<Long> res = new ArrayList<>();
+
+    for (final long[] on: new ZoneTruncator(ZoneTruncator.noStart,
+                                            ZoneTruncator.noEnd)
+            .windowOnsets(vtz)) {
+      res.add(on[0]);
+    }
+
+    return res;
+  }
+
+  private static List<String> rrules(final VTimeZone vtz) {
+    final List<String> res = new ArrayList<>();
+
+    for (final Object o: vtz.getObservances()) {
+      final Property p = ((Observance)o).getProperty(Property.RRULE);
+
+      if (p != null) {
+        res.add(p.getValue());
+      }
+    }
+
+    return res;
+  }
+
+  /* Compare with the full zone every 6 hours and either side of each
+   * onset in the window */
+  private static void sameOffsets(final String zone,
+                                  final VTimeZone truncated,
+                                  final long start,
+                                  final long end) throws Throwable {
+    final TimeZone full = TestZones.tz(zone);
+    final TimeZone tz = new TimeZone(truncated);
+
+    final List<Long> times = new ArrayList<>();
+
+    for (long t = start; t < end; t += 6 * 3600 * 1000) {
+      times.add(t);
+    }
+
+    for (final long on: onsets(truncated)) {
+      times.add(on - 1000);
+      times.add(on);
+    }
+
+    times.add(end - 1000);
+
+    for (final long t: times) {
+      if ((t < start) || (t >= end)) {
+        continue;
+      }
+
+      assertEquals(String.valueOf(t), full.getOffset(t), tz.getOffset(t));
+    }
+  }
+}
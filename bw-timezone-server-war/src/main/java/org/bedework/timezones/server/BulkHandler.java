@@ -0,0 +1,220 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.server;
+
+import org.bedework.timezones.common.CachedContent;
+import org.bedework.timezones.common.CalFormat;
+import org.bedework.timezones.common.TzServerUtil;
+import org.bedework.util.timezones.model.ErrorResponseType;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/** Class called to handle a bulk get - GET action=bulk with repeated
+ * tzid parameters or POST with a list of tzids. This is not part of
+ * the timezone server specification.
+ *
+ * <p>The response is a single calendar holding all the requested
+ * VTIMEZONEs in the order given. Duplicates are ignored. As for a
+ * single get the format is chosen from the Accept header.</p>
+ *
+ * <p>A POSTed list is either a JSON array of strings (for a content
+ * type of application/json) or text with one tzid per line. A body of
+ * more than maxPostLength bytes gets a 413 whether or not it has a
+ * Content-Length.</p>
+ *
+ *   @author Mike Douglass
+ */
+public class BulkHandler extends MethodBase {
+  /** Most tzids we accept in one request */
+  public static final int maxTzids = 1000;
+
+  /** Largest POSTed list we accept */
+  public static final int maxPostLength = 64 * 1024;
+
+  protected static final ErrorResponseType tooManyTzids =
+      new ErrorResponseType("invalid-tzid",
+                            "Too many \"tzid\" values in the request.");
+
+  /**
+   * @throws javax.servlet.ServletException
+   */
+  public BulkHandler() throws ServletException {
+    super();
+  }
+
+  @Override
+  public void doMethod(final HttpServletRequest req,
+                       final HttpServletResponse resp) throws ServletException {
+    if (debug) {
+      trace("BulkHandler: doMethod");
+    }
+
+    final List<String> ids = new ArrayList<>();
+    final String[] tzids = req.getParameterValues("tzid");
+
+    if (tzids != null) {
+      for (final String tzid: tzids) {
+        addTzid(ids, tzid);
+      }
+    }
+
+    doBulk(req, resp, ids);
+  }
+
+  /** Handle a POSTed tzid list.
+   *
+   * @param req http request
+   * @param resp http response
+   * @throws ServletException
+   */
+  public void doPost(final HttpServletRequest req,
+                     final HttpServletResponse resp) throws ServletException {
+    if (debug) {
+      trace("BulkHandler: doPost");
+    }
+
+    try {
+      if (req.getContentLength() > maxPostLength) {
+        resp.setStatus(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+        return;
+      }
+
+      final List<String> ids = new ArrayList<>();
+      final String ct = req.getContentType();
+
+      /* A chunked body has no length so we count as we read */
+      final InputStream in = new LimitedInputStream(req.getInputStream(),
+                                                    maxPostLength);
+
+      if ((ct != null) && ct.toLowerCase().contains("json")) {
+        final String[] tzids = mapper.readValue(in, String[].class);
+
+        if (tzids != null) {
+          for (final String tzid: tzids) {
+            addTzid(ids, tzid);
+          }
+        }
+      } else {
+        final BufferedReader rdr = new BufferedReader(
+                new InputStreamReader(in, CachedContent.utf8));
+
+        for (;;) {
+          final String line = rdr.readLine();
+
+          if (line == null) {
+            break;
+          }
+
+          addTzid(ids, line);
+        }
+      }
+
+      doBulk(req, resp, ids);
+    } catch (final ServletException se) {
+      throw se;
+    } catch (final TooLargeException tle) {
+      resp.setStatus(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+    } catch (final JsonProcessingException jpe) {
+      errorResponse(resp,
+                    HttpServletResponse.SC_BAD_REQUEST,
+                    invalidTzid);
+    } catch (final Throwable t) {
+      throw new ServletException(t);
+    }
+  }
+
+  /* However the list arrives - surrounding space is dropped and null
+     or blank tzids are skipped. Package visible for tests */
+  static void addTzid(final List<String> ids,
+                              final String tzid) {
+    if (tzid == null) {
+      return;
+    }
+
+    final String id = tzid.trim();
+
+    if (id.length() > 0) {
+      ids.add(id);
+    }
+  }
+
+  private void doBulk(final HttpServletRequest req,
+                      final HttpServletResponse resp,
+                      final Collection<String> ids) throws ServletException {
+    try {
+      final Set<String> tzids = new LinkedHashSet<>(ids);
+
+      if (tzids.isEmpty()) {
+        errorResponse(resp,
+                      HttpServletResponse.SC_BAD_REQUEST,
+                      invalidTzid);
+        return;
+      }
+
+      if (tzids.size() > maxTzids) {
+        errorResponse(resp,
+                      HttpServletResponse.SC_BAD_REQUEST,
+                      tooManyTzids);
+        return;
+      }
+
+      final CalFormat format = acceptedCalFormat(req.getHeader("Accept"));
+      final List<CachedContent> zones = new ArrayList<>(tzids.size());
+
+      resp.addHeader("Vary", "Accept");
+
+      for (final String tzid: tzids) {
+        final CachedContent cc = util.getCalendar(tzid, format);
+
+        if (cc == null) {
+          errorResponse(resp,
+                        HttpServletResponse.SC_NOT_FOUND,
+                        missingTzid);
+          return;
+        }
+
+        zones.add(cc);
+      }
+
+      /* Check before we build anything */
+      if (notModified(req, resp, TzServerUtil.getBulkEtag(zones), 0)) {
+        return;
+      }
+
+      writeContent(req, resp, TzServerUtil.getBulkCalendar(zones, format));
+    } catch (final ServletException se) {
+      throw se;
+    } catch (final Throwable t) {
+      throw new ServletException(t);
+    }
+  }
+}
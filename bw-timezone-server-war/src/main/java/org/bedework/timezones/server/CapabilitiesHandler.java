@@ -18,6 +18,8 @@
 */
 package org.bedework.timezones.server;
 
+import org.bedework.timezones.common.CachedContent;
+import org.bedework.timezones.common.CalFormat;
 import org.bedework.timezones.common.TzConfig;
 import org.bedework.timezones.common.TzServerUtil;
 import org.bedework.util.timezones.model.CapabilitiesAcceptParameterType;
@@ -35,10 +37,25 @@ import javax.servlet.http.HttpServletResponse;
  *   @author Mike Douglass
  */
 public class CapabilitiesHandler extends MethodBase {
-  /* Define capabilities as static objects */
-  static final CapabilitiesType capabilities = new CapabilitiesType();
+  /* The rendered document and the configuration it was built from.
+     Replaced as a whole so requests never see a partly built one. */
+  private static class Rendered {
+    final String cfgKey;
+    final CachedContent content;
+
+    Rendered(final String cfgKey,
+             final CachedContent content) {
+      this.cfgKey = cfgKey;
+      this.content = content;
+    }
+  }
+
+  private static volatile Rendered rendered;
+
+  /* Build a new document - nothing here is shared between documents */
+  private static CapabilitiesType makeCapabilities(final TzConfig cfg) {
+    final CapabilitiesType capabilities = new CapabilitiesType();
 
-  static {
     capabilities.setVersion(1);
 
     addAction(capabilities, "capabilities",
@@ -72,14 +89,17 @@ public class CapabilitiesHandler extends MethodBase {
                       null,
                       "OPTIONAL, and MUST occur only once.  Specifies " +
                       "the inclusive UTC date-time value at which the returned time " +
-                      "zone data is truncated at its start."),
+                      "zone data is truncated at its start. A value of " +
+                      "1 to 4 digits is a year - start=1000 is the start " +
+                      "of the year 1000, not epoch seconds as for offset."),
               makePar("end",
                       false,
                       false,
                       null,
                       "OPTIONAL, and MUST occur only once.  Specifies " +
                       "the exclusive UTC date-time value at which the returned time " +
-                      "zone data is truncated at its end."));
+                      "zone data is truncated at its end. A value of " +
+                      "1 to 4 digits is a year as for start."));
 
     addAction(capabilities, "expand",
               "/zones{/tzid}/observances{?start,end}",
@@ -120,6 +140,66 @@ public class CapabilitiesHandler extends MethodBase {
                         "OPTIONAL, but MUST occur only once. If present, " +
                         "indicates that timezone aliases should be returned " +
                         "in the list. "));
+
+    addAction(capabilities, "bulk",
+              "/bulk{?tzid*}",
+              "This action returns the requested timezones in a single " +
+                "calendar in the order given. Duplicates are ignored. " +
+                "The list may also be POSTed. Not part of the timezone " +
+                "service specification. ",
+              makePar("tzid",
+                      true,
+                      true,
+                      null,
+                      "REQUIRED, and MAY occur more than once. Identifies " +
+                        "a timezone to return."));
+
+    addAction(capabilities, "offset",
+              "/offsets{?tzid*,instant*}",
+              "This action returns the UTC offset, daylight flag, " +
+                "abbreviation and surrounding transitions of each " +
+                "timezone at each instant. Not part of the timezone " +
+                "service specification. ",
+              makePar("tzid",
+                      true,
+                      true,
+                      null,
+                      "REQUIRED, and MAY occur more than once. Identifies " +
+                        "a timezone to query."),
+              makePar("instant",
+                      false,
+                      true,
+                      null,
+                      "OPTIONAL, and MAY occur more than once. A UTC " +
+                        "date-time or epoch seconds or millis. With one " +
+                        "tzid or one instant it applies to all of the " +
+                        "other, otherwise they are paired in order. No " +
+                        "instant means now."));
+
+    final CapabilitiesInfoType ci = new CapabilitiesInfoType();
+
+    if (!cfg.getPrimaryServer()) {
+      ci.setPrimarySource(cfg.getPrimaryUrl());
+    } else {
+      ci.setSource(cfg.getSource());
+    }
+
+    for (final CalFormat format: CalFormat.values()) {
+      ci.getFormats().add(format.getMediaType());
+    }
+
+    final CapabilitiesTruncatedType ct = new CapabilitiesTruncatedType();
+
+    /* get accepts any start/end as well as the full zone */
+    ct.setAny(true);
+    ct.setUntruncated(true);
+
+    ci.setTruncated(ct);
+
+    //ci.getContacts().add(util.get)
+    capabilities.setInfo(ci);
+
+    return capabilities;
   }
 
   private static void addAction(final CapabilitiesType capabilities,
@@ -172,37 +252,44 @@ public class CapabilitiesHandler extends MethodBase {
     }
 
     try {
-      resp.setContentType("application/json; charset=UTF-8");
-
-      final CapabilitiesInfoType ci = new CapabilitiesInfoType();
+      writeContent(req, resp, getContent());
+    } catch (final ServletException se) {
+      throw se;
+    } catch (final Throwable t) {
+      throw new ServletException(t);
+    }
+  }
 
-      final TzConfig cfg = TzServerUtil.getTzConfig();
+  /* ====================================================================
+   *                   private methods
+   * ==================================================================== */
 
-      if (!cfg.getPrimaryServer()) {
-        ci.setPrimarySource(TzServerUtil.getTzConfig().getPrimaryUrl());
-      } else {
-        ci.setSource(cfg.getSource());
-      }
+  /* The document only depends on the configuration. Rebuild it if any
+     of the values we use have changed since it was rendered. */
+  private CachedContent getContent() throws Exception {
+    final TzConfig cfg = TzServerUtil.getTzConfig();
+    final String cfgKey = cfg.getPrimaryServer() + "|" +
+            cfg.getPrimaryUrl() + "|" +
+            cfg.getSource();
 
-      ci.getFormats().add("text/calendar");
-      ci.getFormats().add("application/calendar+xml");
-      ci.getFormats().add("application/calendar+json");
+    final Rendered r = rendered;
 
-      final CapabilitiesTruncatedType ct = new CapabilitiesTruncatedType();
+    if ((r != null) && r.cfgKey.equals(cfgKey)) {
+      return r.content;
+    }
 
-      ct.setAny(false);
-      ct.setUntruncated(true);
+    if (debug) {
+      trace("CapabilitiesHandler: rendering for " + cfgKey);
+    }
 
-      ci.setTruncated(ct);
+    final CachedContent cc =
+            new CachedContent("application/json; charset=UTF-8",
+                              jsonWriter.writeValueAsBytes(
+                                      makeCapabilities(cfg)),
+                              System.currentTimeMillis());
 
-      //ci.getContacts().add(util.get)
-      capabilities.setInfo(ci);
+    rendered = new Rendered(cfgKey, cc);
 
-      writeJson(resp, capabilities);
-    } catch (final ServletException se) {
-      throw se;
-    } catch (final Throwable t) {
-      throw new ServletException(t);
-    }
+    return cc;
   }
 }
@@ -0,0 +1,386 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.server;
+
+import org.bedework.timezones.common.CachedContent;
+import org.bedework.timezones.common.IsoDateTime;
+import org.bedework.timezones.common.TransitionTable;
+import org.bedework.util.timezones.model.ErrorResponseType;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/** Class called to handle a POSTed batch of date-time conversions.
+ * This is not part of the timezone server specification.
+ *
+ * <p>Each item has a date-time, a from tzid and an optional to tzid.
+ * With no to tzid the result is UTC as for the utc action, otherwise
+ * it's the local time as for the convert action. A from tzid isn't
+ * needed for a UTC date-time. A local date-time with no from tzid
+ * fails with missing-tzid.</p>
+ *
+ * <p>For a content type of application/json the body is an array of
+ * objects with "dt", "fromtzid" and "totzid" fields. The response is
+ * an array with a {"result": ...} object or an error object for each
+ * item in order.</p>
+ *
+ * <p>Otherwise the body is text with one item per line - the values
+ * separated by white space. The response has one line per item with
+ * the result or "ERROR" followed by the error code.</p>
+ *
+ * <p>A body of more than maxPostLength bytes gets a 413 whether or not
+ * it has a Content-Length.</p>
+ *
+ * <p>Each zone is looked up once per batch and a failed item doesn't
+ * fail the batch.</p>
+ *
+ * <p>Results are in the order of the items but the response is
+ * rendered in full before it is sent. That is deliberate: it goes out
+ * through writeBody as a single write of known length, so a large
+ * batch to a slow client is held to the configured number of large
+ * writers like any other large response.</p>
+ *
+ *   @author Mike Douglass
+ */
+public class ConvertHandler extends MethodBase {
+  /** Most items we accept in one request */
+  public static final int maxItems = 10000;
+
+  /** Largest POSTed batch we accept */
+  public static final int maxPostLength = 1024 * 1024;
+
+  protected static final ErrorResponseType invalidDatetime =
+      new ErrorResponseType("invalid-datetime",
+                            "The date-time value is not a valid ISO " +
+                            "date-time.");
+
+  protected static final ErrorResponseType conversionFailed =
+      new ErrorResponseType("conversion-failed",
+                            "The date-time could not be converted.");
+
+  protected static final ErrorResponseType invalidBatch =
+      new ErrorResponseType("invalid-request",
+                            "The request body is not a valid batch.");
+
+  protected static final ErrorResponseType tooManyItems =
+      new ErrorResponseType("invalid-request",
+                            "Too many items in the request.");
+
+  /* One item of the batch */
+  private static class Item {
+    final String dt;
+    final String fromTzid;
+    final String toTzid;
+
+    String result;
+    ErrorResponseType error;
+    String errorCode;
+
+    Item(final String dt,
+         final String fromTzid,
+         final String toTzid) {
+      this.dt = dt;
+      this.fromTzid = fromTzid;
+      this.toTzid = toTzid;
+    }
+
+    void fail(final ErrorResponseType error,
+              final String errorCode) {
+      this.error = error;
+      this.errorCode = errorCode;
+    }
+  }
+
+  /* Zones looked up for this batch */
+  private static class Zones {
+    final Map<String, TransitionTable> tables = new HashMap<>();
+    final Map<String, Boolean> known = new HashMap<>();
+  }
+
+  /**
+   * @throws javax.servlet.ServletException
+   */
+  public ConvertHandler() throws ServletException {
+    super();
+  }
+
+  @Override
+  public void doMethod(final HttpServletRequest req,
+                       final HttpServletResponse resp) throws ServletException {
+    if (debug) {
+      trace("ConvertHandler: doMethod");
+    }
+
+    try {
+      if (req.getContentLength() > maxPostLength) {
+        resp.setStatus(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+        return;
+      }
+
+      final String ct = req.getContentType();
+      final boolean json = (ct != null) && ct.toLowerCase().contains("json");
+
+      /* A chunked body has no length so we count as we read */
+      final InputStream in = new LimitedInputStream(req.getInputStream(),
+                                                    maxPostLength);
+
+      final List<Item> items;
+
+      if (json) {
+        items = readJson(in);
+      } else {
+        items = readLines(in);
+      }
+
+      if (items.size() > maxItems) {
+        errorResponse(resp,
+                      HttpServletResponse.SC_BAD_REQUEST,
+                      tooManyItems);
+        return;
+      }
+
+      final Zones zones = new Zones();
+
+      for (final Item item: items) {
+        convert(item, zones);
+      }
+
+      if (json) {
+        jsonResponse(resp, items);
+      } else {
+        textResponse(resp, items);
+      }
+    } catch (final ServletException se) {
+      throw se;
+    } catch (final TooLargeException tle) {
+      resp.setStatus(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+    } catch (final JsonProcessingException jpe) {
+      errorResponse(resp,
+                    HttpServletResponse.SC_BAD_REQUEST,
+                    invalidBatch);
+    } catch (final Throwable t) {
+      throw new ServletException(t);
+    }
+  }
+
+  /* ====================================================================
+   *                   private methods
+   * ==================================================================== */
+
+  private List<Item> readJson(final InputStream in) throws Throwable {
+    final JsonNode root = mapper.readTree(in);
+    final List<Item> items = new ArrayList<>();
+
+    if ((root == null) || !root.isArray()) {
+      throw new JsonMappingException("Expected an array");
+    }
+
+    for (final JsonNode n: root) {
+      items.add(new Item(text(n, "dt"),
+                         text(n, "fromtzid"),
+                         text(n, "totzid")));
+
+      if (items.size() > maxItems) {
+        break;
+      }
+    }
+
+    return items;
+  }
+
+  private static String text(final JsonNode n,
+                             final String name) {
+    final JsonNode val = n.get(name);
+
+    if ((val == null) || val.isNull()) {
+      return null;
+    }
+
+    return val.asText();
+  }
+
+  private List<Item> readLines(final InputStream in) throws Throwable {
+    final BufferedReader rdr = new BufferedReader(
+            new InputStreamReader(in, CachedContent.utf8));
+    final List<Item> items = new ArrayList<>();
+
+    for (;;) {
+      final String line = rdr.readLine();
+
+      if (line == null) {
+        break;
+      }
+
+      final String trimmed = line.trim();
+
+      if (trimmed.length() == 0) {
+        continue;
+      }
+
+      final String[] vals = trimmed.split("\\s+");
+
+      items.add(new Item(vals[0],
+                         (vals.length > 1) ? vals[1] : null,
+                         (vals.length > 2) ? vals[2] : null));
+
+      if (items.size() > maxItems) {
+        break;
+      }
+    }
+
+    return items;
+  }
+
+  private void convert(final Item item,
+                       final Zones zones) {
+    if (item.dt == null) {
+      item.fail(invalidDatetime, "invalid-datetime");
+      return;
+    }
+
+    /* A local time needs a zone to convert from */
+    if ((item.fromTzid == null) && !IsoDateTime.isAbsolute(item.dt)) {
+      item.fail(missingTzid, "missing-tzid");
+      return;
+    }
+
+    if (!known(item.fromTzid, zones) || !known(item.toTzid, zones)) {
+      item.fail(missingTzid, "missing-tzid");
+      return;
+    }
+
+    try {
+      if (item.toTzid == null) {
+        item.result = util.getUtc(item.dt, item.fromTzid,
+                                  table(item.fromTzid, zones));
+      } else {
+        item.result = util.convertDateTime(item.dt,
+                                           item.fromTzid,
+                                           table(item.fromTzid, zones),
+                                           item.toTzid,
+                                           table(item.toTzid, zones));
+      }
+
+      if (item.result == null) {
+        item.fail(invalidDatetime, "invalid-datetime");
+      }
+    } catch (final Throwable t) {
+      if (debug) {
+        trace("Conversion of " + item.dt + " failed: " + t.getMessage());
+      }
+      item.fail(conversionFailed, "conversion-failed");
+    }
+  }
+
+  /* No tzid is allowed - for a UTC result or an instant to convert
+     from. convert has already checked the instant. */
+  private boolean known(final String tzid,
+                        final Zones zones) {
+    if (tzid == null) {
+      return true;
+    }
+
+    Boolean res = zones.known.get(tzid);
+
+    if (res == null) {
+      try {
+        res = util.isKnownTzid(tzid);
+      } catch (final Throwable t) {
+        res = false;
+      }
+      zones.known.put(tzid, res);
+    }
+
+    return res;
+  }
+
+  private TransitionTable table(final String tzid,
+                                final Zones zones) throws Throwable {
+    if (zones.tables.containsKey(tzid)) {
+      return zones.tables.get(tzid);
+    }
+
+    final TransitionTable tt = util.getTransitions(tzid);
+    zones.tables.put(tzid, tt);
+
+    return tt;
+  }
+
+  /* Rendered in full - see the class comment */
+  private void jsonResponse(final HttpServletResponse resp,
+                            final List<Item> items) throws Throwable {
+    resp.setContentType("application/json; charset=UTF-8");
+
+    final ByteArrayOutputStream bos =
+            new ByteArrayOutputStream(items.size() * 32 + 16);
+    final JsonGenerator gen = mapper.getFactory().createGenerator(bos);
+
+    gen.writeStartArray();
+
+    for (final Item item: items) {
+      if (item.error != null) {
+        jsonWriter.writeValue(gen, item.error);
+        continue;
+      }
+
+      gen.writeStartObject();
+      gen.writeStringField("result", item.result);
+      gen.writeEndObject();
+    }
+
+    gen.writeEndArray();
+    gen.close();
+
+    writeBody(resp, bos.toByteArray());
+  }
+
+  private void textResponse(final HttpServletResponse resp,
+                            final List<Item> items) throws Throwable {
+    resp.setContentType("text/plain; charset=UTF-8");
+
+    final StringBuilder sb = new StringBuilder(items.size() * 20);
+
+    for (final Item item: items) {
+      if (item.error != null) {
+        sb.append("ERROR ").append(item.errorCode);
+      } else {
+        sb.append(item.result);
+      }
+
+      sb.append('\n');
+    }
+
+    writeBody(resp, sb.toString().getBytes(CachedContent.utf8));
+  }
+}
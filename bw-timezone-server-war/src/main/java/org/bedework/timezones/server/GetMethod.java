@@ -18,11 +18,18 @@
 */
 package org.bedework.timezones.server;
 
+import org.bedework.timezones.common.CachedContent;
 import org.bedework.timezones.common.ExpandedMapEntry;
 import org.bedework.timezones.common.Stat;
 import org.bedework.timezones.common.TzServerUtil;
 
 import java.io.Writer;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
@@ -33,26 +40,23 @@ import javax.servlet.http.HttpServletResponse;
  *   @author Mike Douglass
  */
 public class GetMethod extends MethodBase {
-  private static final CapabilitiesHandler capabilities;
-  private static final ListHandler lists;
-  private static final TzidHandler tzids;
-
-  static {
-    try {
-      capabilities = new CapabilitiesHandler();
-      lists = new ListHandler();
-      tzids = new TzidHandler();
-    } catch (final ServletException e) {
-      e.printStackTrace();
-      throw new RuntimeException(e);
-    }
-  }
+  private final CapabilitiesHandler capabilities;
+  private final ListHandler lists;
+  private final TzidHandler tzids;
+  private final BulkHandler bulk;
+  private final OffsetHandler offsets;
 
   /**
    * @throws ServletException
    */
   public GetMethod() throws ServletException {
     super();
+
+    capabilities = new CapabilitiesHandler();
+    lists = new ListHandler();
+    tzids = new TzidHandler();
+    bulk = new BulkHandler();
+    offsets = new OffsetHandler();
   }
 
   private static final String tzsEl = "timezones";
@@ -73,16 +77,103 @@ public class GetMethod extends MethodBase {
 5.5.  "find" Action
    Request-URI Template:  {/service-prefix,data-prefix}/zones{?pattern}
 
+   Non-standard:
+   "bulk" Action
+   Request-URI Template:  {/service-prefix,data-prefix}/bulk{?tzid*}
+   "offset" Action
+   Request-URI Template:  {/service-prefix,data-prefix}/offsets
+       {?tzid*,instant*}
+
 */
   private static final String capabilitiesEl = "capabilities";
   private static final String zonesEl = "zones";
   private static final String observancesEl = "observances";
+  static final String bulkEl = "bulk";
+  private static final String offsetsEl = "offsets";
+
+  /* ====================================================================
+   *                   Route table - built once
+   * ==================================================================== */
+
+  /* Package visible for tests */
+  enum Route {
+    capabilities,
+    list,
+    get,
+    expand,
+    find,
+    bulk,
+    offset,
+
+    /* Path only */
+    zones,
+    oldPath,
+    oldGet,
+
+    /* Old and non-standard */
+    names,
+    stats,
+    info,
+    aliases,
+    convert,
+    utc,
+  }
+
+  /* ?action=xxx */
+  private static final Map<String, Route> actionRoutes = new HashMap<>();
+
+  /* First path element after any data prefix */
+  private static final Map<String, Route> pathRoutes = new HashMap<>();
+
+  /* First path element only - no data prefix */
+  private static final Map<String, Route> rootRoutes = new HashMap<>();
+
+  /* Old style parameters - checked in order */
+  private static final String[] oldPars = {
+          "names",
+          "stats",
+          "info",
+          "aliases",
+          "convert",
+          "utc",
+          "tzid",
+  };
+
+  private static final Route[] oldRoutes = {
+          Route.names,
+          Route.stats,
+          Route.info,
+          Route.aliases,
+          Route.convert,
+          Route.utc,
+          Route.oldGet,
+  };
+
+  static {
+    actionRoutes.put("capabilities", Route.capabilities);
+    actionRoutes.put("list", Route.list);
+    actionRoutes.put("expand", Route.expand);
+    actionRoutes.put("get", Route.get);
+    actionRoutes.put("find", Route.find);
+    actionRoutes.put(bulkEl, Route.bulk);
+    actionRoutes.put("offset", Route.offset);
+
+    rootRoutes.put(capabilitiesEl, Route.capabilities);
+    rootRoutes.put(tzsEl, Route.oldPath);
+
+    pathRoutes.put(zonesEl, Route.zones);
+    pathRoutes.put(observancesEl, Route.expand);
+    pathRoutes.put(bulkEl, Route.bulk);
+    pathRoutes.put(offsetsEl, Route.offset);
+  }
 
   @Override
   public void doMethod(final HttpServletRequest req,
                        final HttpServletResponse resp) throws ServletException {
     final ResourceUri ruri = getResourceUri(req);
     final long start = System.currentTimeMillis();
+    final long startNanos = System.nanoTime();
+    Route timed = null;
 
     if (debug) {
       trace("GetMethod: doMethod  path=" + ruri.uri);
@@ -92,57 +183,116 @@ public class GetMethod extends MethodBase {
       final String action = req.getParameter("action");
 
       if (action != null) {
-        doAction(req, resp, action);
+        timed = doAction(req, resp, action);
         return;
       }
 
-      if (doOld(req, resp)) {
-        return;
+      final Set<String> params = new HashSet<>();
+      final Enumeration<?> pnames = req.getParameterNames();
+      while (pnames.hasMoreElements()) {
+        params.add((String)pnames.nextElement());
       }
 
-      /* path based */
+      final Route route = route(ruri.uriElements, params);
 
-      if (ruri.uriElements.size() == 0) {
+      if (route == null) {
         return;
       }
 
-      final String el0 = ruri.getPathElement(0);
-      if (el0.equals(capabilitiesEl)) {
-        capabilities.doMethod(req, resp);
-        return;
+      timed = dispatch(req, resp, ruri, route);
+    } finally {
+      if (timed != null) {
+        TzServerUtil.recordLatency(timed.name(),
+                                   System.nanoTime() - startNanos);
       }
 
-      if (el0.equals(tzsEl)) {
-        // Old style
-        tzids.doTzid(resp, ruri.getElements(1));
-        return;
+      if (debug) {
+        trace("GET exit. Took " + TzServerUtil.printableTime(
+                System.currentTimeMillis() - start));
       }
+    }
+  }
 
-      final int dataPrefixElements = dataPrefixElements(ruri);
+  /** Decide how to handle a request without an action parameter.
+   *
+   * <p>Old style parameters are checked before the path as deployed
+   * clients send them to any path, e.g. /timezones?names or
+   * /zones?tzid=X. The only exceptions are bulk and offsets which
+   * take a tzid parameter of their own.</p>
+   *
+   * @param elements of the request path
+   * @param params names of the request parameters
+   * @return the route or null if nothing matches
+   */
+  static Route route(final List<String> elements,
+                     final Set<String> params) {
+    final ResourceUri ruri = new ResourceUri(null, elements);
+    final String el = ruri.getPathElement(dataPrefixElements(ruri));
 
-      final String el = ruri.getPathElement(dataPrefixElements);
+    Route route = null;
 
-      if (el == null) {
-        return;
-      }
+    if (el != null) {
+      route = pathRoutes.get(el);
+    }
 
-      if (el.equals(zonesEl)) {
-        doZones(req,resp, ruri, dataPrefixElements);
-        return;
+    if ((route == Route.bulk) || (route == Route.offset)) {
+      return route;
+    }
+
+    for (int i = 0; i < oldPars.length; i++) {
+      if (params.contains(oldPars[i])) {
+        return oldRoutes[i];
       }
+    }
+
+    if (elements.size() == 0) {
+      return null;
+    }
+
+    final Route root = rootRoutes.get(elements.get(0));
+    if (root != null) {
+      return root;
+    }
 
-      if (el.equals(observancesEl)) {
+    return route;
+  }
+
+  /* Returns the route taken */
+  private Route dispatch(final HttpServletRequest req,
+                         final HttpServletResponse resp,
+                         final ResourceUri ruri,
+                         final Route route) throws ServletException {
+    final int dataPrefixElements = dataPrefixElements(ruri);
+
+    switch (route) {
+      case capabilities:
+        capabilities.doMethod(req, resp);
+        return route;
+
+      case oldPath:
+        tzids.doTzid(req, resp, ruri.getElements(1));
+        return Route.get;
+
+      case zones:
+        return doZones(req,resp, ruri, dataPrefixElements);
+
+      case expand:
         doExpand(req, resp, ruri, dataPrefixElements);
-      }
-    } finally {
-      if (debug) {
-        trace("GET exit. Took " + TzServerUtil.printableTime(
-                System.currentTimeMillis() - start));
-      }
+        return route;
+
+      case bulk:
+        bulk.doMethod(req, resp);
+        return route;
+
+      case offset:
+        offsets.doMethod(req, resp);
+        return route;
     }
+
+    return doOld(req, resp, route);
   }
 
-  private int dataPrefixElements(@SuppressWarnings(
+  private static int dataPrefixElements(@SuppressWarnings(
           "UnusedParameters") final ResourceUri ruri) {
     // Will determine how many elements are data-prefix elements.
     return 0;
@@ -154,115 +304,120 @@ public class GetMethod extends MethodBase {
    * @param req http request
    * @param resp http response
    * @param action non-null action parameter
+   * @return the route taken or null
    * @throws ServletException
    */
-  private void doAction(final HttpServletRequest req,
-                       final HttpServletResponse resp,
-                       final String action) throws ServletException {
-    if ("capabilities".equals(action)) {
-      capabilities.doMethod(req, resp);
-      return;
-    }
+  private Route doAction(final HttpServletRequest req,
+                         final HttpServletResponse resp,
+                         final String action) throws ServletException {
+    final Route route = actionRoutes.get(action);
 
-    if ("list".equals(action)) {
-      lists.doMethod(req, resp);
-      return;
+    if (route == null) {
+      return null;
     }
 
-    if ("expand".equals(action)) {
-      doExpand(req,resp, null, 0);
-      return;
-    }
+    switch (route) {
+      case capabilities:
+        capabilities.doMethod(req, resp);
+        return route;
 
-    if ("get".equals(action)) {
-      tzids.doMethod(req, resp);
-      return;
-    }
+      case list:
+        lists.doMethod(req, resp);
+        return route;
+
+      case expand:
+        doExpand(req,resp, null, 0);
+        return route;
 
-    if ("find".equals(action)) {
-      doFind(req, resp, req.getParameter("name"));
+      case get:
+        tzids.doMethod(req, resp);
+        return route;
+
+      case find:
+        doFind(req, resp, req.getParameter("name"));
+        return route;
+
+      case bulk:
+        bulk.doMethod(req, resp);
+        return route;
+
+      case offset:
+        offsets.doMethod(req, resp);
     }
+
+    return route;
   }
 
   /**
    *
    * @param req http request
    * @param resp http response
-   * @return true if this was an old request
+   * @param route one of the old routes
+   * @return the route taken or null if this was not an old request
    * @throws ServletException
    */
-  private boolean doOld(final HttpServletRequest req,
-                        final HttpServletResponse resp) throws ServletException {
+  private Route doOld(final HttpServletRequest req,
+                      final HttpServletResponse resp,
+                      final Route route) throws ServletException {
       /* Follow all old and non-standard actions */
 
-    if (req.getParameter("names") != null) {
-      if (ifNoneMatchTest(req, resp)) {
-        return true;
-      }
-
-      doNames(resp);
-      return true;
-    }
-
-    if (req.getParameter("stats") != null) {
-      doStats(resp);
-      return true;
-    }
-
-    if (req.getParameter("info") != null) {
-      doInfo(resp);
-      return true;
-    }
-
-    if (req.getParameter("aliases") != null) {
-      if (ifNoneMatchTest(req, resp)) {
-        return true;
-      }
-
-      doAliases(resp);
-      //} else if (req.getParameter("unalias") != null) {
-      //  doUnalias(resp, req.getParameter("id"));
-      return true;
+    switch (route) {
+      case names:
+        doNames(req, resp);
+        return route;
+
+      case stats:
+        doStats(resp);
+        return route;
+
+      case info:
+        doInfo(resp);
+        return route;
+
+      case aliases:
+        doAliases(req, resp);
+        //} else if (req.getParameter("unalias") != null) {
+        //  doUnalias(resp, req.getParameter("id"));
+        return route;
+
+      case convert:
+        doConvert(resp, req.getParameter("dt"),
+                  req.getParameter("fromtzid"),
+                  req.getParameter("totzid"));
+        return route;
+
+      case utc:
+        doToUtc(resp, req.getParameter("dt"),
+                req.getParameter("fromtzid"));
+        return route;
+
+      case oldGet:
+        tzids.doTzid(req, resp, req.getParameter("tzid"));
+        return Route.get;
     }
 
-    if (req.getParameter("convert") != null) {
-      doConvert(resp, req.getParameter("dt"),
-                req.getParameter("fromtzid"),
-                req.getParameter("totzid"));
-      return true;
-    }
-
-    if (req.getParameter("utc") != null) {
-      doToUtc(resp, req.getParameter("dt"),
-              req.getParameter("fromtzid"));
-      return true;
-    }
-
-    if (req.getParameter("tzid") != null) {
-      tzids.doTzid(resp, req.getParameter("tzid"));
-      return true;
-    }
-
-    return false;
+    return null;
   }
 
-  private void doZones(final HttpServletRequest req,
-                       final HttpServletResponse resp,
-                       final ResourceUri ruri,
-                       final int dataPrefixSize) throws ServletException {
+  /* Returns the route taken */
+  private Route doZones(final HttpServletRequest req,
+                        final HttpServletResponse resp,
+                        final ResourceUri ruri,
+                        final int dataPrefixSize) throws ServletException {
     if (req.getParameter("pattern") != null) {
       doFind(req, resp, req.getParameter("pattern"));
-      return;
+      return Route.find;
     }
 
     final String tzid = ruri.getElements(dataPrefixSize + 1);
 
     if (tzid == null) {
       lists.doMethod(req, resp);
-      return;
+      return Route.list;
     }
 
-    tzids.doTzid(resp, tzid);
+    tzids.doTzid(req, resp, tzid);
+    return Route.get;
   }
 
   private void doFind(final HttpServletRequest req,
@@ -338,7 +493,9 @@ public class GetMethod extends MethodBase {
         return;
       }
 
-      resp.setHeader("ETag", tzs.getEtag());
+      if (notModified(req, resp, tzs.getEtag(), tzs.getLastModified())) {
+        return;
+      }
 
       writeJson(resp, tzs.getTzs());
     } catch (final ServletException se) {
@@ -348,10 +505,21 @@ public class GetMethod extends MethodBase {
     }
   }
 
-  private void doNames(final HttpServletResponse resp) throws ServletException {
+  private void doNames(final HttpServletRequest req,
+                       final HttpServletResponse resp) throws ServletException {
     try {
+      final CachedContent cc = util.getNamesContent();
+
+      if (cc != null) {
+        writeContent(req, resp, cc);
+        return;
+      }
+
+      if (notModified(req, resp, util.getEtag(), 0)) {
+        return;
+      }
+
       resp.setContentType("text/plain; charset=UTF-8");
-      resp.setHeader("ETag", util.getEtag());
 
       Writer wtr = resp.getWriter();
 
@@ -359,6 +527,8 @@ public class GetMethod extends MethodBase {
         wtr.write(s);
         wtr.write("\n");
       }
+    } catch (ServletException se) {
+      throw se;
     } catch (Throwable t) {
       throw new ServletException(t);
     }
@@ -388,7 +558,8 @@ public class GetMethod extends MethodBase {
                 " cellpadding=\"4\">\r\n");
 
       for (Stat s: TzServerUtil.getStats()) {
-        statLine(wtr, s.getName(), s.getValue1(), s.getValue2());
+        statLine(wtr, s.getName(), s.getValue1(), s.getValue2(),
+                 s.getUnit());
       }
 
       wtr.write("</table>\r\n");
@@ -403,14 +574,27 @@ public class GetMethod extends MethodBase {
     }
   }
 
-  private void doAliases(final HttpServletResponse resp) throws ServletException {
+  private void doAliases(final HttpServletRequest req,
+                         final HttpServletResponse resp) throws ServletException {
     try {
-      resp.setHeader("ETag", util.getEtag());
+      final CachedContent cc = util.getAliasesContent();
+
+      if (cc != null) {
+        writeContent(req, resp, cc);
+        return;
+      }
+
+      if (notModified(req, resp, util.getEtag(), 0)) {
+        return;
+      }
+
       resp.setContentType("text/plain; charset=UTF-8");
 
       Writer wtr = resp.getWriter();
 
       wtr.write(util.getAliasesStr());
+    } catch (ServletException se) {
+      throw se;
     } catch (Throwable t) {
       throw new ServletException(t);
     }
@@ -493,9 +677,11 @@ public class GetMethod extends MethodBase {
     wtr.write("</tr>\r\n");
   }
 
+  /* value2 is millis unless it has a unit */
   private void statLine(final Writer wtr,
                         final String name, final String val,
-                        final String millis) throws Throwable {
+                        final String value2,
+                        final String unit) throws Throwable {
     wtr.write("<tr>\r\n");
 
     wtr.write("  <td align=\"right\">");
@@ -507,10 +693,14 @@ public class GetMethod extends MethodBase {
     wtr.write("</td>");
 
     wtr.write("<td>");
-    if (millis == null) {
+    if (value2 == null) {
       wtr.write("&nbsp;");
+    } else if (unit != null) {
+      wtr.write(value2);
+      wtr.write(" ");
+      wtr.write(unit);
     } else {
-      String s = millis;
+      String s = value2;
       while (s.length() < 4) {
         s = "0" + s;
       }
@@ -570,25 +760,4 @@ public class GetMethod extends MethodBase {
       throw new ServletException(t);
     }
   }
-
-  /* Return true if data unchanged - status is set */
-  private boolean ifNoneMatchTest(final HttpServletRequest req,
-                                  final HttpServletResponse resp) throws ServletException {
-    try {
-      String inEtag = req.getHeader("If-None-Match");
-
-      if (inEtag == null) {
-        return false;
-      }
-
-      if (!inEtag.equals(util.getEtag())) {
-        return false;
-      }
-
-      resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
-      return true;
-    } catch (Throwable t) {
-      throw new ServletException(t);
-    }
-  }
 }
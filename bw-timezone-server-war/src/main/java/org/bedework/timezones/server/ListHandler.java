@@ -18,6 +18,8 @@
 */
 package org.bedework.timezones.server;
 
+import org.bedework.timezones.common.CachedContent;
+
 import org.apache.log4j.Logger;
 
 import javax.servlet.ServletException;
@@ -56,20 +58,53 @@ public class ListHandler extends MethodBase {
           return;
         }
 
+        if (filteredNotModified(req, resp)) {
+          return;
+        }
+
         listResponse(resp, util.getTimezones(tzids));
         return;
       }
 
-      listResponse(resp, util.getTimezones(changedsince));
+      if (changedsince == null) {
+        final CachedContent cc = util.getListContent();
 
-      if (changedsince != null) {
+        if (cc != null) {
+          writeContent(req, resp, cc);
+          return;
+        }
+      } else {
         Logger refreshLogger = Logger.getLogger("org.bedework.timezones.refresh.logger");
         refreshLogger.info("Refresh call from " + req.getRemoteHost());
       }
+
+      if (filteredNotModified(req, resp)) {
+        return;
+      }
+
+      listResponse(resp, util.getTimezones(changedsince));
     } catch (ServletException se) {
       throw se;
     } catch (Throwable t) {
       throw new ServletException(t);
     }
   }
+
+  /* A filtered list is fixed by the query and the data so for a given
+   * url it can only change when the dtstamp does. This is what lets a
+   * polling secondary get a 304 for its changedsince request.
+   */
+  private boolean filteredNotModified(final HttpServletRequest req,
+                                      final HttpServletResponse resp) throws Throwable {
+    final CachedContent cc = util.getListContent();
+    final long lastModified;
+
+    if (cc == null) {
+      lastModified = 0;
+    } else {
+      lastModified = cc.getLastModified();
+    }
+
+    return notModified(req, resp, util.getEtag(), lastModified);
+  }
 }
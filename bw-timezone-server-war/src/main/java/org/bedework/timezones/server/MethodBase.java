@@ -18,22 +18,30 @@
 */
 package org.bedework.timezones.server;
 
+import org.bedework.timezones.common.CachedContent;
+import org.bedework.timezones.common.CalFormat;
+import org.bedework.timezones.common.TzConfig;
 import org.bedework.timezones.common.TzServerUtil;
 import org.bedework.util.timezones.model.ErrorResponseType;
-import org.bedework.util.timezones.model.TimezoneListType;
 import org.bedework.util.timezones.model.TimezoneType;
 
 import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import org.apache.log4j.Logger;
 
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URLDecoder;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.StringTokenizer;
+import java.util.concurrent.Semaphore;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
@@ -76,31 +84,41 @@ public abstract class MethodBase {
                                 "The \"tzid\" query parameter is present along with the " +
                                         "\"changedsince\", or has an incorrect value.");
 
+  /* Configured once and shared by all handlers. ObjectWriter is
+   * immutable and thread-safe.
+   */
+  protected static final ObjectMapper mapper = new ObjectMapper();
+
+  protected static final ObjectWriter jsonWriter;
+
+  protected static final ObjectWriter indentedJsonWriter;
+
+  static {
+    final DateFormat df = new SimpleDateFormat("yyyy'-'MM'-'dd'T'HH':'mm':'ss'Z'");
+
+    mapper.setDateFormat(df);
+
+    mapper.setSerializationInclusion(JsonInclude.Include.NON_NULL);
+
+    jsonWriter = mapper.writer();
+    indentedJsonWriter = mapper.writer().with(SerializationFeature.INDENT_OUTPUT);
+  }
+
   protected boolean debug;
 
   protected transient Logger log;
 
-  protected ObjectMapper mapper = new ObjectMapper(); // create once, reuse
-
-  protected TzServerUtil util;
+  protected final TzServerUtil util;
 
-  /**
+  /** Handlers are created once and shared by all requests so they
+   * MUST NOT hold any per-request state.
+   *
    * @throws ServletException
    */
   public MethodBase() throws ServletException {
     this.debug = getLogger().isDebugEnabled();
 
     try {
-      if (debug) {
-        mapper.configure(SerializationFeature.INDENT_OUTPUT, true);
-      }
-
-      final DateFormat df = new SimpleDateFormat("yyyy'-'MM'-'dd'T'HH':'mm':'ss'Z'");
-
-      mapper.setDateFormat(df);
-
-      mapper.setSerializationInclusion(JsonInclude.Include.NON_NULL);
-
       util = TzServerUtil.getInstance();
     } catch (Throwable t) {
       throw new ServletException(t);
@@ -118,19 +136,32 @@ public abstract class MethodBase {
 
   public static class ResourceUri {
     public String uri;
-    public final List<String> uriElements = new ArrayList<>();
+    public final List<String> uriElements;
 
     public ResourceUri() {
       this.uri = "";
+      uriElements = new ArrayList<>();
     }
 
     public ResourceUri(final String uri) {
       this.uri = uri;
+      uriElements = new ArrayList<>();
+    }
+
+    /**
+     * @param uri - the fixed uri
+     * @param uriElements - its elements
+     */
+    public ResourceUri(final String uri,
+                       final List<String> uriElements) {
+      this.uri = uri;
+      this.uriElements = uriElements;
     }
 
     public void addPathElement(final String val) {
       uriElements.add(val);
-      uri += "/" + val;
+      uri = new StringBuilder(uri.length() + val.length() + 1).
+              append(uri).append('/').append(val).toString();
     }
 
     /**
@@ -138,7 +169,7 @@ public abstract class MethodBase {
      * @return indexed element or null for out of range
      */
     public String getPathElement(final int i) {
-      if (i > uriElements.size()) {
+      if (i >= uriElements.size()) {
         return null;
       }
       return uriElements.get(i);
@@ -155,15 +186,19 @@ public abstract class MethodBase {
         return null;
       }
 
-      String uri = "";
+      if (i == uriElements.size() - 1) {
+        return uriElements.get(i);
+      }
+
+      final StringBuilder sb = new StringBuilder();
       for (int x = i; x < uriElements.size(); x++) {
         if (x > i) {
-          uri += "/";
+          sb.append('/');
         }
-        uri += uriElements.get(x);
+        sb.append(uriElements.get(x));
       }
 
-      return uri;
+      return sb.toString();
     }
   }
 
@@ -198,7 +233,8 @@ public abstract class MethodBase {
   /** Return a path, beginning with a "/", after "." and ".." are removed.
    * If the parameter path attempts to go above the root we return null.
    *
-   * Other than the backslash thing why not use URI?
+   * <p>This is on every request so we only decode when there is
+   * something to decode and split the path in a single pass.</p>
    *
    * @param path      String path to be fixed
    * @return String   fixed path
@@ -209,91 +245,109 @@ public abstract class MethodBase {
       return new ResourceUri();
     }
 
-    String decoded;
-    try {
-      decoded = URLDecoder.decode(path, "UTF8");
-    } catch (final Throwable t) {
-      throw new ServletException("bad path: " + path);
-    }
+    String decoded = path;
 
-    if (decoded == null) {
-      return new ResourceUri();
+    if ((path.indexOf('%') >= 0) || (path.indexOf('+') >= 0)) {
+      try {
+        decoded = URLDecoder.decode(path, "UTF8");
+      } catch (final Throwable t) {
+        throw new ServletException("bad path: " + path);
+      }
+
+      if (decoded == null) {
+        return new ResourceUri();
+      }
     }
 
-    /** Make any backslashes into forward slashes.
+    /* Make any backslashes into forward slashes.
      */
     if (decoded.indexOf('\\') >= 0) {
       decoded = decoded.replace('\\', '/');
     }
 
-    /** Ensure a leading '/'
+    /* Split on '/' - empty elements (from "//" or a leading or trailing
+       "/") are dropped. Somewhere we may have /./ or /../
      */
-    if (!decoded.startsWith("/")) {
-      decoded = "/" + decoded;
-    }
 
-    /** Remove all instances of '//'.
-     */
-    while (decoded.contains("//")) {
-      decoded = decoded.replaceAll("//", "/");
-    }
-    /** Somewhere we may have /./ or /../
-     */
+    final List<String> al = new ArrayList<>();
+    final int len = decoded.length();
+    int pos = 0;
 
-    final StringTokenizer st = new StringTokenizer(decoded, "/");
+    while (pos < len) {
+      int end = decoded.indexOf('/', pos);
+      if (end < 0) {
+        end = len;
+      }
 
-    final ArrayList<String> al = new ArrayList<>();
-    while (st.hasMoreTokens()) {
-      final String s = st.nextToken();
+      if (end > pos) {
+        final String s = decoded.substring(pos, end);
 
-      if (s.equals(".")) {
-        // ignore
-        continue;
-      }
+        if (s.equals("..")) {
+          // Back up 1
+          if (al.size() == 0) {
+            // back too far
+            return new ResourceUri();
+          }
 
-      if (s.equals("..")) {
-        // Back up 1
-        if (al.size() == 0) {
-          // back too far
-          return new ResourceUri();
+          al.remove(al.size() - 1);
+        } else if (!s.equals(".")) {
+          al.add(s);
         }
-
-        al.remove(al.size() - 1);
-        continue;
       }
 
-      al.add(s);
+      pos = end + 1;
     }
 
-    final ResourceUri ruri = new ResourceUri();
-
-    /** Reconstruct */
+    /* Reconstruct */
+    final StringBuilder sb = new StringBuilder(len + 1);
     for (final String s: al) {
-      ruri.addPathElement(s);
+      sb.append('/');
+      sb.append(s);
     }
 
-    return ruri;
+    return new ResourceUri(sb.toString(), al);
   }
 
   /** ===================================================================
    *                   Output methods
    *  =================================================================== */
 
+  /** Send a partial summary list. The list is written with a
+   * streaming generator and each summary is spliced in from the json
+   * rendered when the data was loaded.
+   *
+   * @param resp http response
+   * @param tzs summaries to send
+   * @throws ServletException
+   */
   protected void listResponse(final HttpServletResponse resp,
                               final List<TimezoneType> tzs) throws ServletException {
     try {
       resp.setContentType("application/json; charset=UTF-8");
 
-      final TimezoneListType tzl = new TimezoneListType();
+      final ByteArrayOutputStream bos =
+              new ByteArrayOutputStream(tzs.size() * 256 + 64);
+      final JsonGenerator gen = mapper.getFactory().createGenerator(bos);
 
-      tzl.setDtstamp(util.getDtstamp());
+      gen.writeStartObject();
+      gen.writeStringField("dtstamp", util.getDtstamp());
+      gen.writeArrayFieldStart("timezones");
 
-      if (tzl.getTimezones() == null) {
-        tzl.setTimezones(new ArrayList<TimezoneType>());
+      for (final TimezoneType tz: tzs) {
+        final String json = util.getSummaryJson(tz.getTzid());
+
+        if (json != null) {
+          gen.writeRawValue(json);
+        } else {
+          jsonWriter.writeValue(gen, tz);
+        }
       }
-      tzl.getTimezones().addAll(tzs);
 
-      writeJson(resp, tzl);
+      gen.writeEndArray();
+      gen.writeEndObject();
+      gen.close();
+
+      writeBody(resp, bos.toByteArray());
     } catch (final ServletException se) {
       throw se;
     } catch (final Throwable t) {
@@ -316,13 +370,536 @@ public abstract class MethodBase {
     writeJson(resp, error);
   }
 
+  /* Content codings we can send */
+  protected static final int encIdentity = 0;
+  protected static final int encGzip = 1;
+  protected static final int encDeflate = 2;
+
+  /** Send pre-rendered content with a single write. If the client
+   * accepts it and we have one, a precompressed variant is sent.
+   *
+   * <p>If the client already has the current content a 304 is sent
+   * instead.</p>
+   *
+   * @param req http request
+   * @param resp http response
+   * @param cc the content
+   * @throws ServletException
+   */
+  protected void writeContent(final HttpServletRequest req,
+                              final HttpServletResponse resp,
+                              final CachedContent cc) throws ServletException {
+    try {
+      resp.setContentType(cc.getContentType());
+
+      String coding = null;
+
+      if (cc.isCompressed()) {
+        /* Response depends on the request header even if we send it
+           uncompressed. */
+        resp.addHeader("Vary", "Accept-Encoding");
+
+        final int enc = acceptedEncoding(req.getHeader("Accept-Encoding"));
+
+        if ((enc == encGzip) && cc.hasVariant("gzip")) {
+          coding = "gzip";
+        } else if ((enc != encIdentity) && cc.hasVariant("deflate")) {
+          coding = "deflate";
+        } else if ((enc != encIdentity) && cc.hasVariant("gzip")) {
+          coding = "gzip";
+        }
+      }
+
+      final String etag;
+      if (coding == null) {
+        etag = cc.getEtag();
+      } else {
+        etag = cc.getEtag(coding);
+      }
+
+      if (notModified(req, resp, etag, cc.getLastModified())) {
+        return;
+      }
+
+      if (coding != null) {
+        resp.setHeader("Content-Encoding", coding);
+      }
+
+      writeBody(resp, cc, coding);
+    } catch (final ServletException se) {
+      throw se;
+    } catch (final Throwable t) {
+      throw new ServletException(t);
+    }
+  }
+
+  /** Used when the configured size is unset */
+  protected static final int defaultLargeResponseSize = 32 * 1024;
+
+  /* Limits requests writing large responses. Replaced when the
+   * configured limit changes. */
+  private static Semaphore largeWriters;
+  private static int largeWritersLimit;
+
+  /** Write a fully rendered body with a single write. We have no async
+   * I/O in this container, so a request writing to a slow client holds
+   * its thread until the client has read most of the body. If so
+   * configured we limit how many requests can be doing that for large
+   * bodies and send a 503 to the rest. Small responses (single zones,
+   * 304s) are never held up.
+   *
+   * @param resp http response
+   * @param body encoded body
+   * @throws ServletException
+   */
+  protected void writeBody(final HttpServletResponse resp,
+                           final byte[] body) throws ServletException {
+    writeBody(resp, new CachedContent(null, body, null, 0), null);
+  }
+
+  /** Write one variant of pre-rendered content as above. Content from
+   * a mapped snapshot is written from the mapping without a heap copy.
+   *
+   * @param resp http response
+   * @param cc the content
+   * @param coding of the variant or null for identity
+   * @throws ServletException
+   */
+  protected void writeBody(final HttpServletResponse resp,
+                           final CachedContent cc,
+                           final String coding) throws ServletException {
+    try {
+      final int len = cc.getLength(coding);
+      final Semaphore sem = largeWriterLimit(len);
+
+      if (sem != null) {
+        if (!sem.tryAcquire()) {
+          TzServerUtil.largeWrite(true);
+          resp.setHeader("Retry-After", "5");
+          resp.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+          return;
+        }
+
+        TzServerUtil.largeWrite(false);
+      }
+
+      try {
+        resp.setContentLength(len);
+        cc.writeTo(resp.getOutputStream(), coding);
+      } finally {
+        if (sem != null) {
+          sem.release();
+        }
+      }
+    } catch (final Throwable t) {
+      throw new ServletException(t);
+    }
+  }
+
+  /* null for no limit on this write */
+  private static Semaphore largeWriterLimit(final int len) {
+    final TzConfig cfg = TzServerUtil.getTzConfig();
+
+    if ((cfg == null) || (cfg.getMaxLargeWriters() <= 0)) {
+      return null;
+    }
+
+    int large = cfg.getLargeResponseSize();
+    if (large <= 0) {
+      large = defaultLargeResponseSize;
+    }
+
+    if (len < large) {
+      return null;
+    }
+
+    synchronized (MethodBase.class) {
+      if ((largeWriters == null) ||
+              (largeWritersLimit != cfg.getMaxLargeWriters())) {
+        largeWritersLimit = cfg.getMaxLargeWriters();
+        largeWriters = new Semaphore(largeWritersLimit);
+      }
+
+      return largeWriters;
+    }
+  }
+
+  /** Set the validators on the response and check them against the
+   * conditional request headers. If-Modified-Since is only used when
+   * there is no If-None-Match.
+   *
+   * @param req http request
+   * @param resp http response
+   * @param etag quoted etag - may be weak - or null
+   * @param lastModified millis or 0 for unknown
+   * @return true if we sent a 304 - nothing more to do
+   */
+  protected boolean notModified(final HttpServletRequest req,
+                                final HttpServletResponse resp,
+                                final String etag,
+                                final long lastModified) {
+    if (etag != null) {
+      resp.setHeader("ETag", etag);
+    }
+
+    if (lastModified > 0) {
+      resp.setDateHeader("Last-Modified", lastModified);
+    }
+
+    final String inm = req.getHeader("If-None-Match");
+
+    if (inm != null) {
+      if ((etag == null) || !etagMatches(inm, etag)) {
+        return false;
+      }
+    } else {
+      if (lastModified <= 0) {
+        return false;
+      }
+
+      final long ims;
+      try {
+        ims = req.getDateHeader("If-Modified-Since");
+      } catch (final IllegalArgumentException iae) {
+        return false;
+      }
+
+      // Header has 1 second resolution
+      if ((ims < 0) || ((lastModified / 1000) > (ims / 1000))) {
+        return false;
+      }
+    }
+
+    resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    return true;
+  }
+
+  /** Weak comparison of an If-None-Match value with our etag. A
+   * compressed variant matches the uncompressed content as they only
+   * differ in the content coding.
+   *
+   * @param inm If-None-Match header value
+   * @param etag quoted etag - may be weak
+   * @return true for a match
+   */
+  protected static boolean etagMatches(final String inm,
+                                       final String etag) {
+    final String opaque = opaqueTag(etag);
+
+    final int len = inm.length();
+    int pos = 0;
+
+    while (pos < len) {
+      int end = inm.indexOf(',', pos);
+      if (end < 0) {
+        end = len;
+      }
+
+      final String tag = inm.substring(pos, end).trim();
+
+      if (tag.equals("*") || opaque.equals(opaqueTag(tag))) {
+        return true;
+      }
+
+      pos = end + 1;
+    }
+
+    return false;
+  }
+
+  /* Strip any weak prefix, the quotes and any content coding suffix */
+  private static String opaqueTag(final String tag) {
+    String t = tag;
+
+    if (t.startsWith("W/")) {
+      t = t.substring(2);
+    }
+
+    if ((t.length() >= 2) && (t.charAt(0) == '"') &&
+            (t.charAt(t.length() - 1) == '"')) {
+      t = t.substring(1, t.length() - 1);
+    }
+
+    if (t.endsWith("-gzip")) {
+      return t.substring(0, t.length() - 5);
+    }
+
+    if (t.endsWith("-deflate")) {
+      return t.substring(0, t.length() - 8);
+    }
+
+    return t;
+  }
+
+  /** Choose the calendar format from an Accept header value. For each
+   * format the q value of the most specific matching media range is
+   * used. Ties and anything we can't match give text/calendar.
+   *
+   * @param val header value - may be null
+   * @return format
+   */
+  protected static CalFormat acceptedCalFormat(final String val) {
+    if (val == null) {
+      return CalFormat.ical;
+    }
+
+    final CalFormat[] formats = CalFormat.values();
+    final float[] qs = new float[formats.length];
+    final int[] specificity = new int[formats.length];
+
+    for (int i = 0; i < formats.length; i++) {
+      qs[i] = -1;
+      specificity[i] = -1;
+    }
+
+    final int len = val.length();
+    int pos = 0;
+
+    while (pos < len) {
+      int end = val.indexOf(',', pos);
+      if (end < 0) {
+        end = len;
+      }
+
+      final int semi = val.indexOf(';', pos);
+      final int nameEnd;
+      float q = 1;
+
+      if ((semi >= 0) && (semi < end)) {
+        nameEnd = semi;
+
+        /* Media type parameters may precede the q value */
+        int ppos = semi;
+        while (ppos < end) {
+          int pend = val.indexOf(';', ppos + 1);
+          if ((pend < 0) || (pend > end)) {
+            pend = end;
+          }
+
+          final String par = val.substring(ppos + 1, pend).trim();
+          if (par.startsWith("q=") || par.startsWith("Q=")) {
+            q = qvalue(par);
+          }
+
+          ppos = pend;
+        }
+      } else {
+        nameEnd = end;
+      }
+
+      final String range = val.substring(pos, nameEnd).trim().toLowerCase();
+
+      for (int i = 0; i < formats.length; i++) {
+        final String mt = formats[i].getMediaType();
+        final int spec;
+
+        if (range.equals(mt)) {
+          spec = 2;
+        } else if (range.equals("*/*")) {
+          spec = 0;
+        } else if (range.endsWith("/*") &&
+                mt.startsWith(range.substring(0, range.length() - 1))) {
+          spec = 1;
+        } else {
+          continue;
+        }
+
+        if (spec > specificity[i]) {
+          specificity[i] = spec;
+          qs[i] = q;
+        }
+      }
+
+      pos = end + 1;
+    }
+
+    CalFormat res = CalFormat.ical;
+    float best = 0;
+
+    for (int i = 0; i < formats.length; i++) {
+      if (qs[i] > best) {
+        best = qs[i];
+        res = formats[i];
+      }
+    }
+
+    return res;
+  }
+
+  /** Parse an Accept-Encoding header value. We prefer gzip over
+   * deflate. A q value of 0 means not acceptable.
+   *
+   * @param val header value - may be null
+   * @return encIdentity, encGzip or encDeflate
+   */
+  protected static int acceptedEncoding(final String val) {
+    if (val == null) {
+      return encIdentity;
+    }
+
+    float gzipQ = -1;
+    float deflateQ = -1;
+    float anyQ = -1;
+
+    final int len = val.length();
+    int pos = 0;
+
+    while (pos < len) {
+      int end = val.indexOf(',', pos);
+      if (end < 0) {
+        end = len;
+      }
+
+      final int semi = val.indexOf(';', pos);
+      final int nameEnd;
+      float q = 1;
+
+      if ((semi >= 0) && (semi < end)) {
+        nameEnd = semi;
+        q = qvalue(val.substring(semi + 1, end));
+      } else {
+        nameEnd = end;
+      }
+
+      final String coding = val.substring(pos, nameEnd).trim();
+
+      if (coding.equalsIgnoreCase("gzip") ||
+              coding.equalsIgnoreCase("x-gzip")) {
+        gzipQ = q;
+      } else if (coding.equalsIgnoreCase("deflate")) {
+        deflateQ = q;
+      } else if (coding.equals("*")) {
+        anyQ = q;
+      }
+
+      pos = end + 1;
+    }
+
+    if (gzipQ < 0) {
+      gzipQ = anyQ;
+    }
+
+    if (deflateQ < 0) {
+      deflateQ = anyQ;
+    }
+
+    if ((gzipQ > 0) && (gzipQ >= deflateQ)) {
+      return encGzip;
+    }
+
+    if (deflateQ > 0) {
+      return encDeflate;
+    }
+
+    return encIdentity;
+  }
+
+  private static float qvalue(final String par) {
+    final String p = par.trim();
+
+    if (!p.startsWith("q=") && !p.startsWith("Q=")) {
+      return 1;
+    }
+
+    try {
+      return Float.parseFloat(p.substring(2).trim());
+    } catch (final NumberFormatException nfe) {
+      return 0;
+    }
+  }
+
+  /** Render to bytes first so the response is a single write of known
+   * length.
+   *
+   * @param resp http response
+   * @param val to render
+   * @throws ServletException
+   */
   protected void writeJson(final HttpServletResponse resp,
                            final Object val) throws ServletException {
+    final byte[] body;
+
     try {
-      mapper.writeValue(resp.getOutputStream(), val);
+      if (debug) {
+        body = indentedJsonWriter.writeValueAsBytes(val);
+      } else {
+        body = jsonWriter.writeValueAsBytes(val);
+      }
     } catch (Throwable t) {
       throw new ServletException(t);
     }
+
+    writeBody(resp, body);
+  }
+
+  /** ===================================================================
+   *                   Limited input
+   *  =================================================================== */
+
+  /** Thrown by LimitedInputStream once the limit is passed.
+   */
+  static class TooLargeException extends IOException {
+  }
+
+  /** Fails a read once more than the limit has been read. POSTed
+   * bodies are read through this so a body with no Content-Length
+   * (chunked) is limited as well.
+   */
+  static class LimitedInputStream extends FilterInputStream {
+    private long remaining;
+
+    LimitedInputStream(final InputStream in,
+                       final long limit) {
+      super(in);
+      remaining = limit;
+    }
+
+    @Override
+    public int read() throws IOException {
+      final int b = super.read();
+
+      if (b >= 0) {
+        count(1);
+      }
+
+      return b;
+    }
+
+    @Override
+    public int read(final byte[] b,
+                    final int off,
+                    final int len) throws IOException {
+      final int n = super.read(b, off, len);
+
+      if (n > 0) {
+        count(n);
+      }
+
+      return n;
+    }
+
+    @Override
+    public long skip(final long n) throws IOException {
+      final long res = super.skip(n);
+
+      count(res);
+
+      return res;
+    }
+
+    /* reset would undo the count */
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+
+    private void count(final long n) throws TooLargeException {
+      remaining -= n;
+
+      if (remaining < 0) {
+        throw new TooLargeException();
+      }
+    }
   }
 
   /** ===================================================================
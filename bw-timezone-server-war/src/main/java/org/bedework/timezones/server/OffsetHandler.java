@@ -0,0 +1,173 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.server;
+
+import org.bedework.timezones.common.InstantInfo;
+import org.bedework.timezones.common.IsoDateTime;
+import org.bedework.util.timezones.model.ErrorResponseType;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.ByteArrayOutputStream;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/** Class called to handle GET action=offset. This is not part of the
+ * timezone server specification.
+ *
+ * <p>For each tzid and instant we return the UTC offset, whether
+ * daylight time is in effect, the abbreviation and the previous and
+ * next transitions. Any number of tzid and instant parameters may be
+ * given. With one tzid every instant is for that zone, with one
+ * instant every zone is queried at that instant, otherwise they are
+ * paired in order. No instant means now.</p>
+ *
+ * <p>An instant is a date-time with a "Z" or an offset in basic or
+ * extended form, e.g. 20240310T070000Z or 2024-03-10T02:00:00-05:00,
+ * or epoch seconds or millis.</p>
+ *
+ *   @author Mike Douglass
+ */
+public class OffsetHandler extends MethodBase {
+  /** Most items we accept in one request */
+  public static final int maxItems = 1000;
+
+  protected static final ErrorResponseType invalidInstant =
+      new ErrorResponseType("invalid-instant",
+                            "The \"instant\" query parameter is not a " +
+                            "UTC date-time or epoch value.");
+
+  protected static final ErrorResponseType invalidPairing =
+      new ErrorResponseType("invalid-request",
+                            "There must be one \"tzid\", one \"instant\" " +
+                            "or the same number of each.");
+
+  /**
+   * @throws javax.servlet.ServletException
+   */
+  public OffsetHandler() throws ServletException {
+    super();
+  }
+
+  @Override
+  public void doMethod(final HttpServletRequest req,
+                       final HttpServletResponse resp) throws ServletException {
+    if (debug) {
+      trace("OffsetHandler: doMethod");
+    }
+
+    try {
+      final String[] tzids = req.getParameterValues("tzid");
+
+      if ((tzids == null) || (tzids.length == 0)) {
+        errorResponse(resp,
+                      HttpServletResponse.SC_BAD_REQUEST,
+                      invalidTzid);
+        return;
+      }
+
+      String[] instants = req.getParameterValues("instant");
+
+      if ((instants == null) || (instants.length == 0)) {
+        instants = new String[]{null};
+      }
+
+      final int n = Math.max(tzids.length, instants.length);
+
+      if ((tzids.length != 1) && (instants.length != 1) &&
+              (tzids.length != instants.length)) {
+        errorResponse(resp,
+                      HttpServletResponse.SC_BAD_REQUEST,
+                      invalidPairing);
+        return;
+      }
+
+      if (n > maxItems) {
+        errorResponse(resp,
+                      HttpServletResponse.SC_BAD_REQUEST,
+                      ConvertHandler.tooManyItems);
+        return;
+      }
+
+      final long now = System.currentTimeMillis() / 1000;
+
+      resp.setContentType("application/json; charset=UTF-8");
+
+      final ByteArrayOutputStream bos = new ByteArrayOutputStream(n * 256 + 64);
+      final JsonGenerator gen = mapper.getFactory().createGenerator(bos);
+
+      gen.writeStartObject();
+      gen.writeStringField("dtstamp", util.getDtstamp());
+      gen.writeArrayFieldStart("offsets");
+
+      for (int i = 0; i < n; i++) {
+        final String tzid = tzids[Math.min(i, tzids.length - 1)];
+        final String instant = instants[Math.min(i, instants.length - 1)];
+
+        final Long utc;
+        if (instant == null) {
+          utc = now;
+        } else {
+          utc = parseInstant(instant);
+        }
+
+        if (utc == null) {
+          jsonWriter.writeValue(gen, invalidInstant);
+          continue;
+        }
+
+        if (!util.isKnownTzid(tzid)) {
+          jsonWriter.writeValue(gen, missingTzid);
+          continue;
+        }
+
+        final InstantInfo info = util.getInstantInfo(tzid, utc);
+
+        jsonWriter.writeValue(gen, info);
+      }
+
+      gen.writeEndArray();
+      gen.writeEndObject();
+      gen.close();
+
+      writeBody(resp, bos.toByteArray());
+    } catch (final ServletException se) {
+      throw se;
+    } catch (final Throwable t) {
+      throw new ServletException(t);
+    }
+  }
+
+  /* ====================================================================
+   *                   private methods
+   * ==================================================================== */
+
+  /* Returns null for a bad value or a local time */
+  private static Long parseInstant(final String val) {
+    final long res = IsoDateTime.parse(val);
+
+    if ((res == IsoDateTime.invalid) || !IsoDateTime.isAbsolute(val)) {
+      return null;
+    }
+
+    return res;
+  }
+}
@@ -18,6 +18,8 @@
 */
 package org.bedework.timezones.server;
 
+import org.bedework.timezones.common.TzServerUtil;
+
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -28,14 +30,28 @@ import javax.servlet.http.HttpServletResponse;
  * <p>This method should ensure that the request is from a known ip address and
  * that some sort of key is provided.
  *
+ * <p>A POST to the bulk path (or with action=bulk) fetches a list of
+ * timezones in one request. A POST to the convert path (or with
+ * action=convert) converts a batch of date-times. Everything else gets
+ * a 400.
+ *
  *   @author Mike Douglass
  */
 public class PostMethod extends MethodBase {
+  static final String convertEl = "convert";
+
+  private final BulkHandler bulk;
+
+  private final ConvertHandler convert;
+
   /**
    * @throws ServletException
    */
   public PostMethod() throws ServletException {
     super();
+
+    bulk = new BulkHandler();
+    convert = new ConvertHandler();
   }
 
   @Override
@@ -46,7 +62,35 @@ public class PostMethod extends MethodBase {
     }
 
     try {
+      final ResourceUri ruri = getResourceUri(req);
+
+      if (GetMethod.bulkEl.equals(ruri.getPathElement(0)) ||
+              GetMethod.bulkEl.equals(req.getParameter("action"))) {
+        final long start = System.nanoTime();
+
+        try {
+          bulk.doPost(req, resp);
+        } finally {
+          TzServerUtil.recordLatency("bulk", System.nanoTime() - start);
+        }
+        return;
+      }
+
+      if (convertEl.equals(ruri.getPathElement(0)) ||
+              convertEl.equals(req.getParameter("action"))) {
+        final long start = System.nanoTime();
+
+        try {
+          convert.doMethod(req, resp);
+        } finally {
+          TzServerUtil.recordLatency("batch", System.nanoTime() - start);
+        }
+        return;
+      }
+
       resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+    } catch (ServletException se) {
+      throw se;
     } catch (Throwable t) {
       throw new ServletException(t);
     }
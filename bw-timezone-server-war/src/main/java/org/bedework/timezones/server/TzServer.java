@@ -57,6 +57,11 @@ public class TzServer extends HttpServlet
 
   protected transient Logger log;
 
+  /* Handlers are stateless and created once */
+  private OptionsMethod optionsMethod;
+  private GetMethod getMethod;
+  private PostMethod postMethod;
+
   @Override
   public void init(final ServletConfig config) throws ServletException {
     try {
@@ -65,6 +70,10 @@ public class TzServer extends HttpServlet
       debug = getLogger().isDebugEnabled();
 
       dumpContent = "true".equals(config.getInitParameter("dumpContent"));
+
+      optionsMethod = new OptionsMethod();
+      getMethod = new GetMethod();
+      postMethod = new PostMethod();
     } catch (final ServletException se) {
       throw se;
     } catch (final Throwable t) {
@@ -85,13 +94,13 @@ public class TzServer extends HttpServlet
 
       switch (methodName) {
         case "OPTIONS":
-          new OptionsMethod().doMethod(req, resp);
+          optionsMethod.doMethod(req, resp);
           break;
         case "GET":
-          new GetMethod().doMethod(req, resp);
+          getMethod.doMethod(req, resp);
           break;
         case "POST":
-          new PostMethod().doMethod(req, resp);
+          postMethod.doMethod(req, resp);
           break;
       }
     } finally {
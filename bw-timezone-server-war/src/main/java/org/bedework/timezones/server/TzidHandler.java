@@ -18,15 +18,27 @@
 */
 package org.bedework.timezones.server;
 
-import org.bedework.timezones.common.TzServerUtil;
-
-import java.io.Writer;
+import org.bedework.timezones.common.CachedContent;
+import org.bedework.timezones.common.CalFormat;
+import org.bedework.timezones.common.IsoDateTime;
+import org.bedework.timezones.common.ZoneTruncator;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 /** Class called to handle GET action=get.
+ *
+ * <p>The format is chosen from the Accept header. The full zone in
+ * each format is rendered when the data is loaded.</p>
+ *
+ * <p>If start and/or end are given the timezone is truncated to that
+ * window and rendered per request in the requested format only. They
+ * may be date-times with a "Z" or offset, epoch seconds or, as for
+ * expand, years. A value of 1 to 4 digits is always a year, so
+ * start=1000 is the start of the year 1000 - unlike the offset action
+ * where IsoDateTime takes it as epoch seconds. Use a longer value or
+ * a date-time for an epoch time near 1970.</p>
  *
  *   @author Mike Douglass
  */
@@ -45,10 +57,11 @@ public class TzidHandler extends MethodBase {
       trace("TzidHandler: doMethod");
     }
 
-    doTzid(resp, req.getParameter("tzid"));
+    doTzid(req, resp, req.getParameter("tzid"));
   }
 
-  void doTzid(final HttpServletResponse resp,
+  void doTzid(final HttpServletRequest req,
+              final HttpServletResponse resp,
               final String tzid) throws ServletException {
     if (tzid == null) {
       errorResponse(resp,
@@ -58,27 +71,68 @@ public class TzidHandler extends MethodBase {
     }
 
     try {
-      resp.setContentType("text/calendar; charset=UTF-8");
-
-      final Writer wtr = resp.getWriter();
-
-      String tz = util.getTz(tzid);
+      final String[] starts = req.getParameterValues("start");
+      final String[] ends = req.getParameterValues("end");
+
+      long start = ZoneTruncator.noStart;
+      long end = ZoneTruncator.noEnd;
+
+      if (starts != null) {
+        final Long val;
+        if (starts.length != 1) {
+          val = null;
+        } else {
+          val = parseUtc(starts[0]);
+        }
+
+        if (val == null) {
+          errorResponse(resp,
+                        HttpServletResponse.SC_BAD_REQUEST,
+                        invalidStart);
+          return;
+        }
+
+        start = val;
+      }
 
-      if (tz == null) {
-        tz = util.getAliasedTz(tzid);
+      if (ends != null) {
+        final Long val;
+        if (ends.length != 1) {
+          val = null;
+        } else {
+          val = parseUtc(ends[0]);
+        }
+
+        if ((val == null) || (val <= start)) {
+          errorResponse(resp,
+                        HttpServletResponse.SC_BAD_REQUEST,
+                        invalidEnd);
+          return;
+        }
+
+        end = val;
       }
 
-      if (tz == null) {
-        resp.setStatus(HttpServletResponse.SC_NOT_FOUND);
+      final CalFormat format = acceptedCalFormat(req.getHeader("Accept"));
+      final CachedContent cc;
+
+      if ((starts == null) && (ends == null)) {
+        cc = util.getCalendar(tzid, format);
       } else {
-        resp.setHeader("ETag", "\"" + util.getDtstamp() +
-                       "\"");
-        writeCalHdr(wtr);
+        cc = util.getTruncated(tzid, start, end, format);
+      }
 
-        wtr.write(tz);
+      resp.addHeader("Vary", "Accept");
 
-        writeCalTlr(wtr);
+      if (cc == null) {
+        resp.setContentType(format.getContentType());
+        resp.setStatus(HttpServletResponse.SC_NOT_FOUND);
+        return;
       }
+
+      /* Sets the per-zone etag and handles If-None-Match and
+         If-Modified-Since */
+      writeContent(req, resp, cc);
     } catch (final ServletException se) {
       throw se;
     } catch (final Throwable t) {
@@ -86,11 +140,24 @@ public class TzidHandler extends MethodBase {
     }
   }
 
-  private void writeCalHdr(final Writer wtr) throws Throwable  {
-    wtr.write(TzServerUtil.getCalHdr());
-  }
+  /* A year (1-4 digits) or an absolute date-time to millis. Null for
+     invalid */
+  private static Long parseUtc(final String val) {
+    final String dt;
+
+    if ((val.length() > 0) && (val.length() <= 4)) {
+      // Start of the year
+      dt = "0000".substring(val.length()) + val + "0101T000000Z";
+    } else {
+      dt = val;
+    }
+
+    final long res = IsoDateTime.parse(dt);
+
+    if ((res == IsoDateTime.invalid) || !IsoDateTime.isAbsolute(dt)) {
+      return null;
+    }
 
-  private void writeCalTlr(final Writer wtr) throws Throwable  {
-    wtr.write(TzServerUtil.getCalTlr());
+    return res * 1000;
   }
 }
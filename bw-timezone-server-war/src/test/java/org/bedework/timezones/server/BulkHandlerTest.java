@@ -0,0 +1,118 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.server;
+
+import org.bedework.timezones.server.MethodBase.LimitedInputStream;
+import org.bedework.timezones.server.MethodBase.TooLargeException;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/** Check the limit on POSTed bulk lists - it has to hold for bodies
+ * with no Content-Length - and how tzids are taken from a list.
+ *
+ * @author douglm
+ */
+public class BulkHandlerTest {
+  @Test
+  public void upToTheLimit() throws Throwable {
+    final InputStream in = limited(10, 10);
+    final byte[] buf = new byte[20];
+
+    assertEquals(4, in.read(buf, 0, 4));
+    assertEquals(0, in.read());
+    assertEquals(5, in.read(buf, 0, 20));
+    assertEquals(-1, in.read());
+    assertEquals(-1, in.read(buf, 0, 20));
+  }
+
+  @Test(expected = TooLargeException.class)
+  public void bulkRead() throws Throwable {
+    limited(11, 10).read(new byte[20], 0, 20);
+  }
+
+  @Test(expected = TooLargeException.class)
+  public void byteRead() throws Throwable {
+    final InputStream in = limited(11, 10);
+
+    for (int i = 0; i < 11; i++) {
+      in.read();
+    }
+  }
+
+  @Test(expected = TooLargeException.class)
+  public void skip() throws Throwable {
+    limited(11, 10).skip(11);
+  }
+
+  @Test(expected = TooLargeException.class)
+  public void lines() throws Throwable {
+    final StringBuilder sb = new StringBuilder();
+
+    while (sb.length() <= BulkHandler.maxPostLength) {
+      sb.append("America/New_York\n");
+    }
+
+    final BufferedReader rdr = new BufferedReader(new InputStreamReader(
+            new LimitedInputStream(
+                    new ByteArrayInputStream(sb.toString().getBytes("UTF-8")),
+                    BulkHandler.maxPostLength)));
+
+    while (rdr.readLine() != null) {
+    }
+  }
+
+  @Test
+  public void tzids() {
+    final List<String> ids = new ArrayList<>();
+
+    BulkHandler.addTzid(ids, null);
+    BulkHandler.addTzid(ids, "");
+    BulkHandler.addTzid(ids, " \t");
+    BulkHandler.addTzid(ids, " America/New_York");
+    BulkHandler.addTzid(ids, "Europe/London\r");
+
+    assertEquals(Arrays.asList("America/New_York", "Europe/London"), ids);
+  }
+
+  @Test
+  public void noMark() {
+    assertFalse(limited(1, 1).markSupported());
+  }
+
+  /* ====================================================================
+   *                   private methods
+   * ==================================================================== */
+
+  private static InputStream limited(final int size,
+                                     final int limit) {
+    return new LimitedInputStream(new ByteArrayInputStream(new byte[size]),
+                                  limit);
+  }
+}
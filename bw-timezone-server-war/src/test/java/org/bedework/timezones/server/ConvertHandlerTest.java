@@ -0,0 +1,67 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.server;
+
+import org.bedework.timezones.server.MethodBase.LimitedInputStream;
+import org.bedework.timezones.server.MethodBase.TooLargeException;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+
+/** Check the limit on POSTed conversion batches - it has to hold for
+ * bodies with no Content-Length.
+ *
+ * @author douglm
+ */
+public class ConvertHandlerTest {
+  @Test(expected = TooLargeException.class)
+  public void lines() throws Throwable {
+    final StringBuilder sb = new StringBuilder();
+
+    while (sb.length() <= ConvertHandler.maxPostLength) {
+      sb.append("2015-03-08T02:30:00 America/New_York Europe/London\n");
+    }
+
+    final BufferedReader rdr = new BufferedReader(new InputStreamReader(
+            new LimitedInputStream(
+                    new ByteArrayInputStream(sb.toString().getBytes("UTF-8")),
+                    ConvertHandler.maxPostLength)));
+
+    while (rdr.readLine() != null) {
+    }
+  }
+
+  /* One long line with no newline fails before it is all buffered */
+  @Test(expected = TooLargeException.class)
+  public void oneLine() throws Throwable {
+    final byte[] body = new byte[ConvertHandler.maxPostLength + 1];
+
+    Arrays.fill(body, (byte)'x');
+
+    final BufferedReader rdr = new BufferedReader(new InputStreamReader(
+            new LimitedInputStream(new ByteArrayInputStream(body),
+                                   ConvertHandler.maxPostLength)));
+
+    rdr.readLine();
+  }
+}
@@ -0,0 +1,97 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.timezones.server;
+
+import org.bedework.timezones.server.GetMethod.Route;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/** Check how GET requests without an action parameter are routed.
+ *
+ * @author douglm
+ */
+public class GetMethodRouteTest {
+  @Test
+  public void legacyParameters() {
+    assertEquals(Route.names, route("timezones", "names"));
+    assertEquals(Route.aliases, route("timezones", "aliases"));
+    assertEquals(Route.stats, route("timezones", "stats"));
+    assertEquals(Route.info, route("timezones", "info"));
+    assertEquals(Route.convert,
+                 route("timezones", "convert", "dt", "fromtzid", "totzid"));
+    assertEquals(Route.utc, route("timezones", "utc", "dt", "fromtzid"));
+    assertEquals(Route.oldGet, route("timezones", "tzid"));
+    assertEquals(Route.names, route("", "names"));
+  }
+
+  @Test
+  public void legacyParametersOnNewPaths() {
+    assertEquals(Route.oldGet, route("zones", "tzid"));
+    assertEquals(Route.names, route("capabilities", "names"));
+  }
+
+  @Test
+  public void legacyPath() {
+    assertEquals(Route.oldPath, route("timezones/America/New_York"));
+    assertEquals(Route.oldPath, route("timezones"));
+  }
+
+  @Test
+  public void pathRoutes() {
+    assertEquals(Route.capabilities, route("capabilities"));
+    assertEquals(Route.zones, route("zones"));
+    assertEquals(Route.zones, route("zones/Europe/London"));
+    assertEquals(Route.zones, route("zones", "pattern"));
+    assertEquals(Route.expand, route("observances/Europe/London",
+                                     "start", "end"));
+    assertNull(route("nosuchpath"));
+    assertNull(route(""));
+  }
+
+  @Test
+  public void bulkAndOffsetsTakeTheirOwnTzid() {
+    assertEquals(Route.bulk, route("bulk", "tzid"));
+    assertEquals(Route.offset, route("offsets", "tzid", "instant"));
+  }
+
+  /* path without a leading "/" followed by parameter names */
+  private static Route route(final String path,
+                             final String... params) {
+    final List<String> elements;
+
+    if (path.length() == 0) {
+      elements = Collections.emptyList();
+    } else {
+      elements = Arrays.asList(path.split("/"));
+    }
+
+    final Set<String> pars = new HashSet<>(Arrays.asList(params));
+
+    return GetMethod.route(elements, pars);
+  }
+}